@@ -0,0 +1,83 @@
+package SocketActionMessages;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * MessageTransport carrying length-prefixed binary frames (see FrameCodec).
+ * Unlike an ObjectOutputStream, nothing is retained per written frame, so the memory used by a connection stays
+ * flat for its whole lifetime. It is used for the sockets without a channel (e.g. the P2P connections);the sockets
+ * of the Client/Server connections have one and use the ChannelTransport.
+ *
+ * @author atgianne
+ */
+public class BinaryTransport implements MessageTransport
+{
+    /** The size of the buffers of the BufferedInputStream and the BufferedOutputStream */
+    private static final int STREAM_BUFFER = 8192;
+
+    /** The socket connection */
+    private final Socket socket;
+
+    /** Buffered binary streams of the socket connection */
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    /** The frame reused for every read */
+    private final Frame readFrame;
+
+    /** Scratch buffer for encoding the header of the written frames */
+    private final ByteBuffer header;
+
+    /**
+     * Creates a new instance of BinaryTransport
+     *
+     * @param socket The established socket connection
+     */
+    public BinaryTransport( Socket socket ) throws IOException
+    {
+        this.socket = socket;
+        this.out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream(), STREAM_BUFFER ) );
+        this.in = new DataInputStream( new BufferedInputStream( socket.getInputStream(), STREAM_BUFFER ) );
+        this.readFrame = new Frame();
+        this.header = ByteBuffer.allocate( FrameCodec.MAX_HEADER_LENGTH );
+    }
+
+    public void writeFrame( Frame frame ) throws IOException
+    {
+        /** More than one thread may write (e.g. a Client relaying keys while sending);only whole frames go out */
+        synchronized ( out )
+        {
+            FrameCodec.writeFrame( out, frame, header );
+            out.flush();
+        }
+    }
+
+    public Frame readFrame() throws IOException
+    {
+        FrameCodec.readFrame( in, readFrame );
+        return readFrame;
+    }
+
+    public boolean hasBufferedFrame()
+    {
+        /** The length of the next frame cannot be peeked at through the stream;so one frame per read */
+        return false;
+    }
+
+    public int getBufferBytes()
+    {
+        /** The buffers of the two buffered streams (of the default size) and ours */
+        return 2 * STREAM_BUFFER + header.capacity() + readFrame.getScratchCapacity();
+    }
+
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
@@ -0,0 +1,408 @@
+package SocketActionMessages;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct ByteBuffers for the network and crypto buffers of the messages (e.g. the AES-GCM records written to
+ * the clients and the received frames waiting to be processed), so that steady-state messaging does not allocate a
+ * new array for every record.
+ *
+ * The buffers come in size classes of powers of two, from MIN_CLASS to MAX_CLASS bytes; a lease gets a buffer of the
+ * smallest class that fits, with its limit set to the requested size. Released buffers are kept:
+ *
+ *     --in a small cache of the releasing thread (classes up to MAX_CACHED_CLASS only), taken without any locking
+ *     --otherwise in the shared stack of their class, up to SHARED_BYTES bytes per class;the rest is left to the GC
+ *
+ * Larger requests get an unpooled buffer. Every leased buffer must be released exactly once and must not be used
+ * afterwards; in debug mode (see setDebug) the pool records where each buffer was leased and reports the buffers
+ * that were garbage collected without being released, as well as the buffers released twice.
+ *
+ * @author atgianne
+ */
+public class BufferPool
+{
+    /** The smallest and the largest size classes (as powers of two) */
+    public static final int MIN_CLASS = 9;
+    public static final int MAX_CLASS = 21;
+
+    /** The largest size class cached per thread, and the number of buffers cached per thread and class */
+    private static final int MAX_CACHED_CLASS = 16;
+    private static final int THREAD_CACHE_SIZE = 8;
+
+    /** The number of bytes kept in the shared stack of every class */
+    private static final int SHARED_BYTES = 2 * 1024 * 1024;
+
+    /** The singleton instance of the pool */
+    private static BufferPool poolInstance;
+
+    /** The shared stacks of the free buffers, and their sizes, per size class (each guarded by its own array) */
+    private final ByteBuffer[][] shared;
+    private final int[] sharedCount;
+
+    /** The free buffers cached by every thread, per size class */
+    private final ThreadLocal<ThreadCache> threadCache;
+
+    /** Usage metrics */
+    private final LongAdder leases, threadHits, sharedHits, allocations, allocatedBytes, releases, discarded, leaks;
+
+    /** Debug mode;the live leases by identity hash code of their buffer, and the collected buffers */
+    private volatile boolean debug;
+    private final HashMap<Integer, Lease> live;
+    private final ReferenceQueue<ByteBuffer> collected;
+
+    /**
+     * Creates a new instance of BufferPool
+     */
+    private BufferPool()
+    {
+        int classes = MAX_CLASS - MIN_CLASS + 1;
+
+        shared = new ByteBuffer[ classes ][];
+        sharedCount = new int[ classes ];
+        for ( int i = 0; i < classes; i++ )
+            shared[ i ] = new ByteBuffer[ Math.max( 1, SHARED_BYTES >> ( MIN_CLASS + i ) ) ];
+
+        threadCache = ThreadLocal.withInitial( ThreadCache::new );
+
+        leases = new LongAdder();
+        threadHits = new LongAdder();
+        sharedHits = new LongAdder();
+        allocations = new LongAdder();
+        allocatedBytes = new LongAdder();
+        releases = new LongAdder();
+        discarded = new LongAdder();
+        leaks = new LongAdder();
+
+        debug = false;
+        live = new HashMap<>();
+        collected = new ReferenceQueue<>();
+    }
+
+    /**
+     * Make sure that we can only get one instance of the BufferPool (Singleton Pattern)
+     *
+     * @return The singleton instance of the pool
+     */
+    public static synchronized BufferPool getInstance()
+    {
+        if ( poolInstance == null )
+            poolInstance = new BufferPool();
+
+        return poolInstance;
+    }
+
+    /**
+     * Method for leasing a buffer of (at least) the given size.
+     *
+     * @param size The number of bytes needed
+     *
+     * @return A cleared direct buffer, in big endian order, with its limit set to the given size
+     */
+    public ByteBuffer lease( int size )
+    {
+        leases.increment();
+
+        int c = sizeClass( size );
+        ByteBuffer buf = null;
+
+        if ( c < 0 )
+        {
+            /** Too large to be pooled */
+            buf = allocate( size );
+        }
+        else
+        {
+            /** First the cache of this thread, then the shared stack, then a new one */
+            if ( c + MIN_CLASS <= MAX_CACHED_CLASS )
+                buf = threadCache.get().pop( c );
+
+            if ( buf != null )
+            {
+                threadHits.increment();
+            }
+            else
+            {
+                synchronized ( shared[ c ] )
+                {
+                    if ( sharedCount[ c ] > 0 )
+                    {
+                        buf = shared[ c ][ --sharedCount[ c ] ];
+                        shared[ c ][ sharedCount[ c ] ] = null;
+                    }
+                }
+
+                if ( buf != null )
+                    sharedHits.increment();
+                else
+                    buf = allocate( 1 << ( c + MIN_CLASS ) );
+            }
+        }
+
+        buf.clear().limit( size );
+        buf.order( ByteOrder.BIG_ENDIAN );
+
+        if ( debug )
+            track( buf );
+
+        return buf;
+    }
+
+    /**
+     * Method for returning a leased buffer to the pool. Buffers that do not come from the pool (e.g. heap buffers)
+     * are ignored.
+     *
+     * @param buf The leased buffer;it must not be used any more
+     */
+    public void release( ByteBuffer buf )
+    {
+        if ( buf == null || !buf.isDirect() )
+            return;
+
+        if ( debug )
+            untrack( buf );
+
+        releases.increment();
+
+        int c = Integer.numberOfTrailingZeros( buf.capacity() ) - MIN_CLASS;
+        if ( Integer.bitCount( buf.capacity() ) != 1 || c < 0 || c >= shared.length )
+            return;
+
+        if ( c + MIN_CLASS <= MAX_CACHED_CLASS && threadCache.get().push( c, buf ) )
+            return;
+
+        synchronized ( shared[ c ] )
+        {
+            if ( sharedCount[ c ] < shared[ c ].length )
+            {
+                shared[ c ][ sharedCount[ c ]++ ] = buf;
+                return;
+            }
+        }
+
+        /** The class has enough free buffers already */
+        discarded.increment();
+    }
+
+    /**
+     * Method for switching the debug mode on or off; in debug mode every lease records its stack trace, which is
+     * printed if the buffer is garbage collected without being released. It should be switched on before any
+     * buffer is leased;otherwise releasing the earlier leases is reported as a double release.
+     *
+     * @param debug TRUE for switching the leak detection on
+     */
+    public void setDebug( boolean debug )
+    {
+        synchronized ( live )
+        {
+            this.debug = debug;
+
+            if ( !debug )
+            {
+                for ( Lease lease : live.values() )
+                {
+                    for ( Lease l = lease; l != null; l = l.next )
+                        l.clear();
+                }
+
+                live.clear();
+            }
+        }
+    }
+
+    /**
+     * @return TRUE if the pool is in debug mode
+     */
+    public boolean isDebug()
+    {
+        return debug;
+    }
+
+    /**
+     * Method for getting the usage metrics of the pool.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        long leased = leases.sum();
+        long hits = threadHits.sum() + sharedHits.sum();
+
+        return "Buffer pool:: Leases:= " + leased +
+               " Thread cache hits:= " + threadHits.sum() +
+               " Shared hits:= " + sharedHits.sum() +
+               " Hit ratio:= " + ( ( leased == 0 ) ? 100 : ( 100 * hits / leased ) ) + "%" +
+               " Allocated:= " + allocations.sum() + " (" + ( allocatedBytes.sum() / 1024 ) + " KB)" +
+               " Outstanding:= " + ( leased - releases.sum() ) +
+               " Discarded:= " + discarded.sum() +
+               ( debug ? " Leaks:= " + leaks.sum() : "" ) + "\n";
+    }
+
+    /**
+     * @return The number of buffers leased and not released yet
+     */
+    public long getOutstanding()
+    {
+        return leases.sum() - releases.sum();
+    }
+
+    /**
+     * Method for getting the size class of a request.
+     *
+     * @return The index of the size class;-1 if the request is too large to be pooled
+     */
+    private static int sizeClass( int size )
+    {
+        if ( size <= ( 1 << MIN_CLASS ) )
+            return 0;
+
+        if ( size > ( 1 << MAX_CLASS ) )
+            return -1;
+
+        return 32 - Integer.numberOfLeadingZeros( size - 1 ) - MIN_CLASS;
+    }
+
+    /**
+     * Method for allocating a new buffer, when there is no free buffer of its class.
+     */
+    private ByteBuffer allocate( int capacity )
+    {
+        allocations.increment();
+        allocatedBytes.add( capacity );
+
+        return ByteBuffer.allocateDirect( capacity );
+    }
+
+    /**
+     * Method for recording a new lease (debug mode only);it also reports the leases collected since the last call.
+     */
+    private void track( ByteBuffer buf )
+    {
+        synchronized ( live )
+        {
+            reportLeaks();
+
+            Lease lease = new Lease( buf, collected );
+            lease.next = live.put( lease.hash, lease );
+        }
+    }
+
+    /**
+     * Method for ending a lease (debug mode only).
+     */
+    private void untrack( ByteBuffer buf )
+    {
+        synchronized ( live )
+        {
+            reportLeaks();
+
+            int hash = System.identityHashCode( buf );
+            Lease prev = null;
+
+            for ( Lease l = live.get( hash ); l != null; prev = l, l = l.next )
+            {
+                if ( l.get() == buf )
+                {
+                    unlink( hash, prev, l );
+                    l.clear();
+                    return;
+                }
+            }
+        }
+
+        /** Releasing it again would hand the same buffer to two users */
+        throw new IllegalStateException( "Buffer of " + buf.capacity() + " bytes released twice (or never leased)" );
+    }
+
+    /**
+     * Method for reporting the buffers that were collected while still leased.
+     */
+    private void reportLeaks()
+    {
+        Lease lease;
+        while ( ( lease = ( Lease )collected.poll() ) != null )
+        {
+            Lease prev = null;
+            for ( Lease l = live.get( lease.hash ); l != null; prev = l, l = l.next )
+            {
+                if ( l == lease )
+                {
+                    unlink( lease.hash, prev, l );
+                    leaks.increment();
+
+                    System.err.println( "LEAK: a buffer of " + lease.capacity + " bytes was garbage collected without being released" );
+                    lease.site.printStackTrace();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Method for removing a lease from its chain of the live leases.
+     */
+    private void unlink( int hash, Lease prev, Lease lease )
+    {
+        if ( prev != null )
+            prev.next = lease.next;
+        else if ( lease.next != null )
+            live.put( hash, lease.next );
+        else
+            live.remove( hash );
+    }
+
+    /**
+     * A lease recorded in debug mode; it refers to its buffer weakly, so that a buffer dropped without being
+     * released gets collected and reported.
+     */
+    private static class Lease extends WeakReference<ByteBuffer>
+    {
+        /** Where the buffer was leased */
+        final Throwable site;
+
+        final int hash, capacity;
+
+        /** The next lease with the same identity hash code */
+        Lease next;
+
+        Lease( ByteBuffer buf, ReferenceQueue<ByteBuffer> queue )
+        {
+            super( buf, queue );
+            this.site = new Throwable( "Leased at" );
+            this.hash = System.identityHashCode( buf );
+            this.capacity = buf.capacity();
+        }
+    }
+
+    /**
+     * The free buffers cached by a thread, per size class.
+     */
+    private static class ThreadCache
+    {
+        private final ByteBuffer[][] buffers = new ByteBuffer[ MAX_CACHED_CLASS - MIN_CLASS + 1 ][ THREAD_CACHE_SIZE ];
+        private final int[] count = new int[ MAX_CACHED_CLASS - MIN_CLASS + 1 ];
+
+        ByteBuffer pop( int c )
+        {
+            if ( count[ c ] == 0 )
+                return null;
+
+            ByteBuffer buf = buffers[ c ][ --count[ c ] ];
+            buffers[ c ][ count[ c ] ] = null;
+            return buf;
+        }
+
+        boolean push( int c, ByteBuffer buf )
+        {
+            if ( count[ c ] == THREAD_CACHE_SIZE )
+                return false;
+
+            buffers[ c ][ count[ c ]++ ] = buf;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package SocketActionMessages;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * MessageTransport carrying length-prefixed binary frames (see FrameCodec) directly over the (blocking) channel of
+ * the socket, without any stream buffering:
+ *
+ *     --a frame is written with a single gathering write of its header and its body (i.e. the IV, ciphertext and
+ *       tag of the record, as produced in place by the encryption, typically into a direct buffer of the BufferPool)
+ *     --frames are read (as many as available at once) into a per connection read buffer and decoded in place; the
+ *       body of the returned frame refers to the read buffer, so the record is decrypted without being copied.
+ *       hasBufferedFrame() tells whether the next frame is already there, so that a burst is drained per wakeup
+ *
+ * The header and the read buffers are direct buffers, so that the channel does not copy them through its own
+ * temporary direct buffers. A quiet connection waits for its next frame in a small read buffer of its own;only while
+ * the frames do not fit in it (or keep filling it up) is a larger one leased from the BufferPool, and it is returned
+ * as soon as the connection waits again with what is left fitting in the small one. So the memory of an idle
+ * connection does not depend on the largest frame it ever received. The leased buffer is only ever returned by the
+ * reading thread (also when its read fails because the socket was closed by another thread), never while in use.
+ *
+ * @author atgianne
+ */
+public class ChannelTransport implements MessageTransport
+{
+    /** Size of the read buffer of a quiet connection, and the least size of the one leased while frames flow */
+    private static final int IDLE_READ_BUFFER = 512, ACTIVE_READ_BUFFER = 16 * 1024;
+
+    /** The socket connection and its channel */
+    private final Socket socket;
+    private final SocketChannel channel;
+
+    /** The buffer the frames are read into (in read mode between two reads);either the small buffer of the
+        connection or one leased from the BufferPool */
+    private ByteBuffer readBuffer;
+    private final ByteBuffer idleBuffer;
+
+    /** Flag indicating whether the last read filled the read buffer up;i.e. the client is sending more than it holds */
+    private boolean busy;
+
+    /** The header of the frame being written and the buffers of the gathering write */
+    private final ByteBuffer header;
+    private final ByteBuffer[] gather;
+
+    /** The frame reused for every read */
+    private final Frame readFrame;
+
+    /**
+     * Creates a new instance of ChannelTransport
+     *
+     * @param socket The established socket connection; it must have a channel
+     */
+    public ChannelTransport( Socket socket )
+    {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        this.idleBuffer = ByteBuffer.allocateDirect( IDLE_READ_BUFFER );
+        this.idleBuffer.flip();
+        this.readBuffer = idleBuffer;
+        this.header = ByteBuffer.allocateDirect( FrameCodec.MAX_HEADER_LENGTH );
+        this.gather = new ByteBuffer[ 2 ];
+        this.readFrame = new Frame();
+    }
+
+    public void writeFrame( Frame frame ) throws IOException
+    {
+        /** More than one thread may write (e.g. a Client relaying keys while sending);only whole frames go out */
+        synchronized ( header )
+        {
+            header.clear();
+            FrameCodec.writeHeader( header, frame );
+            header.flip();
+
+            gather[ 0 ] = header;
+            gather[ 1 ] = frame.getBody();
+
+            while ( gather[ 1 ].hasRemaining() || header.hasRemaining() )
+                channel.write( gather );
+
+            gather[ 1 ] = null;
+        }
+    }
+
+    public Frame readFrame() throws IOException
+    {
+        /** The fixed header... */
+        fill( FrameCodec.HEADER_LENGTH );
+
+        /** ...and the rest of the frame */
+        fill( FrameCodec.HEADER_LENGTH + FrameCodec.peekPayloadLength( readBuffer ) );
+
+        FrameCodec.readFrame( readBuffer, readFrame );
+        return readFrame;
+    }
+
+    public boolean hasBufferedFrame()
+    {
+        if ( readBuffer.remaining() < FrameCodec.HEADER_LENGTH )
+            return false;
+
+        try
+        {
+            return readBuffer.remaining() >= FrameCodec.HEADER_LENGTH + FrameCodec.peekPayloadLength( readBuffer );
+        }
+        catch ( ProtocolException pe )
+        {
+            /** Let the next read report it */
+            return true;
+        }
+    }
+
+    /**
+     * Method for making sure the read buffer holds at least the given number of bytes, reading from the channel
+     * as needed. The bytes of the frames returned earlier may be moved or overwritten, and their buffer returned to
+     * the BufferPool.
+     *
+     * @param needed The number of bytes that must be available
+     */
+    private void fill( int needed ) throws IOException
+    {
+        if ( readBuffer.remaining() >= needed )
+            return;
+
+        /** Back to the small buffer while the client is quiet;a leased one only for a large frame or a busy client */
+        ByteBuffer target;
+        if ( needed <= IDLE_READ_BUFFER && !busy )
+            target = idleBuffer;
+        else if ( readBuffer != idleBuffer && readBuffer.capacity() >= needed )
+            target = readBuffer;
+        else
+            target = BufferPool.getInstance().lease( Math.max( needed, ACTIVE_READ_BUFFER ) );
+
+        if ( target == readBuffer )
+        {
+            target.compact();
+        }
+        else
+        {
+            /** Move what is left of the previous frames over... */
+            target.clear();
+            target.put( readBuffer );
+
+            if ( readBuffer != idleBuffer )
+                BufferPool.getInstance().release( readBuffer );
+            readBuffer = target;
+        }
+
+        /** The buffer is in write mode now...read whatever is available, but at least what is needed */
+        try
+        {
+            while ( target.position() < needed )
+            {
+                if ( channel.read( target ) < 0 )
+                    throw new EOFException( "Connection closed by the other end" );
+            }
+        }
+        catch ( IOException ioe )
+        {
+            /** The connection is over;hand the leased buffer back */
+            if ( readBuffer != idleBuffer )
+                BufferPool.getInstance().release( readBuffer );
+            readBuffer = idleBuffer;
+            readBuffer.clear().flip();
+
+            throw ioe;
+        }
+
+        busy = !target.hasRemaining();
+        target.flip();
+    }
+
+    public int getBufferBytes()
+    {
+        return idleBuffer.capacity() + header.capacity() + ( ( readBuffer != idleBuffer ) ? readBuffer.capacity() : 0 );
+    }
+
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
@@ -0,0 +1,140 @@
+package SocketActionMessages;
+
+import java.net.ProtocolException;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Optional Deflate compression of the chat plaintexts, applied before encryption. Both ends prime the compressor
+ * with the same preset dictionary of chat text (the formatting of the Server messages and frequent chat phrases),
+ * so that even short messages compress.
+ *
+ * Compression is negotiated per session: the Server sets FrameCodec.FLAG_COMPRESSED on its KEY_EXCHANGE frame and
+ * the Client on its LOGIN frame when they have it enabled; each frame whose plaintext was compressed carries the
+ * same flag. Since the length of a compressed plaintext depends on its content, compressing text that mixes secret
+ * and attacker-chosen data before encrypting it may leak the secret (CRIME-like attacks);so it is disabled by default.
+ *
+ * One instance is used per session and direction pair; the methods are synchronized since a Client may send from
+ * more than one thread.
+ *
+ * @author atgianne
+ */
+public class ChatCompressor
+{
+    /** The preset dictionary; the most frequent strings come last, where Deflate reaches them with the shortest distances */
+    private static final byte[] DICTIONARY = (
+            "Server has closed the connection  disconnected with a LOGOUT message.  just connected at port number: " +
+            "You have to JOIN room  before sending messages to it You left room Invalid room name " +
+            "WHOISIN LOGOUT PRIVATEMESSAGE JOIN LEAVE ROOM " +
+            "thanks thank you please sorry what where when why how who which would could should " +
+            "anyone everyone somebody tomorrow tonight today yesterday morning afternoon evening meeting " +
+            "I think I don't know I'm not sure I will let me know see you later talk to you later " +
+            "can you do you have you are are you there is there are it is that is this is what is " +
+            "hello hi hey yes no ok okay lol :) :( " +
+            " joined the room  left the room " +
+            "the and you for that with this have not but are was " +
+            "00:00:00 [lobby] : " ).getBytes( UTF_8 );
+
+    /** Plaintexts shorter than this are sent uncompressed */
+    private final int minLength;
+
+    /** The (raw Deflate) compressor and decompressor, reused for every message */
+    private final Deflater deflater;
+    private final Inflater inflater;
+
+    /** Scratch buffer of the compressor */
+    private byte[] buffer;
+
+    /**
+     * Creates a new instance of ChatCompressor
+     *
+     * @param minLength The length below which a plaintext is not worth compressing
+     */
+    public ChatCompressor( int minLength )
+    {
+        this.minLength = minLength;
+        this.deflater = new Deflater( Deflater.BEST_COMPRESSION, true );
+        this.inflater = new Inflater( true );
+        this.buffer = new byte[ 1024 ];
+    }
+
+    /**
+     * Method for compressing a plaintext, unless it is too short or it does not get any shorter.
+     *
+     * @param plaintext The plaintext to be compressed
+     *
+     * @return The compressed plaintext; null if the plaintext must be sent as it is
+     */
+    public synchronized byte[] compress( byte[] plaintext )
+    {
+        if ( plaintext.length < minLength )
+            return null;
+
+        deflater.reset();
+        deflater.setDictionary( DICTIONARY );
+        deflater.setInput( plaintext );
+        deflater.finish();
+
+        int length = 0;
+        while ( !deflater.finished() )
+        {
+            /** Not worth it;the compressed plaintext would be at least as long as the original one */
+            if ( length >= plaintext.length )
+                return null;
+
+            if ( length == buffer.length )
+                buffer = Arrays.copyOf( buffer, 2 * buffer.length );
+
+            length += deflater.deflate( buffer, length, buffer.length - length );
+        }
+
+        return ( length < plaintext.length ) ? Arrays.copyOf( buffer, length ) : null;
+    }
+
+    /**
+     * Method for decompressing a compressed plaintext; the output is bounded by the largest frame payload, so that
+     * a small frame cannot inflate into an arbitrary amount of memory.
+     *
+     * @param compressed The compressed plaintext
+     *
+     * @return The original plaintext
+     */
+    public synchronized byte[] decompress( byte[] compressed ) throws ProtocolException
+    {
+        inflater.reset();
+        inflater.setDictionary( DICTIONARY );
+        inflater.setInput( compressed );
+
+        byte[] out = new byte[ Math.max( 64, 4 * compressed.length ) ];
+        int length = 0;
+
+        try
+        {
+            while ( !inflater.finished() )
+            {
+                if ( length == out.length )
+                {
+                    if ( out.length >= FrameCodec.MAX_PAYLOAD_LENGTH )
+                        throw new ProtocolException( "Compressed message too large" );
+
+                    out = Arrays.copyOf( out, Math.min( 2 * out.length, FrameCodec.MAX_PAYLOAD_LENGTH ) );
+                }
+
+                int n = inflater.inflate( out, length, out.length - length );
+                if ( n == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) )
+                    throw new ProtocolException( "Truncated compressed message" );
+
+                length += n;
+            }
+        }
+        catch ( DataFormatException dfe )
+        {
+            throw new ProtocolException( "Malformed compressed message -- " + dfe.getMessage() );
+        }
+
+        return Arrays.copyOf( out, length );
+    }
+}
@@ -27,20 +27,55 @@ public class ChatMessage implements Serializable
 
     // LOGOUT to disconnect from the Server
 
-    public static final int WHOISIN = 0, MESSAGE = 1, LOGOUT = 2,PRIVATEMESSAGE = 3;
+    // JOIN/LEAVE to subscribe to/unsubscribe from a named room
+
+    // ROOM_MESSAGE a message delivered only to the members of a room
+
+    // PRIVATEMESSAGE a message end-to-end encrypted with the pairwise key of two clients, relayed as is by the Server
+
+    // PEER_KEY the pairwise key of two clients, encrypted and signed by the sender, relayed as is by the Server
+
+    // KEY_LOOKUP to receive the certificate of another client, by port and username (the Server replies with the same type)
+
+    // MAIL a message to a user by name, kept by the Server until the user logs in if it is not connected
+
+    // SEARCH a full-text query over the chat history, optionally preceded by "before:<sequence number>" for the next page
+
+    public static final int WHOISIN = 0, MESSAGE = 1, LOGOUT = 2,PRIVATEMESSAGE = 3, JOIN = 4, LEAVE = 5, ROOM_MESSAGE = 6,
+                            PEER_KEY = 7, KEY_LOOKUP = 8, MAIL = 9, SEARCH = 10;
+
+    // whether a message of the given type is a control message (scheduled ahead of the chat traffic)
+
+    public static boolean isControl(int type) {
+
+        return type == WHOISIN || type == LOGOUT || type == JOIN || type == LEAVE || type == PEER_KEY || type == KEY_LOOKUP;
+
+    }
 
     private int type;
 
     private String message;
 
+    // the room that JOIN, LEAVE and ROOM_MESSAGE refer to, or the recipient of a MAIL (null for the other types)
+
+    private String room;
+
      
 
-    // constructor
+    // constructors
 
     public ChatMessage(int type, String message) {
 
+        this(type, null, message);
+
+    }
+
+    public ChatMessage(int type, String room, String message) {
+
         this.type = type;
 
+        this.room = room;
+
         this.message = message;
 
     }
@@ -60,4 +95,10 @@ public class ChatMessage implements Serializable
         return message;
 
     }
+
+    public String getRoom() {
+
+        return room;
+
+    }
 }
@@ -0,0 +1,206 @@
+package SocketActionMessages;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Credit based flow control of the frames of a session, in both directions. The receiver of a direction grants
+ * credits (in frames) with CREDIT frames as it consumes the frames it received;the sender spends one credit per
+ * flow controlled frame and pauses whenever it runs out of them. So at most one window of frames is ever in flight
+ * or waiting to be processed, however slow the receiver is.
+ *
+ * Flow control is negotiated with FrameCodec.FLAG_CREDIT on the KEY_EXCHANGE and LOGIN frames; once both ends set
+ * it, each end grants its whole receive window with a first CREDIT frame and a sender starts with no credit at all.
+ * Later grants are sent every half window consumed, so that the sender does not stall while credits are in flight.
+ * CREDIT frames themselves are never flow controlled.
+ *
+ * From the Server to a Client every frame is flow controlled. From a Client to the Server only the chat frames that
+ * the Server fans out (MESSAGE and ROOM_MESSAGE) are;the control frames and the private channel are covered by the
+ * rate limits, and some of them are written by the listening thread of the Client, which must never wait for the
+ * very credits it is supposed to receive.
+ *
+ * @author atgianne
+ */
+public class CreditWindow
+{
+    /** The number of frames this end lets the other end send before it grants more */
+    private final int receiveWindow;
+
+    /** The credits this end may still spend (may run negative by a frame, see consume) */
+    private int sendCredits;
+
+    /** The credits the other end still holds, and the frames consumed since the last grant */
+    private int receiveCredits, consumed;
+
+    /** Statistics of the window */
+    private long framesSent, framesReceived, grantsSent, grantsReceived, pauses;
+
+    /**
+     * Creates a new instance of CreditWindow
+     *
+     * @param receiveWindow The number of frames the other end may send before it has to wait for a grant
+     */
+    public CreditWindow( int receiveWindow )
+    {
+        this.receiveWindow = Math.max( 2, receiveWindow );
+        this.sendCredits = 0;
+        this.receiveCredits = 0;
+        this.consumed = 0;
+    }
+
+    /**
+     * Method for getting the first grant of this end;i.e. its whole receive window.
+     *
+     * @return The CREDIT frame to be sent
+     */
+    public synchronized Frame initialGrant()
+    {
+        receiveCredits += receiveWindow;
+        grantsSent++;
+
+        return creditFrame( receiveWindow );
+    }
+
+    /**
+     * Method for accounting a flow controlled frame received from the other end.
+     *
+     * @throws ProtocolException If the other end sent more frames than it was granted
+     */
+    public synchronized void onReceived() throws ProtocolException
+    {
+        if ( receiveCredits <= 0 )
+            throw new ProtocolException( "Flow control window exceeded" );
+
+        receiveCredits--;
+        framesReceived++;
+    }
+
+    /**
+     * Method for accounting a received frame that was consumed (processed or discarded).
+     *
+     * @return The CREDIT frame to be sent to the other end; null if it is not time for a grant yet
+     */
+    public synchronized Frame onConsumed()
+    {
+        if ( ++consumed < receiveWindow / 2 )
+            return null;
+
+        int grant = consumed;
+        consumed = 0;
+        receiveCredits += grant;
+        grantsSent++;
+
+        return creditFrame( grant );
+    }
+
+    /**
+     * Method for handling a CREDIT frame of the other end; a sender waiting for credits is woken up.
+     *
+     * @param frame The received CREDIT frame
+     */
+    public synchronized void onGrant( Frame frame ) throws ProtocolException
+    {
+        ByteBuffer body = frame.getBody();
+        if ( body.remaining() != 4 )
+            throw new ProtocolException( "Invalid credit frame length " + body.remaining() );
+
+        int grant = body.getInt();
+        if ( grant <= 0 )
+            throw new ProtocolException( "Invalid credit grant " + grant );
+
+        sendCredits += grant;
+        grantsReceived++;
+
+        notifyAll();
+    }
+
+    /**
+     * @return TRUE if this end may send a flow controlled frame right now
+     */
+    public synchronized boolean hasCredit()
+    {
+        return sendCredits > 0;
+    }
+
+    /**
+     * Method for spending a credit for a frame that is sent right away; the caller must have checked hasCredit()
+     * beforehand, except for a frame it cannot hold back, which overdraws the window by one frame.
+     */
+    public synchronized void consume()
+    {
+        sendCredits--;
+        framesSent++;
+
+        if ( sendCredits == 0 )
+            pauses++;
+    }
+
+    /**
+     * Method for waiting (if needed) for a credit and spending it.
+     *
+     * @param timeout The longest time (in milliseconds) to wait
+     *
+     * @return TRUE if a credit was spent; FALSE if the other end granted none in time
+     */
+    public synchronized boolean acquire( long timeout ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while ( sendCredits <= 0 )
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if ( remaining <= 0 )
+                return false;
+
+            wait( remaining );
+        }
+
+        consume();
+        return true;
+    }
+
+    /**
+     * @return The credits this end may still spend
+     */
+    public synchronized int getSendCredits()
+    {
+        return sendCredits;
+    }
+
+    /**
+     * Method for getting a printable report of the window, e.g. for the per connection information.
+     *
+     * @return The report
+     */
+    public synchronized String getReport()
+    {
+        return "Flow control:= Send credits " + sendCredits + " (" + framesSent + " frames sent, " + grantsReceived + " grants received, " +
+               pauses + " pauses) Receive window " + receiveWindow + " (" + receiveCredits + " credits held by the peer, " +
+               framesReceived + " frames received, " + grantsSent + " grants sent)\n";
+    }
+
+    /**
+     * Method for checking whether a frame sent by a Client to the Server is flow controlled.
+     *
+     * @param type The type of the frame
+     *
+     * @return TRUE for the chat frames fanned out by the Server
+     */
+    public static boolean isUpstreamControlled( int type )
+    {
+        return type == ChatMessage.MESSAGE || type == ChatMessage.ROOM_MESSAGE;
+    }
+
+    /**
+     * Method for building a CREDIT frame.
+     *
+     * @param grant The number of frames granted
+     */
+    private static Frame creditFrame( int grant )
+    {
+        ByteBuffer body = ByteBuffer.allocate( 4 );
+        body.putInt( 0, grant );
+
+        return new Frame( FrameCodec.CREDIT, body.array() );
+    }
+}
@@ -0,0 +1,312 @@
+package SocketActionMessages;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class defines a single frame exchanged between the Clients and the Server (or between two P2P Clients).
+ * A frame consists of a type (one of the ChatMessage types or one of the handshake types of the FrameCodec),
+ * some flags, the typed header fields of its type (e.g. the room of a ROOM_MESSAGE or the peer of a PRIVATEMESSAGE)
+ * and a body; for the chat
+ * types the body is the raw AES-GCM record, i.e. IV, ciphertext and tag.
+ *
+ * When read from a MessageTransport, the same Frame instance (and its body buffer) is reused for every frame
+ * of the connection, so its contents are only valid until the next read; use copy() to keep a frame around. The
+ * body of a copy is leased from the BufferPool and must be given back with release() once the frame is done with.
+ *
+ * @author atgianne
+ */
+public class Frame
+{
+    /** The body of the empty frames */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate( 0 );
+
+    /** The version of the frame format */
+    private int version;
+
+    /** The type and the flags of the frame */
+    private int type, flags;
+
+    /** The room that JOIN, LEAVE and ROOM_MESSAGE frames refer to, or the recipient of a MAIL (null for the other types) */
+    private String room;
+
+    /** The other client that PRIVATEMESSAGE, PEER_KEY and KEY_LOOKUP frames refer to (its port number); the
+        recipient when written by a Client, the sender (or the looked up client) when written by the Server */
+    private int peer;
+
+    /** The journal sequence number of the (last) chat message in a MESSAGE frame flagged with FrameCodec.FLAG_SEQ */
+    private long seq;
+
+    /** The buffer holding the body of the frame and the position of the body in it */
+    private ByteBuffer body;
+    private int bodyOffset, bodyLength;
+
+    /** Flag indicating whether the body buffer was leased from the BufferPool (see copy and release) */
+    private boolean pooled;
+
+    /** The heap buffer the bodies read from a stream are read into (see ensureBodyCapacity) */
+    private ByteBuffer scratch;
+
+    /**
+     * Creates a new, empty, frame to be filled in by a MessageTransport.
+     */
+    public Frame()
+    {
+        this( 0, null, EMPTY );
+    }
+
+    /**
+     * Creates a new frame to be written to a MessageTransport.
+     *
+     * @param type The type of the frame
+     * @param room The room of the frame (JOIN, LEAVE and ROOM_MESSAGE only), or the recipient of a MAIL
+     * @param body The body of the frame
+     */
+    public Frame( int type, String room, byte[] body )
+    {
+        this( type, room, ByteBuffer.wrap( body ) );
+    }
+
+    /**
+     * Creates a new frame to be written to a MessageTransport, with its body in a (e.g. leased) buffer.
+     *
+     * @param type The type of the frame
+     * @param room The room of the frame (JOIN, LEAVE and ROOM_MESSAGE only), or the recipient of a MAIL
+     * @param body The buffer holding the body of the frame between its position and its limit
+     */
+    public Frame( int type, String room, ByteBuffer body )
+    {
+        this.version = FrameCodec.VERSION;
+        this.type = type;
+        this.flags = 0;
+        this.room = room;
+        this.body = body;
+        this.bodyOffset = body.position();
+        this.bodyLength = body.remaining();
+        this.pooled = false;
+    }
+
+    /**
+     * Creates a new frame for another client to be written to a MessageTransport.
+     *
+     * @param type The type of the frame (PRIVATEMESSAGE, PEER_KEY or KEY_LOOKUP)
+     * @param peer The other client of the frame
+     * @param body The body of the frame
+     */
+    public Frame( int type, int peer, byte[] body )
+    {
+        this( type, null, body );
+        this.peer = peer;
+    }
+
+    /**
+     * Creates a new frame for another client to be written to a MessageTransport, with its body in a (e.g. leased) buffer.
+     *
+     * @param type The type of the frame (PRIVATEMESSAGE, PEER_KEY or KEY_LOOKUP)
+     * @param peer The other client of the frame
+     * @param body The buffer holding the body of the frame between its position and its limit
+     */
+    public Frame( int type, int peer, ByteBuffer body )
+    {
+        this( type, null, body );
+        this.peer = peer;
+    }
+
+    /**
+     * Creates a new frame without room to be written to a MessageTransport.
+     *
+     * @param type The type of the frame
+     * @param body The body of the frame
+     */
+    public Frame( int type, byte[] body )
+    {
+        this( type, null, body );
+    }
+
+    /**
+     * Creates a new frame without room to be written to a MessageTransport, with its body in a (e.g. leased) buffer.
+     *
+     * @param type The type of the frame
+     * @param body The buffer holding the body of the frame between its position and its limit
+     */
+    public Frame( int type, ByteBuffer body )
+    {
+        this( type, null, body );
+    }
+
+    /**
+     * Method for getting a detached copy of this frame; the body is copied into a buffer leased from the BufferPool,
+     * so the copy must be released once it is done with.
+     *
+     * @return The copy of the frame
+     */
+    public Frame copy()
+    {
+        ByteBuffer leased = BufferPool.getInstance().lease( bodyLength );
+        leased.put( 0, body, bodyOffset, bodyLength );
+
+        Frame f = new Frame( type, room, leased );
+        f.version = version;
+        f.flags = flags;
+        f.peer = peer;
+        f.seq = seq;
+        f.pooled = true;
+
+        return f;
+    }
+
+    /**
+     * Method for giving the body buffer of a copy back to the BufferPool; the frame is left with an empty body.
+     * It does nothing for the other frames, so it may be called for any frame that is done with.
+     */
+    public void release()
+    {
+        if ( !pooled )
+            return;
+
+        ByteBuffer leased = body;
+        pooled = false;
+        setBody( EMPTY, 0, 0 );
+
+        BufferPool.getInstance().release( leased );
+    }
+
+    /**
+     * Method for getting the body of the frame as an array of the exact size (copied only if necessary).
+     *
+     * @return The body of the frame
+     */
+    public byte[] getBodyBytes()
+    {
+        if ( body.hasArray() && body.arrayOffset() + bodyOffset == 0 && bodyLength == body.array().length )
+            return body.array();
+
+        byte[] bytes = new byte[ bodyLength ];
+        body.get( bodyOffset, bytes );
+
+        return bytes;
+    }
+
+    /**
+     * Method for making sure the body buffer can hold the given number of bytes; used when reading a frame.
+     *
+     * @param length The length of the body to be read
+     *
+     * @return The (possibly new) heap buffer to read the body into, from its start
+     */
+    ByteBuffer ensureBodyCapacity( int length )
+    {
+        if ( scratch == null || scratch.capacity() < length )
+            scratch = ByteBuffer.allocate( Math.max( length, ( scratch == null ) ? 256 : 2 * scratch.capacity() ) );
+
+        setBody( scratch, 0, length );
+
+        return scratch;
+    }
+
+    /**
+     * @return The capacity of the heap buffer the bodies read from a stream are read into;0 if none was needed yet
+     */
+    int getScratchCapacity()
+    {
+        ByteBuffer s = scratch;
+
+        return ( s == null ) ? 0 : s.capacity();
+    }
+
+    // getters
+
+    public int getVersion() {
+
+        return version;
+
+    }
+
+    public int getType() {
+
+        return type;
+
+    }
+
+    public int getFlags() {
+
+        return flags;
+
+    }
+
+    public String getRoom() {
+
+        return room;
+
+    }
+
+    public int getPeer() {
+
+        return peer;
+
+    }
+
+    public long getSeq() {
+
+        return seq;
+
+    }
+
+    /** The body is returned as a new view of the body buffer, positioned at the body;consuming it leaves the frame untouched */
+    public ByteBuffer getBody() {
+
+        return body.duplicate().limit( bodyOffset + bodyLength ).position( bodyOffset );
+
+    }
+
+    public int getBodyLength() {
+
+        return bodyLength;
+
+    }
+
+    // setters
+
+    void setVersion(int version) {
+
+        this.version = version;
+
+    }
+
+    public void setType(int type) {
+
+        this.type = type;
+
+    }
+
+    public void setFlags(int flags) {
+
+        this.flags = flags;
+
+    }
+
+    public void setRoom(String room) {
+
+        this.room = room;
+
+    }
+
+    public void setPeer(int peer) {
+
+        this.peer = peer;
+
+    }
+
+    public void setSeq(long seq) {
+
+        this.seq = seq;
+
+    }
+
+    void setBody(ByteBuffer body, int offset, int length) {
+
+        this.body = body;
+        this.bodyOffset = offset;
+        this.bodyLength = length;
+
+    }
+}
@@ -0,0 +1,326 @@
+package SocketActionMessages;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.net.ProtocolException;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * This class defines the length-prefixed binary format of the frames exchanged between the Clients and the Server.
+ * Every frame is laid out as:
+ *
+ *     version (1 byte) | type (1 byte) | flags (1 byte) | length (4 bytes) | typed header fields | body
+ *
+ * where length counts the typed header fields and the body. The typed header fields depend on the type:
+ * JOIN, LEAVE and ROOM_MESSAGE carry the room name (1 byte length + UTF-8), MAIL carries its recipient the same way,
+ * PRIVATEMESSAGE, PEER_KEY and KEY_LOOKUP carry the peer (4 bytes), a MESSAGE flagged with FLAG_SEQ carries the
+ * journal sequence number (8 bytes), the other types carry none.
+ * For the chat types the body is the raw AES-GCM record (IV, ciphertext and tag) as produced by
+ * cryptoManager.encryptRecord, i.e. without any Base64 or Java serialization overhead.
+ *
+ * Reading decodes straight into a reused Frame and its body buffer (or, for a channel, the read buffer of the
+ * connection), so a connection does not allocate per frame once its buffer has grown to the size of its largest frame.
+ *
+ * @author atgianne
+ */
+public class FrameCodec
+{
+    /** The current version of the frame format */
+    public static final int VERSION = 1;
+
+    /** Length of the fixed frame header, and of the longest header including the typed header fields */
+    public static final int HEADER_LENGTH = 7, MAX_HEADER_LENGTH = HEADER_LENGTH + 1 + 255;
+
+    /** Maximum length of the payload (typed header fields and body) of a frame */
+    public static final int MAX_PAYLOAD_LENGTH = 1 << 20;
+
+    // Frame types used during the handshake (the chat types are the ones of ChatMessage)
+
+    // CERTIFICATE the X.509 certificate of the sender (DER encoded)
+
+    // KEY_EXCHANGE signed key material; i.e. the encrypted session key or the Diffie-Hellman value of a P2P peer
+
+    // LOGIN the username of the client, encrypted with the session key
+
+    public static final int CERTIFICATE = 32, KEY_EXCHANGE = 33, LOGIN = 34;
+
+    // Frame type of the flow control (see CreditWindow)
+
+    // CREDIT the number of frames (4 bytes) the receiver grants to the sender
+
+    public static final int CREDIT = 35;
+
+    // Frame type of the history replay
+
+    // HISTORY from a Client: the history it asks for, i.e. mode (1 byte) | value (8 bytes), see the HISTORY_ modes;
+    // from the Server: the sequence number (8 bytes) of the last journaled message replayed, once the replay is over
+
+    public static final int HISTORY = 36;
+
+    // HISTORY_LAST the last value messages; HISTORY_SINCE_SEQ the messages after sequence number value;
+    // HISTORY_SINCE_TIME the messages journaled at or after time value (in milliseconds)
+
+    public static final int HISTORY_LAST = 0, HISTORY_SINCE_SEQ = 1, HISTORY_SINCE_TIME = 2;
+
+    // Frame type of the proofs of the history
+
+    // PROOF from a Client: the journal sequence number (8 bytes) of the message it wants proven; from the Server: the
+    // InclusionProof of the message, encrypted with the session key (like a chat body)
+
+    public static final int PROOF = 37;
+
+    // Frame type of the warm restart (see SessionTicket)
+
+    // RESUME from a Client, instead of its CERTIFICATE: the session it had before the Server restarted, with the proof
+    // that it knows its key; from the Server: the proof that it knows the key too, flagged like a KEY_EXCHANGE, or an
+    // empty body refusing the resumption (the Client then sends its CERTIFICATE)
+
+    public static final int RESUME = 38;
+
+    // Frame flags
+
+    // FLAG_BATCH on a LOGIN frame: the client can unpack message batches; on a MESSAGE frame: the body is a MessageBatch
+
+    // FLAG_COMPRESSED on a KEY_EXCHANGE or LOGIN frame: the sender supports compression; on a chat frame: the
+    // plaintext of the body is compressed with the ChatCompressor
+
+    // FLAG_CREDIT on a KEY_EXCHANGE or LOGIN frame: the sender supports credit based flow control
+
+    // FLAG_SEQ on a KEY_EXCHANGE frame: the server journals the messages and replays the history (see HISTORY); on a
+    // LOGIN frame: the client wants the journal sequence numbers of its messages; on a MESSAGE frame: the header
+    // carries the sequence number of the last journaled message in the body
+
+    // FLAG_KEY_BATCH on a KEY_EXCHANGE frame: the session key was signed in a batch (see SessionKeyBatch); the body is
+    // the encrypted session key followed by its proof, instead of the signature followed by the encrypted session key
+
+    public static final int FLAG_BATCH = 0x01, FLAG_COMPRESSED = 0x02, FLAG_CREDIT = 0x04, FLAG_SEQ = 0x08, FLAG_KEY_BATCH = 0x10;
+
+    /**
+     * Method for checking whether a frame type carries a room name in its header.
+     *
+     * @param type The type of the frame
+     *
+     * @return TRUE for JOIN, LEAVE, ROOM_MESSAGE and MAIL (its recipient); FALSE otherwise
+     */
+    public static boolean hasRoom( int type )
+    {
+        return type == ChatMessage.JOIN || type == ChatMessage.LEAVE || type == ChatMessage.ROOM_MESSAGE || type == ChatMessage.MAIL;
+    }
+
+    /**
+     * Method for checking whether a frame type carries a peer in its header.
+     *
+     * @param type The type of the frame
+     *
+     * @return TRUE for PRIVATEMESSAGE, PEER_KEY and KEY_LOOKUP; FALSE otherwise
+     */
+    public static boolean hasPeer( int type )
+    {
+        return type == ChatMessage.PRIVATEMESSAGE || type == ChatMessage.PEER_KEY || type == ChatMessage.KEY_LOOKUP;
+    }
+
+    /**
+     * Method for checking whether a frame carries a journal sequence number in its header.
+     *
+     * @param type The type of the frame
+     * @param flags The flags of the frame
+     *
+     * @return TRUE for a MESSAGE flagged with FLAG_SEQ; FALSE otherwise
+     */
+    public static boolean hasSeq( int type, int flags )
+    {
+        return type == ChatMessage.MESSAGE && ( flags & FLAG_SEQ ) != 0;
+    }
+
+    /**
+     * Method for encoding the fixed header and the typed header fields of a frame.
+     *
+     * @param out The buffer to encode into; at least MAX_HEADER_LENGTH bytes must remain in it
+     * @param frame The frame to be written
+     */
+    public static void writeHeader( ByteBuffer out, Frame frame ) throws ProtocolException
+    {
+        byte[] room = null;
+        int length = frame.getBodyLength();
+
+        if ( hasRoom( frame.getType() ) )
+        {
+            room = ( frame.getRoom() == null ) ? new byte[ 0 ] : frame.getRoom().getBytes( UTF_8 );
+            if ( room.length > 255 )
+                throw new ProtocolException( "Room name too long" );
+
+            length += 1 + room.length;
+        }
+        else if ( hasPeer( frame.getType() ) )
+        {
+            length += 4;
+        }
+        else if ( hasSeq( frame.getType(), frame.getFlags() ) )
+        {
+            length += 8;
+        }
+
+        if ( length > MAX_PAYLOAD_LENGTH )
+            throw new ProtocolException( "Frame too large (" + length + " bytes)" );
+
+        /** The fixed header... */
+        out.put( ( byte )VERSION );
+        out.put( ( byte )frame.getType() );
+        out.put( ( byte )frame.getFlags() );
+        out.putInt( length );
+
+        /** ...and the typed header fields */
+        if ( room != null )
+        {
+            out.put( ( byte )room.length );
+            out.put( room );
+        }
+        else if ( hasPeer( frame.getType() ) )
+        {
+            out.putInt( frame.getPeer() );
+        }
+        else if ( hasSeq( frame.getType(), frame.getFlags() ) )
+        {
+            out.putLong( frame.getSeq() );
+        }
+    }
+
+    /**
+     * Method for writing a frame to a binary stream. The stream is not flushed.
+     *
+     * @param out The stream to write to
+     * @param frame The frame to be written
+     * @param header Scratch buffer (of MAX_HEADER_LENGTH bytes) for encoding the header
+     */
+    public static void writeFrame( DataOutputStream out, Frame frame, ByteBuffer header ) throws IOException
+    {
+        header.clear();
+        writeHeader( header, frame );
+
+        out.write( header.array(), 0, header.position() );
+
+        ByteBuffer body = frame.getBody();
+        if ( body.hasArray() )
+            out.write( body.array(), body.arrayOffset() + body.position(), body.remaining() );
+        else
+            out.write( frame.getBodyBytes() );
+    }
+
+    /**
+     * Method for reading the next frame from a binary stream. It blocks until the whole frame is available.
+     *
+     * @param in The stream to read from
+     * @param frame The (reused) frame to decode into
+     */
+    public static void readFrame( DataInputStream in, Frame frame ) throws IOException
+    {
+        /** The fixed header... */
+        int version = in.readUnsignedByte();
+        if ( version != VERSION )
+            throw new ProtocolException( "Unsupported frame version " + version );
+
+        int type = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        int length = in.readInt();
+
+        if ( length < 0 || length > MAX_PAYLOAD_LENGTH )
+            throw new ProtocolException( "Invalid frame length " + length );
+
+        frame.setVersion( version );
+        frame.setType( type );
+        frame.setFlags( flags );
+
+        /** ...then the typed header fields and the body, straight into the reused buffer */
+        ByteBuffer payload = frame.ensureBodyCapacity( length );
+        in.readFully( payload.array(), 0, length );
+
+        decodePayload( frame, payload, 0, length );
+    }
+
+    /**
+     * Method for getting the payload length of the frame starting at the position of a buffer (which is left
+     * untouched); the fixed header must be in the buffer.
+     *
+     * @param in The buffer holding at least HEADER_LENGTH bytes of the frame
+     *
+     * @return The length of the typed header fields and the body of the frame
+     */
+    public static int peekPayloadLength( ByteBuffer in ) throws ProtocolException
+    {
+        int version = in.get( in.position() ) & 0xff;
+        if ( version != VERSION )
+            throw new ProtocolException( "Unsupported frame version " + version );
+
+        int length = in.getInt( in.position() + 3 );
+        if ( length < 0 || length > MAX_PAYLOAD_LENGTH )
+            throw new ProtocolException( "Invalid frame length " + length );
+
+        return length;
+    }
+
+    /**
+     * Method for decoding a frame that is entirely in a (heap or direct) buffer. Nothing is copied;the body of the
+     * frame refers to the buffer, so it is only valid until the buffer is reused.
+     *
+     * @param in The buffer holding the whole frame at its position; its position is moved past the frame
+     * @param frame The (reused) frame to decode into
+     */
+    public static void readFrame( ByteBuffer in, Frame frame ) throws ProtocolException
+    {
+        int length = peekPayloadLength( in );
+
+        frame.setVersion( in.get() & 0xff );
+        frame.setType( in.get() & 0xff );
+        frame.setFlags( in.get() & 0xff );
+        in.getInt();
+
+        decodePayload( frame, in, in.position(), length );
+        in.position( in.position() + length );
+    }
+
+    /**
+     * Method for decoding the typed header fields of a frame (of an already set type) and pointing its body to the
+     * rest of the payload (which starts at the given absolute index of the buffer).
+     */
+    private static void decodePayload( Frame frame, ByteBuffer payload, int offset, int length ) throws ProtocolException
+    {
+        int type = frame.getType();
+        int fields = 0;
+
+        frame.setRoom( null );
+        frame.setPeer( 0 );
+        frame.setSeq( 0 );
+
+        if ( hasRoom( type ) )
+        {
+            int roomLength = ( length < 1 ) ? -1 : payload.get( offset ) & 0xff;
+            if ( roomLength < 0 || roomLength + 1 > length )
+                throw new ProtocolException( "Invalid room length " + roomLength );
+
+            byte[] room = new byte[ roomLength ];
+            payload.get( offset + 1, room );
+            frame.setRoom( new String( room, UTF_8 ) );
+            fields = 1 + roomLength;
+        }
+        else if ( hasPeer( type ) )
+        {
+            if ( length < 4 )
+                throw new ProtocolException( "Invalid frame length " + length );
+
+            frame.setPeer( payload.getInt( offset ) );
+            fields = 4;
+        }
+        else if ( hasSeq( type, frame.getFlags() ) )
+        {
+            if ( length < 8 )
+                throw new ProtocolException( "Invalid frame length " + length );
+
+            frame.setSeq( payload.getLong( offset ) );
+            fields = 8;
+        }
+
+        frame.setBody( payload, offset + fields, length - fields );
+    }
+}
@@ -0,0 +1,138 @@
+package SocketActionMessages;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * This class packs several chat messages into the plaintext of a single AEAD record, so that a burst of messages
+ * for the same client costs one IV, one tag, one frame and one flush instead of one each. The plaintext of a batch
+ * is laid out as:
+ *
+ *     length (4 bytes) | UTF-8 message | length (4 bytes) | UTF-8 message | ...
+ *
+ * A frame carrying a batch is marked with FrameCodec.FLAG_BATCH; the Server only sends batches to the Clients that
+ * set the same flag in their LOGIN frame.
+ *
+ * @author atgianne
+ */
+public class MessageBatch
+{
+    /** The packed messages */
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream out;
+
+    /** Number of packed messages */
+    private int count;
+
+    /**
+     * Creates a new, empty, instance of MessageBatch
+     */
+    public MessageBatch()
+    {
+        buffer = new ByteArrayOutputStream();
+        out = new DataOutputStream( buffer );
+        count = 0;
+    }
+
+    /**
+     * Method for appending a message to the batch.
+     *
+     * @param msg The message to be packed
+     */
+    public void add( String msg )
+    {
+        add( msg.getBytes( UTF_8 ) );
+    }
+
+    /**
+     * Method for appending an (already UTF-8 encoded) message to the batch.
+     *
+     * @param bytes The message to be packed
+     */
+    public void add( byte[] bytes )
+    {
+        try
+        {
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+        catch ( IOException ioe )
+        {
+            /** Never happens;we write to memory */
+            throw new IllegalStateException( ioe );
+        }
+
+        count++;
+    }
+
+    /**
+     * Method for getting the packed plaintext of the batch.
+     *
+     * @return The plaintext to be encrypted
+     */
+    public byte[] toByteArray()
+    {
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Method for emptying the batch, keeping its buffer for the next one.
+     */
+    public void reset()
+    {
+        buffer.reset();
+        count = 0;
+    }
+
+    /**
+     * @return The number of packed messages
+     */
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * @return The number of packed bytes
+     */
+    public int size()
+    {
+        return buffer.size();
+    }
+
+    /**
+     * Method for unpacking the messages of a (decrypted) batch.
+     *
+     * @param plaintext The decrypted plaintext of the batch
+     *
+     * @return The packed messages, in the order they were added
+     */
+    public static List<String> unpack( byte[] plaintext ) throws ProtocolException
+    {
+        List<String> messages = new ArrayList<>();
+        int pos = 0;
+
+        while ( pos < plaintext.length )
+        {
+            if ( plaintext.length - pos < 4 )
+                throw new ProtocolException( "Truncated message batch" );
+
+            int length = ( ( plaintext[ pos ] & 0xff ) << 24 ) | ( ( plaintext[ pos + 1 ] & 0xff ) << 16 ) |
+                         ( ( plaintext[ pos + 2 ] & 0xff ) << 8 ) | ( plaintext[ pos + 3 ] & 0xff );
+            pos += 4;
+
+            if ( length < 0 || length > plaintext.length - pos )
+                throw new ProtocolException( "Invalid message length " + length + " in batch" );
+
+            messages.add( new String( plaintext, pos, length, UTF_8 ) );
+            pos += length;
+        }
+
+        return messages;
+    }
+}
@@ -0,0 +1,75 @@
+package SocketActionMessages;
+
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * This interface is supported by the transports carrying Frames over a socket connection.
+ * Two transports exist: the length-prefixed binary framing of the FrameCodec (the default) and, for compatibility
+ * with older peers, the original Java serialization of Certificates, byte arrays, Strings and ChatMessages.
+ * The transport is selected with the "Transport.Mode" configuration property; both ends must use the same one.
+ *
+ * @author atgianne
+ */
+public interface MessageTransport
+{
+    /** The supported values of the "Transport.Mode" property */
+    public static final String MODE_BINARY = "binary", MODE_OBJECT = "object";
+
+    /**
+     * Method declaration for writing (and flushing) a frame to the connection.
+     *
+     * @param frame The frame to be written
+     */
+    abstract public void writeFrame( Frame frame ) throws IOException;
+
+    /**
+     * Method declaration for reading the next frame from the connection. It blocks until a frame is available.
+     * The returned frame is reused by the transport; it is only valid until the next call.
+     *
+     * @return The received frame
+     */
+    abstract public Frame readFrame() throws IOException;
+
+    /**
+     * Method declaration for checking whether the next frame has already been received in full;i.e. whether
+     * readFrame() would return without blocking. It lets a reader drain a burst of frames per wakeup.
+     *
+     * @return TRUE if a whole frame is buffered; FALSE if the next read may block
+     */
+    abstract public boolean hasBufferedFrame();
+
+    /**
+     * Method declaration for accounting the memory of the connection;i.e. the bytes of the buffers (on and off the
+     * heap) held by the transport right now.
+     *
+     * @return The number of bytes of the buffers of the transport
+     */
+    abstract public int getBufferBytes();
+
+    /**
+     * Method declaration for closing the streams and the socket of the connection.
+     */
+    abstract public void close() throws IOException;
+
+    /**
+     * Method for opening the transport of the given mode over a socket connection.
+     *
+     * @param socket The established socket connection
+     * @param mode The transport mode; MODE_BINARY or MODE_OBJECT
+     * @param serverSide TRUE if this is the Server end of a Client/Server connection; FALSE otherwise
+     *
+     * @return The transport
+     */
+    public static MessageTransport open( Socket socket, String mode, boolean serverSide ) throws IOException
+    {
+        if ( MODE_OBJECT.equalsIgnoreCase( mode ) )
+            return new ObjectStreamTransport( socket, serverSide );
+
+        /** Gathering writes and in place reads whenever the socket was opened through a channel */
+        if ( socket.getChannel() != null )
+            return new ChannelTransport( socket );
+
+        return new BinaryTransport( socket );
+    }
+}
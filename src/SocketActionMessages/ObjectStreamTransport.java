@@ -0,0 +1,215 @@
+package SocketActionMessages;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.Base64;
+
+/**
+ * MessageTransport using the original Java serialization wire format, kept as a compatibility mode for peers that
+ * do not speak the binary framing yet. Frames are mapped to the objects the older peers expect:
+ *
+ *     --CERTIFICATE: a java.security.cert.Certificate
+ *     --KEY_EXCHANGE: a byte array
+ *     --LOGIN and every MESSAGE written by the Server: the Base64 String of the body
+ *     --every other chat frame: a ChatMessage holding the Base64 String of the body (and, for the frames having a
+ *       peer, the peer in its room field)
+ *
+ * The input stream is only created on the first read, since a P2P connection is used in one direction only and
+ * the ObjectInputStream constructor blocks until the stream header of the other end arrives.
+ *
+ * To keep the memory of a long-lived connection bounded, the output stream is reset after every frame (so the
+ * written objects do not stay reachable from its handle table) and the input stream only accepts the classes
+ * listed above; any other class is rejected before it is even resolved.
+ *
+ * @author atgianne
+ */
+public class ObjectStreamTransport implements MessageTransport
+{
+    /**
+     * Deserialization filter of the input stream. Serialized certificates travel as Certificate$CertificateRep
+     * (their type and encoding) and are resolved to the X.509 certificate of the provider; arrays are bounded by
+     * the largest frame of the binary transport.
+     */
+    private static final ObjectInputFilter INPUT_FILTER = ObjectInputFilter.Config.createFilter(
+            "SocketActionMessages.ChatMessage;java.lang.String;java.security.cert.Certificate$CertificateRep;" +
+            "sun.security.x509.X509CertImpl;" +
+            "maxdepth=4;maxarray=" + FrameCodec.MAX_PAYLOAD_LENGTH + ";!*" );
+
+    /** Estimated bytes held by an object stream (its block data buffer and handle tables, reset after every object) */
+    private static final int OBJECT_STREAM_BYTES = 2048;
+
+    /** The socket connection */
+    private final Socket socket;
+
+    /** TRUE if this is the Server end of a Client/Server connection */
+    private final boolean serverSide;
+
+    /** Object streams of the socket connection */
+    private final ObjectOutputStream out;
+    private ObjectInputStream in;
+
+    /** The frame reused for every read */
+    private final Frame readFrame;
+
+    /**
+     * Creates a new instance of ObjectStreamTransport
+     *
+     * @param socket The established socket connection
+     * @param serverSide TRUE if this is the Server end of a Client/Server connection; FALSE otherwise
+     */
+    public ObjectStreamTransport( Socket socket, boolean serverSide ) throws IOException
+    {
+        this.socket = socket;
+        this.serverSide = serverSide;
+        this.out = new ObjectOutputStream( socket.getOutputStream() );
+        this.readFrame = new Frame();
+    }
+
+    public void writeFrame( Frame frame ) throws IOException
+    {
+        synchronized ( out )
+        {
+            writeObject( frame );
+
+            /** Forget the objects written so far;otherwise every message stays reachable until the connection closes */
+            out.reset();
+            out.flush();
+        }
+    }
+
+    /**
+     * Method for writing the object a frame is mapped to.
+     */
+    private void writeObject( Frame frame ) throws IOException
+    {
+        switch ( frame.getType() )
+        {
+            case FrameCodec.CERTIFICATE:
+                try
+                {
+                    CertificateFactory cf = CertificateFactory.getInstance( "X509" );
+                    out.writeObject( cf.generateCertificate( new ByteArrayInputStream( frame.getBodyBytes() ) ) );
+                }
+                catch ( CertificateException ce )
+                {
+                    throw new IOException( "Invalid certificate frame", ce );
+                }
+                break;
+            case FrameCodec.KEY_EXCHANGE:
+                out.writeObject( frame.getBodyBytes() );
+                break;
+            default:
+                String encoded = Base64.getEncoder().encodeToString( frame.getBodyBytes() );
+
+                if ( frame.getType() == FrameCodec.LOGIN || ( serverSide && frame.getType() == ChatMessage.MESSAGE ) )
+                    out.writeObject( encoded );
+                else if ( FrameCodec.hasPeer( frame.getType() ) )
+                    out.writeObject( new ChatMessage( frame.getType(), Integer.toString( frame.getPeer() ), encoded ) );
+                else
+                    out.writeObject( new ChatMessage( frame.getType(), frame.getRoom(), encoded ) );
+                break;
+        }
+    }
+
+    public Frame readFrame() throws IOException
+    {
+        if ( in == null )
+        {
+            in = new ObjectInputStream( socket.getInputStream() );
+            in.setObjectInputFilter( INPUT_FILTER );
+        }
+
+        Object o;
+        try
+        {
+            o = in.readObject();
+        }
+        catch ( ClassNotFoundException cnfe )
+        {
+            throw new ProtocolException( "Unexpected object received -- " + cnfe.getMessage() );
+        }
+
+        readFrame.setFlags( 0 );
+        readFrame.setRoom( null );
+        readFrame.setPeer( 0 );
+
+        try
+        {
+            if ( o instanceof Certificate )
+            {
+                readFrame.setType( FrameCodec.CERTIFICATE );
+                setBody( ( ( Certificate )o ).getEncoded() );
+            }
+            else if ( o instanceof byte[] )
+            {
+                readFrame.setType( FrameCodec.KEY_EXCHANGE );
+                setBody( ( byte[] )o );
+            }
+            else if ( o instanceof String )
+            {
+                readFrame.setType( serverSide ? FrameCodec.LOGIN : ChatMessage.MESSAGE );
+                setBody( Base64.getDecoder().decode( ( String )o ) );
+            }
+            else if ( o instanceof ChatMessage )
+            {
+                ChatMessage cm = ( ChatMessage )o;
+
+                /** Older P2P peers put the message length in the type...treat anything unknown as a MESSAGE */
+                int type = cm.getType();
+                if ( type < ChatMessage.WHOISIN || type > ChatMessage.SEARCH || ( FrameCodec.hasPeer( type ) && cm.getRoom() == null ) )
+                    type = ChatMessage.MESSAGE;
+
+                readFrame.setType( type );
+                if ( FrameCodec.hasPeer( type ) )
+                    readFrame.setPeer( Integer.parseInt( cm.getRoom() ) );
+                else
+                    readFrame.setRoom( cm.getRoom() );
+                setBody( Base64.getDecoder().decode( cm.getMessage() ) );
+            }
+            else
+            {
+                throw new ProtocolException( "Unexpected object received -- " + ( ( o == null ) ? "null" : o.getClass().getName() ) );
+            }
+        }
+        catch ( CertificateException | IllegalArgumentException e )
+        {
+            throw new ProtocolException( "Malformed object received -- " + e.getMessage() );
+        }
+
+        return readFrame;
+    }
+
+    /**
+     * Method for setting the body of the reused frame.
+     */
+    private void setBody( byte[] body )
+    {
+        readFrame.setBody( ByteBuffer.wrap( body ), 0, body.length );
+    }
+
+    public boolean hasBufferedFrame()
+    {
+        /** The size of the next object is unknown until it is deserialized;so one frame per read */
+        return false;
+    }
+
+    public int getBufferBytes()
+    {
+        /** An estimate;the block data buffers and handle tables of the object streams are not exposed */
+        return ( ( in != null ) ? 2 : 1 ) * OBJECT_STREAM_BYTES + readFrame.getScratchCapacity();
+    }
+
+    public void close() throws IOException
+    {
+        socket.close();
+    }
+}
@@ -0,0 +1,129 @@
+package SocketActionMessages;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * This class defines the (end-to-end encrypted) plaintext of a private message between two clients. Its fields are
+ * laid out in a fixed binary format:
+ *
+ *     recipient id (4 bytes) | sender id length (1 byte) | sender id (UTF-8) | timestamp (8 bytes) | body (UTF-8)
+ *
+ * so that decoding never has to search the body for separators. The recipient id is the port number the message is
+ * addressed to (the same as the peer of the carrying frame when it is written by the sender) and the sender id is
+ * the username of the sender. The AEAD tag of the record only proves that they were written by the holder of the
+ * pairwise key;so the receiver must check the sender id against the name certified for that key (see PrivateChannels)
+ * before trusting it.
+ *
+ * @author atgianne
+ */
+public class PrivateMessage
+{
+    /** The fixed part of the encoding; recipient id, sender id length and timestamp */
+    private static final int FIXED_LENGTH = 4 + 1 + 8;
+
+    private final int recipientId;
+
+    private final String senderId;
+
+    /** The time (milliseconds since the epoch) the message was sent */
+    private final long timestamp;
+
+    private final String body;
+
+    /**
+     * Creates a new instance of PrivateMessage
+     *
+     * @param recipientId The port number of the recipient
+     * @param senderId The username of the sender
+     * @param timestamp The time the message was sent
+     * @param body The text of the message
+     */
+    public PrivateMessage( int recipientId, String senderId, long timestamp, String body )
+    {
+        this.recipientId = recipientId;
+        this.senderId = senderId;
+        this.timestamp = timestamp;
+        this.body = body;
+    }
+
+    /**
+     * Method for encoding the message into the plaintext to be encrypted.
+     *
+     * @return The encoded message
+     */
+    public byte[] encode()
+    {
+        byte[] sender = senderId.getBytes( UTF_8 );
+        byte[] text = body.getBytes( UTF_8 );
+
+        if ( sender.length > 255 )
+            throw new IllegalArgumentException( "Sender id too long" );
+
+        ByteBuffer buf = ByteBuffer.allocate( FIXED_LENGTH + sender.length + text.length );
+        buf.putInt( recipientId );
+        buf.put( ( byte )sender.length );
+        buf.put( sender );
+        buf.putLong( timestamp );
+        buf.put( text );
+
+        return buf.array();
+    }
+
+    /**
+     * Method for decoding a (decrypted) private message.
+     *
+     * @param plaintext The decrypted plaintext
+     *
+     * @return The decoded message
+     */
+    public static PrivateMessage decode( byte[] plaintext ) throws ProtocolException
+    {
+        try
+        {
+            ByteBuffer buf = ByteBuffer.wrap( plaintext );
+            int recipientId = buf.getInt();
+
+            int senderLength = buf.get() & 0xff;
+            String senderId = new String( plaintext, buf.position(), senderLength, UTF_8 );
+            buf.position( buf.position() + senderLength );
+
+            long timestamp = buf.getLong();
+            String body = new String( plaintext, buf.position(), buf.remaining(), UTF_8 );
+
+            return new PrivateMessage( recipientId, senderId, timestamp, body );
+        }
+        catch ( BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e )
+        {
+            throw new ProtocolException( "Malformed private message" );
+        }
+    }
+
+    // getters
+
+    public int getRecipientId() {
+
+        return recipientId;
+
+    }
+
+    public String getSenderId() {
+
+        return senderId;
+
+    }
+
+    public long getTimestamp() {
+
+        return timestamp;
+
+    }
+
+    public String getBody() {
+
+        return body;
+
+    }
+}
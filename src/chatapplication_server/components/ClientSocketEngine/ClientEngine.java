@@ -5,20 +5,28 @@
  */
 package chatapplication_server.components.ClientSocketEngine;
 
+import SocketActionMessages.BufferPool;
+import SocketActionMessages.ChatCompressor;
 import SocketActionMessages.ChatMessage;
+import SocketActionMessages.CreditWindow;
+import SocketActionMessages.Frame;
+import SocketActionMessages.FrameCodec;
+import SocketActionMessages.MessageTransport;
 import chatapplication_server.ComponentManager;
 import chatapplication_server.components.ConfigManager;
 import chatapplication_server.components.base.GenericThreadedComponent;
 import chatapplication_server.statistics.ServerStatistics;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
 
+import crypto.SessionKeyBatch;
+import crypto.SessionTicket;
 import crypto.cryptoManager;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
@@ -26,6 +34,7 @@ import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 import static crypto.cryptoManager.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  *
@@ -46,9 +55,26 @@ public class ClientEngine extends GenericThreadedComponent
     /** The Socket connection to the Chat Application Server */
     private Socket socket;
     
-    /** Socket Stream reader/writer that will be used throughout the whole connection... */
-    private ObjectOutputStream socketWriter;
-    private ObjectInputStream socketReader;
+    /** Socket frame transport that will be used throughout the whole connection... */
+    private MessageTransport transport;
+    
+    /** The end-to-end encrypted private channels to the other clients */
+    private PrivateChannels privateChannels;
+    
+    /** Compressor of the chat plaintexts (null unless negotiated with the server) */
+    private ChatCompressor compressor;
+    
+    /** The credit based flow control of the connection (null unless negotiated with the server) */
+    private volatile CreditWindow flow;
+    
+    /** Flag indicating whether the server replays the history, and the last journal sequence number received (kept
+        across reconnections, so that a reconnecting client only gets what it missed) */
+    private boolean history;
+    private volatile long lastSeq;
+    
+    /** The user of the last session key;after a restart of the server the session is resumed rather than set up again
+        (see SessionTicket), if the same user logs in again */
+    private String sessionUser;
     
     /**
      * Singleton instance of the SocketServerEngine component
@@ -87,12 +113,36 @@ public class ClientEngine extends GenericThreadedComponent
                 
         /** For printing the configuration properties of the secure socket server */
         lotusStat = new ServerStatistics();
+        
+        /** Talk the binary framing unless the Java serialization compatibility mode is asked for */
+        configManager.setDefaultValue( "Transport.Mode", MessageTransport.MODE_BINARY );
+        
+        /** Compression of the chat plaintexts before encryption;disabled by default since it may leak their content through their length */
+        configManager.setDefaultValue( "Compression.Enabled", "false" );
+        configManager.setDefaultValue( "Compression.MinLength", "64" );
+        
+        /** Credit based flow control (in frames), and how long (in milliseconds) a chat message waits for a credit */
+        configManager.setDefaultValue( "FlowControl.Enabled", "true" );
+        configManager.setDefaultValue( "FlowControl.Window", "256" );
+        configManager.setDefaultValue( "FlowControl.Timeout", "10000" );
+        
+        /** The history replayed on the first login;the last History.Replay messages, or those of the last History.SinceMinutes minutes if set */
+        configManager.setDefaultValue( "History.Replay", "50" );
+        configManager.setDefaultValue( "History.SinceMinutes", "0" );
+        
+        /** Resume the last session after a restart of the server, instead of a new RSA handshake */
+        configManager.setDefaultValue( "Resume.Enabled", "false" );
+        
+        /** Leak detection of the pooled network and crypto buffers;only for debugging */
+        configManager.setDefaultValue( "BufferPool.Debug", "false" );
+        BufferPool.getInstance().setDebug( Boolean.parseBoolean( configManager.getValue( "BufferPool.Debug" ) ) );
         String UserName = configManager.getValue( "Client.Username" );
         
         /** Try and connect to the server... */
         try
         {
-            socket = new Socket( configManager.getValue( "Server.Address" ), configManager.getValueInt( "Server.PortNumber" ) );
+            /** Connect through a (blocking) channel, so that the frames are written and read without stream buffering */
+            socket = SocketChannel.open( new InetSocketAddress( configManager.getValue( "Server.Address" ), configManager.getValueInt( "Server.PortNumber" ) ) ).socket();
         }
         catch ( Exception e )
         {
@@ -104,16 +154,17 @@ public class ClientEngine extends GenericThreadedComponent
         /** Print that the connection was accepted */
         display( "Connection accepted: " + socket.getInetAddress() + ":" + socket.getPort() + "\n" );
         
-        /** Create the read/write object streams... */
+        /** Create the frame transport... */
         try
         {
-            /** Set up the stream reader/writer for this socket connection... */
-            socketWriter = new ObjectOutputStream( socket.getOutputStream() );
-            socketReader = new ObjectInputStream( socket.getInputStream() );
+            /** Set up the frame transport for this socket connection... */
+            transport = MessageTransport.open( socket, configManager.getValue( "Transport.Mode" ), false );
+            compressor = null;
+            flow = null;
 
             /** First the client receives the certificate from the server*/
 
-            java.security.cert.Certificate ServerCert = cryptoManager.ReceiveCert(socketReader);
+            java.security.cert.Certificate ServerCert = cryptoManager.ReceiveCert(transport);
             System.out.println("<<<<<<<<<<<<<<<<Server Cert Received>>>>>>>>>>>>>>>>>>");
             System.out.println(ServerCert);
             System.out.println("<<<<<<<<<<<<<<<<END Server Cert Received END>>>>>>>>>>>>>>>>>>");
@@ -150,40 +201,87 @@ public class ClientEngine extends GenericThreadedComponent
                     ClientKeyStorePass = BobKeyStorePass;
                     Clientalias = Bobalias;
                 }
-                cryptoManager.SendCert(ClientCert, socketWriter);
-                System.out.println("Sent " + UserName + " Cert TO SERVER");
             } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException e) {
                 e.printStackTrace();
             }
-
-            /** Receive the Signature + encrypted symmetric key */
-            byte[] signature_and_Encrypted_AES_key_from_server = (byte[]) socketReader.readObject();
             /** Extract Private Key of the Client from JKS */
             PrivateKey ClientPrivateKey = ExtractPrivKeyFromJKS(ClientKeyStore, ClientKeyStorePass, Clientalias, ClientKeyStorePass);
-            /** Decrypt the received symmetric key with public crypto RSA*/
-
-            byte[] signature = new byte[512];
-            byte[] encrypted_aes_key = new byte[512];
-            /** Extract the digital signature and the encrypted AES key*/
-            System.arraycopy(signature_and_Encrypted_AES_key_from_server, 0, signature, 0, signature.length);
-            System.arraycopy(signature_and_Encrypted_AES_key_from_server, 512, encrypted_aes_key, 0, encrypted_aes_key.length);
-            /** Decrypt the AES key */
-            AES_s_client_key = cryptoManager.decrypt_RSA(ClientPrivateKey, encrypted_aes_key);
-            /**Verify the digital signature for authenticity and integrity */
-            if(cryptoManager.VerifySign(AES_s_client_key, signature, ServerPubKey_ClientSide)){
-                System.out.println("Signature matches! - Extracting Secret AES Key");
-                /** set the SecretKeySpec for AES, based on the now decrypted AES key*/
-                AES_secret_client_key = new SecretKeySpec(AES_s_client_key, "AES");
-                /** Start the ListeFromServer thread... */
-                new ListenFromServer().start();
+            /** The same key pair sets up the end-to-end encrypted private messages with the other clients */
+            privateChannels = new PrivateChannels(ClientPrivateKey, ClientCert);
 
+            /** Try and resume our last session first;the server knows it from before its restart */
+            Frame negotiated = null;
+            if (Boolean.parseBoolean(configManager.getValue("Resume.Enabled")) && AES_secret_client_key != null && UserName.equals(sessionUser)) {
+                byte[] clientNonce = SessionTicket.nonce();
+                transport.writeFrame(new Frame(FrameCodec.RESUME, SessionTicket.request(AES_secret_client_key, clientNonce)));
+                Frame resumed = transport.readFrame();
+                if (resumed.getType() != FrameCodec.RESUME)
+                    throw new ProtocolException("Expected the resumption, received frame type " + resumed.getType());
+                byte[] reply = resumed.getBodyBytes();
+                if (reply.length > 0) {
+                    if (!SessionTicket.verifyReply(AES_secret_client_key, clientNonce, reply))
+                        throw new Exception("ERROR - VERIFICATION OF THE RESUMED SESSION FAILED!");
+                    display("Resumed the last session\n");
+                    AES_secret_client_key = (SecretKeySpec) SessionTicket.deriveKey(AES_secret_client_key, clientNonce, SessionTicket.nonceOf(reply, false));
+                    negotiated = resumed;
+                }
             }
-            else{
-                throw new Exception("ERROR - VERIFICATION OF SIGNATURE FAILED!");
+
+            if (negotiated == null) {
+                /** No session to resume (or the server refused it)...send off our certificate */
+                cryptoManager.SendCert(ClientCert, transport);
+                System.out.println("Sent " + UserName + " Cert TO SERVER");
+
+                /** Receive the Signature + encrypted symmetric key */
+                Frame keyExchange = transport.readFrame();
+                if (keyExchange.getType() != FrameCodec.KEY_EXCHANGE)
+                    throw new ProtocolException("Expected the key exchange, received frame type " + keyExchange.getType());
+                byte[] signature_and_Encrypted_AES_key_from_server = keyExchange.getBodyBytes();
+                /** Decrypt the received symmetric key with public crypto RSA*/
+
+                byte[] signature = new byte[512];
+                byte[] encrypted_aes_key = new byte[512];
+                /** The server may have signed our key along with the keys of the other clients logging in at the same time */
+                boolean batchSigned = (keyExchange.getFlags() & FrameCodec.FLAG_KEY_BATCH) != 0;
+                /** Extract the digital signature (or the proof) and the encrypted AES key*/
+                if (batchSigned) {
+                    System.arraycopy(signature_and_Encrypted_AES_key_from_server, 0, encrypted_aes_key, 0, encrypted_aes_key.length);
+                } else {
+                    System.arraycopy(signature_and_Encrypted_AES_key_from_server, 0, signature, 0, signature.length);
+                    System.arraycopy(signature_and_Encrypted_AES_key_from_server, 512, encrypted_aes_key, 0, encrypted_aes_key.length);
+                }
+                /** Decrypt the AES key */
+                AES_s_client_key = cryptoManager.decrypt_RSA(ClientPrivateKey, encrypted_aes_key);
+                /**Verify the digital signature for authenticity and integrity */
+                boolean verified = batchSigned ?
+                        SessionKeyBatch.verify(AES_s_client_key, ClientPubKey, ByteBuffer.wrap(signature_and_Encrypted_AES_key_from_server, 512,
+                                               signature_and_Encrypted_AES_key_from_server.length - 512), ServerPubKey_ClientSide) :
+                        cryptoManager.VerifySign(AES_s_client_key, signature, ServerPubKey_ClientSide);
+                if(verified){
+                    System.out.println("Signature matches! - Extracting Secret AES Key");
+                    /** set the SecretKeySpec for AES, based on the now decrypted AES key*/
+                    AES_secret_client_key = new SecretKeySpec(AES_s_client_key, "AES");
+                }
+                else{
+                    throw new Exception("ERROR - VERIFICATION OF SIGNATURE FAILED!");
+                }
+                negotiated = keyExchange;
             }
+            sessionUser = UserName;
+
+            /** Compress the chat plaintexts only if both ends asked for it */
+            if ((negotiated.getFlags() & FrameCodec.FLAG_COMPRESSED) != 0 && Boolean.parseBoolean(configManager.getValue("Compression.Enabled")))
+                compressor = new ChatCompressor(configManager.getValueInt("Compression.MinLength"));
+            /** Flow control only if both ends asked for it;set up before the listening thread sees the first grant */
+            if ((negotiated.getFlags() & FrameCodec.FLAG_CREDIT) != 0 && Boolean.parseBoolean(configManager.getValue("FlowControl.Enabled")))
+                flow = new CreditWindow(configManager.getValueInt("FlowControl.Window"));
+            /** Catch up with the history only if the server journals it */
+            history = (negotiated.getFlags() & FrameCodec.FLAG_SEQ) != 0;
+            /** Start the ListeFromServer thread... */
+            new ListenFromServer().start();
 
         }
-        catch (IOException | ClassNotFoundException ioe )
+        catch ( IOException ioe )
         {
             display( "Exception creating new Input/Output Streams: " + ioe + "\n");
             ComponentManager.getInstance().fatalException(ioe);
@@ -193,9 +291,19 @@ public class ClientEngine extends GenericThreadedComponent
         try
         {
             /**Encrypt the username with the symmetric key in order to stop impersonation attacks*/
-            String UserNameEncrypted = encrypt(UserName, AES_secret_client_key);
-            System.out.println("Sending encrypted username to server"+ UserNameEncrypted);
-            socketWriter.writeObject(UserNameEncrypted);
+            byte[] UserNameEncrypted = encryptRecord(UserName.getBytes(UTF_8), AES_secret_client_key);
+            System.out.println("Sending encrypted username to server ("+ UserNameEncrypted.length + " bytes)");
+            /** Let the server know that we can unpack coalesced messages (and whether we accepted compression) */
+            Frame login = new Frame(FrameCodec.LOGIN, UserNameEncrypted);
+            login.setFlags(FrameCodec.FLAG_BATCH | (compressor != null ? FrameCodec.FLAG_COMPRESSED : 0) | (flow != null ? FrameCodec.FLAG_CREDIT : 0) |
+                           (history ? FrameCodec.FLAG_SEQ : 0));
+            transport.writeFrame(login);
+            /** Grant the server our whole window */
+            if (flow != null)
+                transport.writeFrame(flow.initialGrant());
+            /** Ask for the history we missed */
+            if (history)
+                requestHistory();
         }
         catch ( IOException ioe )
         {
@@ -209,6 +317,64 @@ public class ClientEngine extends GenericThreadedComponent
         super.initialize();
     }
     
+    /**
+     * Method for asking the server to replay the history; after a reconnection only the messages after the last one
+     * received, otherwise as configured.
+     */
+    private void requestHistory() throws IOException
+    {
+        int mode;
+        long value;
+
+        if (lastSeq > 0) {
+            mode = FrameCodec.HISTORY_SINCE_SEQ;
+            value = lastSeq;
+        } else if (configManager.getValueLong("History.SinceMinutes") > 0) {
+            mode = FrameCodec.HISTORY_SINCE_TIME;
+            value = System.currentTimeMillis() - configManager.getValueLong("History.SinceMinutes") * 60 * 1000;
+        } else if (configManager.getValueLong("History.Replay") > 0) {
+            mode = FrameCodec.HISTORY_LAST;
+            value = configManager.getValueLong("History.Replay");
+        } else {
+            return;
+        }
+
+        ByteBuffer request = ByteBuffer.allocate(9);
+        request.put((byte) mode).putLong(value);
+        transport.writeFrame(new Frame(FrameCodec.HISTORY, request.array()));
+    }
+
+    /**
+     * Method for asking the server for the proof of a journaled message.
+     *
+     * @param request The sequence number of the message, as shown by a search (optionally preceded by '#')
+     */
+    private void requestProof(String request)
+    {
+        try {
+            long seq = Long.parseLong(request.startsWith("#") ? request.substring(1) : request);
+
+            ByteBuffer body = ByteBuffer.allocate(8);
+            body.putLong(0, seq);
+            transport.writeFrame(new Frame(FrameCodec.PROOF, body.array()));
+        } catch (NumberFormatException nfe) {
+            ClientSocketGUI.getInstance().append("Usage: PROOF <sequence number>\n");
+        } catch (IOException ioe) {
+            ClientSocketGUI.getInstance().append("Failed asking for the proof: " + ioe.getMessage() + "\n");
+        }
+    }
+
+    /**
+     * Method for keeping track of the journal sequence numbers received from the server.
+     *
+     * @param seq The sequence number of a received message (or the one a replay caught up to)
+     */
+    void onSeq( long seq )
+    {
+        if (seq > lastSeq)
+            lastSeq = seq;
+    }
+
     /**
      * Method for displaying a message in the Client GUI
      * 
@@ -228,12 +394,36 @@ public class ClientEngine extends GenericThreadedComponent
 
         try
         {
+            /** Wait for a credit while the server is behind with our chat messages */
+            CreditWindow w = flow;
+            if (w != null && CreditWindow.isUpstreamControlled(msg.getType()) &&
+                !w.acquire(configManager.getValueLong("FlowControl.Timeout"))) {
+                display("The server is not accepting messages right now; message not sent");
+                return;
+            }
+
             /** Encrypt the message to be sent to the server*/
 
-            String ciphertext = cryptoManager.encrypt(msg.getMessage(), AES_secret_client_key);
-            ChatMessage result = new ChatMessage(msg.getType(), ciphertext);
-            System.out.println("ENCRYPTED RESULT: " + result.getMessage());
-            socketWriter.writeObject(result);
+            byte[] plaintext = msg.getMessage().getBytes(UTF_8);
+            int flags = 0;
+
+            /** Compress before encrypting, if negotiated and worth it */
+            byte[] compressed = (compressor == null) ? null : compressor.compress(plaintext);
+            if (compressed != null) {
+                plaintext = compressed;
+                flags = FrameCodec.FLAG_COMPRESSED;
+            }
+
+            /** Encrypt into a buffer leased from the pool, given back once written */
+            ByteBuffer record = cryptoManager.encryptRecord(ByteBuffer.wrap(plaintext), AES_secret_client_key);
+            try {
+                System.out.println("ENCRYPTED RESULT: " + record.remaining() + " bytes");
+                Frame frame = new Frame(msg.getType(), msg.getRoom(), record);
+                frame.setFlags(flags);
+                transport.writeFrame(frame);
+            } finally {
+                BufferPool.getInstance().release(record);
+            }
 
         }
         catch( IOException e )
@@ -246,6 +436,36 @@ public class ClientEngine extends GenericThreadedComponent
     }
 
 
+    /**
+     * Method for sending an end-to-end encrypted private message to another client; the server only relays it.
+     * 
+     * @param port The port number of the other client (as listed by WHOISIN)
+     * @param msg The message to be sent
+     */
+    public void sendPrivateMessage( int port, String msg )
+    {
+        try
+        {
+            privateChannels.send(port, msg);
+        }
+        catch( IOException e )
+        {
+            display( "Exception writing to server: " + e );
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Method for writing a frame as is to the server
+     * 
+     * @param frame The frame to be written
+     */
+    void writeFrame( Frame frame ) throws IOException
+    {
+        transport.writeFrame(frame);
+    }
+
     /**
      * Method holding the main logic of the Client Engine. It basically waits for inputs from the user to be sent to the Server.
      */
@@ -279,6 +499,31 @@ public class ClientEngine extends GenericThreadedComponent
             else if(msg.equalsIgnoreCase("WHOISIN")) {
                     sendMessage(new ChatMessage(ChatMessage.WHOISIN, ""));				
             }
+            // JOIN <room> / LEAVE <room> to subscribe to/unsubscribe from a room
+            else if(msg.toUpperCase().startsWith("JOIN ")) {
+                    sendMessage(new ChatMessage(ChatMessage.JOIN, msg.substring(5).trim(), ""));
+            }
+            else if(msg.toUpperCase().startsWith("LEAVE ")) {
+                    sendMessage(new ChatMessage(ChatMessage.LEAVE, msg.substring(6).trim(), ""));
+            }
+            // ROOM <room> <text> to talk only to the members of a room
+            else if(msg.toUpperCase().startsWith("ROOM ") && msg.indexOf(' ', 5) > 5) {
+                    int split = msg.indexOf(' ', 5);
+                    sendMessage(new ChatMessage(ChatMessage.ROOM_MESSAGE, msg.substring(5, split), msg.substring(split + 1)));
+            }
+            // MAIL <user> <text> to send a message to a user, kept by the server until the user logs in
+            else if(msg.toUpperCase().startsWith("MAIL ") && msg.indexOf(' ', 5) > 5) {
+                    int split = msg.indexOf(' ', 5);
+                    sendMessage(new ChatMessage(ChatMessage.MAIL, msg.substring(5, split), msg.substring(split + 1)));
+            }
+            // SEARCH [before:<seq>] <terms> to search the chat history, a page at a time
+            else if(msg.toUpperCase().startsWith("SEARCH ")) {
+                    sendMessage(new ChatMessage(ChatMessage.SEARCH, msg.substring(7).trim()));
+            }
+            // PROOF <seq> to have the server prove that a message of the history is the one it signed
+            else if(msg.toUpperCase().startsWith("PROOF ")) {
+                    requestProof(msg.substring(6).trim());
+            }
             else if (msg.equalsIgnoreCase("PRIVATEMESSAGE")){				// default to ordinary message
                     sendMessage(new ChatMessage(ChatMessage.PRIVATEMESSAGE, msg));
             }
@@ -290,9 +535,39 @@ public class ClientEngine extends GenericThreadedComponent
         shutdown();
     }
     
-    public ObjectInputStream getStreamReader()
+    public MessageTransport getTransport()
+    {
+        return transport;
+    }
+    
+    public ChatCompressor getCompressor()
     {
-        return socketReader;
+        return compressor;
+    }
+    
+    public PrivateChannels getPrivateChannels()
+    {
+        return privateChannels;
+    }
+    
+    public CreditWindow getFlow()
+    {
+        return flow;
+    }
+    
+    /**
+     * Method for accounting a frame received from the server as consumed and, every half window, granting the
+     * server new credits.
+     */
+    void frameConsumed() throws IOException
+    {
+        CreditWindow w = flow;
+        if (w == null)
+            return;
+        
+        Frame grant = w.onConsumed();
+        if (grant != null)
+            transport.writeFrame(grant);
     }
     
      /**
@@ -310,8 +585,7 @@ public class ClientEngine extends GenericThreadedComponent
             synchronized ( socket)
             {                
                 /** Shut down the Client Socket */
-                socketReader.close();
-                socketWriter.close();
+                transport.close();
                 socket.close();
                 
                 isRunning = false;
@@ -316,10 +316,18 @@ public class ClientSocketGUI extends JFrame implements IComponent, ActionListene
          if ( o == SendButton )
          {
              // obtain a port number from j-label of the user it wants to talk to and send the message to server
-            String privateMsg = textPortNo.getText()+ "," + ta3.getText()+ "-" + configManager.getValue( "Client.Username" ) +"-#";
+            String privateMsg = ta3.getText();
             System.out.println("2nd window : "+ privateMsg );
 
-            client.sendMessage(new ChatMessage(ChatMessage.PRIVATEMESSAGE, privateMsg));
+            try
+            {
+                /** End-to-end encrypted with the key of the other client;the server only relays it */
+                client.sendPrivateMessage(Integer.parseInt(textPortNo.getText().trim()), privateMsg);
+            }
+            catch ( NumberFormatException nfe )
+            {
+                appendPrivateChat( "Invalid port number: " + textPortNo.getText() + "\n" );
+            }
 
             return;
          }
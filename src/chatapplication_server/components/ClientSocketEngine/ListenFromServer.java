@@ -5,12 +5,28 @@
  */
 package chatapplication_server.components.ClientSocketEngine;
 
+import SocketActionMessages.ChatCompressor;
+import SocketActionMessages.ChatMessage;
+import SocketActionMessages.CreditWindow;
+import SocketActionMessages.Frame;
+import SocketActionMessages.FrameCodec;
+import SocketActionMessages.MessageBatch;
+import SocketActionMessages.PrivateMessage;
+import SocketActionMessages.MessageTransport;
 import chatapplication_server.ComponentManager;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.JournalEngine.Checkpoint;
+import chatapplication_server.components.JournalEngine.InclusionProof;
+import chatapplication_server.components.JournalEngine.JournalRecord;
 import crypto.cryptoManager;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 /**
  *
  * @author atgianne
@@ -20,42 +36,181 @@ public class ListenFromServer extends Thread
     public void run()
     {
         while(true) {
-                ObjectInputStream sInput = ClientEngine.getInstance().getStreamReader();
+                MessageTransport sInput = ClientEngine.getInstance().getTransport();
                 
                 synchronized( sInput )
                 {
                     try
                     {
-                        String msg = (String) sInput.readObject();
-                        String userName = ConfigManager.getInstance().getValue("Client.Username");
-                        System.out.println("THE  USER  CLIENT (ME) RECEIVED A MESSAGE!" + userName);
-                        System.out.println("Received Encrypted text: " + msg);
-                        /** Decrypt the incoming messages from the clients */
-                        msg = cryptoManager.decrypt(msg, cryptoManager.AES_secret_client_key);
-                        System.out.println(" I DECRYPTED: " + msg);
-
-                        if(msg.contains( "#" ))
-                        {
-                            ClientSocketGUI.getInstance().appendPrivateChat(msg + "\n");
-                        }
-                        else
+                        Frame frame = sInput.readFrame();
+
+                        /** The server consumed some of our chat messages;a waiting sender may go on */
+                        if (frame.getType() == FrameCodec.CREDIT)
                         {
-                            ClientSocketGUI.getInstance().append(msg + "\n");
+                            CreditWindow flow = ClientEngine.getInstance().getFlow();
+                            if (flow == null)
+                                throw new ProtocolException("Credit frame without negotiating flow control");
+                            flow.onGrant(frame);
+                            continue;
                         }
+
+                        /** Every other frame is consumed right here;grant the server a new credit for it */
+                        handleFrame(frame);
+                        ClientEngine.getInstance().frameConsumed();
                     }
                     catch(IOException e) 
                     {
                         ClientSocketGUI.getInstance().append( "Server has closed the connection: " + e.getMessage() +"\n" );
                         ComponentManager.getInstance().fatalException(e);
                     }
-                    catch(ClassNotFoundException cfe) 
-                    {
-                        ClientSocketGUI.getInstance().append( "Server has closed the connection: " + cfe.getMessage() );
-                        ComponentManager.getInstance().fatalException(cfe);
-                    } catch (Exception e) {
+                    catch (Exception e) {
                         e.printStackTrace();
                     }
                 }
         }
     }
+    
+    /**
+     * Method for handling a frame received from the server; a failure only affects the frame itself.
+     * 
+     * @param frame The received frame
+     */
+    private void handleFrame( Frame frame )
+    {
+        try
+        {
+            String userName = ConfigManager.getInstance().getValue("Client.Username");
+            System.out.println("THE  USER  CLIENT (ME) RECEIVED A MESSAGE!" + userName);
+            System.out.println("Received Encrypted text: " + frame.getBodyLength() + " bytes");
+
+            /** The replay of the history is over */
+            if (frame.getType() == FrameCodec.HISTORY)
+            {
+                ByteBuffer body = frame.getBody();
+                if (body.remaining() != 8)
+                    throw new ProtocolException("Invalid history frame length " + body.remaining());
+                ClientEngine.getInstance().onSeq(body.getLong());
+                return;
+            }
+
+            /** The proof of a journaled message we asked for */
+            if (frame.getType() == FrameCodec.PROOF)
+            {
+                displayProof(cryptoManager.decryptRecord(frame.getBody(), cryptoManager.AES_secret_client_key));
+                return;
+            }
+
+            /** Keep track of where we are in the history of the server */
+            if (FrameCodec.hasSeq(frame.getType(), frame.getFlags()))
+                ClientEngine.getInstance().onSeq(frame.getSeq());
+
+            /** The private channels are end-to-end encrypted;not with our session key */
+            if (FrameCodec.hasPeer(frame.getType()))
+            {
+                handlePrivate(frame);
+                return;
+            }
+
+            /** Decrypt the incoming messages from the clients */
+            byte[] plaintext = cryptoManager.decryptRecord(frame.getBody(), cryptoManager.AES_secret_client_key);
+
+            /** Decompress, if the server compressed the plaintext */
+            if ((frame.getFlags() & FrameCodec.FLAG_COMPRESSED) != 0)
+            {
+                ChatCompressor compressor = ClientEngine.getInstance().getCompressor();
+                if (compressor == null)
+                    throw new ProtocolException("Compressed message without negotiating compression");
+                plaintext = compressor.decompress(plaintext);
+            }
+
+            /** The server may have coalesced several messages into this record */
+            if ((frame.getFlags() & FrameCodec.FLAG_BATCH) != 0)
+            {
+                for (String msg : MessageBatch.unpack(plaintext))
+                    display(msg);
+            }
+            else
+            {
+                display(new String(plaintext, UTF_8));
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Method for handling a frame of the end-to-end encrypted private channels; a failure only affects the
+     * private channel it belongs to.
+     * 
+     * @param frame The received PRIVATEMESSAGE, PEER_KEY or KEY_LOOKUP frame
+     */
+    private void handlePrivate( Frame frame )
+    {
+        PrivateChannels channels = ClientEngine.getInstance().getPrivateChannels();
+
+        try
+        {
+            switch (frame.getType())
+            {
+                case ChatMessage.KEY_LOOKUP:
+                    channels.onKeyLookup(frame);
+                    break;
+                case ChatMessage.PEER_KEY:
+                    channels.onPeerKey(frame);
+                    break;
+                default:
+                    /** Show the name certified for the key, not whatever the message claims */
+                    PrivateMessage msg = channels.decrypt(frame);
+                    ClientSocketGUI.getInstance().appendPrivateChat(new SimpleDateFormat("HH:mm:ss").format(new Date(msg.getTimestamp())) +
+                            " " + channels.getPeerName(frame.getPeer()) + ": " + msg.getBody() + "\n");
+                    break;
+            }
+        }
+        catch (Exception e)
+        {
+            ClientSocketGUI.getInstance().appendPrivateChat( "Private channel with the client at port " + frame.getPeer() + " failed: " + e.getMessage() + "\n" );
+        }
+    }
+
+    /**
+     * Method for checking the proof of a journaled message against the public key of the server and showing the
+     * outcome along with the message.
+     * 
+     * @param encoded The decrypted proof
+     */
+    private void displayProof( byte[] encoded ) throws ProtocolException
+    {
+        InclusionProof proof = InclusionProof.decode(ByteBuffer.wrap(encoded));
+        JournalRecord record = proof.getRecord();
+        Checkpoint checkpoint = proof.getCheckpoint();
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        String text = (record.getKind() == JournalRecord.PRIVATE) ? "[end-to-end encrypted]" : record.getText();
+
+        if (proof.verify(cryptoManager.ServerPubKey_ClientSide))
+            display("Message #" + proof.getSeq() + " (" + sdf.format(new Date(record.getTimestamp())) + ") " + text +
+                    "\n  VERIFIED: one of the " + checkpoint.getCount() + " messages signed by the server at " +
+                    sdf.format(new Date(checkpoint.getTimestamp())) + " (" + proof.getPathLength() + " hashes)");
+        else
+            display("Message #" + proof.getSeq() + " " + text + "\n  NOT VERIFIED: the proof does not match the signature of the server");
+    }
+
+    /**
+     * Method for displaying a received message in the public chat area of the Client GUI;the private messages have
+     * their own frame type.
+     * 
+     * @param msg The decrypted message
+     */
+    private void display( String msg )
+    {
+        System.out.println(" I DECRYPTED: " + msg);
+
+        /** Remember whom the listed ports belong to, for the private channels */
+        PrivateChannels channels = ClientEngine.getInstance().getPrivateChannels();
+        if (msg.startsWith("10,") && channels != null)
+            channels.onWhoIsIn(msg);
+
+        ClientSocketGUI.getInstance().append(msg + "\n");
+    }
 }
@@ -6,6 +6,9 @@
 package chatapplication_server.components.ClientSocketEngine;
 
 import SocketActionMessages.ChatMessage;
+import SocketActionMessages.Frame;
+import SocketActionMessages.FrameCodec;
+import SocketActionMessages.MessageTransport;
 import chatapplication_server.components.ConfigManager;
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -13,8 +16,6 @@ import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import javax.crypto.spec.SecretKeySpec;
 import javax.swing.JButton;
 import javax.swing.JFrame;
@@ -58,9 +59,9 @@ public class P2PClient extends JFrame implements ActionListener
     JButton Send, stopStart;
     JButton connectStop;
     
-    /** Client Socket and output stream... */
+    /** Client Socket and output transport... */
     Socket socket = null;
-    ObjectOutputStream sOutput;
+    MessageTransport sOutput;
     
     private ListenFromClient clientServer;
     
@@ -242,7 +243,7 @@ public class P2PClient extends JFrame implements ActionListener
             System.arraycopy(signatureBytes, 0, signature_and_calcedSenderValue, 0, signatureBytes.length);
             System.arraycopy(calcedSenderValue_bytes, 0, signature_and_calcedSenderValue, signatureBytes.length, calcedSenderValue_bytes.length);
             /** send signed calculated values */
-            sOutput.writeObject(signature_and_calcedSenderValue);
+            sOutput.writeFrame(new Frame(FrameCodec.KEY_EXCHANGE, signature_and_calcedSenderValue));
             secretSend = true;
         }
 
@@ -302,7 +303,7 @@ public class P2PClient extends JFrame implements ActionListener
                 }
                 // From the point where Diffiehellman exchange is done, the message should just be encrypted and send.
                 try {
-                    this.send( cryptoManager.encrypt(msg, sharedSecret));
+                    this.send( msg );
                 } catch (Exception exception) {
                     exception.printStackTrace();
                 }
@@ -345,7 +346,7 @@ public class P2PClient extends JFrame implements ActionListener
                 {
                     socket = new Socket(tfServer.getText(), Integer.parseInt(tfPort.getText()));
                    
-                    sOutput = new ObjectOutputStream(socket.getOutputStream());
+                    sOutput = MessageTransport.open(socket, ConfigManager.getInstance().getValue( "Transport.Mode" ), false);
                     isConnected = true;
                     Send.setVisible( true );
                     connectStop.setText( "Disconnect" );
@@ -415,12 +416,11 @@ public class P2PClient extends JFrame implements ActionListener
     public boolean send(String str) throws Exception {
         try {
 
-            sOutput.writeObject(new ChatMessage(str.length(), str));
+            /** Encrypt the message with the agreed Diffie Hellman key, straight into the body of the frame */
+            byte[] record = cryptoManager.encryptRecord(str.getBytes(StandardCharsets.UTF_8), sharedSecret);
+            sOutput.writeFrame(new Frame(ChatMessage.MESSAGE, record));
 
-            if (diffieExchange)
-                display("You: " + cryptoManager.decrypt(str, sharedSecret));
-            else
-                System.out.println("You: " + str);
+            display("You: " + str);
 
 
         } catch (IOException ex) {
@@ -436,7 +436,7 @@ public class P2PClient extends JFrame implements ActionListener
     {
         ServerSocket serverSocket;
         Socket socket;
-        ObjectInputStream sInput = null;
+        MessageTransport sInput = null;
         boolean clientConnect = false;
         
             public ListenFromClient() 
@@ -467,7 +467,7 @@ public class P2PClient extends JFrame implements ActionListener
                         if ( !clientConnect )
                         {
                             socket = serverSocket.accept();  	// accept connection
-                            sInput = new ObjectInputStream(socket.getInputStream());
+                            sInput = MessageTransport.open(socket, ConfigManager.getInstance().getValue( "Transport.Mode" ), false);
                             clientConnect = true;
                         }
                     }
@@ -488,7 +488,10 @@ public class P2PClient extends JFrame implements ActionListener
                         else {
                             /** Second message to be received is the counter peer diffiehellman property. */
                             if (!peerSecretReceived){
-                                byte[] msg = (byte[]) sInput.readObject();
+                                Frame frame = sInput.readFrame();
+                                if (frame.getType() != FrameCodec.KEY_EXCHANGE)
+                                    throw new ProtocolException("Expected the Diffie Hellman value, received frame type " + frame.getType());
+                                byte[] msg = frame.getBodyBytes();
                                 /** Declare arrays for the signature and the DH Param*/
                                 byte[] signature = new byte[512];
                                 byte[] DHParam = Arrays.copyOfRange(msg, 512, msg.length);
@@ -504,9 +507,10 @@ public class P2PClient extends JFrame implements ActionListener
                                 }
                             }
                             else {
-                                String msg = ((ChatMessage) sInput.readObject()).getMessage();
-                                System.out.println(socket.getInetAddress()+": " + socket.getPort() + ": " + msg);
-                                display(socket.getInetAddress()+": " + socket.getPort() + ": " + cryptoManager.decrypt(msg, sharedSecret));
+                                Frame frame = sInput.readFrame();
+                                System.out.println(socket.getInetAddress()+": " + socket.getPort() + ": " + frame.getBodyLength() + " bytes");
+                                byte[] msg = cryptoManager.decryptRecord(frame.getBody(), sharedSecret);
+                                display(socket.getInetAddress()+": " + socket.getPort() + ": " + new String(msg, StandardCharsets.UTF_8));
                             }
                         }
                     }
@@ -0,0 +1,345 @@
+package chatapplication_server.components.ClientSocketEngine;
+
+import SocketActionMessages.BufferPool;
+import SocketActionMessages.ChatMessage;
+import SocketActionMessages.Frame;
+import SocketActionMessages.PrivateMessage;
+import chatapplication_server.components.ConfigManager;
+import crypto.cryptoManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * End-to-end encrypted private messages between two clients, relayed opaquely by the Server.
+ *
+ * Before the first private message to a peer, the client asks the Server for the certificate of the peer
+ * (KEY_LOOKUP, carrying the username the peer was listed with by WHOISIN). The certificate must be issued by the root
+ * CA to that very username (its subject CN) and must not be the certificate of the Server;otherwise the Server could
+ * answer with any certificate of its own choosing and read the channel. The client then generates a fresh AES key and
+ * sends it to the peer (PEER_KEY) encrypted with the public key of the peer and signed, along with the name of the
+ * peer, with its own private key; the certificate of the client travels along, so that the peer can verify the
+ * signature and knows whom the key comes from. The private messages are then AES-GCM records of an encoded
+ * PrivateMessage under this key. Every direction has its own key (the one generated by the sender), so the two
+ * clients never have to agree on who sets up the channel.
+ *
+ * The Server only routes the frames; it never holds the pairwise keys.
+ *
+ * @author atgianne
+ */
+public class PrivateChannels
+{
+    /** The private key, the (DER encoded) certificate and the certified name of this client */
+    private final PrivateKey privateKey;
+    private final byte[] certificate;
+    private final String subject;
+
+    /** The channels used for encrypting to, and decrypting from, every peer (by port number) */
+    private final ConcurrentHashMap<Integer, Channel> sendKeys, receiveKeys;
+
+    /** The usernames of the connected clients, by port number, as listed by the last WHOISIN */
+    private final ConcurrentHashMap<Integer, String> peerNames;
+
+    /** The channels waiting for the certificate of their peer; also guards the sending of private messages */
+    private final Map<Integer, Pending> pending;
+
+    /**
+     * The pairwise key of a direction and the certified name of the peer at the other end
+     */
+    private static class Channel
+    {
+        final SecretKey key;
+        final String peerName;
+
+        Channel( SecretKey key, String peerName )
+        {
+            this.key = key;
+            this.peerName = peerName;
+        }
+    }
+
+    /**
+     * A KEY_LOOKUP in flight;the name it asked for and the messages waiting for it
+     */
+    private static class Pending
+    {
+        final String peerName;
+        final List<PrivateMessage> queued = new ArrayList<>();
+
+        Pending( String peerName )
+        {
+            this.peerName = peerName;
+        }
+    }
+
+    /**
+     * Creates a new instance of PrivateChannels
+     *
+     * @param privateKey The private key of this client
+     * @param certificate The certificate of this client
+     */
+    public PrivateChannels( PrivateKey privateKey, Certificate certificate ) throws Exception
+    {
+        this.privateKey = privateKey;
+        this.certificate = certificate.getEncoded();
+        this.subject = cryptoManager.SubjectName( certificate );
+        this.sendKeys = new ConcurrentHashMap<>();
+        this.receiveKeys = new ConcurrentHashMap<>();
+        this.peerNames = new ConcurrentHashMap<>();
+        this.pending = new HashMap<>();
+    }
+
+    /**
+     * Method for keeping track of the usernames of the connected clients, so that a private message goes to the
+     * client the user picked from the list.
+     *
+     * @param listing The WHOISIN reply of the Server;"10,username,port,handler,..."
+     */
+    public void onWhoIsIn( String listing )
+    {
+        String[] fields = listing.split( "," );
+
+        peerNames.clear();
+        for ( int i = 1; i + 1 < fields.length; i += 3 )
+        {
+            try
+            {
+                peerNames.put( Integer.parseInt( fields[ i + 1 ].trim() ), fields[ i ].trim() );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                /** Not a port number...skip the entry */
+            }
+        }
+    }
+
+    /**
+     * Method for sending a private message to a peer; if there is no key for the peer yet, the message waits until
+     * the key is set up.
+     *
+     * @param peer The port number of the peer
+     * @param text The text of the message
+     */
+    public void send( int peer, String text ) throws Exception
+    {
+        String peerName = peerNames.get( peer );
+        if ( peerName == null )
+        {
+            ClientSocketGUI.getInstance().appendPrivateChat( "There is no client listed at port " + peer + ";ask for the online users (WHOISIN) first\n" );
+            return;
+        }
+
+        PrivateMessage msg = new PrivateMessage( peer, ConfigManager.getInstance().getValue( "Client.Username" ), System.currentTimeMillis(), text );
+
+        synchronized ( pending )
+        {
+            /** A key set up for whoever had this port before is of no use */
+            Channel channel = sendKeys.get( peer );
+            if ( channel != null && channel.peerName.equalsIgnoreCase( peerName ) )
+            {
+                writePrivate( peer, msg, channel.key );
+                return;
+            }
+
+            Pending lookup = pending.get( peer );
+            if ( lookup == null || !lookup.peerName.equalsIgnoreCase( peerName ) )
+            {
+                lookup = new Pending( peerName );
+                pending.put( peer, lookup );
+
+                /** First message to this peer...ask the server for its certificate */
+                ClientEngine.getInstance().writeFrame( new Frame( ChatMessage.KEY_LOOKUP, peer, peerName.getBytes( UTF_8 ) ) );
+            }
+
+            lookup.queued.add( msg );
+        }
+    }
+
+    /**
+     * Method for handling the reply of the Server to a KEY_LOOKUP; the pairwise key is generated and sent to the
+     * peer, followed by the messages waiting for it.
+     *
+     * @param frame The received KEY_LOOKUP frame, holding the certificate of the peer
+     */
+    public void onKeyLookup( Frame frame ) throws Exception
+    {
+        int peer = frame.getPeer();
+
+        synchronized ( pending )
+        {
+            Pending lookup = pending.remove( peer );
+
+            if ( lookup == null )
+                throw new ProtocolException( "Certificate of the client at port " + peer + " received without asking for it" );
+
+            if ( frame.getBodyLength() == 0 )
+            {
+                ClientSocketGUI.getInstance().appendPrivateChat( "There is no client " + lookup.peerName + " connected at port " + peer + "\n" );
+                return;
+            }
+
+            /** Only trust a certificate issued by the root CA to the peer we asked for */
+            Certificate peerCert = CertificateFactory.getInstance( "X509" ).generateCertificate(
+                    new ByteArrayInputStream( frame.getBodyBytes() ) );
+            String peerName = verifyPeer( peerCert );
+
+            if ( !peerName.equalsIgnoreCase( lookup.peerName ) )
+                throw new CertificateException( "The certificate of the client at port " + peer + " was issued to " + peerName + ", not to " + lookup.peerName );
+
+            /** Generate the key, encrypt it for the peer and sign it along with the name of the peer */
+            KeyGenerator keyGen = KeyGenerator.getInstance( "AES" );
+            keyGen.init( 256 );
+            SecretKey key = keyGen.generateKey();
+
+            byte[] wrapped = cryptoManager.encrypt_RSA( peerCert.getPublicKey(), key.getEncoded() );
+            byte[] signature = cryptoManager.SignMsg( signedKey( peerName, wrapped ), privateKey );
+
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream( body );
+            out.writeShort( certificate.length );
+            out.write( certificate );
+            out.writeShort( signature.length );
+            out.write( signature );
+            out.write( wrapped );
+
+            ClientEngine.getInstance().writeFrame( new Frame( ChatMessage.PEER_KEY, peer, body.toByteArray() ) );
+            sendKeys.put( peer, new Channel( key, peerName ) );
+
+            for ( PrivateMessage msg : lookup.queued )
+                writePrivate( peer, msg, key );
+        }
+    }
+
+    /**
+     * Method for handling the pairwise key set up by a peer.
+     *
+     * @param frame The received PEER_KEY frame
+     */
+    public void onPeerKey( Frame frame ) throws Exception
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( frame.getBodyBytes() ) );
+
+        byte[] peerCertBytes = new byte[ in.readUnsignedShort() ];
+        in.readFully( peerCertBytes );
+        byte[] signature = new byte[ in.readUnsignedShort() ];
+        in.readFully( signature );
+        byte[] wrapped = in.readAllBytes();
+
+        /** The key must come from a client certified by the root CA, and be meant for us */
+        Certificate peerCert = CertificateFactory.getInstance( "X509" ).generateCertificate( new ByteArrayInputStream( peerCertBytes ) );
+        String peerName = verifyPeer( peerCert );
+
+        PublicKey peerKey = peerCert.getPublicKey();
+        if ( !cryptoManager.VerifySign( signedKey( subject, wrapped ), signature, peerKey ) )
+            throw new SignatureException( "Invalid signature of the private key of the client at port " + frame.getPeer() );
+
+        receiveKeys.put( frame.getPeer(), new Channel( new SecretKeySpec( cryptoManager.decrypt_RSA( privateKey, wrapped ), "AES" ), peerName ) );
+    }
+
+    /**
+     * Method for decrypting a private message received from a peer; the sender it claims must be the client whose
+     * certificate came with the key.
+     *
+     * @param frame The received PRIVATEMESSAGE frame
+     *
+     * @return The decoded message
+     */
+    public PrivateMessage decrypt( Frame frame ) throws Exception
+    {
+        Channel channel = receiveKeys.get( frame.getPeer() );
+        if ( channel == null )
+            throw new ProtocolException( "No private key set up by the client at port " + frame.getPeer() );
+
+        PrivateMessage msg = PrivateMessage.decode( cryptoManager.decryptRecord( frame.getBody(), channel.key ) );
+        if ( !msg.getSenderId().equalsIgnoreCase( channel.peerName ) )
+            throw new ProtocolException( "Message from " + msg.getSenderId() + " under the key set up by " + channel.peerName );
+
+        return msg;
+    }
+
+    /**
+     * Method for getting the certified name of the client that set up the key of a private channel.
+     *
+     * @param peer The port number of the peer
+     *
+     * @return The name its certificate was issued to; null if it set up no key
+     */
+    public String getPeerName( int peer )
+    {
+        Channel channel = receiveKeys.get( peer );
+
+        return ( channel == null ) ? null : channel.peerName;
+    }
+
+    /**
+     * Method for verifying that a certificate was issued by the root CA to another client.
+     *
+     * @param peerCert The certificate of the peer
+     *
+     * @return The name the certificate was issued to
+     */
+    private String verifyPeer( Certificate peerCert ) throws Exception
+    {
+        peerCert.verify( cryptoManager.RootCAPubKey );
+
+        if ( peerCert.getPublicKey().equals( cryptoManager.ServerPubKey_ClientSide ) )
+            throw new CertificateException( "The certificate of the Server is not the one of a client" );
+
+        return cryptoManager.SubjectName( peerCert );
+    }
+
+    /**
+     * Method for building what the sender of a pairwise key signs;i.e. the encrypted key bound to the name of its
+     * recipient, so that a key cannot be passed on to another client as if it was set up for that client.
+     *
+     * @param recipient The certified name of the recipient of the key
+     * @param wrapped The encrypted key
+     */
+    private static byte[] signedKey( String recipient, byte[] wrapped ) throws IOException
+    {
+        ByteArrayOutputStream signed = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( signed );
+        out.writeUTF( recipient.toUpperCase( Locale.ROOT ) );
+        out.write( wrapped );
+
+        return signed.toByteArray();
+    }
+
+    /**
+     * Method for encrypting a private message with the key of its peer and sending it.
+     */
+    private void writePrivate( int peer, PrivateMessage msg, SecretKey key ) throws Exception
+    {
+        ByteBuffer record = cryptoManager.encryptRecord( ByteBuffer.wrap( msg.encode() ), key );
+        try
+        {
+            ClientEngine.getInstance().writeFrame( new Frame( ChatMessage.PRIVATEMESSAGE, peer, record ) );
+        }
+        finally
+        {
+            BufferPool.getInstance().release( record );
+        }
+    }
+}
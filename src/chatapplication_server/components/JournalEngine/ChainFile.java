@@ -0,0 +1,264 @@
+package chatapplication_server.components.JournalEngine;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The hash chain of the records of a journal segment, kept next to the segment. The file starts with a header:
+ *
+ *     magic (4 bytes) | version (2 bytes) | reserved (2 bytes) | base sequence number (8 bytes) | previous hash (32 bytes) | reserved (16 bytes)
+ *
+ * followed by the chained hash of every record of the segment, in order:
+ *
+ *     hash(n) = SHA-256( hash(n - 1) | payload(n) )
+ *
+ * where the previous hash of the first record of a segment is the last hash of the previous segment (all zeros for
+ * the first segment of the journal), which the header repeats;so every segment can be verified on its own.
+ *
+ * The hashes are appended by the chaining thread only (see JournalChain);they are derived from the records, so the
+ * file is only forced along with a checkpoint and simply continued (or rebuilt) after a crash.
+ *
+ * @author atgianne
+ */
+public class ChainFile
+{
+    /** The length of the header and of a hash */
+    public static final int HEADER_LENGTH = 64, HASH_LENGTH = 32;
+
+    /** "CHCH" */
+    private static final int MAGIC = 0x43484348;
+    private static final short VERSION = 1;
+
+    /** The file name suffix of the chain files */
+    public static final String SUFFIX = ".chain";
+
+    private final Path path;
+    private final FileChannel channel;
+
+    /** The base sequence number of the segment, the hash before its first record and the number of hashes */
+    private final long baseSeq;
+    private final byte[] prevHash;
+    private long count;
+
+    private ChainFile( Path path, FileChannel channel, long baseSeq, byte[] prevHash, long count )
+    {
+        this.path = path;
+        this.channel = channel;
+        this.baseSeq = baseSeq;
+        this.prevHash = prevHash;
+        this.count = count;
+    }
+
+    /**
+     * Method for creating (or replacing) the chain file of a segment.
+     *
+     * @param path The chain file
+     * @param baseSeq The base sequence number of the segment
+     * @param prevHash The hash before the first record of the segment
+     *
+     * @return The new, empty, chain file
+     */
+    public static ChainFile create( Path path, long baseSeq, byte[] prevHash ) throws IOException
+    {
+        FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING );
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+        header.putInt( 0, MAGIC );
+        header.putShort( 4, VERSION );
+        header.putLong( 8, baseSeq );
+        header.put( 16, prevHash );
+
+        while ( header.hasRemaining() )
+            channel.write( header );
+
+        return new ChainFile( path, channel, baseSeq, prevHash.clone(), 0 );
+    }
+
+    /**
+     * Method for opening an existing chain file;a hash torn by a crash is cut off.
+     *
+     * @param path The chain file
+     * @param writable TRUE for continuing the chain; FALSE for reading it only
+     *
+     * @return The chain file;null if it does not exist or is not a chain file
+     */
+    public static ChainFile open( Path path, boolean writable ) throws IOException
+    {
+        if ( !Files.exists( path ) )
+            return null;
+
+        FileChannel channel = writable ? FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE )
+                                       : FileChannel.open( path, StandardOpenOption.READ );
+
+        ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+        if ( channel.size() < HEADER_LENGTH || channel.read( header, 0 ) < HEADER_LENGTH ||
+             header.getInt( 0 ) != MAGIC || header.getShort( 4 ) != VERSION )
+        {
+            channel.close();
+            return null;
+        }
+
+        byte[] prevHash = new byte[ HASH_LENGTH ];
+        header.get( 16, prevHash );
+
+        long count = ( channel.size() - HEADER_LENGTH ) / HASH_LENGTH;
+        if ( writable )
+            channel.truncate( HEADER_LENGTH + count * HASH_LENGTH );
+
+        channel.position( HEADER_LENGTH + count * HASH_LENGTH );
+
+        return new ChainFile( path, channel, header.getLong( 8 ), prevHash, count );
+    }
+
+    /**
+     * Method for appending the hashes of the next records.
+     *
+     * @param hashes The buffer holding the hashes, between its position and its limit
+     */
+    public void append( ByteBuffer hashes ) throws IOException
+    {
+        long n = hashes.remaining() / HASH_LENGTH;
+
+        while ( hashes.hasRemaining() )
+            channel.write( hashes );
+
+        count += n;
+    }
+
+    /**
+     * Method for dropping the hashes after the first given ones (e.g. of records that are not in the segment).
+     *
+     * @param keep The number of hashes to be kept
+     */
+    public void truncate( long keep ) throws IOException
+    {
+        if ( keep >= count )
+            return;
+
+        count = keep;
+        channel.truncate( HEADER_LENGTH + count * HASH_LENGTH );
+        channel.position( HEADER_LENGTH + count * HASH_LENGTH );
+    }
+
+    /**
+     * Method for reading the hash of a record.
+     *
+     * @param seq The sequence number of the record
+     *
+     * @return The hash;null if the record is not chained (yet)
+     */
+    public byte[] hashOf( long seq ) throws IOException
+    {
+        if ( seq < baseSeq || seq >= baseSeq + count )
+            return null;
+
+        ByteBuffer hash = ByteBuffer.allocate( HASH_LENGTH );
+        long position = HEADER_LENGTH + ( seq - baseSeq ) * HASH_LENGTH;
+
+        while ( hash.hasRemaining() )
+        {
+            if ( channel.read( hash, position + hash.position() ) < 0 )
+                throw new ProtocolException( "Unexpected end of the chain file (" + path + ")" );
+        }
+
+        return hash.array();
+    }
+
+    /**
+     * Method for reading the hashes of a run of records at once.
+     *
+     * @param fromSeq The sequence number of the first record
+     * @param toSeq The sequence number of the last record
+     * @param hashes The array to read the hashes into
+     * @param at The index (in hashes) of the hash of the first record
+     *
+     * @return FALSE if some of the records are not chained (yet)
+     */
+    public boolean readHashes( long fromSeq, long toSeq, byte[][] hashes, int at ) throws IOException
+    {
+        if ( fromSeq < baseSeq || toSeq >= baseSeq + count )
+            return false;
+
+        ByteBuffer run = ByteBuffer.allocate( ( int )( toSeq - fromSeq + 1 ) * HASH_LENGTH );
+        long position = HEADER_LENGTH + ( fromSeq - baseSeq ) * HASH_LENGTH;
+
+        while ( run.hasRemaining() )
+        {
+            if ( channel.read( run, position + run.position() ) < 0 )
+                throw new ProtocolException( "Unexpected end of the chain file (" + path + ")" );
+        }
+
+        run.flip();
+        for ( int i = at; run.hasRemaining(); i++ )
+        {
+            hashes[ i ] = new byte[ HASH_LENGTH ];
+            run.get( hashes[ i ] );
+        }
+
+        return true;
+    }
+
+    /**
+     * @return The hash of the last chained record;the previous hash of the segment if none is chained yet
+     */
+    public byte[] lastHash() throws IOException
+    {
+        return ( count == 0 ) ? prevHash.clone() : hashOf( baseSeq + count - 1 );
+    }
+
+    /**
+     * Method for forcing the hashes appended so far to the disk.
+     */
+    public void force() throws IOException
+    {
+        channel.force( false );
+    }
+
+    /**
+     * Method for closing the chain file.
+     */
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * @return The chain file of the given segment file
+     */
+    public static Path pathOf( Path segment )
+    {
+        String name = segment.getFileName().toString();
+
+        return segment.resolveSibling( name.substring( 0, name.length() - JournalSegment.SUFFIX.length() ) + SUFFIX );
+    }
+
+    /**
+     * @return The base sequence number of the segment
+     */
+    public long getBaseSeq()
+    {
+        return baseSeq;
+    }
+
+    /**
+     * @return The hash before the first record of the segment
+     */
+    public byte[] getPrevHash()
+    {
+        return prevHash.clone();
+    }
+
+    /**
+     * @return The number of chained records
+     */
+    public long getCount()
+    {
+        return count;
+    }
+}
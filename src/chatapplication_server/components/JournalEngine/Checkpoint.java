@@ -0,0 +1,202 @@
+package chatapplication_server.components.JournalEngine;
+
+import crypto.cryptoManager;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * A checkpoint of the journal, signed with the private key of the server (see JournalChain). It covers the batch of
+ * records journaled since the previous checkpoint and is laid out as:
+ *
+ *     length (4 bytes) | magic (4 bytes) | first sequence number (8 bytes) | last sequence number (8 bytes) |
+ *     time stamp (8 bytes) | hash (32 bytes) | root (32 bytes) | signature
+ *
+ * where the hash is the chained hash of the last record of the batch, the root the root of the Merkle tree of the
+ * batch (see MerkleTree) and the signature covers everything between the length and itself. So the one signature
+ * vouches for the whole chain up to the last record and for every record of the batch on its own.
+ *
+ * @author atgianne
+ */
+public class Checkpoint
+{
+    /** "CHKP" */
+    private static final int MAGIC = 0x43484B50;
+
+    /** The length of the signed part */
+    public static final int SIGNED_LENGTH = 4 + 8 + 8 + 8 + ChainFile.HASH_LENGTH + ChainFile.HASH_LENGTH;
+
+    /** The largest signature accepted when decoding (e.g. RSA-8192) */
+    private static final int MAX_SIGNATURE_LENGTH = 1024;
+
+    private final long fromSeq, toSeq, timestamp;
+    private final byte[] hash, root;
+    private byte[] signature;
+
+    /**
+     * Creates a new, unsigned, instance of Checkpoint
+     *
+     * @param fromSeq The sequence number of the first record of the batch
+     * @param toSeq The sequence number of the last record of the batch
+     * @param timestamp The time of the checkpoint
+     * @param hash The chained hash of the last record of the batch
+     * @param root The root of the Merkle tree of the batch
+     */
+    public Checkpoint( long fromSeq, long toSeq, long timestamp, byte[] hash, byte[] root )
+    {
+        this.fromSeq = fromSeq;
+        this.toSeq = toSeq;
+        this.timestamp = timestamp;
+        this.hash = hash;
+        this.root = root;
+    }
+
+    /**
+     * Method for signing the checkpoint.
+     *
+     * @param key The private key of the server
+     */
+    public void sign( PrivateKey key ) throws GeneralSecurityException
+    {
+        signature = cryptoManager.SignMsg( signedPart(), key );
+    }
+
+    /**
+     * Method for verifying the signature of the checkpoint.
+     *
+     * @param key The public key of the server
+     *
+     * @return TRUE if it was signed with the private key of the server
+     */
+    public boolean verify( PublicKey key )
+    {
+        try
+        {
+            return signature != null && cryptoManager.VerifySign( signedPart(), signature, key );
+        }
+        catch ( GeneralSecurityException gse )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * @return The part of the checkpoint covered by the signature
+     */
+    private byte[] signedPart()
+    {
+        ByteBuffer signed = ByteBuffer.allocate( SIGNED_LENGTH );
+        signed.putInt( MAGIC );
+        signed.putLong( fromSeq );
+        signed.putLong( toSeq );
+        signed.putLong( timestamp );
+        signed.put( hash );
+        signed.put( root );
+
+        return signed.array();
+    }
+
+    /**
+     * @return The number of bytes the (signed) checkpoint takes when encoded
+     */
+    public int encodedLength()
+    {
+        return 4 + SIGNED_LENGTH + signature.length;
+    }
+
+    /**
+     * Method for encoding the (signed) checkpoint.
+     *
+     * @param dst The buffer to encode it into, at its position
+     */
+    public void encode( ByteBuffer dst )
+    {
+        dst.putInt( SIGNED_LENGTH + signature.length );
+        dst.put( signedPart() );
+        dst.put( signature );
+    }
+
+    /**
+     * Method for decoding a checkpoint.
+     *
+     * @param src The buffer holding the checkpoint, at its position;it is moved past the checkpoint
+     *
+     * @return The checkpoint;null if the buffer does not hold a whole one (e.g. it was torn by a crash)
+     */
+    public static Checkpoint decode( ByteBuffer src )
+    {
+        if ( src.remaining() < 4 )
+            return null;
+
+        int length = src.getInt( src.position() );
+        if ( length <= SIGNED_LENGTH || length > SIGNED_LENGTH + MAX_SIGNATURE_LENGTH || length > src.remaining() - 4 ||
+             src.getInt( src.position() + 4 ) != MAGIC )
+            return null;
+
+        src.getInt();
+        src.getInt();
+
+        long fromSeq = src.getLong();
+        long toSeq = src.getLong();
+        long timestamp = src.getLong();
+        byte[] hash = new byte[ ChainFile.HASH_LENGTH ];
+        byte[] root = new byte[ ChainFile.HASH_LENGTH ];
+        src.get( hash );
+        src.get( root );
+
+        Checkpoint checkpoint = new Checkpoint( fromSeq, toSeq, timestamp, hash, root );
+        checkpoint.signature = new byte[ length - SIGNED_LENGTH ];
+        src.get( checkpoint.signature );
+
+        return checkpoint;
+    }
+
+    /**
+     * @return The sequence number of the first record of the batch
+     */
+    public long getFromSeq()
+    {
+        return fromSeq;
+    }
+
+    /**
+     * @return The sequence number of the last record of the batch
+     */
+    public long getToSeq()
+    {
+        return toSeq;
+    }
+
+    /**
+     * @return The number of records of the batch
+     */
+    public int getCount()
+    {
+        return ( int )( toSeq - fromSeq + 1 );
+    }
+
+    /**
+     * @return The time of the checkpoint
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return The chained hash of the last record of the batch
+     */
+    public byte[] getHash()
+    {
+        return hash.clone();
+    }
+
+    /**
+     * @return The root of the Merkle tree of the batch
+     */
+    public byte[] getRoot()
+    {
+        return root.clone();
+    }
+}
@@ -0,0 +1,172 @@
+package chatapplication_server.components.JournalEngine;
+
+import crypto.MerkleTree;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The proof that a journaled record is part of the history signed by the server, laid out as:
+ *
+ *     sequence number (8 bytes) | previous hash (32 bytes) | payload length (4 bytes) | payload |
+ *     number of siblings (1 byte) | siblings (32 bytes each) | checkpoint
+ *
+ * The chained hash of the record follows from the previous hash and the payload (see ChainFile), the root of its
+ * batch from that hash and the siblings (see MerkleTree), and the checkpoint (see Checkpoint) signs the root. So it
+ * takes a few hundred bytes and one signature check, however many records the batch has.
+ *
+ * @author atgianne
+ */
+public class InclusionProof
+{
+    private final long seq;
+    private final byte[] prevHash, payload;
+    private final List<byte[]> path;
+    private final Checkpoint checkpoint;
+
+    /**
+     * Creates a new instance of InclusionProof
+     *
+     * @param seq The sequence number of the record
+     * @param prevHash The chained hash of the record before it
+     * @param payload The payload of the record, as journaled
+     * @param path The siblings on the way from the leaf of the record to the root of its batch
+     * @param checkpoint The checkpoint signing the batch
+     */
+    public InclusionProof( long seq, byte[] prevHash, byte[] payload, List<byte[]> path, Checkpoint checkpoint )
+    {
+        this.seq = seq;
+        this.prevHash = prevHash;
+        this.payload = payload;
+        this.path = path;
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Method for checking the proof.
+     *
+     * @param key The public key of the server
+     *
+     * @return TRUE if the record is in the batch and the batch was signed by the server
+     */
+    public boolean verify( PublicKey key )
+    {
+        if ( seq < checkpoint.getFromSeq() || seq > checkpoint.getToSeq() || payload.length < 8 || ByteBuffer.wrap( payload ).getLong( 0 ) != seq )
+            return false;
+
+        byte[] hash;
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+            md.update( prevHash );
+            md.update( payload );
+            hash = md.digest();
+        }
+        catch ( NoSuchAlgorithmException nsae )
+        {
+            return false;
+        }
+
+        return MerkleTree.verify( hash, ( int )( seq - checkpoint.getFromSeq() ), checkpoint.getCount(), path, checkpoint.getRoot() ) &&
+               checkpoint.verify( key );
+    }
+
+    /**
+     * Method for encoding the proof.
+     *
+     * @return The encoded proof
+     */
+    public byte[] encode()
+    {
+        ByteBuffer dst = ByteBuffer.allocate( 8 + ChainFile.HASH_LENGTH + 4 + payload.length + 1 + path.size() * ChainFile.HASH_LENGTH +
+                                              checkpoint.encodedLength() );
+        dst.putLong( seq );
+        dst.put( prevHash );
+        dst.putInt( payload.length );
+        dst.put( payload );
+        dst.put( ( byte )path.size() );
+        for ( byte[] sibling : path )
+            dst.put( sibling );
+        checkpoint.encode( dst );
+
+        return dst.array();
+    }
+
+    /**
+     * Method for decoding a proof.
+     *
+     * @param src The buffer holding the proof, between its position and its limit
+     *
+     * @return The proof
+     */
+    public static InclusionProof decode( ByteBuffer src ) throws ProtocolException
+    {
+        if ( src.remaining() < 8 + ChainFile.HASH_LENGTH + 4 )
+            throw new ProtocolException( "Truncated inclusion proof" );
+
+        long seq = src.getLong();
+        byte[] prevHash = new byte[ ChainFile.HASH_LENGTH ];
+        src.get( prevHash );
+
+        int length = src.getInt();
+        if ( length < 0 || length > src.remaining() - 1 )
+            throw new ProtocolException( "Invalid payload length " + length + " in inclusion proof" );
+
+        byte[] payload = new byte[ length ];
+        src.get( payload );
+
+        int siblings = src.get() & 0xff;
+        if ( siblings * ChainFile.HASH_LENGTH > src.remaining() )
+            throw new ProtocolException( "Truncated inclusion proof" );
+
+        List<byte[]> path = new ArrayList<>( siblings );
+        for ( int i = 0; i < siblings; i++ )
+        {
+            byte[] sibling = new byte[ ChainFile.HASH_LENGTH ];
+            src.get( sibling );
+            path.add( sibling );
+        }
+
+        Checkpoint checkpoint = Checkpoint.decode( src );
+        if ( checkpoint == null )
+            throw new ProtocolException( "Invalid checkpoint in inclusion proof" );
+
+        return new InclusionProof( seq, prevHash, payload, path, checkpoint );
+    }
+
+    /**
+     * @return The record the proof is about
+     */
+    public JournalRecord getRecord() throws ProtocolException
+    {
+        return JournalRecord.readPayload( ByteBuffer.wrap( payload ), 0, payload.length );
+    }
+
+    /**
+     * @return The sequence number of the record
+     */
+    public long getSeq()
+    {
+        return seq;
+    }
+
+    /**
+     * @return The number of siblings on the path of the record
+     */
+    public int getPathLength()
+    {
+        return path.size();
+    }
+
+    /**
+     * @return The checkpoint signing the batch of the record
+     */
+    public Checkpoint getCheckpoint()
+    {
+        return checkpoint;
+    }
+}
@@ -0,0 +1,767 @@
+package chatapplication_server.components.JournalEngine;
+
+import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.ServerSocketEngine.SocketServerGUI;
+import chatapplication_server.components.base.GenericThreadedComponent;
+import crypto.MerkleTree;
+import crypto.cryptoManager;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tamper evidence of the journal: every journaled record is chained to the previous one with SHA-256 (see ChainFile)
+ * and the batch of records chained since the last checkpoint is signed with the private key of the server every
+ * Chain.CheckpointInterval records or Chain.CheckpointPeriod milliseconds, whichever comes first. Editing, dropping
+ * or reordering a record then breaks the chain from that record on, and recomputing the chain afterwards does not
+ * match the signed checkpoints.
+ *
+ * Chaining is pipelined off the write path: the chaining thread follows the journal (like the search indexer) and
+ * hashes the records once they are forced to the disk, so the journal thread never waits for a hash. Only the records
+ * up to the last checkpoint are covered by a signature;the few after it are covered once the next one is signed.
+ *
+ * A checkpoint (see Checkpoint) signs both the head of the chain and the root of the Merkle tree of its batch (see
+ * MerkleTree), so one signature covers thousands of records and any one of them can be proven to a client on its own
+ * with an InclusionProof of log2(batch size) hashes, without the rest of the history. The checkpoints are appended
+ * to a single file next to the segments and kept in memory, a few dozen bytes each, for finding the batch of a record.
+ *
+ * Verifying the journal checks every segment against its chain file in parallel (a segment does not depend on the
+ * others, since its chain file repeats the hash it starts from), then the links between the segments and the
+ * signatures, hashes and Merkle roots of the checkpoints.
+ *
+ * @author atgianne
+ */
+public class JournalChain extends GenericThreadedComponent
+{
+    /** Singleton instance of the JournalChain component */
+    private static JournalChain componentInstance = null;
+
+    /** The name of the checkpoint file */
+    private static final String CHECKPOINT_FILE = "checkpoints.log";
+
+    /** The largest number of records hashed per round of the chaining thread */
+    private static final int CHAIN_BATCH = 4096;
+
+    /** The number of batches whose trees are kept for building proofs;the recent ones are asked for most */
+    private static final int PROOF_CACHE = 4;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Flag indicating whether the chain is running */
+    private volatile boolean isRunning;
+
+    /** The keys signing and verifying the checkpoints;null if the server key could not be loaded */
+    private PrivateKey signingKey;
+    private PublicKey verifyingKey;
+
+    /** The checkpoint file, and the checkpoints in it in order */
+    private Path checkpointPath;
+    private final CopyOnWriteArrayList<Checkpoint> signed;
+
+    /** The chained hashes and the trees of the batches proofs were built for lately, by the first sequence number
+        of the batch */
+    private final LinkedHashMap<Long, ProofBatch> proofBatches;
+
+    /** The chaining state;only touched by the chaining thread */
+    private int segmentIndex;
+    private int offset;
+    private long nextSeq;
+    private byte[] head;
+    private ChainFile chain;
+    private MessageDigest md;
+    private long checkpointSeq, checkpointAt;
+
+    /** Statistics of the chain */
+    private volatile long chainedSeq, checkpoints, lastCheckpointMicros, proofs, lastProofMicros;
+
+    /**
+     * Creates a new instance of JournalChain
+     */
+    private JournalChain()
+    {
+        signed = new CopyOnWriteArrayList<>();
+        proofBatches = new LinkedHashMap<>( 2 * PROOF_CACHE, 0.75f, true );
+        isRunning = false;
+    }
+
+    /**
+     * Make sure that we can only get one instance of the JournalChain component.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized JournalChain getInstance()
+    {
+        if ( componentInstance == null )
+            componentInstance = new JournalChain();
+
+        return componentInstance;
+    }
+
+    /**
+     * Implementation of IComponent.initialize method().
+     * It loads the key of the server and starts the chaining thread, unless chaining is disabled or there is no
+     * journal to chain.
+     *
+     * @see //IComponent interface.
+     */
+    public void initialize() throws Exception
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Chain.Enabled", "true" );
+        configManager.setDefaultValue( "Chain.CheckpointInterval", "10000" );
+        configManager.setDefaultValue( "Chain.CheckpointPeriod", Long.toString( 60 * 1000 ) );
+        configManager.setDefaultValue( "Chain.VerifyOnStartup", "true" );
+        configManager.setDefaultValue( "Chain.PollInterval", "200" );
+
+        MessageJournal journal = MessageJournal.getInstance();
+        if ( !Boolean.parseBoolean( configManager.getValue( "Chain.Enabled" ) ) || !journal.getIsRunning() )
+            return;
+
+        /** Without the server key the chain is still kept;it is just not signed */
+        try
+        {
+            signingKey = cryptoManager.ExtractPrivKeyFromJKS( cryptoManager.ServerKeyStore, cryptoManager.ServerKeyStorePass,
+                                                              cryptoManager.Serveralias, cryptoManager.ServerKeyStorePass );
+            verifyingKey = cryptoManager.ExtractPubKeyFromCert( cryptoManager.ExtractCertFromJKS( cryptoManager.ServerKeyStore,
+                                                              cryptoManager.ServerKeyStorePass, cryptoManager.Serveralias ) );
+        }
+        catch ( Exception e )
+        {
+            signingKey = null;
+            verifyingKey = null;
+            SocketServerGUI.getInstance().appendEvent( "[Chain]:: Failed loading the server key;no checkpoint is signed -- " + e.getMessage() + "\n" );
+        }
+
+        checkpointPath = journal.getDirectory().resolve( CHECKPOINT_FILE );
+        md = MessageDigest.getInstance( "SHA-256" );
+        chainedSeq = checkpoints = lastCheckpointMicros = proofs = lastProofMicros = 0;
+
+        synchronized ( proofBatches )
+        {
+            proofBatches.clear();
+        }
+        isRunning = true;
+
+        /** Invoke our parent intialization method for starting the thread */
+        super.initialize();
+    }
+
+    /**
+     * The main logic of the JournalChain;i.e. the chaining thread following the journal.
+     */
+    public void componentMain()
+    {
+        MessageJournal journal = MessageJournal.getInstance();
+        long pollInterval = configManager.getValueLong( "Chain.PollInterval" );
+        long checkpointInterval = configManager.getValueLong( "Chain.CheckpointInterval" );
+        long checkpointPeriod = configManager.getValueLong( "Chain.CheckpointPeriod" );
+
+        try
+        {
+            resume();
+
+            if ( Boolean.parseBoolean( configManager.getValue( "Chain.VerifyOnStartup" ) ) )
+                SocketServerGUI.getInstance().appendEvent( "[Chain]:: " + verify() );
+
+            while ( !mustShutdown )
+            {
+                long durable = journal.getDurableSeq();
+
+                if ( nextSeq <= durable )
+                    chainUpTo( durable );
+
+                long now = System.currentTimeMillis();
+                if ( chainedSeq - checkpointSeq >= checkpointInterval || ( chainedSeq > checkpointSeq && now - checkpointAt >= checkpointPeriod ) )
+                    checkpoint();
+
+                if ( nextSeq > durable )
+                    Thread.sleep( pollInterval );
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Interrupted...the head of the chain is signed below */
+        }
+        catch ( IOException | GeneralSecurityException e )
+        {
+            /** Keep track of this event in the logging stream;nothing is chained from now on */
+            SocketServerGUI.getInstance().appendEvent( "[Chain]:: Failed chaining the journal -- " + e.getMessage() + "\n" );
+        }
+        finally
+        {
+            try
+            {
+                if ( chain != null )
+                {
+                    checkpoint();
+                    chain.close();
+                }
+            }
+            catch ( IOException | GeneralSecurityException e )
+            {
+                SocketServerGUI.getInstance().appendEvent( "[Chain]:: Failed signing the last checkpoint -- " + e.getMessage() + "\n" );
+            }
+
+            isRunning = false;
+        }
+    }
+
+    /**
+     * Method for finding where the chain stopped (e.g. at the last shutdown);the chain files that do not follow on
+     * from the previous segment, or are missing, are rebuilt from there on.
+     */
+    private void resume() throws IOException
+    {
+        List<JournalSegment> segments = MessageJournal.getInstance().getSegments();
+        long durable = MessageJournal.getInstance().getDurableSeq();
+        byte[] prev = new byte[ ChainFile.HASH_LENGTH ];
+
+        for ( int i = 0; i < segments.size(); i++ )
+        {
+            JournalSegment segment = segments.get( i );
+            boolean last = ( i == segments.size() - 1 );
+            long records = ( last ? durable : segment.getLastSeq() ) - segment.getBaseSeq() + 1;
+
+            Path path = ChainFile.pathOf( segment.getPath() );
+            ChainFile file = ChainFile.open( path, true );
+
+            if ( file == null || file.getBaseSeq() != segment.getBaseSeq() || !Arrays.equals( file.getPrevHash(), prev ) )
+            {
+                if ( file != null )
+                    file.close();
+                file = ChainFile.create( path, segment.getBaseSeq(), prev );
+            }
+
+            /** Hashes of records that are not in the segment any more (e.g. torn by a crash) */
+            file.truncate( Math.max( 0, records ) );
+
+            if ( !last && file.getCount() == records )
+            {
+                prev = file.lastHash();
+                file.close();
+                continue;
+            }
+
+            segmentIndex = i;
+            chain = file;
+            nextSeq = segment.getBaseSeq() + file.getCount();
+            head = file.lastHash();
+            offset = segment.seek( nextSeq );
+            break;
+        }
+
+        chainedSeq = nextSeq - 1;
+
+        /** The next batch starts after the last checkpoint (if any) */
+        signed.clear();
+        signed.addAll( readCheckpoints() );
+        checkpointSeq = signed.isEmpty() ? 0 : signed.get( signed.size() - 1 ).getToSeq();
+        checkpointAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Method for hashing the journaled records up to the given one (at most CHAIN_BATCH of them) and appending their
+     * hashes to the chain files.
+     */
+    private void chainUpTo( long durable ) throws IOException
+    {
+        List<JournalSegment> segments = MessageJournal.getInstance().getSegments();
+        long upTo = Math.min( durable, nextSeq + CHAIN_BATCH - 1 );
+        ByteBuffer hashes = ByteBuffer.allocate( ( int )( upTo - nextSeq + 1 ) * ChainFile.HASH_LENGTH );
+
+        while ( nextSeq <= upTo )
+        {
+            /** The records of the segment are all chained...continue in the next one */
+            if ( segmentIndex + 1 < segments.size() && nextSeq >= segments.get( segmentIndex + 1 ).getBaseSeq() )
+            {
+                hashes.flip();
+                chain.append( hashes );
+                hashes.clear();
+                chain.force();
+                chain.close();
+
+                JournalSegment next = segments.get( ++segmentIndex );
+                chain = ChainFile.create( ChainFile.pathOf( next.getPath() ), next.getBaseSeq(), head );
+                offset = JournalSegment.HEADER_LENGTH;
+            }
+
+            md.update( head );
+            offset += segments.get( segmentIndex ).digest( offset, md );
+            head = md.digest();
+
+            hashes.put( head );
+            nextSeq++;
+        }
+
+        hashes.flip();
+        chain.append( hashes );
+
+        chainedSeq = nextSeq - 1;
+    }
+
+    /**
+     * Method for signing the batch of records chained since the last checkpoint and appending the checkpoint to the
+     * checkpoint file.
+     */
+    private void checkpoint() throws IOException, GeneralSecurityException
+    {
+        long seq = nextSeq - 1;
+        if ( signingKey == null || seq <= checkpointSeq )
+            return;
+
+        long start = System.nanoTime();
+        long now = System.currentTimeMillis();
+
+        /** The hashes it vouches for are on the disk first */
+        chain.force();
+
+        byte[][] hashes = chainedHashes( MessageJournal.getInstance().getSegments(), checkpointSeq + 1, seq );
+        if ( hashes == null )
+            throw new IOException( "Records " + ( checkpointSeq + 1 ) + " to " + seq + " are not all chained" );
+
+        Checkpoint checkpoint = new Checkpoint( checkpointSeq + 1, seq, now, head, MerkleTree.root( MerkleTree.build( hashes ) ) );
+        checkpoint.sign( signingKey );
+
+        ByteBuffer record = ByteBuffer.allocate( checkpoint.encodedLength() );
+        checkpoint.encode( record );
+        record.flip();
+
+        try ( FileChannel out = FileChannel.open( checkpointPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND ) )
+        {
+            while ( record.hasRemaining() )
+                out.write( record );
+
+            out.force( false );
+        }
+
+        signed.add( checkpoint );
+        checkpointSeq = seq;
+        checkpointAt = now;
+        checkpoints++;
+        lastCheckpointMicros = ( System.nanoTime() - start ) / 1000;
+    }
+
+    /**
+     * Method for reading the checkpoint file;a checkpoint torn by a crash ends it.
+     *
+     * @return The checkpoints, in order
+     */
+    private List<Checkpoint> readCheckpoints() throws IOException
+    {
+        List<Checkpoint> found = new ArrayList<>();
+        if ( !checkpointPath.toFile().exists() )
+            return found;
+
+        try ( FileChannel in = FileChannel.open( checkpointPath, StandardOpenOption.READ ) )
+        {
+            ByteBuffer all = ByteBuffer.allocate( ( int )in.size() );
+            while ( all.hasRemaining() && in.read( all ) >= 0 );
+            all.flip();
+
+            for ( Checkpoint checkpoint = Checkpoint.decode( all ); checkpoint != null; checkpoint = Checkpoint.decode( all ) )
+                found.add( checkpoint );
+        }
+
+        return found;
+    }
+
+    /**
+     * Method for reading the chained hashes of a run of records, over as many chain files as it spans.
+     *
+     * @param segments The segments of the journal
+     * @param fromSeq The sequence number of the first record
+     * @param toSeq The sequence number of the last record
+     *
+     * @return The hashes, in order;null if some of the records are not chained
+     */
+    private static byte[][] chainedHashes( List<JournalSegment> segments, long fromSeq, long toSeq ) throws IOException
+    {
+        byte[][] hashes = new byte[ ( int )( toSeq - fromSeq + 1 ) ][];
+        long seq = fromSeq;
+
+        for ( int i = 0; i < segments.size() && seq <= toSeq; i++ )
+        {
+            long end = ( i + 1 < segments.size() ) ? Math.min( toSeq, segments.get( i + 1 ).getBaseSeq() - 1 ) : toSeq;
+            if ( end < seq )
+                continue;
+
+            ChainFile file = ChainFile.open( ChainFile.pathOf( segments.get( i ).getPath() ), false );
+            if ( file == null )
+                return null;
+
+            try
+            {
+                if ( !file.readHashes( seq, end, hashes, ( int )( seq - fromSeq ) ) )
+                    return null;
+            }
+            finally
+            {
+                file.close();
+            }
+
+            seq = end + 1;
+        }
+
+        return ( seq > toSeq ) ? hashes : null;
+    }
+
+    /**
+     * Method for building the proof that a journaled record is part of the history signed by the server.
+     *
+     * @param seq The sequence number of the record
+     *
+     * @return The proof;null if the record is not covered by a checkpoint (yet)
+     */
+    public InclusionProof getProof( long seq ) throws IOException
+    {
+        long start = System.nanoTime();
+
+        /** The batch of the record */
+        int lo = 0, hi = signed.size() - 1;
+        Checkpoint checkpoint = null;
+
+        while ( lo <= hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+            Checkpoint c = signed.get( mid );
+
+            if ( c.getToSeq() < seq )
+                lo = mid + 1;
+            else if ( c.getFromSeq() > seq )
+                hi = mid - 1;
+            else
+            {
+                checkpoint = c;
+                break;
+            }
+        }
+
+        if ( checkpoint == null )
+            return null;
+
+        List<JournalSegment> segments = MessageJournal.getInstance().getSegments();
+        ProofBatch batch;
+
+        synchronized ( proofBatches )
+        {
+            batch = proofBatches.get( checkpoint.getFromSeq() );
+        }
+
+        /** The tree of the batch is built once;a proof then only collects the siblings of the record */
+        if ( batch == null )
+        {
+            byte[][] hashes = chainedHashes( segments, checkpoint.getFromSeq(), checkpoint.getToSeq() );
+            if ( hashes == null )
+                return null;
+
+            batch = new ProofBatch( hashes );
+
+            synchronized ( proofBatches )
+            {
+                proofBatches.put( checkpoint.getFromSeq(), batch );
+                if ( proofBatches.size() > PROOF_CACHE )
+                    proofBatches.remove( proofBatches.keySet().iterator().next() );
+            }
+        }
+
+        byte[][] hashes = batch.hashes;
+        int index = ( int )( seq - checkpoint.getFromSeq() );
+
+        /** The record itself and the hash it was chained to */
+        JournalSegment segment = null;
+        for ( int i = segments.size() - 1; i >= 0 && segment == null; i-- )
+        {
+            if ( segments.get( i ).getBaseSeq() <= seq )
+                segment = segments.get( i );
+        }
+
+        if ( segment == null )
+            return null;
+
+        byte[] payload = segment.readPayloadBytes( segment.seek( seq ) );
+        byte[] prevHash;
+
+        if ( index > 0 )
+            prevHash = hashes[ index - 1 ];
+        else
+        {
+            prevHash = hashOf( segments, seq - 1 );
+            if ( prevHash == null )
+                prevHash = new byte[ ChainFile.HASH_LENGTH ];
+        }
+
+        List<byte[]> path = MerkleTree.path( batch.tree, index );
+
+        proofs++;
+        lastProofMicros = ( System.nanoTime() - start ) / 1000;
+
+        return new InclusionProof( seq, prevHash, payload, path, checkpoint );
+    }
+
+    /**
+     * The chained hashes and the tree of a batch, kept for building the proofs of its records.
+     */
+    private static class ProofBatch
+    {
+        final byte[][] hashes;
+        final byte[][][] tree;
+
+        ProofBatch( byte[][] hashes )
+        {
+            this.hashes = hashes;
+            this.tree = MerkleTree.build( hashes );
+        }
+    }
+
+    /**
+     * The outcome of verifying a segment against its chain file.
+     */
+    private static class SegmentCheck
+    {
+        long verified;
+        long firstMismatch = -1;
+        byte[] prevHash, lastHash;
+        String error;
+    }
+
+    /**
+     * Method for verifying a segment against its chain file;every chained record is hashed again and compared.
+     */
+    private static SegmentCheck verifySegment( JournalSegment segment, long upTo )
+    {
+        SegmentCheck check = new SegmentCheck();
+
+        try
+        {
+            ChainFile file = ChainFile.open( ChainFile.pathOf( segment.getPath() ), false );
+            if ( file == null )
+            {
+                check.error = "no chain file";
+                return check;
+            }
+
+            try
+            {
+                MessageDigest digest = MessageDigest.getInstance( "SHA-256" );
+                byte[] prev = file.getPrevHash();
+                long last = Math.min( upTo, segment.getBaseSeq() + file.getCount() - 1 );
+                int at = JournalSegment.HEADER_LENGTH;
+
+                check.prevHash = prev;
+
+                for ( long seq = segment.getBaseSeq(); seq <= last; seq++ )
+                {
+                    digest.update( prev );
+                    at += segment.digest( at, digest );
+                    prev = digest.digest();
+
+                    if ( !Arrays.equals( prev, file.hashOf( seq ) ) )
+                    {
+                        check.firstMismatch = seq;
+                        break;
+                    }
+
+                    check.verified++;
+                }
+
+                check.lastHash = prev;
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+        catch ( IOException | GeneralSecurityException e )
+        {
+            check.error = e.getMessage();
+        }
+
+        return check;
+    }
+
+    /**
+     * Method for verifying the whole journal against its chain and the signed checkpoints;the segments are verified
+     * in parallel.
+     *
+     * @return A printable report of the verification
+     */
+    public String verify()
+    {
+        long start = System.nanoTime();
+        List<JournalSegment> segments = new ArrayList<>( MessageJournal.getInstance().getSegments() );
+        long upTo = chainedSeq;
+
+        SegmentCheck[] checks = new SegmentCheck[ segments.size() ];
+        ExecutorService pool = Executors.newFixedThreadPool( Math.max( 1, Math.min( segments.size(), Runtime.getRuntime().availableProcessors() ) ) );
+
+        try
+        {
+            List<Future<SegmentCheck>> pending = new ArrayList<>();
+            for ( JournalSegment segment : segments )
+                pending.add( pool.submit( () -> verifySegment( segment, upTo ) ) );
+
+            for ( int i = 0; i < checks.length; i++ )
+                checks[ i ] = pending.get( i ).get();
+        }
+        catch ( Exception e )
+        {
+            return "Verification interrupted -- " + e.getMessage() + "\n";
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+
+        StringBuilder problems = new StringBuilder();
+        long verified = 0;
+
+        for ( int i = 0; i < checks.length; i++ )
+        {
+            SegmentCheck check = checks[ i ];
+            String name = segments.get( i ).getPath().getFileName().toString();
+            verified += check.verified;
+
+            if ( check.error != null )
+                problems.append( "  " ).append( name ).append( ": " ).append( check.error ).append( "\n" );
+            else if ( check.firstMismatch >= 0 )
+                problems.append( "  " ).append( name ).append( ": chain broken at record " ).append( check.firstMismatch ).append( "\n" );
+
+            /** Every segment must start from where the previous one ended */
+            if ( i > 0 && check.prevHash != null && checks[ i - 1 ].lastHash != null && !Arrays.equals( check.prevHash, checks[ i - 1 ].lastHash ) )
+                problems.append( "  " ).append( name ).append( ": does not follow on from the previous segment\n" );
+        }
+
+        /** Every checkpoint must be signed by the server and match the chain, both its head and its Merkle root */
+        int validCheckpoints = 0;
+        long expectedFrom = 0;
+
+        try
+        {
+            for ( Checkpoint checkpoint : readCheckpoints() )
+            {
+                String at = "  checkpoint of records " + checkpoint.getFromSeq() + " to " + checkpoint.getToSeq();
+
+                if ( expectedFrom > 0 && checkpoint.getFromSeq() != expectedFrom )
+                    problems.append( at ).append( ": does not follow on from the previous checkpoint\n" );
+                expectedFrom = checkpoint.getToSeq() + 1;
+
+                if ( verifyingKey != null && !checkpoint.verify( verifyingKey ) )
+                {
+                    problems.append( at ).append( ": invalid signature\n" );
+                    continue;
+                }
+
+                byte[][] hashes = chainedHashes( segments, checkpoint.getFromSeq(), checkpoint.getToSeq() );
+                if ( hashes == null )
+                    continue;
+
+                if ( !Arrays.equals( hashes[ hashes.length - 1 ], checkpoint.getHash() ) )
+                    problems.append( at ).append( ": does not match the chain\n" );
+                else if ( !Arrays.equals( MerkleTree.root( MerkleTree.build( hashes ) ), checkpoint.getRoot() ) )
+                    problems.append( at ).append( ": does not match its Merkle root\n" );
+                else
+                    validCheckpoints++;
+            }
+        }
+        catch ( IOException ioe )
+        {
+            problems.append( "  checkpoints: " ).append( ioe.getMessage() ).append( "\n" );
+        }
+
+        String summary = "Verified " + verified + " records in " + segments.size() + " segments and " + validCheckpoints +
+                         " checkpoints (" + ( ( System.nanoTime() - start ) / 1000000 ) + " ms)";
+
+        return problems.length() == 0 ? summary + ";the journal is intact\n" : summary + ";PROBLEMS FOUND:\n" + problems;
+    }
+
+    /**
+     * @return The chained hash of a record;null if it is not chained
+     */
+    private static byte[] hashOf( List<JournalSegment> segments, long seq ) throws IOException
+    {
+        for ( int i = segments.size() - 1; i >= 0; i-- )
+        {
+            if ( segments.get( i ).getBaseSeq() > seq )
+                continue;
+
+            ChainFile file = ChainFile.open( ChainFile.pathOf( segments.get( i ).getPath() ), false );
+            if ( file == null )
+                return null;
+
+            try
+            {
+                return file.hashOf( seq );
+            }
+            finally
+            {
+                file.close();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return TRUE if the chain is running
+     */
+    public boolean getIsRunning()
+    {
+        return isRunning;
+    }
+
+    /**
+     * Method for getting the usage metrics of the chain.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        if ( !isRunning )
+            return "Chain:: Not running\n";
+
+        return "Chain:: Chained up to:= " + chainedSeq +
+               " Checkpoints:= " + checkpoints +
+               ( ( signingKey == null ) ? " (unsigned)" : "" ) +
+               " Last checkpoint:= " + lastCheckpointMicros + " us" +
+               " Proofs:= " + proofs +
+               " Last proof:= " + lastProofMicros + " us\n";
+    }
+
+    /**
+     * Override GenericThreadedComponent.shutdown() method.
+     * Signal the chaining thread to sign the head of the chain and wait until it stops;it is not interrupted, since
+     * an interrupt would close the chain file under it.
+     *
+     * @see GenericThreadedComponent
+     */
+    public void shutdown()
+    {
+        super.shutdown();
+
+        try
+        {
+            if ( localThread != null )
+                localThread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Interrupted while waiting...the chaining thread still finishes on its own */
+        }
+    }
+}
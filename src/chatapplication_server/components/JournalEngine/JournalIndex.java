@@ -0,0 +1,211 @@
+package chatapplication_server.components.JournalEngine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Sparse index of the records of a journal segment: an entry (sequence number, time stamp and offset) for the first
+ * record of the segment and then for the first record after every INTERVAL bytes. Finding the record with a given
+ * sequence number (or the first record after a given time) takes a binary search over the entries and a scan of at
+ * most INTERVAL bytes of the segment.
+ *
+ * The time stamps of the records are taken before their sequence numbers are assigned;so they are ordered only up to
+ * the few milliseconds two appending threads may race for. A search by time therefore starts a bit early and skips
+ * the older records while scanning.
+ *
+ * The index of the segment being written grows with it (only the journal thread adds entries, while any thread may
+ * search). The index of a full segment is saved next to it, so that it is loaded instead of scanning the segment
+ * when the journal is opened again.
+ *
+ * @author atgianne
+ */
+public class JournalIndex
+{
+    /** The number of segment bytes between two entries */
+    public static final int INTERVAL = 4096;
+
+    /** The file name suffix of the saved indexes */
+    public static final String SUFFIX = ".index";
+
+    /** The entries, in the order of the records */
+    private long[] seqs, times;
+    private int[] offsets;
+    private int count;
+
+    /** The offset of the record that got the last entry */
+    private int lastOffset;
+
+    /**
+     * Creates a new, empty, instance of JournalIndex
+     */
+    public JournalIndex()
+    {
+        seqs = new long[ 64 ];
+        times = new long[ 64 ];
+        offsets = new int[ 64 ];
+        count = 0;
+        lastOffset = -INTERVAL;
+    }
+
+    /**
+     * Method for accounting a record written to the segment;it gets an entry if it is INTERVAL bytes past the last one.
+     *
+     * @param seq The sequence number of the record
+     * @param time The time stamp of the record
+     * @param offset The offset of the record in the segment
+     */
+    public synchronized void add( long seq, long time, int offset )
+    {
+        if ( offset - lastOffset < INTERVAL )
+            return;
+
+        if ( count == seqs.length )
+        {
+            seqs = Arrays.copyOf( seqs, 2 * count );
+            times = Arrays.copyOf( times, 2 * count );
+            offsets = Arrays.copyOf( offsets, 2 * count );
+        }
+
+        seqs[ count ] = seq;
+        times[ count ] = time;
+        offsets[ count ] = offset;
+        count++;
+
+        lastOffset = offset;
+    }
+
+    /**
+     * Method for finding where to start scanning for a record.
+     *
+     * @param seq The sequence number of the record
+     *
+     * @return The offset of the last indexed record at or before it;-1 if the record is before the segment
+     */
+    public synchronized int floorBySeq( long seq )
+    {
+        int i = floor( seqs, seq );
+
+        return ( i < 0 ) ? -1 : offsets[ i ];
+    }
+
+    /**
+     * Method for finding where to start scanning for the first record at or after a given time.
+     *
+     * @param time The time (in milliseconds)
+     *
+     * @return The offset of the last indexed record strictly before the time;-1 if the segment starts after it
+     */
+    public synchronized int floorByTime( long time )
+    {
+        int i = floor( times, time - 1 );
+
+        return ( i < 0 ) ? -1 : offsets[ i ];
+    }
+
+    /**
+     * @return The time stamp of the first record of the segment;Long.MAX_VALUE if it is empty
+     */
+    public synchronized long getFirstTime()
+    {
+        return ( count == 0 ) ? Long.MAX_VALUE : times[ 0 ];
+    }
+
+    /**
+     * @return The number of entries
+     */
+    public synchronized int size()
+    {
+        return count;
+    }
+
+    /**
+     * Method for finding the last entry whose key is at or before the given one.
+     */
+    private int floor( long[] keys, long key )
+    {
+        int lo = 0, hi = count - 1, found = -1;
+
+        while ( lo <= hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+
+            if ( keys[ mid ] <= key )
+            {
+                found = mid;
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Method for saving the index;it is written to a temporary file first, so that a crash never leaves a partial one.
+     *
+     * @param path The index file
+     */
+    public synchronized void save( Path path ) throws IOException
+    {
+        Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+
+        try ( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ) )
+        {
+            out.writeInt( count );
+            for ( int i = 0; i < count; i++ )
+            {
+                out.writeLong( seqs[ i ] );
+                out.writeLong( times[ i ] );
+                out.writeInt( offsets[ i ] );
+            }
+        }
+
+        Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    /**
+     * Method for loading a saved index.
+     *
+     * @param path The index file
+     *
+     * @return The index
+     */
+    public static JournalIndex load( Path path ) throws IOException
+    {
+        JournalIndex index = new JournalIndex();
+
+        try ( DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( path ) ) ) )
+        {
+            int count = in.readInt();
+            if ( count < 0 || count > Files.size( path ) / 20 )
+                throw new ProtocolException( "Invalid journal index (" + path + ")" );
+
+            index.seqs = new long[ Math.max( 1, count ) ];
+            index.times = new long[ Math.max( 1, count ) ];
+            index.offsets = new int[ Math.max( 1, count ) ];
+
+            for ( int i = 0; i < count; i++ )
+            {
+                index.seqs[ i ] = in.readLong();
+                index.times[ i ] = in.readLong();
+                index.offsets[ i ] = in.readInt();
+            }
+
+            index.count = count;
+            index.lastOffset = ( count == 0 ) ? -INTERVAL : index.offsets[ count - 1 ];
+        }
+
+        return index;
+    }
+}
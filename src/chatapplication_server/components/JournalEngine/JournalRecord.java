@@ -0,0 +1,205 @@
+package chatapplication_server.components.JournalEngine;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A message kept in the journal of the socket server. On disk, every record is laid out as:
+ *
+ *     length (4 bytes) | CRC-32C of the payload (4 bytes) | payload
+ *
+ * where the payload is:
+ *
+ *     sequence number (8 bytes) | time stamp (8 bytes) | kind (1 byte) | sender length (2 bytes) | UTF-8 sender |
+ *     target length (2 bytes) | UTF-8 target | body
+ *
+ * The target is the room of a ROOM record and the recipient of a PRIVATE record (empty for a BROADCAST). The body is
+ * the UTF-8 text of a chat message, as broadcasted, or the opaque (end-to-end encrypted) record of a private message.
+ *
+ * @author atgianne
+ */
+public class JournalRecord
+{
+    /** The kinds of the journaled messages */
+    public static final byte BROADCAST = 1;
+    public static final byte ROOM = 2;
+    public static final byte PRIVATE = 3;
+
+    /** The length and checksum put in front of every payload */
+    public static final int RECORD_OVERHEAD = 8;
+
+    /** The fixed part of the payload */
+    private static final int FIXED_PAYLOAD = 8 + 8 + 1 + 2 + 2;
+
+    /** The sequence number of the record;assigned by the journal when it is appended */
+    long seq;
+
+    /** The time (in milliseconds) the message was journaled */
+    final long timestamp;
+
+    final byte kind;
+
+    /** The UTF-8 encoded sender and target */
+    private final byte[] sender, target;
+
+    private final byte[] body;
+
+    /**
+     * Creates a new instance of JournalRecord
+     *
+     * @param kind The kind of the message (BROADCAST, ROOM or PRIVATE)
+     * @param sender The username of the sender
+     * @param target The room or the recipient;null for a broadcast
+     * @param body The text or the opaque record of the message
+     */
+    public JournalRecord( byte kind, String sender, String target, byte[] body )
+    {
+        this( 0, System.currentTimeMillis(), kind, utf8( sender ), utf8( target ), body );
+    }
+
+    private JournalRecord( long seq, long timestamp, byte kind, byte[] sender, byte[] target, byte[] body )
+    {
+        this.seq = seq;
+        this.timestamp = timestamp;
+        this.kind = kind;
+        this.sender = sender;
+        this.target = target;
+        this.body = body;
+    }
+
+    /**
+     * @return The number of bytes the record takes in a segment, including its length and checksum
+     */
+    public int encodedLength()
+    {
+        return RECORD_OVERHEAD + FIXED_PAYLOAD + sender.length + target.length + body.length;
+    }
+
+    /**
+     * Method for writing the payload of the record; the length and the checksum are put in front of it by the segment.
+     *
+     * @param dst The buffer to write to, at its position
+     */
+    void writePayload( ByteBuffer dst )
+    {
+        dst.putLong( seq );
+        dst.putLong( timestamp );
+        dst.put( kind );
+        dst.putShort( ( short )sender.length );
+        dst.put( sender );
+        dst.putShort( ( short )target.length );
+        dst.put( target );
+        dst.put( body );
+    }
+
+    /**
+     * Method for decoding the payload of a record.
+     *
+     * @param src The buffer holding the payload
+     * @param offset The (absolute) offset of the payload
+     * @param length The length of the payload
+     *
+     * @return The decoded record
+     */
+    static JournalRecord readPayload( ByteBuffer src, int offset, int length ) throws ProtocolException
+    {
+        if ( length < FIXED_PAYLOAD )
+            throw new ProtocolException( "Truncated journal record" );
+
+        long seq = src.getLong( offset );
+        long timestamp = src.getLong( offset + 8 );
+        byte kind = src.get( offset + 16 );
+
+        int pos = offset + 17;
+        byte[] sender = new byte[ src.getShort( pos ) & 0xffff ];
+        pos += 2;
+        if ( sender.length > offset + length - pos - 2 )
+            throw new ProtocolException( "Invalid sender length in journal record " + seq );
+        src.get( pos, sender );
+        pos += sender.length;
+
+        byte[] target = new byte[ src.getShort( pos ) & 0xffff ];
+        pos += 2;
+        if ( target.length > offset + length - pos )
+            throw new ProtocolException( "Invalid target length in journal record " + seq );
+        src.get( pos, target );
+        pos += target.length;
+
+        byte[] body = new byte[ offset + length - pos ];
+        src.get( pos, body );
+
+        return new JournalRecord( seq, timestamp, kind, sender, target, body );
+    }
+
+    /**
+     * @return The sequence number of the record
+     */
+    public long getSeq()
+    {
+        return seq;
+    }
+
+    /**
+     * @return The time (in milliseconds) the message was journaled
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return The kind of the message (BROADCAST, ROOM or PRIVATE)
+     */
+    public byte getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return The username of the sender
+     */
+    public String getSender()
+    {
+        return new String( sender, UTF_8 );
+    }
+
+    /**
+     * @return The room or the recipient of the message;null for a broadcast
+     */
+    public String getTarget()
+    {
+        return ( target.length == 0 ) ? null : new String( target, UTF_8 );
+    }
+
+    /**
+     * @return The text or the opaque record of the message
+     */
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    /**
+     * @return The text of a BROADCAST or ROOM message
+     */
+    public String getText()
+    {
+        return new String( body, UTF_8 );
+    }
+
+    /**
+     * Method for encoding a sender or a target.
+     */
+    private static byte[] utf8( String s )
+    {
+        if ( s == null )
+            return new byte[ 0 ];
+
+        byte[] bytes = s.getBytes( UTF_8 );
+        if ( bytes.length > 0xffff )
+            throw new IllegalArgumentException( "Journal record field longer than 65535 bytes" );
+
+        return bytes;
+    }
+}
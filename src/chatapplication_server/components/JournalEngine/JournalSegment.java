@@ -0,0 +1,470 @@
+package chatapplication_server.components.JournalEngine;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.zip.CRC32C;
+
+/**
+ * A segment file of the journal; memory mapped as a whole and preallocated to its fixed size when created. The
+ * segment starts with a header:
+ *
+ *     magic (4 bytes) | version (2 bytes) | reserved (2 bytes) | base sequence number (8 bytes) | creation time (8 bytes) | reserved (8 bytes)
+ *
+ * followed by the records (see JournalRecord), with consecutive sequence numbers starting from the base one. The
+ * unused tail of the segment is all zeros; a zero length marks the end of the records.
+ *
+ * When an existing segment is opened, its records are checked (length, checksum and sequence number) up to the
+ * first invalid one;i.e. a record torn by a crash is dropped and the tail from there on is zeroed again.
+ *
+ * A segment is only written by the writer thread of the journal;the records already written may be read by any thread.
+ * Every segment has a sparse index (see JournalIndex) for finding a record by its sequence number or time; once the
+ * segment is full it is sealed, i.e. its index is saved next to it and later opened read only.
+ *
+ * @author atgianne
+ */
+public class JournalSegment
+{
+    /** The length of the segment header */
+    public static final int HEADER_LENGTH = 32;
+
+    /** "CHJL" */
+    private static final int MAGIC = 0x43484A4C;
+    private static final short VERSION = 1;
+
+    /** The file name suffix of the segments */
+    public static final String SUFFIX = ".journal";
+
+    /** The segment file and its mapping (which stays valid after the file is closed) */
+    private final Path path;
+    private final MappedByteBuffer map;
+
+    /** The base sequence number and the creation time of the segment */
+    private final long baseSeq;
+    private final long createdAt;
+
+    /** The end of the records, the end of the part already forced to the disk and the last sequence number */
+    private int position;
+    private int forced;
+    private long lastSeq;
+
+    /** The sparse index of the records */
+    private JournalIndex index;
+
+    private JournalSegment( Path path, MappedByteBuffer map, long baseSeq, long createdAt )
+    {
+        this.path = path;
+        this.map = map;
+        this.baseSeq = baseSeq;
+        this.createdAt = createdAt;
+        this.position = HEADER_LENGTH;
+        this.forced = 0;
+        this.lastSeq = baseSeq - 1;
+        this.index = new JournalIndex();
+    }
+
+    /**
+     * Method for creating (and preallocating) a new segment.
+     *
+     * @param directory The directory of the journal
+     * @param baseSeq The sequence number of the first record of the segment
+     * @param size The size of the segment file
+     *
+     * @return The new, empty, segment
+     */
+    public static JournalSegment create( Path directory, long baseSeq, int size ) throws IOException
+    {
+        Path path = directory.resolve( fileName( baseSeq ) );
+
+        try ( RandomAccessFile file = new RandomAccessFile( path.toFile(), "rw" ) )
+        {
+            file.setLength( size );
+
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+
+            JournalSegment segment = new JournalSegment( path, map, baseSeq, System.currentTimeMillis() );
+            map.putInt( 0, MAGIC );
+            map.putShort( 4, VERSION );
+            map.putLong( 8, baseSeq );
+            map.putLong( 16, segment.createdAt );
+            segment.force();
+
+            return segment;
+        }
+    }
+
+    /**
+     * Method for opening an existing segment and recovering its records.
+     *
+     * @param path The segment file
+     *
+     * @return The segment, positioned after its last valid record
+     */
+    public static JournalSegment open( Path path ) throws IOException
+    {
+        try ( RandomAccessFile file = new RandomAccessFile( path.toFile(), "rw" ) )
+        {
+            FileChannel channel = file.getChannel();
+            if ( channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE )
+                throw new ProtocolException( "Invalid journal segment size " + channel.size() + " (" + path + ")" );
+
+            MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_WRITE, 0, channel.size() );
+            if ( map.getInt( 0 ) != MAGIC || map.getShort( 4 ) != VERSION )
+                throw new ProtocolException( "Not a journal segment (" + path + ")" );
+
+            JournalSegment segment = new JournalSegment( path, map, map.getLong( 8 ), map.getLong( 16 ) );
+            segment.recover();
+
+            return segment;
+        }
+    }
+
+    /**
+     * Method for opening a sealed segment (read only);its saved index is loaded, or rebuilt if it is missing.
+     *
+     * @param path The segment file
+     *
+     * @return The segment
+     */
+    public static JournalSegment openSealed( Path path ) throws IOException
+    {
+        try ( RandomAccessFile file = new RandomAccessFile( path.toFile(), "r" ) )
+        {
+            FileChannel channel = file.getChannel();
+            if ( channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE )
+                throw new ProtocolException( "Invalid journal segment size " + channel.size() + " (" + path + ")" );
+
+            MappedByteBuffer map = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if ( map.getInt( 0 ) != MAGIC || map.getShort( 4 ) != VERSION )
+                throw new ProtocolException( "Not a journal segment (" + path + ")" );
+
+            JournalSegment segment = new JournalSegment( path, map, map.getLong( 8 ), map.getLong( 16 ) );
+
+            /** With the saved index, only the records after its last entry are scanned */
+            Path indexPath = segment.getIndexPath();
+            if ( Files.exists( indexPath ) )
+            {
+                try
+                {
+                    segment.index = JournalIndex.load( indexPath );
+                }
+                catch ( IOException ioe )
+                {
+                    segment.index = new JournalIndex();
+                }
+            }
+
+            segment.scan( segment.index.size() > 0 );
+            segment.forced = segment.position;
+
+            return segment;
+        }
+    }
+
+    /**
+     * Method for appending a record;its sequence number must follow the last one of the segment.
+     *
+     * @param record The record to be written
+     *
+     * @return FALSE if there is no room left for the record in the segment
+     */
+    public boolean append( JournalRecord record )
+    {
+        int length = record.encodedLength();
+        if ( length > map.capacity() - position )
+            return false;
+
+        /** The payload first, then its checksum and length;a zero length until the record is complete */
+        int payload = position + JournalRecord.RECORD_OVERHEAD;
+        map.position( payload );
+        record.writePayload( map );
+
+        map.putInt( position + 4, checksum( payload, length - JournalRecord.RECORD_OVERHEAD ) );
+        map.putInt( position, length - JournalRecord.RECORD_OVERHEAD );
+
+        index.add( record.seq, record.timestamp, position );
+        position += length;
+        lastSeq = record.seq;
+
+        return true;
+    }
+
+    /**
+     * Method for forcing the records written since the last call to the disk.
+     */
+    public void force()
+    {
+        if ( forced < position )
+        {
+            map.force( forced, position - forced );
+            forced = position;
+        }
+    }
+
+    /**
+     * Method for sealing the full segment;its records are forced to the disk and its index is saved.
+     */
+    public void seal() throws IOException
+    {
+        force();
+        index.save( getIndexPath() );
+    }
+
+    /**
+     * Method for finding the first record with at least the given sequence number.
+     *
+     * @param seq The sequence number
+     *
+     * @return The offset of the record;getPosition() if there is none in the segment
+     */
+    public int seek( long seq ) throws ProtocolException
+    {
+        int offset = index.floorBySeq( seq );
+        if ( offset < 0 )
+            return HEADER_LENGTH;
+
+        /** The records of the segment have consecutive sequence numbers */
+        for ( long s = seqAt( offset ); s < seq && offset < position; s++ )
+            offset += JournalRecord.RECORD_OVERHEAD + map.getInt( offset );
+
+        return offset;
+    }
+
+    /**
+     * Method for finding the first record journaled at or after the given time.
+     *
+     * @param time The time (in milliseconds)
+     *
+     * @return The offset of the record;getPosition() if there is none in the segment
+     */
+    public int seekTime( long time ) throws ProtocolException
+    {
+        int offset = index.floorByTime( time );
+        if ( offset < 0 )
+            return HEADER_LENGTH;
+
+        while ( offset < position && map.getLong( offset + JournalRecord.RECORD_OVERHEAD + 8 ) < time )
+            offset += JournalRecord.RECORD_OVERHEAD + map.getInt( offset );
+
+        return offset;
+    }
+
+    /**
+     * @return The sequence number of the record at the given offset
+     */
+    public long seqAt( int offset )
+    {
+        return map.getLong( offset + JournalRecord.RECORD_OVERHEAD );
+    }
+
+    /**
+     * Method for reading the record at the given offset.
+     *
+     * @param offset The offset of the record in the segment
+     *
+     * @return The record;null at the end of the records
+     */
+    public JournalRecord read( int offset ) throws ProtocolException
+    {
+        if ( offset + JournalRecord.RECORD_OVERHEAD > map.capacity() )
+            return null;
+
+        int length = map.getInt( offset );
+        if ( length == 0 )
+            return null;
+
+        if ( length < 0 || length > map.capacity() - offset - JournalRecord.RECORD_OVERHEAD )
+            throw new ProtocolException( "Invalid journal record length " + length + " at " + offset + " (" + path + ")" );
+
+        if ( checksum( offset + JournalRecord.RECORD_OVERHEAD, length ) != map.getInt( offset + 4 ) )
+            throw new ProtocolException( "Checksum mismatch of the journal record at " + offset + " (" + path + ")" );
+
+        return JournalRecord.readPayload( map, offset + JournalRecord.RECORD_OVERHEAD, length );
+    }
+
+    /**
+     * Method for reading the payload of the record at the given offset as it is (e.g. for proving it was journaled).
+     *
+     * @param offset The offset of the record in the segment
+     *
+     * @return The payload of the record
+     */
+    public byte[] readPayloadBytes( int offset ) throws ProtocolException
+    {
+        int length = ( offset + JournalRecord.RECORD_OVERHEAD > map.capacity() ) ? 0 : map.getInt( offset );
+
+        if ( length <= 0 || length > map.capacity() - offset - JournalRecord.RECORD_OVERHEAD )
+            throw new ProtocolException( "Invalid journal record length " + length + " at " + offset + " (" + path + ")" );
+
+        byte[] payload = new byte[ length ];
+        map.get( offset + JournalRecord.RECORD_OVERHEAD, payload );
+
+        return payload;
+    }
+
+    /**
+     * Method for feeding the payload of the record at the given offset to a digest (e.g. for chaining its hash).
+     *
+     * @param offset The offset of the record in the segment
+     * @param md The digest
+     *
+     * @return The number of bytes the record takes in the segment
+     */
+    public int digest( int offset, MessageDigest md ) throws ProtocolException
+    {
+        int length = ( offset + JournalRecord.RECORD_OVERHEAD > map.capacity() ) ? 0 : map.getInt( offset );
+
+        if ( length <= 0 || length > map.capacity() - offset - JournalRecord.RECORD_OVERHEAD )
+            throw new ProtocolException( "Invalid journal record length " + length + " at " + offset + " (" + path + ")" );
+
+        md.update( map.slice( offset + JournalRecord.RECORD_OVERHEAD, length ) );
+
+        return JournalRecord.RECORD_OVERHEAD + length;
+    }
+
+    /**
+     * Method for checking the records of an opened segment and finding the end of the valid ones.
+     */
+    private void recover()
+    {
+        scan( false );
+
+        /** Anything after the last valid record was torn by a crash... */
+        if ( position + 4 <= map.capacity() && map.getInt( position ) != 0 )
+        {
+            for ( int i = position; i < map.capacity(); i++ )
+                map.put( i, ( byte )0 );
+            map.force();
+        }
+
+        forced = position;
+    }
+
+    /**
+     * Method for finding the end of the valid records, and indexing them.
+     *
+     * @param fromIndex TRUE for starting from the last entry of an already loaded index
+     */
+    private void scan( boolean fromIndex )
+    {
+        long expected = baseSeq;
+
+        if ( fromIndex )
+        {
+            position = index.floorBySeq( Long.MAX_VALUE );
+            expected = seqAt( position );
+            lastSeq = expected - 1;
+        }
+
+        while ( true )
+        {
+            JournalRecord record;
+            try
+            {
+                record = read( position );
+            }
+            catch ( ProtocolException pe )
+            {
+                record = null;
+            }
+
+            if ( record == null || record.seq != expected )
+                break;
+
+            index.add( record.seq, record.timestamp, position );
+            position += JournalRecord.RECORD_OVERHEAD + map.getInt( position );
+            lastSeq = expected++;
+        }
+    }
+
+    /**
+     * Method for computing the checksum of a payload.
+     */
+    private int checksum( int offset, int length )
+    {
+        CRC32C crc = new CRC32C();
+        crc.update( map.slice( offset, length ) );
+
+        return ( int )crc.getValue();
+    }
+
+    /**
+     * Method for closing the segment;the mapping itself is released once the segment is garbage collected.
+     */
+    public void close()
+    {
+        force();
+    }
+
+    /**
+     * @return The file name of the segment with the given base sequence number
+     */
+    public static String fileName( long baseSeq )
+    {
+        return String.format( "%020d", baseSeq ) + SUFFIX;
+    }
+
+    /**
+     * @return The file the index of the segment is saved to
+     */
+    public Path getIndexPath()
+    {
+        String name = path.getFileName().toString();
+
+        return path.resolveSibling( name.substring( 0, name.length() - SUFFIX.length() ) + JournalIndex.SUFFIX );
+    }
+
+    /**
+     * @return The segment file
+     */
+    public Path getPath()
+    {
+        return path;
+    }
+
+    /**
+     * @return The sequence number of the first record of the segment
+     */
+    public long getBaseSeq()
+    {
+        return baseSeq;
+    }
+
+    /**
+     * @return The sequence number of the last record of the segment;getBaseSeq() - 1 if it is empty
+     */
+    public long getLastSeq()
+    {
+        return lastSeq;
+    }
+
+    /**
+     * @return The time (in milliseconds) the segment was created
+     */
+    public long getCreatedAt()
+    {
+        return createdAt;
+    }
+
+    /**
+     * @return The end of the records in the segment
+     */
+    public int getPosition()
+    {
+        return position;
+    }
+
+    /**
+     * @return TRUE if the segment holds no record
+     */
+    public boolean isEmpty()
+    {
+        return position == HEADER_LENGTH;
+    }
+}
@@ -0,0 +1,551 @@
+package chatapplication_server.components.JournalEngine;
+
+import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.ServerSocketEngine.SocketServerGUI;
+import chatapplication_server.components.base.GenericThreadedComponent;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Append-only journal of the chat messages (broadcasts, room messages and private messages) of the socket server,
+ * so that the history survives a restart. The journal is made of segment files (see JournalSegment) of a fixed,
+ * preallocated, size; a new segment is started once the current one is full or older than Journal.RollInterval.
+ *
+ * Journaling never holds up the message path: append() only assigns the next sequence number and queues the record.
+ * The journal thread takes whatever was queued meanwhile, writes it to the mapped segment and forces it to the disk
+ * once for the whole batch (group commit);i.e. the more messages arrive during a force, the more of them the next
+ * force covers. If the disk falls behind by more than Journal.MaxPending records, the newest records are dropped
+ * (and counted) rather than growing the memory without bound.
+ *
+ * The records forced to the disk can be read back by any thread (e.g. for replaying the history to a client that
+ * logs in); the sparse index of every segment finds the first record to be read by its sequence number or time.
+ *
+ * @author atgianne
+ */
+public class MessageJournal extends GenericThreadedComponent
+{
+    /** Singleton instance of the MessageJournal component */
+    private static MessageJournal componentInstance = null;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Flag indicating whether the journal is running;appended records are ignored otherwise */
+    private volatile boolean isRunning;
+
+    /** The directory of the segments, their size and the longest time (in milliseconds) a segment is written to */
+    private Path directory;
+    private int segmentSize;
+    private long rollInterval;
+
+    /** The records waiting to be written, their largest number and the next sequence number (guarded by pending) */
+    private final ArrayDeque<JournalRecord> pending;
+    private int maxPending;
+    private long nextSeq;
+
+    /** The sequence number of the last record forced to the disk */
+    private volatile long durableSeq;
+
+    /** The segment written to;only touched by the journal thread once it runs */
+    private JournalSegment current;
+
+    /** All the segments, in the order of their sequence numbers;the last one is the current one */
+    private final CopyOnWriteArrayList<JournalSegment> segments;
+
+    /** Statistics of the journal (written by the journal thread only, apart from dropped) */
+    private volatile long records, bytes, commits, maxBatch, lastForceMicros;
+    private long dropped;
+
+    /**
+     * Creates a new instance of MessageJournal
+     */
+    private MessageJournal()
+    {
+        pending = new ArrayDeque<>();
+        segments = new CopyOnWriteArrayList<>();
+        isRunning = false;
+    }
+
+    /**
+     * Make sure that we can only get one instance of the MessageJournal component.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized MessageJournal getInstance()
+    {
+        if ( componentInstance == null )
+            componentInstance = new MessageJournal();
+
+        return componentInstance;
+    }
+
+    /**
+     * Implementation of IComponent.initialize method().
+     * It opens the last segment of the journal (recovering its records, in case of a crash), or creates the first
+     * one, and starts the journal thread. Nothing is done if the journal is disabled.
+     *
+     * @see //IComponent interface.
+     */
+    public void initialize() throws Exception
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Journal.Enabled", "true" );
+        configManager.setDefaultValue( "Journal.Directory", "journal" );
+        configManager.setDefaultValue( "Journal.SegmentSize", Integer.toString( 64 * 1024 * 1024 ) );
+        configManager.setDefaultValue( "Journal.RollInterval", Long.toString( 60 * 60 * 1000 ) );
+        configManager.setDefaultValue( "Journal.MaxPending", "65536" );
+
+        if ( !Boolean.parseBoolean( configManager.getValue( "Journal.Enabled" ) ) )
+            return;
+
+        directory = Paths.get( configManager.getValue( "Journal.Directory" ) );
+        segmentSize = configManager.getValueInt( "Journal.SegmentSize" );
+        rollInterval = configManager.getValueLong( "Journal.RollInterval" );
+        maxPending = configManager.getValueInt( "Journal.MaxPending" );
+
+        Files.createDirectories( directory );
+
+        /** The full segments are only read from now on;the last one (if any) is continued */
+        List<Path> files = listSegments();
+        List<JournalSegment> opened = new ArrayList<>();
+        
+        for ( int i = 0; i < files.size() - 1; i++ )
+            opened.add( JournalSegment.openSealed( files.get( i ) ) );
+        
+        current = files.isEmpty() ? JournalSegment.create( directory, 1, segmentSize ) : JournalSegment.open( files.get( files.size() - 1 ) );
+        opened.add( current );
+        
+        segments.clear();
+        segments.addAll( opened );
+
+        synchronized ( pending )
+        {
+            pending.clear();
+            nextSeq = current.getLastSeq() + 1;
+        }
+
+        durableSeq = current.getLastSeq();
+        records = bytes = commits = maxBatch = lastForceMicros = dropped = 0;
+
+        SocketServerGUI.getInstance().appendEvent( "[Journal]:: Opened " + current.getPath() + " (" + segments.size() + " segments, next sequence number " + nextSeq + ")\n" );
+
+        isRunning = true;
+
+        /** Invoke our parent intialization method for starting the thread */
+        super.initialize();
+    }
+
+    /**
+     * Method for appending a message to the journal; it returns right away, the message is written (and forced to
+     * the disk) later on by the journal thread.
+     *
+     * @param kind The kind of the message (see JournalRecord)
+     * @param sender The username of the sender
+     * @param target The room or the recipient;null for a broadcast
+     * @param body The text or the opaque record of the message
+     *
+     * @return The sequence number of the message;-1 if it was not journaled
+     */
+    public long append( byte kind, String sender, String target, byte[] body )
+    {
+        if ( !isRunning )
+            return -1;
+
+        JournalRecord record = new JournalRecord( kind, sender, target, body );
+
+        synchronized ( pending )
+        {
+            if ( !admit( record ) )
+                return -1;
+
+            record.seq = nextSeq++;
+            pending.addLast( record );
+
+            if ( pending.size() == 1 )
+                pending.notify();
+        }
+
+        return record.seq;
+    }
+
+    /**
+     * Method for appending a batch of chat messages of the same sender and destination under a single lock
+     * acquisition (e.g. the burst of messages of a client fanned out together).
+     *
+     * @param kind BROADCAST or ROOM
+     * @param sender The username of the sender
+     * @param target The room;null for a broadcast
+     * @param messages The texts of the messages, in order
+     *
+     * @return The sequence numbers of the messages;-1 for the ones that were not journaled
+     */
+    public long[] appendAll( byte kind, String sender, String target, List<String> messages )
+    {
+        long[] seqs = new long[ messages.size() ];
+        Arrays.fill( seqs, -1 );
+
+        if ( !isRunning )
+            return seqs;
+
+        List<JournalRecord> batch = new ArrayList<>( messages.size() );
+        for ( String message : messages )
+            batch.add( new JournalRecord( kind, sender, target, message.getBytes( UTF_8 ) ) );
+
+        synchronized ( pending )
+        {
+            boolean wasEmpty = pending.isEmpty();
+
+            for ( int i = 0; i < seqs.length; i++ )
+            {
+                JournalRecord record = batch.get( i );
+                if ( !admit( record ) )
+                    continue;
+
+                record.seq = nextSeq++;
+                pending.addLast( record );
+                seqs[ i ] = record.seq;
+            }
+
+            if ( wasEmpty && !pending.isEmpty() )
+                pending.notify();
+        }
+
+        return seqs;
+    }
+
+    /**
+     * Method for reading back journaled messages;only the ones already forced to the disk are read.
+     *
+     * @param fromSeq The sequence number to start from
+     * @param toSeq The last sequence number to be read
+     * @param max The largest number of messages to be returned
+     * @param kind The kind of the messages to be returned;0 for all of them
+     *
+     * @return The messages, in order;fewer than max only if there are no more of them up to toSeq
+     */
+    public List<JournalRecord> read( long fromSeq, long toSeq, int max, byte kind ) throws ProtocolException
+    {
+        List<JournalRecord> found = new ArrayList<>();
+        toSeq = Math.min( toSeq, durableSeq );
+
+        List<JournalSegment> list = segments;
+        long next = Math.max( fromSeq, 1 );
+
+        for ( int i = segmentOf( list, next ); i < list.size() && next <= toSeq && found.size() < max; i++ )
+        {
+            JournalSegment segment = list.get( i );
+            int offset = segment.seek( next );
+
+            /** The record after toSeq may still be being written;so never read past it */
+            while ( next <= toSeq && found.size() < max && offset < segment.getPosition() )
+            {
+                JournalRecord record = segment.read( offset );
+                if ( record == null )
+                    break;
+
+                offset += record.encodedLength();
+                next = record.seq + 1;
+
+                if ( kind == 0 || record.kind == kind )
+                    found.add( record );
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Method for finding the first message journaled at or after the given time.
+     *
+     * @param time The time (in milliseconds)
+     *
+     * @return The sequence number of the message;getDurableSeq() + 1 if there is none
+     */
+    public long findSeqByTime( long time ) throws ProtocolException
+    {
+        List<JournalSegment> list = segments;
+
+        /** The last segment starting before the time... */
+        int i = list.size() - 1;
+        while ( i > 0 && list.get( i ).getCreatedAt() > time )
+            i--;
+
+        for ( ; i >= 0 && i < list.size(); i++ )
+        {
+            JournalSegment segment = list.get( i );
+            int offset = segment.seekTime( time );
+
+            if ( offset < segment.getPosition() )
+                return Math.min( segment.seqAt( offset ), durableSeq + 1 );
+        }
+
+        return durableSeq + 1;
+    }
+
+    /**
+     * Method for finding the segment holding a sequence number.
+     *
+     * @return The index of the last segment starting at or before it;0 if it is before the first segment
+     */
+    private static int segmentOf( List<JournalSegment> list, long seq )
+    {
+        int lo = 0, hi = list.size() - 1, found = 0;
+
+        while ( lo <= hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+
+            if ( list.get( mid ).getBaseSeq() <= seq )
+            {
+                found = mid;
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * Method for checking whether a record can be queued.
+     *
+     * IMPORTANT NOTE It must run in a synchronized block (on pending)
+     */
+    private boolean admit( JournalRecord record )
+    {
+        if ( pending.size() < maxPending && record.encodedLength() <= segmentSize - JournalSegment.HEADER_LENGTH )
+            return true;
+
+        if ( dropped++ % 1000 == 0 )
+            SocketServerGUI.getInstance().appendEvent( "[Journal]:: Falling behind;" + dropped + " message(s) not journaled so far\n" );
+
+        return false;
+    }
+
+    /**
+     * The main logic of the MessageJournal;i.e. the journal thread writing and forcing the queued records in batches.
+     */
+    public void componentMain()
+    {
+        ArrayList<JournalRecord> batch = new ArrayList<>();
+
+        try
+        {
+            while ( true )
+            {
+                synchronized ( pending )
+                {
+                    /** Wake up now and then for starting a new segment when the current one gets too old */
+                    while ( pending.isEmpty() && !mustShutdown && !mustRoll() )
+                        pending.wait( 1000 );
+
+                    if ( pending.isEmpty() && mustShutdown )
+                        break;
+
+                    batch.addAll( pending );
+                    pending.clear();
+                }
+
+                if ( mustRoll() )
+                    roll( current.getLastSeq() + 1 );
+
+                write( batch );
+                batch.clear();
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Shutting down...whatever was written is forced below */
+        }
+        catch ( IOException ioe )
+        {
+            /** Keep track of this event in the logging stream;nothing is journaled from now on */
+            SocketServerGUI.getInstance().appendEvent( "[Journal]:: Failed writing the journal -- " + ioe.getMessage() + "\n" );
+        }
+        finally
+        {
+            isRunning = false;
+            current.close();
+        }
+    }
+
+    /**
+     * Method for writing a batch of records to the journal and forcing them to the disk (group commit).
+     */
+    private void write( List<JournalRecord> batch ) throws IOException
+    {
+        if ( batch.isEmpty() )
+            return;
+
+        long batchBytes = 0;
+
+        for ( JournalRecord record : batch )
+        {
+            /** The segment is full...continue in a new one */
+            if ( !current.append( record ) )
+            {
+                roll( record.seq );
+                current.append( record );
+            }
+
+            batchBytes += record.encodedLength();
+        }
+
+        long start = System.nanoTime();
+        current.force();
+        lastForceMicros = ( System.nanoTime() - start ) / 1000;
+
+        durableSeq = current.getLastSeq();
+        records += batch.size();
+        bytes += batchBytes;
+        commits++;
+        maxBatch = Math.max( maxBatch, batch.size() );
+    }
+
+    /**
+     * @return TRUE if the current segment is older than the roll interval (and is not empty)
+     */
+    private boolean mustRoll()
+    {
+        return !current.isEmpty() && System.currentTimeMillis() - current.getCreatedAt() >= rollInterval;
+    }
+
+    /**
+     * Method for closing the current segment and starting a new one.
+     *
+     * @param baseSeq The sequence number of the first record of the new segment
+     */
+    private void roll( long baseSeq ) throws IOException
+    {
+        current.seal();
+        current = JournalSegment.create( directory, baseSeq, segmentSize );
+        segments.add( current );
+    }
+
+    /**
+     * Method for listing the segment files of the journal.
+     *
+     * @return The segment files, in the order of their sequence numbers
+     */
+    private List<Path> listSegments() throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( directory, "*" + JournalSegment.SUFFIX ) )
+        {
+            for ( Path file : stream )
+                files.add( file );
+        }
+
+        /** The file names are zero padded base sequence numbers */
+        files.sort( null );
+
+        return files;
+    }
+
+    /**
+     * @return The segments of the journal, in the order of their sequence numbers (the last one is being written)
+     */
+    List<JournalSegment> getSegments()
+    {
+        return segments;
+    }
+
+    /**
+     * @return The directory of the segments
+     */
+    Path getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * @return The sequence number of the last message forced to the disk
+     */
+    public long getDurableSeq()
+    {
+        return durableSeq;
+    }
+
+    /**
+     * @return TRUE if the journal is running
+     */
+    public boolean getIsRunning()
+    {
+        return isRunning;
+    }
+
+    /**
+     * Method for getting the usage metrics of the journal.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        if ( !isRunning )
+            return "Journal:: Not running\n";
+
+        int queued;
+        long notJournaled;
+        synchronized ( pending )
+        {
+            queued = pending.size();
+            notJournaled = dropped;
+        }
+
+        long c = commits;
+
+        return "Journal:: Records:= " + records +
+               " (" + ( bytes / 1024 ) + " KB)" +
+               " Commits:= " + c +
+               " Avg batch:= " + ( ( c == 0 ) ? 0 : records / c ) +
+               " Max batch:= " + maxBatch +
+               " Last force:= " + lastForceMicros + " us" +
+               " Pending:= " + queued +
+               " Dropped:= " + notJournaled +
+               " Durable up to:= " + durableSeq +
+               " Segments:= " + segments.size() + "\n";
+    }
+
+    /**
+     * Override GenericThreadedComponent.shutdown() method.
+     * Signal the journal thread to write whatever is still queued and wait until it stops.
+     *
+     * @see GenericThreadedComponent
+     */
+    public void shutdown()
+    {
+        synchronized ( pending )
+        {
+            mustShutdown = true;
+            pending.notify();
+        }
+
+        try
+        {
+            if ( localThread != null )
+                localThread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Interrupted while waiting...the journal thread still finishes on its own */
+        }
+
+        /** Invoke our parent's method to stop the thread */
+        super.shutdown();
+    }
+}
@@ -0,0 +1,246 @@
+package chatapplication_server.components.MailboxEngine;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A record of the mailbox file of the socket server. On disk, every record is laid out as:
+ *
+ *     length (4 bytes) | CRC-32C of the payload (4 bytes) | payload
+ *
+ * where the payload is:
+ *
+ *     kind (1 byte) | time stamp (8 bytes) | recipient length (2 bytes) | UTF-8 recipient | sender length (2 bytes) |
+ *     UTF-8 sender | body
+ *
+ * The body of a MAIL record is the UTF-8 text of the message. An ACK record has no sender;its body is the offset
+ * (8 bytes) of the last mail of the recipient that was delivered (or expired), i.e. of the end of the part of the
+ * mailbox that is done with.
+ *
+ * @author atgianne
+ */
+public class MailRecord
+{
+    /** The kinds of the records */
+    public static final byte MAIL = 1;
+    public static final byte ACK = 2;
+
+    /** The length and checksum put in front of every payload */
+    public static final int RECORD_OVERHEAD = 8;
+
+    /** The fixed part of the payload */
+    private static final int FIXED_PAYLOAD = 1 + 8 + 2 + 2;
+
+    /** The offset of the record in the mailbox file;assigned when it is written */
+    long offset;
+
+    final byte kind;
+
+    /** The time (in milliseconds) the record was created */
+    final long timestamp;
+
+    /** The UTF-8 encoded recipient and sender */
+    private final byte[] recipient, sender;
+
+    private final byte[] body;
+
+    /**
+     * Creates a new instance of MailRecord
+     *
+     * @param kind The kind of the record (MAIL or ACK)
+     * @param recipient The username of the recipient
+     * @param sender The username of the sender;null for an ACK
+     * @param body The text of the mail, or the acknowledged offset
+     */
+    public MailRecord( byte kind, String recipient, String sender, byte[] body )
+    {
+        this( -1, kind, System.currentTimeMillis(), utf8( recipient ), utf8( sender ), body );
+    }
+
+    private MailRecord( long offset, byte kind, long timestamp, byte[] recipient, byte[] sender, byte[] body )
+    {
+        this.offset = offset;
+        this.kind = kind;
+        this.timestamp = timestamp;
+        this.recipient = recipient;
+        this.sender = sender;
+        this.body = body;
+    }
+
+    /**
+     * Method for building the ACK record of a mailbox.
+     *
+     * @param recipient The username of the recipient
+     * @param upTo The offset of the last mail done with
+     *
+     * @return The record
+     */
+    static MailRecord ack( String recipient, long upTo )
+    {
+        ByteBuffer body = ByteBuffer.allocate( 8 );
+        body.putLong( 0, upTo );
+
+        return new MailRecord( ACK, recipient, null, body.array() );
+    }
+
+    /**
+     * @return The number of bytes the record takes in the file, including its length and checksum
+     */
+    public int encodedLength()
+    {
+        return RECORD_OVERHEAD + FIXED_PAYLOAD + recipient.length + sender.length + body.length;
+    }
+
+    /**
+     * Method for encoding the whole record, i.e. its length, checksum and payload.
+     *
+     * @return A buffer holding the record, ready to be written
+     */
+    ByteBuffer encode()
+    {
+        ByteBuffer buf = ByteBuffer.allocate( encodedLength() );
+
+        buf.position( RECORD_OVERHEAD );
+        buf.put( kind );
+        buf.putLong( timestamp );
+        buf.putShort( ( short )recipient.length );
+        buf.put( recipient );
+        buf.putShort( ( short )sender.length );
+        buf.put( sender );
+        buf.put( body );
+
+        buf.putInt( 0, buf.capacity() - RECORD_OVERHEAD );
+        buf.putInt( 4, checksum( buf, RECORD_OVERHEAD, buf.capacity() - RECORD_OVERHEAD ) );
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Method for decoding a record read from the file.
+     *
+     * @param src The buffer holding the whole record, from its position
+     * @param offset The offset of the record in the file
+     *
+     * @return The decoded record
+     */
+    static MailRecord decode( ByteBuffer src, long offset ) throws ProtocolException
+    {
+        int start = src.position();
+        int length = src.getInt( start );
+
+        if ( length < FIXED_PAYLOAD || length > src.remaining() - RECORD_OVERHEAD )
+            throw new ProtocolException( "Invalid mail record length " + length + " at " + offset );
+
+        int payload = start + RECORD_OVERHEAD;
+        if ( checksum( src, payload, length ) != src.getInt( start + 4 ) )
+            throw new ProtocolException( "Checksum mismatch of the mail record at " + offset );
+
+        byte kind = src.get( payload );
+        long timestamp = src.getLong( payload + 1 );
+
+        int pos = payload + 9;
+        byte[] recipient = new byte[ src.getShort( pos ) & 0xffff ];
+        pos += 2;
+        if ( recipient.length > payload + length - pos - 2 )
+            throw new ProtocolException( "Invalid recipient length in mail record at " + offset );
+        src.get( pos, recipient );
+        pos += recipient.length;
+
+        byte[] sender = new byte[ src.getShort( pos ) & 0xffff ];
+        pos += 2;
+        if ( sender.length > payload + length - pos )
+            throw new ProtocolException( "Invalid sender length in mail record at " + offset );
+        src.get( pos, sender );
+        pos += sender.length;
+
+        byte[] body = new byte[ payload + length - pos ];
+        src.get( pos, body );
+
+        return new MailRecord( offset, kind, timestamp, recipient, sender, body );
+    }
+
+    /**
+     * Method for computing the checksum of a payload.
+     */
+    private static int checksum( ByteBuffer buf, int offset, int length )
+    {
+        CRC32C crc = new CRC32C();
+        crc.update( buf.slice( offset, length ) );
+
+        return ( int )crc.getValue();
+    }
+
+    /**
+     * @return The offset of the record in the mailbox file
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * @return The kind of the record (MAIL or ACK)
+     */
+    public byte getKind()
+    {
+        return kind;
+    }
+
+    /**
+     * @return The time (in milliseconds) the mail was stored
+     */
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * @return The username of the recipient
+     */
+    public String getRecipient()
+    {
+        return new String( recipient, UTF_8 );
+    }
+
+    /**
+     * @return The username of the sender
+     */
+    public String getSender()
+    {
+        return new String( sender, UTF_8 );
+    }
+
+    /**
+     * @return The text of a MAIL record
+     */
+    public String getText()
+    {
+        return new String( body, UTF_8 );
+    }
+
+    /**
+     * @return The offset acknowledged by an ACK record
+     */
+    public long getAckedOffset()
+    {
+        return ByteBuffer.wrap( body ).getLong();
+    }
+
+    /**
+     * Method for encoding a recipient or a sender.
+     */
+    private static byte[] utf8( String s )
+    {
+        if ( s == null )
+            return new byte[ 0 ];
+
+        byte[] bytes = s.getBytes( UTF_8 );
+        if ( bytes.length > 0xffff )
+            throw new IllegalArgumentException( "Mail record field longer than 65535 bytes" );
+
+        return bytes;
+    }
+}
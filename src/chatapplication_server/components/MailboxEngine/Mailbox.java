@@ -0,0 +1,152 @@
+package chatapplication_server.components.MailboxEngine;
+
+import java.util.Arrays;
+
+/**
+ * The index of the mails stored for one user: the offset, time stamp and length of every mail in the mailbox file,
+ * in the order they were written (i.e. by increasing offset), kept in plain arrays rather than in objects per mail.
+ * The mails are taken off the front once delivered or expired;the arrays are compacted when half of them is unused.
+ *
+ * Besides the mails already written, the mailbox accounts for the ones still queued for the writer thread, so that
+ * the quota holds for them too.
+ *
+ * IMPORTANT NOTE It is not thread safe;MailboxStore guards all the mailboxes with the lock of their map
+ *
+ * @author atgianne
+ */
+class Mailbox
+{
+    /** The indexed mails, from head (inclusive) to tail (exclusive) */
+    private long[] offsets, times;
+    private int[] lengths;
+    private int head, tail;
+
+    /** The mails queued for being written, and the bytes of all the mails (written or queued) */
+    int queued;
+    long bytes;
+
+    /**
+     * Creates a new, empty, instance of Mailbox
+     */
+    Mailbox()
+    {
+        offsets = new long[ 8 ];
+        times = new long[ 8 ];
+        lengths = new int[ 8 ];
+    }
+
+    /**
+     * Method for indexing a mail written to the file;its offset must be past the ones already indexed.
+     */
+    void add( long offset, long time, int length )
+    {
+        if ( tail == offsets.length )
+        {
+            if ( head > offsets.length / 2 )
+            {
+                compact();
+            }
+            else
+            {
+                offsets = Arrays.copyOf( offsets, 2 * offsets.length );
+                times = Arrays.copyOf( times, 2 * times.length );
+                lengths = Arrays.copyOf( lengths, 2 * lengths.length );
+            }
+        }
+
+        offsets[ tail ] = offset;
+        times[ tail ] = time;
+        lengths[ tail ] = length;
+        tail++;
+    }
+
+    /**
+     * Method for taking the mails up to an offset off the front of the mailbox.
+     *
+     * @param offset The offset of the last mail done with
+     *
+     * @return The number of removed mails
+     */
+    int removeUpTo( long offset )
+    {
+        int removed = 0;
+
+        while ( head < tail && offsets[ head ] <= offset )
+        {
+            bytes -= lengths[ head++ ];
+            removed++;
+        }
+
+        return removed;
+    }
+
+    /**
+     * Method for finding the last of the expired mails at the front of the mailbox.
+     *
+     * @param expiredBefore The time (in milliseconds) a mail must be stored after for not being expired
+     *
+     * @return The offset of the last expired mail;-1 if the front mail is not expired
+     */
+    long lastExpired( long expiredBefore )
+    {
+        long last = -1;
+
+        for ( int i = head; i < tail && times[ i ] < expiredBefore; i++ )
+            last = offsets[ i ];
+
+        return last;
+    }
+
+    /**
+     * @return The number of indexed mails
+     */
+    int size()
+    {
+        return tail - head;
+    }
+
+    /**
+     * @return The offset of the i-th indexed mail
+     */
+    long offsetAt( int i )
+    {
+        return offsets[ head + i ];
+    }
+
+    /**
+     * @return The length of the i-th indexed mail
+     */
+    int lengthAt( int i )
+    {
+        return lengths[ head + i ];
+    }
+
+    /**
+     * Method for moving the i-th indexed mail (e.g. when the file is compacted).
+     */
+    void relocate( int i, long offset )
+    {
+        offsets[ head + i ] = offset;
+    }
+
+    /**
+     * @return TRUE if the mailbox holds no mail, written or queued
+     */
+    boolean isEmpty()
+    {
+        return head == tail && queued == 0;
+    }
+
+    /**
+     * Method for moving the indexed mails to the start of the arrays.
+     */
+    private void compact()
+    {
+        System.arraycopy( offsets, head, offsets, 0, tail - head );
+        System.arraycopy( times, head, times, 0, tail - head );
+        System.arraycopy( lengths, head, lengths, 0, tail - head );
+
+        tail -= head;
+        head = 0;
+    }
+}
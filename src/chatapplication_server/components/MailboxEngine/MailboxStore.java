@@ -0,0 +1,636 @@
+package chatapplication_server.components.MailboxEngine;
+
+import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.ServerSocketEngine.SocketServerGUI;
+import chatapplication_server.components.base.GenericThreadedComponent;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Store-and-forward of the mails (messages addressed to a user by name) sent to users that are not connected. The
+ * mails are kept in a single append-only file (see MailRecord) and indexed per recipient in memory (see Mailbox);
+ * once the recipient logs in, its connection handler takes them off its mailbox in chunks and acknowledges every
+ * chunk written to the client with an ACK record. The file is read back on startup (dropping a record torn by a
+ * crash) to rebuild the mailboxes, and rewritten with only the pending mails once most of it is done with.
+ *
+ * A mail is kept for at most Mailbox.TTL milliseconds;the expired mails are dropped instead of being delivered. A
+ * mailbox holds at most Mailbox.MaxMessages mails and Mailbox.MaxBytes bytes, and all of them together at most
+ * Mailbox.MaxTotalBytes bytes;a mail over any of these limits is refused right away.
+ *
+ * Like the journal, depositing never waits for the disk: the writer thread writes whatever was queued meanwhile
+ * with a single gathering write and forces it once (group commit). A mail can be delivered only once it is written.
+ *
+ * The mails are not end-to-end encrypted;the Server reads them as it reads the broadcasts. The end-to-end
+ * encrypted private messages still need the peer to be connected, since its pairwise key is set up live.
+ *
+ * @author atgianne
+ */
+public class MailboxStore extends GenericThreadedComponent
+{
+    /** Singleton instance of the MailboxStore component */
+    private static MailboxStore componentInstance = null;
+
+    /** The name of the mailbox file */
+    private static final String FILE_NAME = "mail.log";
+
+    /** The file is compacted on startup once it is larger than this and less than half of it is pending mails */
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Flag indicating whether the store is running;mails are refused otherwise */
+    private volatile boolean isRunning;
+
+    /** The mailbox file, open for appending and reading, and its length;the length is only touched by the writer thread */
+    private Path file;
+    private FileChannel channel;
+    private long length;
+
+    /** The limits of the mailboxes */
+    private long ttl;
+    private int maxMessages;
+    private long maxBytes, maxTotalBytes;
+
+    /** The mailboxes by recipient and the bytes of all their mails (guarded by mailboxes) */
+    private final HashMap<String, Mailbox> mailboxes;
+    private long totalBytes;
+
+    /** The records waiting to be written (guarded by pending) */
+    private final ArrayDeque<MailRecord> pending;
+
+    /** Statistics of the store */
+    private volatile long deposited, delivered, expired, refused, commits, lastForceMicros;
+
+    /**
+     * Creates a new instance of MailboxStore
+     */
+    private MailboxStore()
+    {
+        mailboxes = new HashMap<>();
+        pending = new ArrayDeque<>();
+        isRunning = false;
+    }
+
+    /**
+     * Make sure that we can only get one instance of the MailboxStore component.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized MailboxStore getInstance()
+    {
+        if ( componentInstance == null )
+            componentInstance = new MailboxStore();
+
+        return componentInstance;
+    }
+
+    /**
+     * Implementation of IComponent.initialize method().
+     * It rebuilds the mailboxes from the mailbox file (compacting it if it is mostly done with) and starts the writer
+     * thread. Nothing is done if the mailboxes are disabled.
+     *
+     * @see //IComponent interface.
+     */
+    public void initialize() throws Exception
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Mailbox.Enabled", "true" );
+        configManager.setDefaultValue( "Mailbox.Directory", "mailbox" );
+        configManager.setDefaultValue( "Mailbox.TTL", Long.toString( 7L * 24 * 60 * 60 * 1000 ) );
+        configManager.setDefaultValue( "Mailbox.MaxMessages", "1000" );
+        configManager.setDefaultValue( "Mailbox.MaxBytes", Integer.toString( 1024 * 1024 ) );
+        configManager.setDefaultValue( "Mailbox.MaxTotalBytes", Integer.toString( 256 * 1024 * 1024 ) );
+
+        if ( !Boolean.parseBoolean( configManager.getValue( "Mailbox.Enabled" ) ) )
+            return;
+
+        ttl = configManager.getValueLong( "Mailbox.TTL" );
+        maxMessages = configManager.getValueInt( "Mailbox.MaxMessages" );
+        maxBytes = configManager.getValueLong( "Mailbox.MaxBytes" );
+        maxTotalBytes = configManager.getValueLong( "Mailbox.MaxTotalBytes" );
+
+        Path directory = Paths.get( configManager.getValue( "Mailbox.Directory" ) );
+        Files.createDirectories( directory );
+        file = directory.resolve( FILE_NAME );
+
+        synchronized ( mailboxes )
+        {
+            mailboxes.clear();
+            totalBytes = 0;
+
+            recover();
+
+            if ( length > COMPACT_THRESHOLD && totalBytes < length / 2 )
+                compact();
+        }
+
+        synchronized ( pending )
+        {
+            pending.clear();
+        }
+
+        channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE );
+        channel.position( length );
+        deposited = delivered = expired = refused = commits = lastForceMicros = 0;
+
+        SocketServerGUI.getInstance().appendEvent( "[Mailbox]:: Opened " + file + " (" + mailboxes.size() + " mailboxes, " + ( totalBytes / 1024 ) + " KB pending)\n" );
+
+        isRunning = true;
+
+        /** Invoke our parent intialization method for starting the thread */
+        super.initialize();
+    }
+
+    /**
+     * Method for storing a mail for a user that is not connected;it returns right away, the mail is written later on
+     * by the writer thread.
+     *
+     * @param recipient The username of the recipient
+     * @param sender The username of the sender
+     * @param text The text of the mail
+     *
+     * @return TRUE if the mail was stored; FALSE if it was refused (mailboxes disabled or over a limit)
+     */
+    public boolean deposit( String recipient, String sender, String text )
+    {
+        if ( !isRunning )
+            return false;
+
+        MailRecord record = new MailRecord( MailRecord.MAIL, recipient, sender, text.getBytes( UTF_8 ) );
+        int size = record.encodedLength();
+
+        synchronized ( mailboxes )
+        {
+            Mailbox mailbox = mailboxes.get( recipient );
+            int count = ( mailbox == null ) ? 0 : mailbox.size() + mailbox.queued;
+            long bytes = ( mailbox == null ) ? 0 : mailbox.bytes;
+
+            if ( count >= maxMessages || bytes + size > maxBytes || totalBytes + size > maxTotalBytes )
+            {
+                refused++;
+                return false;
+            }
+
+            if ( mailbox == null )
+            {
+                mailbox = new Mailbox();
+                mailboxes.put( recipient, mailbox );
+            }
+
+            mailbox.queued++;
+            mailbox.bytes += size;
+            totalBytes += size;
+            deposited++;
+        }
+
+        queue( record );
+
+        return true;
+    }
+
+    /**
+     * Method for checking whether a user has mails waiting for it.
+     *
+     * @param recipient The username of the user
+     *
+     * @return TRUE if there are mails in its mailbox
+     */
+    public boolean hasMail( String recipient )
+    {
+        if ( !isRunning )
+            return false;
+
+        synchronized ( mailboxes )
+        {
+            Mailbox mailbox = mailboxes.get( recipient );
+
+            return mailbox != null && !mailbox.isEmpty();
+        }
+    }
+
+    /**
+     * Method for reading the next mails of a mailbox, oldest first;the expired ones at the front are dropped. The
+     * mails stay in the mailbox until they are acknowledged.
+     *
+     * @param recipient The username of the recipient
+     * @param max The largest number of mails to be returned
+     *
+     * @return The mails;empty if there are none (written) left
+     */
+    public List<MailRecord> peek( String recipient, int max ) throws IOException
+    {
+        if ( !isRunning )
+            return Collections.emptyList();
+
+        long[] offsets;
+        int[] lengths;
+        long lastExpired;
+
+        synchronized ( mailboxes )
+        {
+            Mailbox mailbox = mailboxes.get( recipient );
+            if ( mailbox == null )
+                return Collections.emptyList();
+
+            lastExpired = mailbox.lastExpired( System.currentTimeMillis() - ttl );
+            if ( lastExpired >= 0 )
+                expired += remove( recipient, mailbox, lastExpired );
+
+            int n = Math.min( max, mailbox.size() );
+            offsets = new long[ n ];
+            lengths = new int[ n ];
+
+            for ( int i = 0; i < n; i++ )
+            {
+                offsets[ i ] = mailbox.offsetAt( i );
+                lengths[ i ] = mailbox.lengthAt( i );
+            }
+        }
+
+        if ( lastExpired >= 0 )
+            queue( MailRecord.ack( recipient, lastExpired ) );
+
+        /** Positional reads;they never get in the way of the writer thread */
+        List<MailRecord> mails = new ArrayList<>( offsets.length );
+        for ( int i = 0; i < offsets.length; i++ )
+        {
+            ByteBuffer buf = ByteBuffer.allocate( lengths[ i ] );
+            readFully( channel, buf, offsets[ i ] );
+            buf.flip();
+
+            try
+            {
+                mails.add( MailRecord.decode( buf, offsets[ i ] ) );
+            }
+            catch ( ProtocolException pe )
+            {
+                /** A damaged mail is skipped;it is acknowledged along with the others */
+                SocketServerGUI.getInstance().appendEvent( "[Mailbox]:: Skipped a mail of " + recipient + " -- " + pe.getMessage() + "\n" );
+            }
+        }
+
+        return mails;
+    }
+
+    /**
+     * Method for acknowledging the mails of a mailbox delivered to the recipient.
+     *
+     * @param recipient The username of the recipient
+     * @param upTo The offset of the last delivered mail
+     */
+    public void acknowledge( String recipient, long upTo )
+    {
+        if ( !isRunning )
+            return;
+
+        synchronized ( mailboxes )
+        {
+            Mailbox mailbox = mailboxes.get( recipient );
+            if ( mailbox == null )
+                return;
+
+            int removed = remove( recipient, mailbox, upTo );
+            if ( removed == 0 )
+                return;
+
+            delivered += removed;
+        }
+
+        queue( MailRecord.ack( recipient, upTo ) );
+    }
+
+    /**
+     * Method for taking the mails up to an offset off a mailbox, dropping the mailbox once it is empty.
+     *
+     * IMPORTANT NOTE It must run in a synchronized block (on mailboxes)
+     *
+     * @return The number of removed mails
+     */
+    private int remove( String recipient, Mailbox mailbox, long upTo )
+    {
+        long bytes = mailbox.bytes;
+        int removed = mailbox.removeUpTo( upTo );
+
+        totalBytes -= bytes - mailbox.bytes;
+        if ( mailbox.isEmpty() )
+            mailboxes.remove( recipient );
+
+        return removed;
+    }
+
+    /**
+     * Method for queueing a record for the writer thread.
+     */
+    private void queue( MailRecord record )
+    {
+        synchronized ( pending )
+        {
+            pending.addLast( record );
+
+            if ( pending.size() == 1 )
+                pending.notify();
+        }
+    }
+
+    /**
+     * The main logic of the MailboxStore;i.e. the writer thread appending the queued records in batches.
+     */
+    public void componentMain()
+    {
+        ArrayList<MailRecord> batch = new ArrayList<>();
+
+        try
+        {
+            while ( true )
+            {
+                synchronized ( pending )
+                {
+                    while ( pending.isEmpty() && !mustShutdown )
+                        pending.wait();
+
+                    if ( pending.isEmpty() && mustShutdown )
+                        break;
+
+                    batch.addAll( pending );
+                    pending.clear();
+                }
+
+                write( batch );
+                batch.clear();
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Shutting down...whatever was written is already forced */
+        }
+        catch ( IOException ioe )
+        {
+            /** Keep track of this event in the logging stream;no mail is stored from now on */
+            SocketServerGUI.getInstance().appendEvent( "[Mailbox]:: Failed writing the mailbox file -- " + ioe.getMessage() + "\n" );
+        }
+        finally
+        {
+            isRunning = false;
+
+            try
+            {
+                channel.close();
+            }
+            catch ( IOException ioe )
+            {
+                /** Nothing more to do;the file is closed anyway */
+            }
+        }
+    }
+
+    /**
+     * Method for appending a batch of records to the file with a gathering write, forcing them to the disk and
+     * indexing the mails among them.
+     */
+    private void write( List<MailRecord> batch ) throws IOException
+    {
+        ByteBuffer[] buffers = new ByteBuffer[ batch.size() ];
+        long end = length;
+
+        for ( int i = 0; i < buffers.length; i++ )
+        {
+            buffers[ i ] = batch.get( i ).encode();
+            batch.get( i ).offset = end;
+            end += buffers[ i ].remaining();
+        }
+
+        for ( long written = 0; written < end - length; )
+            written += channel.write( buffers );
+
+        long start = System.nanoTime();
+        channel.force( false );
+        lastForceMicros = ( System.nanoTime() - start ) / 1000;
+
+        length = end;
+        commits++;
+
+        /** Deliverable from now on */
+        synchronized ( mailboxes )
+        {
+            for ( MailRecord record : batch )
+            {
+                if ( record.kind != MailRecord.MAIL )
+                    continue;
+
+                Mailbox mailbox = mailboxes.get( record.getRecipient() );
+                mailbox.queued--;
+                mailbox.add( record.offset, record.timestamp, record.encodedLength() );
+            }
+        }
+    }
+
+    /**
+     * Method for rebuilding the mailboxes from the file;the records after the first invalid one (torn by a crash)
+     * are cut off the file.
+     *
+     * IMPORTANT NOTE It must run in a synchronized block (on mailboxes)
+     */
+    private void recover() throws IOException
+    {
+        length = 0;
+        if ( !Files.exists( file ) )
+            return;
+
+        long size;
+        ByteBuffer header = ByteBuffer.allocate( MailRecord.RECORD_OVERHEAD );
+
+        try ( FileChannel in = FileChannel.open( file, StandardOpenOption.READ ) )
+        {
+            size = in.size();
+
+            while ( length + MailRecord.RECORD_OVERHEAD <= size )
+            {
+                header.clear();
+                readFully( in, header, length );
+
+                int recordLength = MailRecord.RECORD_OVERHEAD + header.getInt( 0 );
+                if ( recordLength <= MailRecord.RECORD_OVERHEAD || recordLength > size - length )
+                    break;
+
+                ByteBuffer buf = ByteBuffer.allocate( recordLength );
+                readFully( in, buf, length );
+                buf.flip();
+
+                MailRecord record;
+                try
+                {
+                    record = MailRecord.decode( buf, length );
+                }
+                catch ( ProtocolException pe )
+                {
+                    break;
+                }
+
+                if ( record.kind == MailRecord.MAIL )
+                {
+                    Mailbox mailbox = mailboxes.computeIfAbsent( record.getRecipient(), r -> new Mailbox() );
+                    mailbox.add( length, record.timestamp, recordLength );
+                    mailbox.bytes += recordLength;
+                    totalBytes += recordLength;
+                }
+                else
+                {
+                    Mailbox mailbox = mailboxes.get( record.getRecipient() );
+                    if ( mailbox != null )
+                        remove( record.getRecipient(), mailbox, record.getAckedOffset() );
+                }
+
+                length += recordLength;
+            }
+        }
+
+        if ( length < size )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[Mailbox]:: Dropped " + ( size - length ) + " bytes torn off the end of " + file + "\n" );
+
+            try ( FileChannel out = FileChannel.open( file, StandardOpenOption.WRITE ) )
+            {
+                out.truncate( length );
+            }
+        }
+
+        /** The mails that expired while the server was down are done with as well */
+        long expiredBefore = System.currentTimeMillis() - ttl;
+        for ( Map.Entry<String, Mailbox> entry : new ArrayList<>( mailboxes.entrySet() ) )
+        {
+            long lastExpired = entry.getValue().lastExpired( expiredBefore );
+            if ( lastExpired >= 0 )
+                remove( entry.getKey(), entry.getValue(), lastExpired );
+        }
+    }
+
+    /**
+     * Method for rewriting the file with only the pending mails;the new file replaces the old one at once, so that a
+     * crash leaves either of them.
+     *
+     * IMPORTANT NOTE It must run in a synchronized block (on mailboxes)
+     */
+    private void compact() throws IOException
+    {
+        Path tmp = file.resolveSibling( FILE_NAME + ".tmp" );
+        long end = 0;
+
+        try ( FileChannel in = FileChannel.open( file, StandardOpenOption.READ );
+              FileChannel out = FileChannel.open( tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) )
+        {
+            for ( Mailbox mailbox : mailboxes.values() )
+            {
+                for ( int i = 0; i < mailbox.size(); i++ )
+                {
+                    long offset = mailbox.offsetAt( i );
+                    int recordLength = mailbox.lengthAt( i );
+
+                    for ( long copied = 0; copied < recordLength; )
+                        copied += in.transferTo( offset + copied, recordLength - copied, out );
+
+                    mailbox.relocate( i, end );
+                    end += recordLength;
+                }
+            }
+
+            out.force( true );
+        }
+
+        Files.move( tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        SocketServerGUI.getInstance().appendEvent( "[Mailbox]:: Compacted " + file + " from " + ( length / 1024 ) + " KB to " + ( end / 1024 ) + " KB\n" );
+        length = end;
+    }
+
+    /**
+     * Method for reading a buffer in full from a position of a file.
+     */
+    private static void readFully( FileChannel in, ByteBuffer buf, long position ) throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            if ( in.read( buf, position + buf.position() ) < 0 )
+                throw new ProtocolException( "Unexpected end of the mailbox file" );
+        }
+    }
+
+    /**
+     * @return TRUE if the store is running
+     */
+    public boolean getIsRunning()
+    {
+        return isRunning;
+    }
+
+    /**
+     * Method for getting the usage metrics of the mailboxes.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        if ( !isRunning )
+            return "Mailbox:: Not running\n";
+
+        int users;
+        long pendingBytes;
+        synchronized ( mailboxes )
+        {
+            users = mailboxes.size();
+            pendingBytes = totalBytes;
+        }
+
+        return "Mailbox:: Mailboxes:= " + users +
+               " Pending:= " + ( pendingBytes / 1024 ) + " KB" +
+               " Deposited:= " + deposited +
+               " Delivered:= " + delivered +
+               " Expired:= " + expired +
+               " Refused:= " + refused +
+               " Commits:= " + commits +
+               " Last force:= " + lastForceMicros + " us\n";
+    }
+
+    /**
+     * Override GenericThreadedComponent.shutdown() method.
+     * Signal the writer thread to write whatever is still queued and wait until it stops.
+     *
+     * @see GenericThreadedComponent
+     */
+    public void shutdown()
+    {
+        synchronized ( pending )
+        {
+            mustShutdown = true;
+            pending.notify();
+        }
+
+        try
+        {
+            if ( localThread != null )
+                localThread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Interrupted while waiting...the writer thread still finishes on its own */
+        }
+
+        /** Invoke our parent's method to stop the thread */
+        super.shutdown();
+    }
+}
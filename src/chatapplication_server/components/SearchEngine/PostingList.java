@@ -0,0 +1,178 @@
+package chatapplication_server.components.SearchEngine;
+
+import java.util.Arrays;
+
+/**
+ * The posting list of a term: the increasing sequence numbers of the journaled messages holding it. The postings are
+ * kept in blocks of BLOCK_SIZE;the first posting of every block is kept as is (next to the offset of the block), the
+ * others as variable length (7 bits per byte) deltas from the previous posting. So a posting takes one or two bytes
+ * for a frequent term, and a lookup only decodes the one block that may hold the posting.
+ *
+ * IMPORTANT NOTE It is not thread safe;SearchIndex guards all the posting lists with its lock
+ *
+ * @author atgianne
+ */
+class PostingList
+{
+    /** The number of postings per block */
+    static final int BLOCK_SIZE = 128;
+
+    /** The encoded deltas, and the number of bytes used */
+    private byte[] data;
+    private int length;
+
+    /** The first posting and the offset (in data) of the deltas of every block */
+    private long[] blockFirst;
+    private int[] blockOffset;
+
+    /** The number of postings and the last one */
+    private int count;
+    private long last;
+
+    /**
+     * Creates a new, empty, instance of PostingList
+     */
+    PostingList()
+    {
+        data = new byte[ 8 ];
+        blockFirst = new long[ 1 ];
+        blockOffset = new int[ 1 ];
+    }
+
+    /**
+     * Method for adding a posting;it must be larger than the last one (a repeated posting is ignored).
+     *
+     * @param seq The sequence number of the message
+     */
+    void add( long seq )
+    {
+        if ( count > 0 && seq <= last )
+            return;
+
+        if ( count % BLOCK_SIZE == 0 )
+        {
+            int block = count / BLOCK_SIZE;
+            if ( block == blockFirst.length )
+            {
+                blockFirst = Arrays.copyOf( blockFirst, 2 * block );
+                blockOffset = Arrays.copyOf( blockOffset, 2 * block );
+            }
+
+            blockFirst[ block ] = seq;
+            blockOffset[ block ] = length;
+        }
+        else
+        {
+            writeVarLong( seq - last );
+        }
+
+        last = seq;
+        count++;
+    }
+
+    /**
+     * Method for decoding a block.
+     *
+     * @param block The index of the block
+     * @param out The array to decode the postings of the block into (at least BLOCK_SIZE long)
+     *
+     * @return The number of postings of the block
+     */
+    int decodeBlock( int block, long[] out )
+    {
+        int n = Math.min( BLOCK_SIZE, count - block * BLOCK_SIZE );
+        int pos = blockOffset[ block ];
+        long seq = blockFirst[ block ];
+
+        out[ 0 ] = seq;
+        for ( int i = 1; i < n; i++ )
+        {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+
+            do
+            {
+                b = data[ pos++ ];
+                delta |= ( long )( b & 0x7f ) << shift;
+                shift += 7;
+            }
+            while ( b < 0 );
+
+            seq += delta;
+            out[ i ] = seq;
+        }
+
+        return n;
+    }
+
+    /**
+     * Method for finding the block that may hold a posting.
+     *
+     * @param seq The sequence number
+     *
+     * @return The index of the last block starting at or before it;-1 if it is before the first posting
+     */
+    int blockOf( long seq )
+    {
+        int lo = 0, hi = blocks() - 1, found = -1;
+
+        while ( lo <= hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+
+            if ( blockFirst[ mid ] <= seq )
+            {
+                found = mid;
+                lo = mid + 1;
+            }
+            else
+            {
+                hi = mid - 1;
+            }
+        }
+
+        return found;
+    }
+
+    /**
+     * @return The number of blocks
+     */
+    int blocks()
+    {
+        return ( count + BLOCK_SIZE - 1 ) / BLOCK_SIZE;
+    }
+
+    /**
+     * @return The number of postings
+     */
+    int size()
+    {
+        return count;
+    }
+
+    /**
+     * @return The number of bytes taken by the encoded postings
+     */
+    long encodedBytes()
+    {
+        return length + 12L * blocks();
+    }
+
+    /**
+     * Method for appending a delta in 7 bit groups, least significant first;the high bit marks a continuation.
+     */
+    private void writeVarLong( long v )
+    {
+        if ( length + 10 > data.length )
+            data = Arrays.copyOf( data, Math.max( 2 * data.length, length + 10 ) );
+
+        while ( ( v & ~0x7fL ) != 0 )
+        {
+            data[ length++ ] = ( byte )( ( v & 0x7f ) | 0x80 );
+            v >>>= 7;
+        }
+
+        data[ length++ ] = ( byte )v;
+    }
+}
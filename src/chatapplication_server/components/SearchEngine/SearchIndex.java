@@ -0,0 +1,423 @@
+package chatapplication_server.components.SearchEngine;
+
+import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.JournalEngine.JournalRecord;
+import chatapplication_server.components.JournalEngine.MessageJournal;
+import chatapplication_server.components.ServerSocketEngine.SocketServerGUI;
+import chatapplication_server.components.base.GenericThreadedComponent;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Full-text search over the chat history: an inverted index from every term (a lower case run of letters and
+ * digits) to the posting list (see PostingList) of the journaled messages holding it. The index is built in the
+ * background by the indexer thread, which follows the journal and indexes the messages as soon as they are forced
+ * to the disk;on startup it catches up from the start of the journal, so the index itself is never written anywhere.
+ *
+ * Only the broadcasts and the room messages are indexed;the private messages are end-to-end encrypted. A query
+ * returns the messages holding all of its terms, newest first, one page at a time: it walks the shortest posting
+ * list backwards from the page cursor and looks every posting up in the other lists, which only decodes the blocks
+ * it lands in. So the cost of a page depends on the rarest term and on the page size rather than on the size of
+ * the history.
+ *
+ * @author atgianne
+ */
+public class SearchIndex extends GenericThreadedComponent
+{
+    /** Singleton instance of the SearchIndex component */
+    private static SearchIndex componentInstance = null;
+
+    /** The shortest and the longest indexed terms, and the largest number of terms of a query */
+    public static final int MIN_TERM_LENGTH = 2, MAX_TERM_LENGTH = 32, MAX_QUERY_TERMS = 8;
+
+    /** The largest number of messages read from the journal per round of the indexer thread */
+    private static final int INDEX_BATCH = 4096;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Flag indicating whether the index is running */
+    private volatile boolean isRunning;
+
+    /** The posting lists by term (guarded by lock) */
+    private final HashMap<String, PostingList> terms;
+    private final ReentrantReadWriteLock lock;
+
+    /** The sequence number of the last message indexed */
+    private volatile long indexedSeq;
+
+    /** Statistics of the index */
+    private volatile long messages, postings, queries, lastQueryMicros;
+
+    /**
+     * Creates a new instance of SearchIndex
+     */
+    private SearchIndex()
+    {
+        terms = new HashMap<>();
+        lock = new ReentrantReadWriteLock();
+        isRunning = false;
+    }
+
+    /**
+     * Make sure that we can only get one instance of the SearchIndex component.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized SearchIndex getInstance()
+    {
+        if ( componentInstance == null )
+            componentInstance = new SearchIndex();
+
+        return componentInstance;
+    }
+
+    /**
+     * Implementation of IComponent.initialize method().
+     * It starts the indexer thread, unless the search is disabled or there is no journal to index.
+     *
+     * @see //IComponent interface.
+     */
+    public void initialize() throws Exception
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Search.Enabled", "true" );
+        configManager.setDefaultValue( "Search.PageSize", "20" );
+        configManager.setDefaultValue( "Search.PollInterval", "200" );
+
+        if ( !Boolean.parseBoolean( configManager.getValue( "Search.Enabled" ) ) || !MessageJournal.getInstance().getIsRunning() )
+            return;
+
+        lock.writeLock().lock();
+        try
+        {
+            terms.clear();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        indexedSeq = 0;
+        messages = postings = queries = lastQueryMicros = 0;
+        isRunning = true;
+
+        /** Invoke our parent intialization method for starting the thread */
+        super.initialize();
+    }
+
+    /**
+     * The main logic of the SearchIndex;i.e. the indexer thread following the journal.
+     */
+    public void componentMain()
+    {
+        MessageJournal journal = MessageJournal.getInstance();
+        long pollInterval = configManager.getValueLong( "Search.PollInterval" );
+        boolean caughtUp = false;
+
+        try
+        {
+            while ( !mustShutdown )
+            {
+                List<JournalRecord> records = journal.read( indexedSeq + 1, journal.getDurableSeq(), INDEX_BATCH, ( byte )0 );
+
+                if ( records.isEmpty() )
+                {
+                    if ( !caughtUp )
+                    {
+                        SocketServerGUI.getInstance().appendEvent( "[Search]:: Indexed the history up to " + indexedSeq + " (" + getTermCount() + " terms)\n" );
+                        caughtUp = true;
+                    }
+
+                    Thread.sleep( pollInterval );
+                    continue;
+                }
+
+                index( records );
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Shutting down... */
+        }
+        catch ( ProtocolException pe )
+        {
+            /** Keep track of this event in the logging stream;nothing is indexed from now on */
+            SocketServerGUI.getInstance().appendEvent( "[Search]:: Failed reading the journal -- " + pe.getMessage() + "\n" );
+        }
+        finally
+        {
+            isRunning = false;
+        }
+    }
+
+    /**
+     * Method for adding a batch of journaled messages to the index;the terms are extracted before taking the lock.
+     */
+    private void index( List<JournalRecord> records )
+    {
+        List<Set<String>> extracted = new ArrayList<>( records.size() );
+        for ( JournalRecord record : records )
+            extracted.add( ( record.getKind() == JournalRecord.PRIVATE ) ? null : tokenize( record.getText() ) );
+
+        long added = 0;
+
+        lock.writeLock().lock();
+        try
+        {
+            for ( int i = 0; i < records.size(); i++ )
+            {
+                Set<String> recordTerms = extracted.get( i );
+                if ( recordTerms == null )
+                    continue;
+
+                long seq = records.get( i ).getSeq();
+                for ( String term : recordTerms )
+                    terms.computeIfAbsent( term, t -> new PostingList() ).add( seq );
+
+                added += recordTerms.size();
+                messages++;
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+
+        postings += added;
+        indexedSeq = records.get( records.size() - 1 ).getSeq();
+    }
+
+    /**
+     * Method for finding the messages holding all the terms of a query.
+     *
+     * @param query The terms of the query (see tokenize)
+     * @param before The page cursor;only the messages with a smaller sequence number are returned (0 for the newest)
+     * @param max The largest number of messages to be returned
+     *
+     * @return The sequence numbers of the messages, newest first;fewer than max only if there are no more of them
+     */
+    public long[] search( Set<String> query, long before, int max )
+    {
+        if ( before <= 0 )
+            before = Long.MAX_VALUE;
+
+        long start = System.nanoTime();
+        long[] found = new long[ max ];
+        int n = 0;
+
+        lock.readLock().lock();
+        try
+        {
+            PostingList[] lists = new PostingList[ query.size() ];
+            int i = 0;
+
+            for ( String term : query )
+            {
+                lists[ i ] = terms.get( term );
+                if ( lists[ i++ ] == null )
+                    return new long[ 0 ];
+            }
+
+            if ( lists.length == 0 )
+                return new long[ 0 ];
+
+            /** Walk the shortest list, looking its postings up in the others */
+            Arrays.sort( lists, Comparator.comparingInt( PostingList::size ) );
+
+            Lookup[] lookups = new Lookup[ lists.length - 1 ];
+            for ( i = 1; i < lists.length; i++ )
+                lookups[ i - 1 ] = new Lookup( lists[ i ] );
+
+            long[] block = new long[ PostingList.BLOCK_SIZE ];
+
+            for ( int b = lists[ 0 ].blockOf( before - 1 ); b >= 0 && n < max; b-- )
+            {
+                for ( int j = lists[ 0 ].decodeBlock( b, block ) - 1; j >= 0 && n < max; j-- )
+                {
+                    if ( block[ j ] >= before )
+                        continue;
+
+                    boolean all = true;
+                    for ( int k = 0; k < lookups.length && all; k++ )
+                        all = lookups[ k ].contains( block[ j ] );
+
+                    if ( all )
+                        found[ n++ ] = block[ j ];
+                }
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        queries++;
+        lastQueryMicros = ( System.nanoTime() - start ) / 1000;
+
+        return Arrays.copyOf( found, n );
+    }
+
+    /**
+     * The lookups of a query in one posting list;the last decoded block is kept, since the postings looked up come
+     * in decreasing order.
+     */
+    private static class Lookup
+    {
+        final PostingList list;
+        final long[] block = new long[ PostingList.BLOCK_SIZE ];
+        int decoded = -1, n;
+
+        Lookup( PostingList list )
+        {
+            this.list = list;
+        }
+
+        boolean contains( long seq )
+        {
+            int b = list.blockOf( seq );
+            if ( b < 0 )
+                return false;
+
+            if ( b != decoded )
+            {
+                n = list.decodeBlock( b, block );
+                decoded = b;
+            }
+
+            return Arrays.binarySearch( block, 0, n, seq ) >= 0;
+        }
+    }
+
+    /**
+     * Method for extracting the terms of a text (or a query);i.e. its distinct lower case runs of letters and digits
+     * of MIN_TERM_LENGTH to MAX_TERM_LENGTH characters.
+     *
+     * @param text The text
+     *
+     * @return The terms, in the order they first appear
+     */
+    public static Set<String> tokenize( String text )
+    {
+        Set<String> found = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+
+        for ( int i = 0; i <= text.length(); i++ )
+        {
+            char c = ( i < text.length() ) ? text.charAt( i ) : ' ';
+
+            if ( Character.isLetterOrDigit( c ) )
+            {
+                term.append( Character.toLowerCase( c ) );
+                continue;
+            }
+
+            if ( term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH )
+                found.add( term.toString() );
+
+            term.setLength( 0 );
+        }
+
+        return found;
+    }
+
+    /**
+     * @return The number of distinct terms
+     */
+    private int getTermCount()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return terms.size();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return TRUE if the index is running
+     */
+    public boolean getIsRunning()
+    {
+        return isRunning;
+    }
+
+    /**
+     * @return The sequence number of the last message indexed
+     */
+    public long getIndexedSeq()
+    {
+        return indexedSeq;
+    }
+
+    /**
+     * Method for getting the usage metrics of the index.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        if ( !isRunning )
+            return "Search:: Not running\n";
+
+        int termCount;
+        long bytes = 0;
+
+        lock.readLock().lock();
+        try
+        {
+            termCount = terms.size();
+            for ( PostingList list : terms.values() )
+                bytes += list.encodedBytes();
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+
+        long p = postings;
+
+        return "Search:: Messages:= " + messages +
+               " Terms:= " + termCount +
+               " Postings:= " + p +
+               " (" + ( bytes / 1024 ) + " KB, " + ( ( p == 0 ) ? 0 : ( 100 * bytes / p ) / 100.0 ) + " bytes each)" +
+               " Indexed up to:= " + indexedSeq +
+               " Queries:= " + queries +
+               " Last query:= " + lastQueryMicros + " us\n";
+    }
+
+    /**
+     * Override GenericThreadedComponent.shutdown() method.
+     * Signal the indexer thread to stop and wait until it does.
+     *
+     * @see GenericThreadedComponent
+     */
+    public void shutdown()
+    {
+        super.shutdown();
+
+        try
+        {
+            if ( localThread != null )
+            {
+                localThread.interrupt();
+                localThread.join();
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Interrupted while waiting...the indexer thread still finishes on its own */
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import chatapplication_server.components.ConfigManager;
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Admission control applied by the SocketServerEngine right after a client connection has been accepted.
+ * Since the handshake (certificate exchange, RSA encryption and signing of the session key) is the most expensive
+ * operation of the server, every new connection must first obtain a token from the bucket of its remote address
+ * and a token from the global bucket of the server. Connections that fail to do so are refused before any stream
+ * or crypto set up takes place.
+ *
+ * The per address buckets are refilled lazily and the ones that have been idle long enough to be full again are
+ * evicted periodically, so the map only holds the addresses that connected recently.
+ *
+ * @author atgianne
+ */
+public class AdmissionController
+{
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Map holding the token bucket of every remote address that connected recently */
+    private final ConcurrentHashMap<InetAddress, TokenBucket> addressBuckets;
+
+    /** The token bucket shared by all incoming connections */
+    private TokenBucket globalBucket;
+
+    /** Refill rate (connections per second) and capacity of the per address buckets */
+    private double perAddressRate, perAddressBurst;
+
+    /** Refill rate (connections per second) and capacity of the global bucket */
+    private double globalRate, globalBurst;
+
+    /** Interval between two consecutive evictions of the idle buckets (in nanoseconds) */
+    private long evictionInterval;
+
+    /** Timestamp (System.nanoTime) of the last eviction of the idle buckets */
+    private long lastEviction;
+
+    /** Number of connections refused since the start of the socket server */
+    private long refusedConnections;
+
+    /**
+     * Creates a new instance of AdmissionController
+     */
+    public AdmissionController()
+    {
+        addressBuckets = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Method for setting up the admission controller according to the configuration values of the socket server.
+     * It must be called (once more) whenever the socket server is (re-)initialized.
+     */
+    public void initialize()
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        /** Set the default values of the admission control properties */
+        configManager.setDefaultValue( "Admission.PerAddress.Rate", "2" );
+        configManager.setDefaultValue( "Admission.PerAddress.Burst", "5" );
+        configManager.setDefaultValue( "Admission.Global.Rate", "50" );
+        configManager.setDefaultValue( "Admission.Global.Burst", "100" );
+        configManager.setDefaultValue( "Admission.EvictionInterval", "30000" );
+
+        perAddressRate = configManager.getValueFloat( "Admission.PerAddress.Rate" );
+        perAddressBurst = configManager.getValueFloat( "Admission.PerAddress.Burst" );
+        globalRate = configManager.getValueFloat( "Admission.Global.Rate" );
+        globalBurst = configManager.getValueFloat( "Admission.Global.Burst" );
+        evictionInterval = configManager.getValueLong( "Admission.EvictionInterval" ) * 1000000L;
+
+        /** Start with full buckets... */
+        globalBucket = new TokenBucket( globalBurst );
+        addressBuckets.clear();
+        lastEviction = System.nanoTime();
+        refusedConnections = 0;
+    }
+
+    /**
+     * Method for deciding whether a newly accepted connection from the given address can be handled by the server.
+     * This method is only called by the accepting thread of the SocketServerEngine.
+     *
+     * @param address The remote address of the accepted connection
+     *
+     * @return TRUE if the connection is admitted; FALSE if it must be refused
+     */
+    public boolean admit( InetAddress address )
+    {
+        long now = System.nanoTime();
+
+        /** Periodically drop the buckets of the addresses that have not connected for a while */
+        if ( now - lastEviction > evictionInterval )
+        {
+            evictIdleBuckets( now );
+            lastEviction = now;
+        }
+
+        TokenBucket addressBucket = addressBuckets.computeIfAbsent( address, a -> new TokenBucket( perAddressBurst ) );
+
+        /** First check the bucket of the remote address;so that a single address cannot drain the global bucket */
+        if ( !addressBucket.tryConsume( 1, perAddressRate, perAddressBurst ) )
+        {
+            refusedConnections++;
+            return false;
+        }
+
+        /** Then the global bucket...If there is no token left, give back the one of the remote address */
+        if ( !globalBucket.tryConsume( 1, globalRate, globalBurst ) )
+        {
+            addressBucket.giveBack( 1, perAddressBurst );
+            refusedConnections++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Method for removing from the map all the buckets that have been idle long enough to be full again.
+     *
+     * @param now The current System.nanoTime()
+     */
+    private void evictIdleBuckets( long now )
+    {
+        Iterator<Map.Entry<InetAddress, TokenBucket>> it = addressBuckets.entrySet().iterator();
+
+        while ( it.hasNext() )
+        {
+            if ( it.next().getValue().isIdle( perAddressRate, perAddressBurst, now ) )
+                it.remove();
+        }
+    }
+
+    /**
+     * Method for getting the number of connections refused since the start of the socket server.
+     *
+     * @return The number of refused connections
+     */
+    public long getRefusedConnections()
+    {
+        return refusedConnections;
+    }
+
+    /**
+     * Method for getting the number of remote addresses currently tracked by the admission controller.
+     *
+     * @return The number of per address buckets
+     */
+    public int getTrackedAddresses()
+    {
+        return addressBuckets.size();
+    }
+}
@@ -0,0 +1,158 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+/**
+ * Controlled Delay (CoDel) monitor of the sojourn time of the work items of a queue.
+ * Every time an item is taken out of the monitored queue, the time it spent queued is reported to the monitor.
+ * As long as the sojourn time stays below the target, nothing happens. Once it has stayed above the target for a
+ * whole interval, the monitor enters the dropping state and asks for items to be dropped (or load to be shed) at an
+ * increasing rate; i.e. the time between two drops is interval / sqrt(number of drops). The dropping state is left
+ * as soon as an item is dequeued with a sojourn time below the target.
+ *
+ * Using the sojourn time instead of the queue length makes the monitor independent of the cost of the items and
+ * of the number of threads serving the queue.
+ *
+ * @author atgianne
+ */
+public class CoDelMonitor
+{
+    /** The name of the monitored queue (for printing purposes) */
+    private final String name;
+
+    /** The acceptable sojourn time and the interval it may be exceeded before dropping (in nanoseconds) */
+    private final long target, interval;
+
+    /** Time at which the sojourn time will have been above the target for a whole interval (0 if below target) */
+    private long firstAboveTime;
+
+    /** Flag indicating whether the monitor is in the dropping state */
+    private boolean dropping;
+
+    /** Time of the next drop while in the dropping state */
+    private long dropNext;
+
+    /** Number of drops since entering the dropping state */
+    private int count;
+
+    /** The last reported sojourn time and the time it was reported (in nanoseconds) */
+    private long lastSojourn, lastSample;
+
+    /** Total number of drops requested by the monitor */
+    private long totalDrops;
+
+    /**
+     * Creates a new instance of CoDelMonitor
+     *
+     * @param name The name of the monitored queue
+     * @param targetMillis The acceptable sojourn time (in milliseconds)
+     * @param intervalMillis The interval the target may be exceeded before dropping starts (in milliseconds)
+     */
+    public CoDelMonitor( String name, long targetMillis, long intervalMillis )
+    {
+        this.name = name;
+        this.target = targetMillis * 1000000L;
+        this.interval = intervalMillis * 1000000L;
+    }
+
+    /**
+     * The CoDel control law; the next drop is scheduled sooner the more drops have already taken place.
+     */
+    private long controlLaw( long t )
+    {
+        return t + ( long )( interval / Math.sqrt( count ) );
+    }
+
+    /**
+     * Method for reporting the sojourn time of an item that was just taken out of the monitored queue.
+     *
+     * @param sojourn The time the item spent in the queue (in nanoseconds)
+     *
+     * @return TRUE if the item (or an equivalent amount of load) must be dropped; FALSE otherwise
+     */
+    public synchronized boolean onDequeue( long sojourn )
+    {
+        long now = System.nanoTime();
+        boolean okToDrop = false;
+
+        lastSojourn = sojourn;
+        lastSample = now;
+
+        /** Is the sojourn time persistently above the target? */
+        if ( sojourn < target )
+        {
+            firstAboveTime = 0;
+        }
+        else if ( firstAboveTime == 0 )
+        {
+            firstAboveTime = now + interval;
+        }
+        else if ( now >= firstAboveTime )
+        {
+            okToDrop = true;
+        }
+
+        if ( dropping )
+        {
+            if ( !okToDrop )
+            {
+                /** Back below the target...leave the dropping state */
+                dropping = false;
+                return false;
+            }
+
+            if ( now >= dropNext )
+            {
+                count++;
+                dropNext = controlLaw( dropNext );
+                totalDrops++;
+                return true;
+            }
+
+            return false;
+        }
+
+        if ( okToDrop )
+        {
+            /** Enter the dropping state;if we left it only recently, resume close to the previous drop rate */
+            dropping = true;
+            count = ( count > 2 && now - dropNext < 8 * interval ) ? count - 2 : 1;
+            dropNext = controlLaw( now );
+            totalDrops++;
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Method for checking whether the monitored queue is currently congested. A monitor that has not received any
+     * sample for a whole interval is not considered congested any more, since its queue has drained.
+     *
+     * @return TRUE if the monitor is in the dropping state; FALSE otherwise
+     */
+    public synchronized boolean isDropping()
+    {
+        if ( dropping && System.nanoTime() - lastSample > interval )
+        {
+            dropping = false;
+            firstAboveTime = 0;
+        }
+
+        return dropping;
+    }
+
+    /**
+     * Method for getting a String representation of the thresholds and the current state of the monitor.
+     *
+     * @return The state of the monitor
+     */
+    public String getStatus()
+    {
+        boolean congested = isDropping();
+
+        synchronized ( this )
+        {
+            return name + ": " + ( congested ? "SHEDDING" : "OK" ) + " (sojourn " + lastSojourn / 1000000L + "/" + target / 1000000L +
+                   " ms, interval " + interval / 1000000L + " ms, drops " + totalDrops + ")";
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import chatapplication_server.components.ConfigManager;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adaptive load shedding of the socket server, based on the queueing delay of its work.
+ * CoDel monitors watch the sojourn time of the handshakes (from the accept of a connection until its connection
+ * handler starts the handshake) and of the fan-out (from the queueing of an outbound chat message until it is written
+ * to the client). The handshakes share one monitor, while every outbound queue has its own;so a single slow client
+ * only ever sheds its own messages. The time a message waits for the flow control credits of its client is not part
+ * of its sojourn time, and the control messages are neither measured nor dropped. When a monitor stays above its
+ * target, the server sheds load:
+ *
+ *     --handshake congestion: new connections are accepted more slowly (deferred in the listen backlog) and
+ *       the handshakes picked by the CoDel control law are refused
+ *     --fan-out congestion: the chat messages picked by the CoDel control law of the congested queue are dropped and,
+ *       once at least LoadShedding.FanOut.CongestedShare of the outbound queues are congested (i.e. the server, rather
+ *       than a few of its clients, does not keep up), the clients sending chat messages are slowed down
+ *
+ * @author atgianne
+ */
+public class LoadShedder
+{
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** The monitor of the handshake queue */
+    private CoDelMonitor handshakeMonitor;
+
+    /** The target and interval (in milliseconds) of the monitors of the outbound queues */
+    private long fanOutTarget, fanOutInterval;
+
+    /** The share of the outbound queues that must be congested for the senders to be slowed down */
+    private double congestedShare;
+
+    /** The monitors of the outbound queues, the ones of them found congested lately, and their drops */
+    private final AtomicInteger fanOutQueues;
+    private final Set<CoDelMonitor> congestedQueues;
+    private final AtomicLong fanOutDrops;
+
+    /** Timestamp (System.nanoTime) of the last check of the congested outbound queues */
+    private volatile long lastCongestionCheck;
+
+    /** Time (in milliseconds) the accepting of new connections is deferred while handshakes are congested */
+    private long loginDeferral;
+
+    /** Time (in milliseconds) a sender is paused after each chat message while the fan-out is congested */
+    private long senderDelay;
+
+    /**
+     * Creates a new instance of LoadShedder
+     */
+    public LoadShedder()
+    {
+        fanOutQueues = new AtomicInteger();
+        congestedQueues = ConcurrentHashMap.newKeySet();
+        fanOutDrops = new AtomicLong();
+    }
+
+    /**
+     * Method for setting up the load shedder according to the configuration values of the socket server.
+     * It must be called (once more) whenever the socket server is (re-)initialized.
+     */
+    public void initialize()
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        /** Set the default values of the load shedding properties (in milliseconds) */
+        configManager.setDefaultValue( "LoadShedding.Handshake.Target", "100" );
+        configManager.setDefaultValue( "LoadShedding.Handshake.Interval", "1000" );
+        configManager.setDefaultValue( "LoadShedding.FanOut.Target", "20" );
+        configManager.setDefaultValue( "LoadShedding.FanOut.Interval", "200" );
+        configManager.setDefaultValue( "LoadShedding.FanOut.CongestedShare", "0.5" );
+        configManager.setDefaultValue( "LoadShedding.LoginDeferral", "250" );
+        configManager.setDefaultValue( "LoadShedding.SenderDelay", "50" );
+
+        handshakeMonitor = new CoDelMonitor( "Handshake", configManager.getValueLong( "LoadShedding.Handshake.Target" ),
+                                             configManager.getValueLong( "LoadShedding.Handshake.Interval" ) );
+        fanOutTarget = configManager.getValueLong( "LoadShedding.FanOut.Target" );
+        fanOutInterval = configManager.getValueLong( "LoadShedding.FanOut.Interval" );
+        congestedShare = configManager.getValueFloat( "LoadShedding.FanOut.CongestedShare" );
+        loginDeferral = configManager.getValueLong( "LoadShedding.LoginDeferral" );
+        senderDelay = configManager.getValueLong( "LoadShedding.SenderDelay" );
+    }
+
+    /**
+     * Method called by the accepting thread before accepting a new connection; while the handshakes are congested
+     * the thread is paused, so that new logins wait in the listen backlog instead of adding to the congestion.
+     */
+    public void deferLoginIfCongested() throws InterruptedException
+    {
+        if ( handshakeMonitor.isDropping() )
+            Thread.sleep( loginDeferral );
+    }
+
+    /**
+     * Method called by a connection handler right before starting the handshake of its assigned connection.
+     *
+     * @param acceptedAt The time (System.nanoTime) the connection was accepted
+     *
+     * @return TRUE if the handshake must be refused; FALSE otherwise
+     */
+    public boolean shedHandshake( long acceptedAt )
+    {
+        return handshakeMonitor.onDequeue( System.nanoTime() - acceptedAt );
+    }
+
+    /**
+     * Method for creating the monitor of the outbound queue of a new connection.
+     *
+     * @return The monitor;to be handed back with forgetFanOutMonitor() once the connection is gone
+     */
+    public CoDelMonitor newFanOutMonitor()
+    {
+        fanOutQueues.incrementAndGet();
+        return new CoDelMonitor( "Fan-out", fanOutTarget, fanOutInterval );
+    }
+
+    /**
+     * Method for discarding the monitor of the outbound queue of a connection that is gone.
+     *
+     * @param monitor The monitor of the outbound queue (may be null)
+     */
+    public void forgetFanOutMonitor( CoDelMonitor monitor )
+    {
+        if ( monitor == null )
+            return;
+
+        fanOutQueues.decrementAndGet();
+        congestedQueues.remove( monitor );
+    }
+
+    /**
+     * Method called by a worker thread right before writing a queued chat message to a client;the control messages
+     * are never dropped, so they are not reported to the monitor either.
+     *
+     * @param monitor The monitor of the outbound queue of the client
+     * @param sojourn The time (in nanoseconds) the message was queued while the client could accept it
+     *
+     * @return TRUE if the message must be dropped; FALSE otherwise
+     */
+    public boolean shedFanOut( CoDelMonitor monitor, long sojourn )
+    {
+        boolean drop = monitor.onDequeue( sojourn );
+
+        if ( drop )
+        {
+            fanOutDrops.incrementAndGet();
+            congestedQueues.add( monitor );
+        }
+
+        return drop;
+    }
+
+    /**
+     * Method called by a connection handler after queueing a chat message of its client; while enough of the outbound
+     * queues are congested the handler stops reading from the client for a while.
+     */
+    public void slowSenderIfCongested() throws InterruptedException
+    {
+        if ( isFanOutCongested() )
+            Thread.sleep( senderDelay );
+    }
+
+    /**
+     * Method for checking whether at least LoadShedding.FanOut.CongestedShare of the outbound queues are congested.
+     * The queues that left the dropping state are forgotten at most once per interval, by whoever checks first.
+     *
+     * @return TRUE if the fan-out of the server as a whole is congested; FALSE otherwise
+     */
+    private boolean isFanOutCongested()
+    {
+        if ( congestedQueues.isEmpty() )
+            return false;
+
+        long now = System.nanoTime();
+        if ( now - lastCongestionCheck > fanOutInterval * 1000000L )
+        {
+            lastCongestionCheck = now;
+            congestedQueues.removeIf( m -> !m.isDropping() );
+        }
+
+        int queues = fanOutQueues.get();
+        return queues > 0 && congestedQueues.size() >= Math.max( 1, congestedShare * queues );
+    }
+
+    /**
+     * Method for getting a String representation of the thresholds and the current state of the load shedder.
+     *
+     * @return The state of the handshake monitor and of the outbound queues
+     */
+    public String getStatus()
+    {
+        if ( handshakeMonitor == null )
+            return "Load shedding: socket server not running";
+
+        return handshakeMonitor.getStatus() + " | Fan-out: " + ( isFanOutCongested() ? "SHEDDING" : "OK" ) + " (" + congestedQueues.size() + " of " +
+               fanOutQueues.get() + " queues congested, target " + fanOutTarget + " ms, interval " + fanOutInterval + " ms, drops " + fanOutDrops.get() + ")";
+    }
+}
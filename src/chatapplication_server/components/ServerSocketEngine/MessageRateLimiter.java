@@ -0,0 +1,268 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import SocketActionMessages.ChatMessage;
+import chatapplication_server.components.ConfigManager;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per user rate limiting of the chat messages received by the socket server.
+ * Every message received from a client triggers a decryption and a broadcast to all the connected clients, so a
+ * single noisy user can multiply the work of the server by the number of connected clients. Each user has a
+ * message bucket and a byte bucket; a received message must obtain one token from the first and as many tokens
+ * as its (still encrypted) size from the second, before it is decrypted.
+ *
+ * Depending on the "RateLimit.Policy" property, over-limit messages are either deferred (the connection handler
+ * waits until the tokens are available, thus also stopping reading from the socket) or rejected.
+ *
+ * The control messages keep their priority and are not charged to the buckets of the chat traffic;yet every one of
+ * them but LOGOUT makes the server (or another client) do work for it (e.g. WHOISIN, JOIN and LEAVE, which are fanned
+ * out to the members of the room, or KEY_LOOKUP and PEER_KEY, which are answered with a certificate or relayed to a
+ * peer), so it must obtain one token from a separate control bucket of the user. Over-limit control messages are
+ * always rejected, since deferring them would hold back the chat traffic read behind them.
+ *
+ * The limits are kept per username, so that reconnecting does not reset them. The buckets of the users that have
+ * been idle long enough to be full again are evicted periodically (along with their counters), so the map only holds
+ * the users that sent a message recently.
+ *
+ * @author atgianne
+ */
+public class MessageRateLimiter
+{
+    /** The policies applied to the messages that exceed the limits */
+    public static final String POLICY_DEFER = "defer", POLICY_REJECT = "reject";
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Map holding the buckets and counters of every user that sent a message */
+    private final ConcurrentHashMap<String, UserLimits> users;
+
+    /** Refill rate (messages per second) and capacity of the per user message buckets */
+    private double messageRate, messageBurst;
+
+    /** Refill rate (bytes per second) and capacity of the per user byte buckets */
+    private double byteRate, byteBurst;
+
+    /** Refill rate (messages per second) and capacity of the per user control buckets */
+    private double controlRate, controlBurst;
+
+    /** Flag indicating whether over-limit messages are deferred (TRUE) or rejected (FALSE) */
+    private boolean deferOverLimit;
+
+    /** Maximum time (in milliseconds) that a message may be deferred before it is rejected */
+    private long maxDeferral;
+
+    /** Interval between two consecutive evictions of the idle buckets (in nanoseconds) */
+    private long evictionInterval;
+
+    /** Timestamp (System.nanoTime) of the last eviction of the idle buckets */
+    private volatile long lastEviction;
+
+    /**
+     * The buckets and the counters kept for each user
+     */
+    private class UserLimits
+    {
+        final TokenBucket messages = new TokenBucket( messageBurst );
+        final TokenBucket bytes = new TokenBucket( byteBurst );
+        final TokenBucket control = new TokenBucket( controlBurst );
+
+        volatile long accepted, deferred, rejected, controlRejected;
+    }
+
+    /**
+     * Creates a new instance of MessageRateLimiter
+     */
+    public MessageRateLimiter()
+    {
+        users = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Method for setting up the rate limiter according to the configuration values of the socket server.
+     * It must be called (once more) whenever the socket server is (re-)initialized.
+     */
+    public void initialize()
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        /** Set the default values of the rate limiting properties */
+        configManager.setDefaultValue( "RateLimit.Messages.Rate", "5" );
+        configManager.setDefaultValue( "RateLimit.Messages.Burst", "20" );
+        configManager.setDefaultValue( "RateLimit.Bytes.Rate", "16384" );
+        configManager.setDefaultValue( "RateLimit.Bytes.Burst", "65536" );
+        configManager.setDefaultValue( "RateLimit.Control.Rate", "2" );
+        configManager.setDefaultValue( "RateLimit.Control.Burst", "10" );
+        configManager.setDefaultValue( "RateLimit.Policy", POLICY_DEFER );
+        configManager.setDefaultValue( "RateLimit.MaxDeferral", "2000" );
+        configManager.setDefaultValue( "RateLimit.EvictionInterval", "30000" );
+
+        messageRate = configManager.getValueFloat( "RateLimit.Messages.Rate" );
+        messageBurst = configManager.getValueFloat( "RateLimit.Messages.Burst" );
+        byteRate = configManager.getValueFloat( "RateLimit.Bytes.Rate" );
+        byteBurst = configManager.getValueFloat( "RateLimit.Bytes.Burst" );
+        controlRate = configManager.getValueFloat( "RateLimit.Control.Rate" );
+        controlBurst = configManager.getValueFloat( "RateLimit.Control.Burst" );
+        deferOverLimit = configManager.getValue( "RateLimit.Policy" ).equalsIgnoreCase( POLICY_DEFER );
+        maxDeferral = configManager.getValueLong( "RateLimit.MaxDeferral" );
+        evictionInterval = configManager.getValueLong( "RateLimit.EvictionInterval" ) * 1000000L;
+
+        users.clear();
+        lastEviction = System.nanoTime();
+    }
+
+    /**
+     * Method for deciding whether a message received by the given user can be processed by the server.
+     * Depending on the configured policy, the calling connection handler thread may be blocked until the user earns
+     * the required tokens (at most "RateLimit.MaxDeferral" milliseconds).
+     *
+     * @param userName The username of the client that sent the message
+     * @param size The size (in bytes) of the received, still encrypted, message
+     *
+     * @return TRUE if the message must be processed; FALSE if it must be dropped
+     */
+    public boolean admit( String userName, int size ) throws InterruptedException
+    {
+        UserLimits limits = limitsOf( userName );
+
+        /** A message larger than the byte burst can never be admitted in full;so charge it the whole bucket */
+        double byteCost = Math.min( size, byteBurst );
+        long deadline = System.currentTimeMillis() + maxDeferral;
+        boolean wasDeferred = false;
+
+        while ( true )
+        {
+            if ( limits.messages.tryConsume( 1, messageRate, messageBurst ) )
+            {
+                if ( limits.bytes.tryConsume( byteCost, byteRate, byteBurst ) )
+                {
+                    limits.accepted++;
+                    if ( wasDeferred )
+                        limits.deferred++;
+
+                    return true;
+                }
+
+                /** Not enough bytes left...give back the message token */
+                limits.messages.giveBack( 1, messageBurst );
+            }
+
+            /** Find out how long we have to wait for both buckets */
+            long wait = Math.max( limits.messages.millisUntilAvailable( 1, messageRate, messageBurst ),
+                                  limits.bytes.millisUntilAvailable( byteCost, byteRate, byteBurst ) );
+
+            if ( !deferOverLimit || System.currentTimeMillis() + wait > deadline )
+            {
+                limits.rejected++;
+                return false;
+            }
+
+            wasDeferred = true;
+            Thread.sleep( Math.max( 1, wait ) );
+        }
+    }
+
+    /**
+     * Method for deciding whether a control message received by the given user can be processed by the server;it
+     * never blocks.
+     *
+     * @param userName The username of the client that sent the message
+     * @param type The type of the message
+     *
+     * @return TRUE if the message must be processed; FALSE if it must be dropped
+     */
+    public boolean admitControl( String userName, int type )
+    {
+        if ( !isCharged( type ) )
+            return true;
+
+        UserLimits limits = limitsOf( userName );
+
+        if ( limits.control.tryConsume( 1, controlRate, controlBurst ) )
+            return true;
+
+        limits.controlRejected++;
+        return false;
+    }
+
+    /**
+     * Method for checking whether a control message is charged to the control bucket of its sender.
+     *
+     * @param type The type of the control message
+     *
+     * @return TRUE for the control messages that make the server (or another client) work for them
+     */
+    private static boolean isCharged( int type )
+    {
+        /** Logging out only releases resources;all the rest are answered, fanned out or relayed */
+        return type != ChatMessage.LOGOUT;
+    }
+
+    /**
+     * Method for getting the buckets of the given user, created full if the user has none (any more).
+     *
+     * @param userName The username of the client
+     *
+     * @return The buckets and counters of the user
+     */
+    private UserLimits limitsOf( String userName )
+    {
+        long now = System.nanoTime();
+
+        /** Periodically drop the buckets of the users that have not sent anything for a while */
+        if ( now - lastEviction > evictionInterval )
+            evictIdleUsers( now );
+
+        return users.computeIfAbsent( userName, u -> new UserLimits() );
+    }
+
+    /**
+     * Method for removing from the map the users whose buckets have been idle long enough to be full again.
+     * Only one of the connection handler threads that notice the eviction interval is over does the sweeping.
+     *
+     * @param now The current System.nanoTime()
+     */
+    private synchronized void evictIdleUsers( long now )
+    {
+        if ( now - lastEviction <= evictionInterval )
+            return;
+
+        lastEviction = now;
+
+        Iterator<Map.Entry<String, UserLimits>> it = users.entrySet().iterator();
+
+        while ( it.hasNext() )
+        {
+            UserLimits limits = it.next().getValue();
+
+            if ( limits.messages.isIdle( messageRate, messageBurst, now ) && limits.bytes.isIdle( byteRate, byteBurst, now ) &&
+                 limits.control.isIdle( controlRate, controlBurst, now ) )
+                it.remove();
+        }
+    }
+
+    /**
+     * Method for getting a String report of the current limits and counters of the given user.
+     *
+     * @param userName The username of the client
+     *
+     * @return A String representation of the rate limiting state of the user
+     */
+    public String getUserReport( String userName )
+    {
+        UserLimits limits = ( userName == null ) ? null : users.get( userName );
+
+        if ( limits == null )
+            return "Rate Limits:= " + messageRate + " msg/s (burst " + messageBurst + "), " + byteRate + " B/s (burst " + byteBurst + "), " +
+                   controlRate + " control/s (burst " + controlBurst + ") -- no messages received lately\n";
+
+        return "Rate Limits:= " + messageRate + " msg/s (burst " + messageBurst + "), " + byteRate + " B/s (burst " + byteBurst + "), " +
+               controlRate + " control/s (burst " + controlBurst + ")\n" +
+               "Rate Tokens Left:= " + ( int )limits.messages.available( messageRate, messageBurst ) + " msg, " + ( int )limits.bytes.available( byteRate, byteBurst ) + " B, " +
+               ( int )limits.control.available( controlRate, controlBurst ) + " control\n" +
+               "Messages Accepted/Deferred/Rejected:= " + limits.accepted + "/" + limits.deferred + "/" + limits.rejected + " (control rejected " + limits.controlRejected + ")\n";
+    }
+}
@@ -0,0 +1,120 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import SocketActionMessages.Frame;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A message queued for being written to a client, together with its priority class and the time it was queued
+ * (used for measuring the sojourn time of the fan-out). It is either a plaintext, encrypted with the session key of
+ * the client when written, or a frame relayed as is (e.g. an end-to-end encrypted private message). A broadcast
+ * queues the same instance to every recipient, so its plaintext is encoded only once.
+ *
+ * @author atgianne
+ */
+public class OutboundMessage
+{
+    /** Marker queued for flushing the coalesced messages of a connection once their linger time is over */
+    static final OutboundMessage FLUSH = new OutboundMessage( ( String )null, false );
+    
+    /** Marker queued behind every chunk of a history replay;the next chunk is read once the marker is reached */
+    static final OutboundMessage REPLAY = new OutboundMessage( ( String )null, false );
+    
+    /** Marker queued behind every chunk of mails taken off the mailbox of the client;the chunk is acknowledged and the
+        next one is read once the marker is reached */
+    static final OutboundMessage MAILBOX = new OutboundMessage( ( String )null, false );
+
+    /** The (UTF-8 encoded) plaintext message to be encrypted and written to the client (null for a relayed frame and the FLUSH marker) */
+    final byte[] plaintext;
+
+    /** The frame to be written as is to the client (null for a plaintext message and the FLUSH marker) */
+    final Frame frame;
+
+    /** Flag indicating whether this is a control message (never dropped, scheduled ahead of the chat traffic) */
+    final boolean isControl;
+
+    /** The time (System.nanoTime) the message was queued */
+    final long queuedAt;
+    
+    /** The journal sequence number of the message;-1 if it was not journaled */
+    final long seq;
+    
+    /** Flag indicating whether this is a stored mail;it is coalesced like chat traffic, yet never shed, since the
+        mailbox considers it delivered once written */
+    final boolean isStored;
+
+    /**
+     * Creates a new instance of OutboundMessage
+     *
+     * @param text The plaintext message
+     * @param isControl TRUE for a control message; FALSE for chat traffic
+     */
+    public OutboundMessage( String text, boolean isControl )
+    {
+        this( text, isControl, -1 );
+    }
+    
+    /**
+     * Creates a new instance of OutboundMessage for a journaled message
+     *
+     * @param text The plaintext message
+     * @param isControl TRUE for a control message; FALSE for chat traffic
+     * @param seq The journal sequence number of the message;-1 if it was not journaled
+     */
+    public OutboundMessage( String text, boolean isControl, long seq )
+    {
+        this.plaintext = ( text == null ) ? null : text.getBytes( UTF_8 );
+        this.frame = null;
+        this.isControl = isControl;
+        this.queuedAt = System.nanoTime();
+        this.seq = seq;
+        this.isStored = false;
+    }
+    
+    /**
+     * Creates a new instance of OutboundMessage for a mail taken off a mailbox
+     *
+     * @param text The plaintext message
+     *
+     * @return The message, queued as chat traffic
+     */
+    static OutboundMessage stored( String text )
+    {
+        return new OutboundMessage( text );
+    }
+    
+    private OutboundMessage( String text )
+    {
+        this.plaintext = text.getBytes( UTF_8 );
+        this.frame = null;
+        this.isControl = false;
+        this.queuedAt = System.nanoTime();
+        this.seq = -1;
+        this.isStored = true;
+    }
+
+    /**
+     * Creates a new instance of OutboundMessage relaying a frame
+     *
+     * @param frame The frame to be written as is
+     * @param isControl TRUE for a control message; FALSE for chat traffic
+     */
+    public OutboundMessage( Frame frame, boolean isControl )
+    {
+        this.plaintext = null;
+        this.frame = frame;
+        this.isControl = isControl;
+        this.queuedAt = System.nanoTime();
+        this.seq = -1;
+        this.isStored = false;
+    }
+
+    /**
+     * Method for giving the body buffer of a relayed frame back to the BufferPool;e.g. when the message is discarded
+     * without being written.
+     */
+    void release()
+    {
+        if ( frame != null )
+            frame.release();
+    }
+}
@@ -0,0 +1,187 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the named chat rooms of the socket server.
+ * Each room keeps its subscribers in a copy-on-write array; i.e. JOIN and LEAVE (which are rare) copy the array
+ * under the lock of the room, whereas the fan-out of a room message (which is frequent) just reads the current
+ * array without any locking. Rooms are created on the first JOIN and removed when their last member leaves.
+ *
+ * @author atgianne
+ */
+public class RoomRegistry
+{
+    /** Maximum length of a room name */
+    public static final int MAX_ROOM_NAME_LENGTH = 64;
+
+    /** Empty subscriber array shared by all the rooms without members */
+    private static final SocketConnectionHandler[] NO_SUBSCRIBERS = new SocketConnectionHandler[ 0 ];
+
+    /** Map holding all the currently existing rooms */
+    private final ConcurrentHashMap<String, Room> rooms;
+
+    /**
+     * A named room and its subscribers
+     */
+    private static class Room
+    {
+        /** The current subscribers of the room;never modified in place */
+        volatile SocketConnectionHandler[] subscribers = NO_SUBSCRIBERS;
+
+        /** Flag indicating that the room was removed from the registry and must not be joined any more */
+        boolean removed = false;
+    }
+
+    /**
+     * Creates a new instance of RoomRegistry
+     */
+    public RoomRegistry()
+    {
+        rooms = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Method for checking whether a room name given by a client is acceptable.
+     *
+     * @param room The name of the room
+     *
+     * @return TRUE if the name is valid; FALSE otherwise
+     */
+    public static boolean isValidRoomName( String room )
+    {
+        return room != null && !room.trim().isEmpty() && room.length() <= MAX_ROOM_NAME_LENGTH;
+    }
+
+    /**
+     * Method for adding a connection handler to the subscribers of a room;the room is created if it does not exist.
+     *
+     * @param room The name of the room
+     * @param handler The connection handler of the client that joins the room
+     *
+     * @return TRUE if the handler was added; FALSE if it was already a member of the room
+     */
+    public boolean join( String room, SocketConnectionHandler handler )
+    {
+        while ( true )
+        {
+            Room r = rooms.computeIfAbsent( room, name -> new Room() );
+
+            synchronized ( r )
+            {
+                /** The room was removed in the meantime by the last member leaving;try again with a new one */
+                if ( r.removed )
+                    continue;
+
+                SocketConnectionHandler[] current = r.subscribers;
+                for ( SocketConnectionHandler sch : current )
+                {
+                    if ( sch == handler )
+                        return false;
+                }
+
+                SocketConnectionHandler[] updated = Arrays.copyOf( current, current.length + 1 );
+                updated[ current.length ] = handler;
+                r.subscribers = updated;
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Method for removing a connection handler from the subscribers of a room. The room is removed from the registry
+     * when its last member leaves.
+     *
+     * @param room The name of the room
+     * @param handler The connection handler of the client that leaves the room
+     *
+     * @return TRUE if the handler was removed; FALSE if it was not a member of the room
+     */
+    public boolean leave( String room, SocketConnectionHandler handler )
+    {
+        Room r = rooms.get( room );
+
+        if ( r == null )
+            return false;
+
+        synchronized ( r )
+        {
+            SocketConnectionHandler[] current = r.subscribers;
+            int index = -1;
+
+            for ( int i = 0; i < current.length; i++ )
+            {
+                if ( current[ i ] == handler )
+                {
+                    index = i;
+                    break;
+                }
+            }
+
+            if ( index == -1 )
+                return false;
+
+            /** Last member...remove the room altogether */
+            if ( current.length == 1 )
+            {
+                r.subscribers = NO_SUBSCRIBERS;
+                r.removed = true;
+                rooms.remove( room, r );
+
+                return true;
+            }
+
+            SocketConnectionHandler[] updated = new SocketConnectionHandler[ current.length - 1 ];
+            System.arraycopy( current, 0, updated, 0, index );
+            System.arraycopy( current, index + 1, updated, index, current.length - index - 1 );
+            r.subscribers = updated;
+
+            return true;
+        }
+    }
+
+    /**
+     * Method for getting the current subscribers of a room. The returned array is a snapshot that must not be modified.
+     *
+     * @param room The name of the room
+     *
+     * @return The connection handlers subscribed to the room (empty if the room does not exist)
+     */
+    public SocketConnectionHandler[] getSubscribers( String room )
+    {
+        Room r = rooms.get( room );
+
+        return ( r == null ) ? NO_SUBSCRIBERS : r.subscribers;
+    }
+
+    /**
+     * Method for checking whether a connection handler is subscribed to a room.
+     *
+     * @param room The name of the room
+     * @param handler The connection handler to look for
+     *
+     * @return TRUE if the handler is a member of the room; FALSE otherwise
+     */
+    public boolean isMember( String room, SocketConnectionHandler handler )
+    {
+        for ( SocketConnectionHandler sch : getSubscribers( room ) )
+        {
+            if ( sch == handler )
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Method for getting the number of currently existing rooms.
+     *
+     * @return The number of rooms with at least one member
+     */
+    public int getRoomCount()
+    {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,291 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.base.GenericThreadedComponent;
+import crypto.MerkleTree;
+import crypto.SessionKeyBatch;
+import crypto.cryptoManager;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The signing of the session keys handed out by the handshakes, one RSA signature per batch of logins rather than
+ * per login (see SessionKeyBatch). The connection handlers queue the commitments to their session keys and wait;the
+ * signing thread takes whatever is queued, signs the root of its Merkle tree and hands every handler the path of its
+ * commitment along with the shared signature.
+ *
+ * Like a group commit, the batches form by themselves: the logins arriving while a batch is signed make up the next
+ * one. A lone login is signed right away;only when more are queued (i.e. during a login storm) does the thread linger
+ * up to Signing.BatchWindow milliseconds for the batch to fill up to Signing.MaxBatch, which bounds the latency added
+ * to a login. The private key of the server is loaded once, rather than from the key store for every login.
+ *
+ * @author atgianne
+ */
+public class SessionKeySigner extends GenericThreadedComponent
+{
+    /** Singleton instance of the SessionKeySigner component */
+    private static SessionKeySigner componentInstance = null;
+
+    /** The longest time (in milliseconds) a handler waits for its signature */
+    private static final long SIGN_TIMEOUT = 10 * 1000;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Flag indicating whether the signer is running */
+    private volatile boolean isRunning;
+
+    /** The private key of the server */
+    private PrivateKey signingKey;
+
+    /** The commitments waiting for their signature */
+    private final LinkedBlockingQueue<Pending> queue;
+
+    /** Statistics of the signer */
+    private volatile long batches, signed, maxBatch, lastSignMicros;
+
+    /**
+     * A commitment waiting for its signature, and the proof it gets.
+     */
+    private static class Pending
+    {
+        final byte[] commitment;
+        final CompletableFuture<byte[]> proof = new CompletableFuture<>();
+
+        Pending( byte[] commitment )
+        {
+            this.commitment = commitment;
+        }
+    }
+
+    /**
+     * Creates a new instance of SessionKeySigner
+     */
+    private SessionKeySigner()
+    {
+        queue = new LinkedBlockingQueue<>();
+        isRunning = false;
+    }
+
+    /**
+     * Make sure that we can only get one instance of the SessionKeySigner component.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized SessionKeySigner getInstance()
+    {
+        if ( componentInstance == null )
+            componentInstance = new SessionKeySigner();
+
+        return componentInstance;
+    }
+
+    /**
+     * Implementation of IComponent.initialize method().
+     * It loads the key of the server and starts the signing thread, unless batch signing is disabled;the handshakes
+     * then sign every session key on its own.
+     *
+     * @see //IComponent interface.
+     */
+    public void initialize() throws Exception
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Signing.Batch.Enabled", "true" );
+        configManager.setDefaultValue( "Signing.BatchWindow", "2" );
+        configManager.setDefaultValue( "Signing.MaxBatch", "64" );
+
+        if ( !Boolean.parseBoolean( configManager.getValue( "Signing.Batch.Enabled" ) ) )
+            return;
+
+        try
+        {
+            signingKey = cryptoManager.ExtractPrivKeyFromJKS( cryptoManager.ServerKeyStore, cryptoManager.ServerKeyStorePass,
+                                                              cryptoManager.Serveralias, cryptoManager.ServerKeyStorePass );
+        }
+        catch ( Exception e )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[Signer]:: Failed loading the server key;every session key is signed on its own -- " + e.getMessage() + "\n" );
+            return;
+        }
+
+        queue.clear();
+        batches = signed = maxBatch = lastSignMicros = 0;
+        isRunning = true;
+
+        /** Invoke our parent intialization method for starting the thread */
+        super.initialize();
+    }
+
+    /**
+     * Method for having the commitment to a session key signed;it waits until the batch it is in is signed.
+     *
+     * @param commitment The commitment to the session key (see SessionKeyBatch)
+     *
+     * @return The proof of the session key (see SessionKeyBatch)
+     */
+    public byte[] sign( byte[] commitment ) throws GeneralSecurityException, InterruptedException
+    {
+        Pending pending = new Pending( commitment );
+        queue.add( pending );
+
+        /** Shut down in between;the signing thread does not take it any more */
+        if ( !isRunning && queue.remove( pending ) )
+            throw new GeneralSecurityException( "The session key signer is not running" );
+
+        try
+        {
+            return pending.proof.get( SIGN_TIMEOUT, TimeUnit.MILLISECONDS );
+        }
+        catch ( ExecutionException ee )
+        {
+            throw new GeneralSecurityException( "Failed signing the session key", ee.getCause() );
+        }
+        catch ( TimeoutException te )
+        {
+            throw new GeneralSecurityException( "Timed out signing the session key" );
+        }
+    }
+
+    /**
+     * The main logic of the SessionKeySigner;i.e. the signing thread.
+     */
+    public void componentMain()
+    {
+        long window = configManager.getValueLong( "Signing.BatchWindow" );
+        int max = configManager.getValueInt( "Signing.MaxBatch" );
+        List<Pending> batch = new ArrayList<>( max );
+
+        try
+        {
+            while ( !mustShutdown )
+            {
+                Pending first = queue.poll( 200, TimeUnit.MILLISECONDS );
+                if ( first == null )
+                    continue;
+
+                batch.add( first );
+                queue.drainTo( batch, max - batch.size() );
+
+                /** More than one login at once...give the others of the storm a moment to join the batch */
+                if ( batch.size() > 1 )
+                {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( window );
+
+                    while ( batch.size() < max )
+                    {
+                        Pending next = queue.poll( deadline - System.nanoTime(), TimeUnit.NANOSECONDS );
+                        if ( next == null )
+                            break;
+
+                        batch.add( next );
+                        queue.drainTo( batch, max - batch.size() );
+                    }
+                }
+
+                signBatch( batch );
+                batch.clear();
+            }
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Shutting down... */
+        }
+        finally
+        {
+            isRunning = false;
+
+            /** The handshakes still waiting fail rather than hang */
+            queue.drainTo( batch );
+            for ( Pending pending : batch )
+                pending.proof.completeExceptionally( new GeneralSecurityException( "The session key signer shut down" ) );
+        }
+    }
+
+    /**
+     * Method for signing a batch of commitments and handing out their proofs.
+     */
+    private void signBatch( List<Pending> batch )
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            byte[][] commitments = new byte[ batch.size() ][];
+            for ( int i = 0; i < commitments.length; i++ )
+                commitments[ i ] = batch.get( i ).commitment;
+
+            byte[][][] tree = MerkleTree.build( commitments );
+            byte[] signature = cryptoManager.SignMsg( SessionKeyBatch.signedPart( MerkleTree.root( tree ) ), signingKey );
+
+            for ( int i = 0; i < commitments.length; i++ )
+                batch.get( i ).proof.complete( SessionKeyBatch.encodeProof( i, commitments.length, MerkleTree.path( tree, i ), signature ) );
+        }
+        catch ( GeneralSecurityException gse )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[Signer]:: Failed signing a batch of " + batch.size() + " session keys -- " + gse.getMessage() + "\n" );
+
+            for ( Pending pending : batch )
+                pending.proof.completeExceptionally( gse );
+        }
+
+        batches++;
+        signed += batch.size();
+        maxBatch = Math.max( maxBatch, batch.size() );
+        lastSignMicros = ( System.nanoTime() - start ) / 1000;
+    }
+
+    /**
+     * @return TRUE if the signer is running
+     */
+    public boolean getIsRunning()
+    {
+        return isRunning;
+    }
+
+    /**
+     * Method for getting the usage metrics of the signer.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        if ( !isRunning )
+            return "Signer:: Not running (every session key is signed on its own)\n";
+
+        long b = batches;
+
+        return "Signer:: Session keys:= " + signed +
+               " Signatures:= " + b +
+               " (" + ( ( b == 0 ) ? 0 : ( 100 * signed / b ) / 100.0 ) + " keys each, at most " + maxBatch + ")" +
+               " Last batch:= " + lastSignMicros + " us\n";
+    }
+
+    /**
+     * Override GenericThreadedComponent.shutdown() method.
+     * Signal the signing thread to stop and wait until it does;the handshakes still waiting fail.
+     *
+     * @see GenericThreadedComponent
+     */
+    public void shutdown()
+    {
+        super.shutdown();
+
+        try
+        {
+            if ( localThread != null )
+                localThread.join();
+        }
+        catch ( InterruptedException ie )
+        {
+            /** Interrupted while waiting...the signing thread still finishes on its own */
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import chatapplication_server.components.ConfigManager;
+import crypto.SessionTicket;
+import crypto.cryptoManager;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The warm restart of the socket server: on a graceful shutdown the sessions of the connected clients (their session
+ * keys, usernames, certificates and joined rooms) are written to an encrypted snapshot, and after the restart the
+ * clients resume them with a couple of HMACs (see SessionTicket) instead of a full RSA handshake each. So a deploy
+ * does not end in every client logging in again at once.
+ *
+ * The snapshot is encrypted with a fresh AES key, itself encrypted with the public key of the server:
+ *
+ *     magic (4 bytes) | version (2 bytes) | encrypted key length (2 bytes) | encrypted key | AES-GCM record
+ *
+ * where the record holds the time of the snapshot and every session as:
+ *
+ *     key length (1 byte) | key | username length (2 bytes) | username | certificate length (4 bytes) | certificate |
+ *     number of rooms (2 bytes) | room name length (1 byte) | room name | ...
+ *
+ * It is read (and deleted) on startup, and a session can be resumed once and only within Resume.MaxAge milliseconds
+ * of the snapshot;the sessions not resumed by the next graceful shutdown are written to the next snapshot as they are.
+ * Since it holds session keys, the snapshot is disabled unless Resume.Enabled is set.
+ *
+ * @author atgianne
+ */
+public class SessionSnapshot
+{
+    /** Singleton instance of the SessionSnapshot */
+    private static SessionSnapshot instance = null;
+
+    /** "SNAP" */
+    private static final int MAGIC = 0x534E4150;
+    private static final short VERSION = 1;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** Flag indicating whether the sessions are snapshot and resumed */
+    private volatile boolean isEnabled;
+
+    /** The snapshot file */
+    private Path path;
+
+    /** The sessions of the last snapshot not resumed yet, by their id (see SessionTicket) */
+    private final HashMap<String, Session> sessions;
+
+    /** Statistics of the resumptions */
+    private volatile long loaded, resumed, refused;
+
+    /**
+     * A session of a snapshot.
+     */
+    public static class Session
+    {
+        final SecretKey key;
+        final String userName;
+        final byte[] certificate;
+        final List<String> rooms;
+        final long savedAt;
+
+        Session( SecretKey key, String userName, byte[] certificate, List<String> rooms, long savedAt )
+        {
+            this.key = key;
+            this.userName = userName;
+            this.certificate = certificate;
+            this.rooms = rooms;
+            this.savedAt = savedAt;
+        }
+
+        /**
+         * @return The session key of the session
+         */
+        public SecretKey getKey()
+        {
+            return key;
+        }
+
+        /**
+         * @return The username of the client
+         */
+        public String getUserName()
+        {
+            return userName;
+        }
+
+        /**
+         * @return The certificate of the client (DER encoded)
+         */
+        public byte[] getCertificate()
+        {
+            return certificate;
+        }
+
+        /**
+         * @return The rooms the client had joined
+         */
+        public List<String> getRooms()
+        {
+            return rooms;
+        }
+    }
+
+    /**
+     * Creates a new instance of SessionSnapshot
+     */
+    private SessionSnapshot()
+    {
+        sessions = new HashMap<>();
+        isEnabled = false;
+    }
+
+    /**
+     * Make sure that we can only get one instance of the SessionSnapshot.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized SessionSnapshot getInstance()
+    {
+        if ( instance == null )
+            instance = new SessionSnapshot();
+
+        return instance;
+    }
+
+    /**
+     * Method for reading (and deleting) the snapshot of the last graceful shutdown, if any.
+     * It must be called (once more) whenever the socket server is (re-)initialized.
+     */
+    public void initialize()
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Resume.Enabled", "false" );
+        configManager.setDefaultValue( "Resume.File", "sessions.snapshot" );
+        configManager.setDefaultValue( "Resume.MaxAge", Long.toString( 10 * 60 * 1000 ) );
+
+        isEnabled = Boolean.parseBoolean( configManager.getValue( "Resume.Enabled" ) );
+        path = Paths.get( configManager.getValue( "Resume.File" ) );
+        loaded = resumed = refused = 0;
+
+        synchronized ( sessions )
+        {
+            sessions.clear();
+        }
+
+        if ( !Files.exists( path ) )
+            return;
+
+        try
+        {
+            if ( isEnabled )
+            {
+                List<Session> read = read( Files.readAllBytes( path ) );
+                long maxAge = configManager.getValueLong( "Resume.MaxAge" );
+
+                synchronized ( sessions )
+                {
+                    for ( Session session : read )
+                    {
+                        if ( System.currentTimeMillis() - session.savedAt <= maxAge )
+                            sessions.put( idOf( session.key ), session );
+                    }
+
+                    loaded = sessions.size();
+                }
+
+                SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + loaded + " of the " + read.size() + " sessions of the last snapshot can be resumed\n" );
+            }
+        }
+        catch ( IOException | GeneralSecurityException e )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: Failed reading the session snapshot;the clients log in again -- " + e.getMessage() + "\n" );
+        }
+        finally
+        {
+            /** The session keys never outlive a single restart on the disk */
+            try
+            {
+                Files.deleteIfExists( path );
+            }
+            catch ( IOException ioe )
+            {
+                SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: Failed deleting the session snapshot -- " + ioe.getMessage() + "\n" );
+            }
+        }
+    }
+
+    /**
+     * Method for resuming a session of the snapshot;the client must prove that it knows its session key.
+     *
+     * @param request The body of the RESUME frame of the client (see SessionTicket)
+     *
+     * @return The session, taken out of the snapshot;null if there is no such session or the proof is wrong
+     */
+    public Session resume( byte[] request ) throws GeneralSecurityException
+    {
+        if ( !isEnabled || request.length != SessionTicket.REQUEST_LENGTH )
+        {
+            refused++;
+            return null;
+        }
+
+        String id = hex( SessionTicket.idOf( request ) );
+        long maxAge = configManager.getValueLong( "Resume.MaxAge" );
+        Session session;
+
+        synchronized ( sessions )
+        {
+            session = sessions.get( id );
+            if ( session == null || System.currentTimeMillis() - session.savedAt > maxAge || !SessionTicket.verifyRequest( session.key, request ) )
+            {
+                refused++;
+                return null;
+            }
+
+            /** Once only */
+            sessions.remove( id );
+        }
+
+        resumed++;
+        return session;
+    }
+
+    /**
+     * Method for writing the snapshot of the sessions of the connected clients (and of those of the last snapshot not
+     * resumed yet) on a graceful shutdown.
+     *
+     * @param handlers The connection handlers occupied by an established connection
+     */
+    public void save( List<SocketConnectionHandler> handlers )
+    {
+        if ( !isEnabled )
+            return;
+
+        long now = System.currentTimeMillis();
+        List<Session> snapshot = new ArrayList<>();
+
+        for ( SocketConnectionHandler handler : handlers )
+        {
+            SecretKey key = handler.getSessionKey();
+            byte[] certificate = handler.getClientCertificate();
+
+            if ( key == null || certificate == null || handler.getUserName() == null )
+                continue;
+
+            try
+            {
+                /** A copy;the session store wipes the key of a client disconnecting meanwhile */
+                byte[] raw = key.getEncoded();
+                snapshot.add( new Session( new SecretKeySpec( raw, "AES" ), handler.getUserName(), certificate, handler.getJoinedRooms(), now ) );
+                Arrays.fill( raw, ( byte )0 );
+            }
+            catch ( IllegalStateException ise )
+            {
+                /** Gone already;nothing to resume */
+            }
+        }
+
+        synchronized ( sessions )
+        {
+            snapshot.addAll( sessions.values() );
+        }
+
+        if ( snapshot.isEmpty() )
+            return;
+
+        try
+        {
+            Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+            Files.write( tmp, write( snapshot ) );
+            Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+            SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: Wrote the snapshot of " + snapshot.size() + " sessions to " + path + "\n" );
+        }
+        catch ( IOException | GeneralSecurityException e )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: Failed writing the session snapshot;the clients log in again -- " + e.getMessage() + "\n" );
+        }
+    }
+
+    /**
+     * Method for encoding and encrypting a snapshot.
+     */
+    private static byte[] write( List<Session> snapshot ) throws IOException, GeneralSecurityException
+    {
+        int length = 4;
+        for ( Session session : snapshot )
+        {
+            byte[] key = session.key.getEncoded();
+            length += 1 + key.length + 2 + session.userName.getBytes( UTF_8 ).length + 4 + session.certificate.length + 8 + 2;
+            for ( String room : session.rooms )
+                length += 1 + room.getBytes( UTF_8 ).length;
+
+            Arrays.fill( key, ( byte )0 );
+        }
+
+        ByteBuffer plain = ByteBuffer.allocate( length );
+        plain.putInt( snapshot.size() );
+
+        for ( Session session : snapshot )
+        {
+            byte[] key = session.key.getEncoded();
+            byte[] user = session.userName.getBytes( UTF_8 );
+
+            plain.put( ( byte )key.length ).put( key );
+            plain.putShort( ( short )user.length ).put( user );
+            plain.putInt( session.certificate.length ).put( session.certificate );
+            plain.putLong( session.savedAt );
+            plain.putShort( ( short )session.rooms.size() );
+
+            for ( String room : session.rooms )
+            {
+                byte[] name = room.getBytes( UTF_8 );
+                plain.put( ( byte )name.length ).put( name );
+            }
+
+            Arrays.fill( key, ( byte )0 );
+        }
+
+        KeyGenerator keyGenerator = KeyGenerator.getInstance( "AES" );
+        keyGenerator.init( 256 );
+        SecretKey fileKey = keyGenerator.generateKey();
+
+        PublicKey serverKey = cryptoManager.ExtractPubKeyFromCert( cryptoManager.ExtractCertFromJKS( cryptoManager.ServerKeyStore,
+                                                                   cryptoManager.ServerKeyStorePass, cryptoManager.Serveralias ) );
+        byte[] wrapped = cryptoManager.encrypt_RSA( serverKey, fileKey.getEncoded() );
+        byte[] record = encrypt( plain.array(), fileKey );
+
+        Arrays.fill( plain.array(), ( byte )0 );
+
+        ByteBuffer file = ByteBuffer.allocate( 4 + 2 + 2 + wrapped.length + record.length );
+        file.putInt( MAGIC ).putShort( VERSION ).putShort( ( short )wrapped.length ).put( wrapped ).put( record );
+
+        return file.array();
+    }
+
+    /**
+     * Method for decrypting and decoding a snapshot.
+     */
+    private static List<Session> read( byte[] file ) throws IOException, GeneralSecurityException
+    {
+        ByteBuffer src = ByteBuffer.wrap( file );
+        if ( src.remaining() < 8 || src.getInt() != MAGIC || src.getShort() != VERSION )
+            throw new ProtocolException( "Not a session snapshot" );
+
+        byte[] wrapped = new byte[ src.getShort() & 0xffff ];
+        if ( wrapped.length > src.remaining() )
+            throw new ProtocolException( "Truncated session snapshot" );
+        src.get( wrapped );
+
+        PrivateKey serverKey = cryptoManager.ExtractPrivKeyFromJKS( cryptoManager.ServerKeyStore, cryptoManager.ServerKeyStorePass,
+                                                                    cryptoManager.Serveralias, cryptoManager.ServerKeyStorePass );
+        SecretKey fileKey = new SecretKeySpec( cryptoManager.decrypt_RSA( serverKey, wrapped ), "AES" );
+
+        byte[] record = new byte[ src.remaining() ];
+        src.get( record );
+
+        ByteBuffer plain = ByteBuffer.wrap( decrypt( record, fileKey ) );
+        List<Session> read = new ArrayList<>();
+
+        try
+        {
+            for ( int n = plain.getInt(); n > 0; n-- )
+            {
+                byte[] key = new byte[ plain.get() & 0xff ];
+                plain.get( key );
+                byte[] user = new byte[ plain.getShort() & 0xffff ];
+                plain.get( user );
+                byte[] certificate = new byte[ plain.getInt() ];
+                plain.get( certificate );
+                long savedAt = plain.getLong();
+
+                List<String> rooms = new ArrayList<>();
+                for ( int r = plain.getShort() & 0xffff; r > 0; r-- )
+                {
+                    byte[] name = new byte[ plain.get() & 0xff ];
+                    plain.get( name );
+                    rooms.add( new String( name, UTF_8 ) );
+                }
+
+                read.add( new Session( new SecretKeySpec( key, "AES" ), new String( user, UTF_8 ), certificate, rooms, savedAt ) );
+                Arrays.fill( key, ( byte )0 );
+            }
+        }
+        catch ( RuntimeException re )
+        {
+            throw new ProtocolException( "Corrupted session snapshot" );
+        }
+        finally
+        {
+            Arrays.fill( plain.array(), ( byte )0 );
+        }
+
+        return read;
+    }
+
+    private static byte[] encrypt( byte[] plaintext, SecretKey key ) throws GeneralSecurityException
+    {
+        try
+        {
+            return cryptoManager.encryptRecord( plaintext, key );
+        }
+        catch ( GeneralSecurityException gse )
+        {
+            throw gse;
+        }
+        catch ( Exception e )
+        {
+            throw new GeneralSecurityException( e );
+        }
+    }
+
+    private static byte[] decrypt( byte[] record, SecretKey key ) throws GeneralSecurityException
+    {
+        try
+        {
+            return cryptoManager.decryptRecord( record, 0, record.length, key );
+        }
+        catch ( GeneralSecurityException gse )
+        {
+            throw gse;
+        }
+        catch ( Exception e )
+        {
+            throw new GeneralSecurityException( e );
+        }
+    }
+
+    private static String idOf( SecretKey key ) throws GeneralSecurityException
+    {
+        return hex( SessionTicket.id( key ) );
+    }
+
+    private static String hex( byte[] bytes )
+    {
+        StringBuilder sb = new StringBuilder( 2 * bytes.length );
+        for ( byte b : bytes )
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+
+        return sb.toString();
+    }
+
+    /**
+     * @return TRUE if the sessions are snapshot and resumed
+     */
+    public boolean isEnabled()
+    {
+        return isEnabled;
+    }
+
+    /**
+     * Method for getting the usage metrics of the resumptions.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        if ( !isEnabled )
+            return "Resume:: Disabled\n";
+
+        int waiting;
+        synchronized ( sessions )
+        {
+            waiting = sessions.size();
+        }
+
+        return "Resume:: Loaded:= " + loaded +
+               " Resumed:= " + resumed +
+               " Refused:= " + refused +
+               " Waiting:= " + waiting + "\n";
+    }
+}
@@ -0,0 +1,304 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.base.GenericThreadedComponent;
+import crypto.SessionKey;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The store of the sessions of the logged in clients, keyed by session id;i.e. their session keys and public keys,
+ * which used to be kept in two static maps of the cryptoManager that were never cleaned up. A session is opened once
+ * the handshake of its client is over and released when its connection is;its session key is then wiped (see
+ * SessionKey) rather than left for the garbage collector.
+ *
+ * The store is bounded: no more than Sessions.Max sessions are open at once, the logins beyond are refused. The sweeping
+ * thread also closes the connections that sent nothing for Sessions.IdleTimeout milliseconds, and releases the sessions
+ * whose connection handler has moved on without releasing them.
+ *
+ * @author atgianne
+ */
+public class SessionStore extends GenericThreadedComponent
+{
+    /** Singleton instance of the SessionStore component */
+    private static SessionStore componentInstance = null;
+
+    /** Instance of the ConfigManager component */
+    ConfigManager configManager;
+
+    /** The open sessions, by their id */
+    private final ConcurrentHashMap<Long, Session> sessions;
+
+    /** The id of the next session, and the number of open sessions (the map only counts them approximately) */
+    private final AtomicLong nextId;
+    private final AtomicInteger open;
+
+    /** Statistics of the store */
+    private final AtomicLong opened, released, expired, refused;
+    private volatile int peak;
+
+    /**
+     * An open session.
+     */
+    public static class Session
+    {
+        final long id;
+        final String userName;
+        final PublicKey clientKey;
+        final SessionKey key;
+        final SocketConnectionHandler handler;
+        final long openedAt;
+        volatile long lastActive;
+        volatile boolean expiring;
+
+        Session( long id, String userName, PublicKey clientKey, SessionKey key, SocketConnectionHandler handler )
+        {
+            this.id = id;
+            this.userName = userName;
+            this.clientKey = clientKey;
+            this.key = key;
+            this.handler = handler;
+            this.openedAt = this.lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * Keep the session from expiring;called for every frame received from the client.
+         */
+        public void touch()
+        {
+            lastActive = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The id of the session
+         */
+        public long getId()
+        {
+            return id;
+        }
+
+        /**
+         * @return The username of the client
+         */
+        public String getUserName()
+        {
+            return userName;
+        }
+
+        /**
+         * @return The public key of the client
+         */
+        public PublicKey getClientKey()
+        {
+            return clientKey;
+        }
+
+        /**
+         * @return The session key of the client
+         */
+        public SessionKey getKey()
+        {
+            return key;
+        }
+    }
+
+    /**
+     * Creates a new instance of SessionStore
+     */
+    private SessionStore()
+    {
+        sessions = new ConcurrentHashMap<>();
+        nextId = new AtomicLong( 1 );
+        open = new AtomicInteger();
+        opened = new AtomicLong();
+        released = new AtomicLong();
+        expired = new AtomicLong();
+        refused = new AtomicLong();
+    }
+
+    /**
+     * Make sure that we can only get one instance of the SessionStore component.
+     * Implementation of the static getInstance() method.
+     */
+    public static synchronized SessionStore getInstance()
+    {
+        if ( componentInstance == null )
+            componentInstance = new SessionStore();
+
+        return componentInstance;
+    }
+
+    /**
+     * Implementation of IComponent.initialize method().
+     * It starts the sweeping thread.
+     *
+     * @see //IComponent interface.
+     */
+    public void initialize() throws Exception
+    {
+        /** Get the running instance of the Configuration Manager component */
+        configManager = ConfigManager.getInstance();
+
+        configManager.setDefaultValue( "Sessions.Max", "10000" );
+        configManager.setDefaultValue( "Sessions.IdleTimeout", Long.toString( 60 * 60 * 1000 ) );
+        configManager.setDefaultValue( "Sessions.SweepInterval", "10000" );
+
+        /** Invoke our parent intialization method for starting the thread */
+        super.initialize();
+    }
+
+    /**
+     * Method for opening the session of a client whose handshake is over.
+     *
+     * @param userName The username of the client
+     * @param clientKey The public key of the client
+     * @param key The session key;copied into the session, so the caller should wipe its own
+     * @param handler The connection handler of the client
+     *
+     * @return The session
+     */
+    public Session open( String userName, PublicKey clientKey, byte[] key, SocketConnectionHandler handler ) throws GeneralSecurityException
+    {
+        int max = configManager.getValueInt( "Sessions.Max" );
+
+        /** Claim a place first, so that a login storm cannot overshoot the bound */
+        int n = open.incrementAndGet();
+        if ( n > max )
+        {
+            open.decrementAndGet();
+            refused.incrementAndGet();
+            throw new GeneralSecurityException( "Too many sessions open (" + max + ")" );
+        }
+
+        Session session = new Session( nextId.getAndIncrement(), userName.intern(), clientKey, new SessionKey( key ), handler );
+        sessions.put( session.id, session );
+
+        opened.incrementAndGet();
+        if ( n > peak )
+            peak = n;
+
+        return session;
+    }
+
+    /**
+     * Method for releasing a session;its key is wiped. Releasing it again does nothing.
+     *
+     * @param session The session to release
+     */
+    public void release( Session session )
+    {
+        if ( session != null && sessions.remove( session.id, session ) )
+        {
+            open.decrementAndGet();
+            released.incrementAndGet();
+            session.key.destroy();
+        }
+    }
+
+    /**
+     * @return The session with the given id;null if there is no such session open
+     */
+    public Session get( long id )
+    {
+        return sessions.get( id );
+    }
+
+    /**
+     * The main logic of the SessionStore;i.e. the sweeping thread.
+     */
+    public void componentMain()
+    {
+        while ( !mustShutdown )
+        {
+            try
+            {
+                Thread.sleep( configManager.getValueLong( "Sessions.SweepInterval" ) );
+            }
+            catch ( InterruptedException ie )
+            {
+                /** Shutting down... */
+                return;
+            }
+
+            sweep();
+        }
+    }
+
+    /**
+     * Method for closing the idle connections and releasing the sessions left behind by their handlers.
+     */
+    void sweep()
+    {
+        long idleTimeout = configManager.getValueLong( "Sessions.IdleTimeout" );
+        long sweepInterval = configManager.getValueLong( "Sessions.SweepInterval" );
+        long now = System.currentTimeMillis();
+
+        for ( Session session : sessions.values() )
+        {
+            if ( session.handler.getSession() != session && now - session.openedAt > sweepInterval )
+            {
+                /** The handler serves another connection by now (a fresh session may not be set in its handler yet);
+                    this one must not stay around with its key */
+                release( session );
+            }
+            else if ( idleTimeout > 0 && now - session.lastActive > idleTimeout && !session.expiring )
+            {
+                SocketServerGUI.getInstance().appendEvent( "[Sessions]:: Closing the connection of " + session.userName + ";idle for " + ( now - session.lastActive ) / 1000 + " s\n" );
+
+                /** The handler releases the session once its connection is closed */
+                session.expiring = true;
+                expired.incrementAndGet();
+                session.handler.closeIdle( session );
+            }
+        }
+    }
+
+    /**
+     * @return The number of open sessions
+     */
+    public int size()
+    {
+        return open.get();
+    }
+
+    /**
+     * Method for getting the usage metrics of the store.
+     *
+     * @return A printable report of the metrics
+     */
+    public String getStatistics()
+    {
+        int n = open.get();
+        long keyBytes = 0;
+        for ( Session session : sessions.values() )
+            keyBytes += session.key.length();
+
+        return "Sessions:: Open:= " + n +
+               " (peak " + peak + ", max " + configManager.getValueInt( "Sessions.Max" ) + ")" +
+               " Opened:= " + opened.get() +
+               " Released:= " + released.get() +
+               " Expired:= " + expired.get() +
+               " Refused:= " + refused.get() +
+               " Key bytes:= " + keyBytes + "\n";
+    }
+
+    /**
+     * Override GenericThreadedComponent.shutdown() method.
+     * Signal the sweeping thread to stop (waking it up) and wipe the keys of the sessions still open.
+     *
+     * @see GenericThreadedComponent
+     */
+    public void shutdown()
+    {
+        super.shutdown();
+
+        if ( localThread != null )
+            localThread.interrupt();
+
+        for ( Session session : sessions.values() )
+            release( session );
+    }
+}
@@ -0,0 +1,311 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import java.util.Collection;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Per connection work queue processed by the shared worker pool of the SocketServerEngine.
+ * The items of a connection are handed, one at a time and control class first, to the given worker; at most one
+ * worker thread processes the items of a connection at any time, so the handling of a connection stays sequential
+ * without dedicating a thread to it.
+ *
+ * A new instance is created for every connection assigned to a connection handler;once closed, any item still
+ * queued is discarded (handed to the discard routine given to close, e.g. for releasing its leased buffers) and new
+ * items are ignored. The closing routine given to close runs once no worker thread processes the queue any more;
+ * i.e. by the closing thread or by the worker thread that notices the queue is closed. An optional drain routine is invoked, by the same worker thread,
+ * every time the queue runs empty (e.g. for flushing whatever the worker has buffered). An optional gate pauses the
+ * processing while it is false (e.g. while the client has granted no flow control credit);wake() resumes it.
+ *
+ * @author atgianne
+ */
+public class SessionWorkQueue<T> implements Runnable
+{
+    /** Maximum number of items processed in a row before the worker thread is handed to the other connections */
+    private static final int MAX_ITEMS_PER_RUN = 64;
+
+    /** The queued items of the connection */
+    private final TwoClassQueue<T> queue;
+
+    /** The routine processing every item */
+    private final Consumer<T> worker;
+
+    /** The routine invoked whenever the queue runs empty (may be null) */
+    private final Runnable onDrained;
+
+    /** The condition for processing the queued items (may be null) */
+    private final BooleanSupplier ready;
+
+    /** The shared pool of worker threads */
+    private final Executor executor;
+
+    /** Flag indicating whether a worker thread is currently scheduled for (or processing) this queue */
+    private final AtomicBoolean scheduled;
+
+    /** Flag indicating whether the connection is gone */
+    private volatile boolean closed;
+
+    /** The routines for discarding the items still queued and for cleaning up once closed (may be null) */
+    private volatile Consumer<? super T> discard;
+    private volatile Runnable onClosed;
+
+    /**
+     * Creates a new instance of SessionWorkQueue
+     *
+     * @param executor The shared pool of worker threads
+     * @param worker The routine processing every item
+     */
+    public SessionWorkQueue( Executor executor, Consumer<T> worker )
+    {
+        this( executor, worker, null );
+    }
+
+    /**
+     * Creates a new instance of SessionWorkQueue with a drain routine
+     *
+     * @param executor The shared pool of worker threads
+     * @param worker The routine processing every item
+     * @param onDrained The routine invoked whenever the queue runs empty
+     */
+    public SessionWorkQueue( Executor executor, Consumer<T> worker, Runnable onDrained )
+    {
+        this( executor, worker, onDrained, null );
+    }
+
+    /**
+     * Creates a new instance of SessionWorkQueue with a drain routine and a gate
+     *
+     * @param executor The shared pool of worker threads
+     * @param worker The routine processing every item
+     * @param onDrained The routine invoked whenever the queue runs empty
+     * @param ready The condition for processing the queued items;checked before every item
+     */
+    public SessionWorkQueue( Executor executor, Consumer<T> worker, Runnable onDrained, BooleanSupplier ready )
+    {
+        this.queue = new TwoClassQueue<>();
+        this.worker = worker;
+        this.onDrained = onDrained;
+        this.ready = ready;
+        this.executor = executor;
+        this.scheduled = new AtomicBoolean( false );
+        this.closed = false;
+    }
+
+    /**
+     * Method for queueing an item and making sure a worker thread will process it.
+     *
+     * @param item The item to be processed
+     * @param isControl TRUE if the item must skip ahead of the queued bulk items; FALSE otherwise
+     *
+     * @return TRUE if the item was queued; FALSE if the queue is closed
+     */
+    public boolean submit( T item, boolean isControl )
+    {
+        if ( closed )
+            return false;
+
+        queue.offer( item, isControl );
+        scheduleOrDiscard();
+
+        return true;
+    }
+
+    /**
+     * Method for queueing a batch of items (e.g. all the frames received in one read) at once;the queue is locked
+     * and a worker thread is scheduled only once for the whole batch.
+     *
+     * @param items The items to be processed, in order
+     * @param isControl Predicate telling whether an item must skip ahead of the queued bulk items
+     *
+     * @return TRUE if the items were queued; FALSE if the queue is closed
+     */
+    public boolean submitAll( Collection<? extends T> items, Predicate<? super T> isControl )
+    {
+        if ( closed )
+            return false;
+
+        if ( items.isEmpty() )
+            return true;
+
+        queue.offerAll( items, isControl );
+        scheduleOrDiscard();
+
+        return true;
+    }
+
+    /**
+     * Method for resuming the processing once the gate of the queue may have opened.
+     */
+    public void wake()
+    {
+        if ( !closed )
+            schedule();
+    }
+
+    /**
+     * Method for making sure that newly queued items are processed or, if the queue was closed meanwhile, discarded.
+     */
+    private void scheduleOrDiscard()
+    {
+        if ( closed )
+            discardQueued();
+        else
+            schedule();
+    }
+
+    /**
+     * Method for handing this queue to the worker pool, unless it is already scheduled.
+     */
+    private void schedule()
+    {
+        if ( scheduled.compareAndSet( false, true ) )
+            execute();
+    }
+
+    /**
+     * Method for handing this (already scheduled) queue to the worker pool.
+     */
+    private void execute()
+    {
+        try
+        {
+            executor.execute( this );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            /** The worker pool is shutting down...nothing will be processed any more;the owner of the queue
+                still closes it, discarding what is left */
+            closed = true;
+            scheduled.set( false );
+        }
+    }
+
+    /**
+     * Worker thread entry point; process the queued items until the queue is empty or, for fairness towards the
+     * other connections, until MAX_ITEMS_PER_RUN items were processed.
+     */
+    public void run()
+    {
+        for ( int processed = 0; ; processed++ )
+        {
+            /** Let the other connections have their turn;we stay scheduled */
+            if ( processed == MAX_ITEMS_PER_RUN )
+            {
+                execute();
+                return;
+            }
+
+            /** Paused;whoever opens the gate wakes us up */
+            if ( !closed && ready != null && !ready.getAsBoolean() )
+            {
+                scheduled.set( false );
+
+                if ( closed )
+                {
+                    finishClose();
+                    return;
+                }
+
+                /** Check again, in case the gate opened after our check but before we cleared the flag */
+                if ( !ready.getAsBoolean() || !scheduled.compareAndSet( false, true ) )
+                    return;
+
+                continue;
+            }
+
+            T item = closed ? null : queue.poll();
+
+            if ( item == null )
+            {
+                /** Still holding the queue;so the drain routine never runs concurrently with the worker */
+                if ( onDrained != null && !closed )
+                    onDrained.run();
+
+                scheduled.set( false );
+
+                if ( closed )
+                {
+                    finishClose();
+                    return;
+                }
+
+                /** Check again, in case an item was queued after our last poll but before we cleared the flag */
+                if ( queue.isEmpty() || !scheduled.compareAndSet( false, true ) )
+                    return;
+
+                continue;
+            }
+
+            worker.accept( item );
+        }
+    }
+
+    /**
+     * Method for closing the queue; the queued items are dropped.
+     */
+    public void close()
+    {
+        close( null, null );
+    }
+
+    /**
+     * Method for closing the queue; the queued items are handed to the discard routine and, once no worker thread
+     * processes the queue any more, the closing routine is run.
+     *
+     * @param discard The routine for discarding an item still queued (may be null)
+     * @param onClosed The routine for cleaning up whatever the worker has buffered (may be null)
+     */
+    public void close( Consumer<? super T> discard, Runnable onClosed )
+    {
+        this.discard = discard;
+        this.onClosed = onClosed;
+        closed = true;
+
+        finishClose();
+    }
+
+    /**
+     * Method for discarding the queued items and running the closing routine, unless a worker thread still processes
+     * the queue;that thread does it once it notices the queue is closed. The flag stays set, so it is done only once.
+     */
+    private void finishClose()
+    {
+        if ( !scheduled.compareAndSet( false, true ) )
+            return;
+
+        discardQueued();
+
+        Runnable r = onClosed;
+        if ( r != null )
+            r.run();
+    }
+
+    /**
+     * Method for discarding the items of the closed queue.
+     */
+    private void discardQueued()
+    {
+        Consumer<? super T> d = discard;
+
+        if ( d == null )
+        {
+            queue.clear();
+            return;
+        }
+
+        for ( T item = queue.poll(); item != null; item = queue.poll() )
+            d.accept( item );
+    }
+
+    /**
+     * @return The underlying two-class queue, e.g. for reporting its size
+     */
+    public TwoClassQueue<T> getQueue()
+    {
+        return queue;
+    }
+}
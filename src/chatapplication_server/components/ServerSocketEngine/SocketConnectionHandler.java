@@ -1,23 +1,50 @@
 package chatapplication_server.components.ServerSocketEngine;
 
+import SocketActionMessages.BufferPool;
+import SocketActionMessages.ChatCompressor;
 import SocketActionMessages.ChatMessage;
+import SocketActionMessages.CreditWindow;
+import SocketActionMessages.Frame;
+import SocketActionMessages.FrameCodec;
+import SocketActionMessages.MessageBatch;
+import SocketActionMessages.MessageTransport;
 import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.JournalEngine.InclusionProof;
+import chatapplication_server.components.JournalEngine.JournalChain;
+import chatapplication_server.components.JournalEngine.JournalRecord;
+import chatapplication_server.components.JournalEngine.MessageJournal;
+import chatapplication_server.components.MailboxEngine.MailRecord;
+import chatapplication_server.components.MailboxEngine.MailboxStore;
+import chatapplication_server.components.SearchEngine.SearchIndex;
 import chatapplication_server.statistics.ServerStatistics;
+import crypto.SessionKeyBatch;
+import crypto.SessionTicket;
 import crypto.cryptoManager;
 import javax.crypto.*;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.OptionalDataException;
+import java.net.ProtocolException;
 import java.io.StreamCorruptedException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.util.Base64;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static crypto.cryptoManager.*;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  *
@@ -25,6 +52,23 @@ import static crypto.cryptoManager.*;
  */
 public class SocketConnectionHandler implements Runnable 
 {
+    /** Maximum number of frames drained from the transport per wakeup, and of chat messages decrypted and fanned out as one batch */
+    private static final int MAX_READ_BATCH = 64;
+    private static final int MAX_CHAT_BATCH = 64;
+    
+    /** Number of journaled messages read and queued per chunk of a history replay */
+    private static final int REPLAY_CHUNK = 64;
+    
+    /** Number of stored mails read and queued per chunk when the mailbox of the client is drained */
+    private static final int MAIL_CHUNK = 256;
+    
+    /** Estimated bytes of the per connection objects besides the transport buffers (the socket and its channel, the
+        transport, the two work queues, the session with its keys), and of a queued message;see getFootprint */
+    static final int SESSION_FOOTPRINT = 2048, QUEUED_FOOTPRINT = 96;
+    
+    /** Estimated heap bytes of an (idle) handler and its thread, whether it handles a connection or not */
+    static final int HANDLER_FOOTPRINT = 1024;
+    
     /** Did we receive a signal to shut down */
     protected boolean mustShutdown;
     
@@ -40,18 +84,87 @@ public class SocketConnectionHandler implements Runnable
     /** The username of the client that we are handling */
     private String userName;
     
-    /** The only type of message that we will receive */
-    private ChatMessage cm;
+    /** The only type of message that we will receive (reused by the transport for every read) */
+    private Frame cm;
+    
+    /** The names of the rooms that the client we are handling has joined (released also from other handler threads) */
+    private CopyOnWriteArrayList<String> joinedRooms;
     
      /** Instance of the ConfigManager component */
     ConfigManager configManager;
     
-    /** Object for keeping track in the logging stream of the actions performed in this socket connection */
-    ServerStatistics connectionStat;
+    /** Object for keeping track in the logging stream of the actions performed in this socket connection (it holds no
+        state;so one is shared by all the handlers) */
+    static final ServerStatistics connectionStat = new ServerStatistics();
+    
+    /** Socket frame transport (binary framing or Java serialization) that will be used throughout the whole connection... */
+    private MessageTransport transport;
+    
+    /** Work queues of the assigned connection; the received messages and the messages to be written to the client */
+    private volatile SessionWorkQueue<Frame> inboundQueue;
+    private volatile SessionWorkQueue<OutboundMessage> outboundQueue;
+    
+    /** The frames drained from the transport in one wakeup;only touched by the reading thread */
+    private final ArrayList<Frame> received;
+    
+    /** The received chat frames waiting to be decrypted and fanned out as a batch;only touched by the worker thread
+        processing the inbound queue (a new list for every connection) */
+    private ArrayList<Frame> pendingChat;
+    
+    /** The AES session key of the client, resolved once at login */
+    private volatile SecretKey sessionKey;
+    
+    /** The session of the client in the SessionStore;released (and its key wiped) along with the connection */
+    private volatile SessionStore.Session session;
+    
+    /** The (DER encoded) certificate of the client, handed to the other clients setting up a pairwise key with it */
+    private volatile byte[] clientCertificate;
+    
+    /** Compressor of the chat plaintexts of the connection (null unless negotiated with the client) */
+    private volatile ChatCompressor compressor;
     
-    /** Socket Stream reader/writer that will be used throughout the whole connection... */
-    private ObjectOutputStream socketWriter;
-    private ObjectInputStream socketReader;
+    /** The credit based flow control of the connection (null unless negotiated with the client) */
+    private volatile CreditWindow flow;
+    
+    /** The time (System.nanoTime) the worker thread started the write in progress to the client;0 if it is not writing */
+    private volatile long writingSince;
+    
+    /** The CoDel monitor of the outbound queue of the connection (see LoadShedder) */
+    private volatile CoDelMonitor fanOutMonitor;
+    
+    /** Flag indicating whether the outbound queue waits for credits, and the time (System.nanoTime) it last got some;
+        only touched by the worker thread processing the outbound queue */
+    private boolean creditStalled;
+    private long creditResumedAt;
+    
+    /** The largest number of chat messages queued for the client, and the number of them dropped for exceeding it */
+    private int maxQueued;
+    private final AtomicLong outboundDropped;
+    
+    /** Flag indicating whether the outbound chat messages are coalesced (the client supports it and it is enabled) */
+    private volatile boolean coalesce;
+    
+    /** Flag indicating whether the client gets the journal sequence numbers of its chat messages (and may ask for a replay) */
+    private volatile boolean sequenced;
+    
+    /** The history replay in progress, if any: the next sequence number to be read and the last one to be replayed;
+        handed over to the worker thread processing the outbound queue along with the first REPLAY marker */
+    private volatile boolean replaying;
+    private long replayNext, replayEnd;
+    
+    /** The offset (in the mailbox file) of the last mail of the chunk being drained;-1 if none is in flight. Only
+        touched by the worker thread processing the outbound queue */
+    private long mailInFlight;
+    
+    /** The coalesced messages not written yet (null while the connection is quiet), the time the first of them was
+        coalesced and whether a flush is pending;only touched by the worker thread processing the outbound queue */
+    private MessageBatch pendingBatch;
+    private long batchSeq;
+    private long batchStartedAt;
+    private boolean flushScheduled;
+    
+    /** The time (System.nanoTime) the assigned connection was accepted;used for measuring the handshake queueing delay */
+    private long acceptedAt;
     
     /**
      * Creates a new instance of SocketConnectionHandler
@@ -61,9 +174,6 @@ public class SocketConnectionHandler implements Runnable
         /** Get the running instance of the Configuration Manager component */
         configManager = ConfigManager.getInstance();
         
-        /** Auxiliary object for printing purposes */
-        connectionStat = new ServerStatistics();
-                
         /** Initialize the mustShutdown flag... */
         mustShutdown = false;
         
@@ -73,10 +183,12 @@ public class SocketConnectionHandler implements Runnable
         
         /** Initialize the socket connection */
         handleConnection = null;
+        joinedRooms = new CopyOnWriteArrayList<>();
+        received = new ArrayList<>();
+        outboundDropped = new AtomicLong();
         
-        /** Initialize the socket connection stream reader/writer... */
-        socketWriter = null;
-        socketReader = null;
+        /** Initialize the socket connection transport... */
+        transport = null;
     }
     
     /**
@@ -97,15 +209,24 @@ public class SocketConnectionHandler implements Runnable
                 SocketServerGUI.getInstance().appendEvent( "Remote Port:= " + handleConnection.getPort() + "\n" );
                 SocketServerGUI.getInstance().appendEvent( "Client UserName:= " + userName + "\n" );
                 SocketServerGUI.getInstance().appendEvent( "Local Socket Address:= " + handleConnection.getLocalSocketAddress().toString() + "\n" );
+                SocketServerGUI.getInstance().appendEvent( SocketServerEngine.getInstance().getMessageRateLimiter().getUserReport( userName ) );
+                
+                SessionWorkQueue<OutboundMessage> queue = outboundQueue;
+                if ( queue != null )
+                    SocketServerGUI.getInstance().appendEvent( "Outbound queue:= " + queue.getQueue().controlSize() + " control, " + queue.getQueue().bulkSize() +
+                                                               " chat (limit " + maxQueued + ", " + outboundDropped.get() + " dropped)\n" );
+                
+                CreditWindow w = flow;
+                SocketServerGUI.getInstance().appendEvent( ( w != null ) ? w.getReport() : "Flow control:= Not negotiated\n" );
             }
         }
     }
     
      /**
      * Method for setting the socket connection that this SocketConnectionHandler thread object will handle.
-     * We must also set the stream reader/writer of the assigned socket connection.
-     * Finally, we must notify it to wake up;as it was in an idle state (in the ConnectionHandling pool) waiting for a
-     * new connection to be assigned.
+     * Then, we must notify it to wake up;as it was in an idle state (in the ConnectionHandling pool) waiting for a
+     * new connection to be assigned. The set up of the stream reader/writer (i.e. the handshake) is performed by the
+     * woken up thread, so that the accepting thread is never blocked by it.
      * 
      * IMPORTANT NOTE It must run in a synchronized block
      * 
@@ -117,17 +238,35 @@ public class SocketConnectionHandler implements Runnable
         
         /** Assign the socket connection to this Connection Handler */
         handleConnection = s;
+        acceptedAt = System.nanoTime();
+        
+        /** Fresh work queues for this connection;processed by the shared worker pool, control messages first */
+        pendingChat = new ArrayList<>();
+        inboundQueue = new SessionWorkQueue<>( SocketServerEngine.getInstance().getWorkerPool(), this::processMessage, this::onInboundDrained );
+        sessionKey = null;
+        session = null;
+        coalesce = false;
+        sequenced = false;
+        replaying = false;
+        flow = null;
+        creditStalled = false;
+        creditResumedAt = 0;
+        fanOutMonitor = SocketServerEngine.getInstance().getLoadShedder().newFanOutMonitor();
+        maxQueued = configManager.getValueInt( "FlowControl.MaxQueued" );
+        outboundDropped.set( 0 );
+        compressor = null;
+        clientCertificate = null;
+        pendingBatch = null;
+        batchSeq = -1;
+        mailInFlight = -1;
+        flushScheduled = false;
+        outboundQueue = new SessionWorkQueue<>( SocketServerEngine.getInstance().getWorkerPool(), this::deliver, this::onOutboundDrained, this::hasSendCredit );
         
         /** Print to the logging stream that this SSLConnectionHandler is assigned to this socket connection... */
        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + handlerName + " assigned to socket (" + handleConnection.getRemoteSocketAddress() + ") (" + connectionStat.getCurrentDate() + ")\n" );
 
-        /** If the socket's stream writer/reader are set up correctly...then notify the thread to start working */
-        if ( setSocketStreamReaderWriter() )
-        {
-            System.out.println("SOCKET SET UP - DONE - NOTIFYING LOCAL THREAD");
-            /** Notify the local thread to wake up */
-            notify();
-        }
+        /** Notify the local thread to wake up */
+        notify();
     }
     
     /**
@@ -139,9 +278,8 @@ public class SocketConnectionHandler implements Runnable
     public boolean setSocketStreamReaderWriter() throws Exception {
         try
         {
-            /** Set up the stream reader/writer for this socket connection... */
-            socketWriter = new ObjectOutputStream( handleConnection.getOutputStream() );
-            socketReader = new ObjectInputStream( handleConnection.getInputStream() );
+            /** Set up the frame transport for this socket connection... */
+            transport = MessageTransport.open( handleConnection, configManager.getValue( "Transport.Mode" ), true );
 
             /** First the server sends the certificate to the client*/
             java.security.cert.Certificate ServerCert;
@@ -153,51 +291,145 @@ public class SocketConnectionHandler implements Runnable
                 ServerPubKey_ServSide = ExtractPubKeyFromCert(ServerCert);
                 System.out.println("Sent Server Cert to Client!");
                 /** Transmit the certificate to the socket*/
-                cryptoManager.SendCert(ServerCert, socketWriter);
+                cryptoManager.SendCert(ServerCert, transport);
             } catch (KeyStoreException | CertificateException | NoSuchAlgorithmException e) {
                 e.printStackTrace();
             }
-            /** Then the server receives the certificate from the client*/
-            java.security.cert.Certificate ClientCert = cryptoManager.ReceiveCert(socketReader);
-            System.out.println("<<<<<<<<<<<<<<<<Client Cert Received>>>>>>>>>>>>>>>>>>");
-            System.out.println(ClientCert);
-            System.out.println("<<<<<<<<<<<<<<<<END Cert Received END>>>>>>>>>>>>>>>>>>");
-            /** Verify that the certificate was signed by the trusted CA!*/
-            // System.out.println("ROOT CA -> -> -> -> " + Base64.getEncoder().encodeToString(RootCAPubKey.getEncoded()));
-            /** Verify that the received client certificate was signed using the private key corresponding to the publickey of the rootca*/
-            cryptoManager.VerifyCert(ClientCert, RootCAPubKey); //Will throw exception if not verified!
+            /** Then the client either resumes its session of before our restart (see SessionSnapshot) or sends its certificate */
+            boolean compression = Boolean.parseBoolean( configManager.getValue( "Compression.Enabled" ) );
+            boolean flowControl = Boolean.parseBoolean( configManager.getValue( "FlowControl.Enabled" ) );
+            boolean journal = MessageJournal.getInstance().getIsRunning();
+            int negotiated = (compression ? FrameCodec.FLAG_COMPRESSED : 0) | (flowControl ? FrameCodec.FLAG_CREDIT : 0) |
+                             (journal ? FrameCodec.FLAG_SEQ : 0);
+            Frame hello = transport.readFrame();
+            SessionSnapshot.Session resumed = null;
+            byte[] request = null;
+            if (hello.getType() == FrameCodec.RESUME) {
+                request = hello.getBodyBytes().clone();
+                resumed = SessionSnapshot.getInstance().resume(request);
+                if (resumed == null) {
+                    /** Unknown, expired or forged...the client goes on with the full handshake */
+                    transport.writeFrame(new Frame(FrameCodec.RESUME, new byte[0]));
+                    hello = transport.readFrame();
+                }
+            }
+            java.security.cert.Certificate ClientCert;
+            PublicKey clientPublicKey;
+            SecretKey AES_KEY;
+            if (resumed != null) {
+                ClientCert = CertificateFactory.getInstance("X509").generateCertificate(new ByteArrayInputStream(resumed.getCertificate()));
+                clientPublicKey = ExtractPubKeyFromCert(ClientCert);
+                /** Prove that we know the old key too, and switch both ends to a key derived from it and our nonces */
+                byte[] clientNonce = SessionTicket.nonceOf(request, true);
+                byte[] serverNonce = SessionTicket.nonce();
+                AES_KEY = SessionTicket.deriveKey(resumed.getKey(), clientNonce, serverNonce);
+                Frame reply = new Frame(FrameCodec.RESUME, SessionTicket.reply(resumed.getKey(), clientNonce, serverNonce));
+                reply.setFlags(negotiated);
+                transport.writeFrame(reply);
+                SocketServerGUI.getInstance().appendEvent("[" + handlerName + "]:: Resumed the session of " + resumed.getUserName() + " (" + connectionStat.getCurrentDate() + ")\n");
+            } else {
+                /** Then the server receives the certificate from the client*/
+                ClientCert = cryptoManager.ParseCert(hello);
+                if (ClientCert == null)
+                    throw new ProtocolException("No client certificate received");
+                System.out.println("<<<<<<<<<<<<<<<<Client Cert Received>>>>>>>>>>>>>>>>>>");
+                System.out.println(ClientCert);
+                System.out.println("<<<<<<<<<<<<<<<<END Cert Received END>>>>>>>>>>>>>>>>>>");
+                /** Verify that the certificate was signed by the trusted CA!*/
+                // System.out.println("ROOT CA -> -> -> -> " + Base64.getEncoder().encodeToString(RootCAPubKey.getEncoded()));
+                /** Verify that the received client certificate was signed using the private key corresponding to the publickey of the rootca*/
+                cryptoManager.VerifyCert(ClientCert, RootCAPubKey); //Will throw exception if not verified!
 
-            /** Extract the client's public key from the cert */
-            PublicKey clientPublicKey = ExtractPubKeyFromCert(ClientCert);
-            /** Generate a random 256 bit AES Key*/
-            KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
-            keyGenerator.init(256);
-            SecretKey AES_KEY = keyGenerator.generateKey();
-            byte[] AES_key_as_bytes = AES_KEY.getEncoded();
-            PrivateKey ServerPrivKey_ServSide = ExtractPrivKeyFromJKS(ServerKeyStore,ServerKeyStorePass, Serveralias, ServerKeyStorePass);
-            //Let's do a digital signature to provide authenticity and integrity.
-            byte[] signatureBytes = cryptoManager.SignMsg(AES_key_as_bytes, ServerPrivKey_ServSide);
-            /** Encrypt the AES key*/
-            byte[] encrypted_AES_key = cryptoManager.encrypt_RSA(clientPublicKey, AES_key_as_bytes);
-            /**Collect the signature + the encrypted AES key */
-            byte[] signature_and_enc_key = new byte[signatureBytes.length + encrypted_AES_key.length];
-            System.arraycopy(signatureBytes, 0, signature_and_enc_key, 0, signatureBytes.length);
-            System.arraycopy(encrypted_AES_key, 0, signature_and_enc_key, signatureBytes.length, encrypted_AES_key.length);
-            /** Send the signature + encrypted AES key to the client, so that we now have a shared secret!*/
-            socketWriter.writeObject(signature_and_enc_key);
+                /** Extract the client's public key from the cert */
+                clientPublicKey = ExtractPubKeyFromCert(ClientCert);
+                /** Generate a random 256 bit AES Key*/
+                KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+                keyGenerator.init(256);
+                AES_KEY = keyGenerator.generateKey();
+                byte[] AES_key_as_bytes = AES_KEY.getEncoded();
+                /** Encrypt the AES key*/
+                byte[] encrypted_AES_key = cryptoManager.encrypt_RSA(clientPublicKey, AES_key_as_bytes);
+                byte[] signature_and_enc_key;
+                SessionKeySigner signer = SessionKeySigner.getInstance();
+                boolean batchSigned = signer.getIsRunning();
+                if (batchSigned) {
+                    /** One signature for the whole batch of logins;we get the path of our key to the signed root */
+                    byte[] proof = signer.sign(SessionKeyBatch.commitment(AES_key_as_bytes, clientPublicKey));
+                    /**Collect the encrypted AES key + its proof */
+                    signature_and_enc_key = new byte[encrypted_AES_key.length + proof.length];
+                    System.arraycopy(encrypted_AES_key, 0, signature_and_enc_key, 0, encrypted_AES_key.length);
+                    System.arraycopy(proof, 0, signature_and_enc_key, encrypted_AES_key.length, proof.length);
+                } else {
+                    PrivateKey ServerPrivKey_ServSide = ExtractPrivKeyFromJKS(ServerKeyStore,ServerKeyStorePass, Serveralias, ServerKeyStorePass);
+                    //Let's do a digital signature to provide authenticity and integrity.
+                    byte[] signatureBytes = cryptoManager.SignMsg(AES_key_as_bytes, ServerPrivKey_ServSide);
+                    /**Collect the signature + the encrypted AES key */
+                    signature_and_enc_key = new byte[signatureBytes.length + encrypted_AES_key.length];
+                    System.arraycopy(signatureBytes, 0, signature_and_enc_key, 0, signatureBytes.length);
+                    System.arraycopy(encrypted_AES_key, 0, signature_and_enc_key, signatureBytes.length, encrypted_AES_key.length);
+                }
+                Arrays.fill(AES_key_as_bytes, (byte) 0);
+                /** Send the signature + encrypted AES key to the client, so that we now have a shared secret!*/
+                /** Let the client know whether we can compress its messages and whether we do flow control */
+                Frame keyExchange = new Frame(FrameCodec.KEY_EXCHANGE, signature_and_enc_key);
+                keyExchange.setFlags(negotiated | (batchSigned ? FrameCodec.FLAG_KEY_BATCH : 0));
+                transport.writeFrame(keyExchange);
+            }
 
             /** Read the username from the client */
-            String EncryptedUserName = (String) socketReader.readObject();
+            Frame EncryptedUserName = transport.readFrame();
+            if (EncryptedUserName.getType() != FrameCodec.LOGIN)
+                throw new ProtocolException("Expected the login, received frame type " + EncryptedUserName.getType());
             /** Decrypt the username with the symmetric AES key*/
-            userName = cryptoManager.decrypt(EncryptedUserName, AES_KEY);
+            userName = new String(cryptoManager.decryptRecord(EncryptedUserName.getBody(), AES_KEY), UTF_8);
+            /** A resumed session keeps its name */
+            if (resumed != null && !userName.equals(resumed.getUserName()))
+                throw new ProtocolException("Resumed the session of " + resumed.getUserName() + " but logged in as " + userName);
+            /** The mailboxes, the private records and the delivery to a client go by its name;so it must be the certified one */
+            String certified = cryptoManager.SubjectName(ClientCert);
+            if (!userName.equalsIgnoreCase(certified))
+                throw new CertificateException("The certificate was issued to " + certified + " but logged in as " + userName);
+            
+            /** Coalesce the outbound chat messages only if the client can unpack them */
+            coalesce = ( EncryptedUserName.getFlags() & FrameCodec.FLAG_BATCH ) != 0 &&
+                       Boolean.parseBoolean( configManager.getValue( "Coalescing.Enabled" ) );
+            
+            /** Tag the chat messages with their sequence numbers (and replay the history) only if both ends asked for it */
+            sequenced = journal && ( EncryptedUserName.getFlags() & FrameCodec.FLAG_SEQ ) != 0;
+            
+            /** Compress the chat plaintexts only if both ends asked for it */
+            if ( compression && ( EncryptedUserName.getFlags() & FrameCodec.FLAG_COMPRESSED ) != 0 )
+                compressor = new ChatCompressor( configManager.getValueInt( "Compression.MinLength" ) );
+            
+            /** Credit based flow control only if both ends asked for it;the client gets our whole window right away */
+            if ( flowControl && ( EncryptedUserName.getFlags() & FrameCodec.FLAG_CREDIT ) != 0 )
+            {
+                CreditWindow w = new CreditWindow( configManager.getValueInt( "FlowControl.Window" ) );
+                transport.writeFrame( w.initialGrant() );
+                flow = w;
+            }
 
-            /** Store the Client's certificate in a hash table with the username as key*/
-            Clients_PublicKeys_ServerSide.put(userName, clientPublicKey);
-            /** Store the Shared secret AES key in a hash table with the username as key*/
-            Clients_SecretKeys_ServerSide.put(userName, AES_KEY);
+            /** Open the session of the client;from now on we only use the copy of its key in the session store */
+            byte[] AES_key_as_bytes = AES_KEY.getEncoded();
+            session = SessionStore.getInstance().open(userName, clientPublicKey, AES_key_as_bytes, this);
+            Arrays.fill(AES_key_as_bytes, (byte) 0);
+            userName = session.getUserName();
+            clientCertificate = ClientCert.getEncoded();
+            sessionKey = session.getKey();
 
             System.out.println("Received username: " + userName);
             SocketServerGUI.getInstance().appendEvent( userName + " just connected at port number: " + handleConnection.getPort() + "\n" );
+            
+            /** Deliver whatever was mailed to the client while it was away, before anything else it is sent */
+            if ( MailboxStore.getInstance().hasMail( userName ) )
+                outboundQueue.submit( OutboundMessage.MAILBOX, false );
+            
+            /** Back in the rooms the client was in before our restart */
+            if ( resumed != null )
+            {
+                for ( String room : resumed.getRooms() )
+                    joinRoom( room );
+            }
 
             return true;
         }
@@ -217,17 +449,10 @@ public class SocketConnectionHandler implements Runnable
 
             return false;
         }
-        catch ( ClassNotFoundException cnfe )
-            {
-                /** Keep track of this exception in the logging stream... */
-                SocketServerGUI.getInstance().appendEvent( userName + " Exception reading streams:" + cnfe + "\n" );
-                
-                return false;
-            }
-        catch ( OptionalDataException ode )
+        catch ( ProtocolException pe )
         {
             /** Keep track of the exception in the logging stream... */
-            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Optional data excp during stream reader/writer init -- " + ode.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Unexpected frame during stream reader/writer init -- " + pe.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
             
             /** Notify the SocketServerEngine that we are about to die in order to create a new SSLConnectionHandler in our place */
             SocketServerEngine.getInstance().addConnectionHandlerToPool( handlerName );
@@ -290,6 +515,78 @@ public class SocketConnectionHandler implements Runnable
         return userName;
     }
     
+    /**
+     * Method for getting the certificate of the connected client handled by this thread.
+     * 
+     * @return The DER encoded certificate of the client; null if the handshake has not completed
+     */
+    public byte[] getClientCertificate()
+    {
+        return clientCertificate;
+    }
+    
+    /**
+     * Method for getting the session key of the connected client handled by this thread.
+     * 
+     * @return The AES session key of the client; null if the handshake has not completed
+     */
+    SecretKey getSessionKey()
+    {
+        return sessionKey;
+    }
+    
+    /**
+     * Method for getting the rooms joined by the connected client handled by this thread.
+     * 
+     * @return A copy of the names of the joined rooms
+     */
+    List<String> getJoinedRooms()
+    {
+        return new ArrayList<>( joinedRooms );
+    }
+    
+    /**
+     * Method for getting the session of the connected client handled by this thread.
+     * 
+     * @return The session of the client; null if the handshake has not completed or the connection was released
+     */
+    SessionStore.Session getSession()
+    {
+        return session;
+    }
+    
+    /**
+     * Method for estimating the memory held for the connection handled by this thread;i.e. its session, transport
+     * buffers, certificate, rooms and queued messages. The handler itself (and its thread) is not counted, since it
+     * stays in the pool whether it handles a connection or not.
+     * 
+     * @return The estimated number of bytes (on and off the heap) held for the connection
+     */
+    public long getFootprint()
+    {
+        MessageTransport t = transport;
+        byte[] certificate = clientCertificate;
+        SessionWorkQueue<Frame> in = inboundQueue;
+        SessionWorkQueue<OutboundMessage> out = outboundQueue;
+        MessageBatch batch = pendingBatch;
+        
+        long bytes = SESSION_FOOTPRINT;
+        if ( t != null )
+            bytes += t.getBufferBytes();
+        if ( certificate != null )
+            bytes += 16 + certificate.length;
+        for ( String room : joinedRooms )
+            bytes += 8 + room.length();
+        if ( in != null )
+            bytes += QUEUED_FOOTPRINT * ( in.getQueue().controlSize() + in.getQueue().bulkSize() );
+        if ( out != null )
+            bytes += QUEUED_FOOTPRINT * ( out.getQueue().controlSize() + out.getQueue().bulkSize() );
+        if ( batch != null )
+            bytes += 64 + batch.size();
+        
+        return bytes;
+    }
+    
     /**
      * Method for getting the Socket connection operated by this handler
      * 
@@ -347,7 +644,44 @@ public class SocketConnectionHandler implements Runnable
              */
             if ( handleConnection != null )
             {
-                receiveContent();
+                /** Under handshake congestion, the CoDel control law may ask us to refuse this login altogether */
+                if ( SocketServerEngine.getInstance().getLoadShedder().shedHandshake( acceptedAt ) )
+                {
+                    SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Login shed due to handshake congestion (" + handleConnection.getRemoteSocketAddress() + ") (" + connectionStat.getCurrentDate() + ")\n" );
+                    
+                    try
+                    {
+                        handleConnection.close();
+                    }
+                    catch ( IOException ioe )
+                    {
+                        /** Nothing more to do;the connection is released anyway */
+                    }
+                }
+                else
+                {
+                    try
+                    {
+                        /** Set up the stream reader/writer...In case of failure, we have already been replaced in the pool */
+                        if ( !setSocketStreamReaderWriter() )
+                        {
+                            if ( !mustShutdown )
+                                isSocketOpen = false;
+                            else
+                            {
+                                closeConnection();
+                                return;
+                            }
+                        }
+                    }
+                    catch ( Exception e )
+                    {
+                        SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Handshake failed -- " + e.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+                        isSocketOpen = false;
+                    }
+                    
+                    receiveContent();
+                }
                 
                 /** If we finished the 'handling' of the assigned socket connection, add ourselves in the connectionHandling pool for future use */
                 socketConnectionHandlerRelease();
@@ -363,6 +697,10 @@ public class SocketConnectionHandler implements Runnable
      * the stream sent by the client. Whenever,
      * the stream is empty (client doesn't send anything), the SocketConnectionHandler remains idle and goes back to business
      * only when necessary!!
+     * 
+     * The received messages are not processed here but handed to the inbound work queue of the connection;so that
+     * control messages (LOGOUT, WHOISIN, JOIN, LEAVE) skip ahead of any chat traffic still waiting to be processed.
+     * Every frame that has already arrived is drained per wakeup and the whole burst is queued at once.
      */
     public void receiveContent()
     {        
@@ -370,53 +708,75 @@ public class SocketConnectionHandler implements Runnable
         {    
             try
             {  
-                /** Wait until there is something in the stream to be read... */
-                cm = ( ChatMessage )socketReader.readObject();
-
-                // Switch on the type of message receive
-                switch(cm.getType())
+                /** Wait until there is a whole frame in the stream to be read... */
+                cm = transport.readFrame();
+                
+                /** The client is alive;its session must not expire */
+                SessionStore.Session s = session;
+                if ( s != null )
+                    s.touch();
+                
+                boolean chatReceived = false;
+                received.clear();
+                
+                /** ...then take whatever else has already arrived, without blocking */
+                while ( true )
                 {
-                case ChatMessage.MESSAGE:
-                        String message = cm.getMessage();
-                        System.out.println("SERVER RECEIVED A MESSAGE FROM "+ userName+ "! -> ENCRYPTED: "+ message);
-                        String dec_chatMsg = cryptoManager.decrypt(message, Clients_SecretKeys_ServerSide.get(userName));
-                        System.out.println("SERVER DECRYPTED THE MESSAGE FROM "+ userName+ "! -> DECRYPTED: "+ dec_chatMsg);
-                        SocketServerEngine.getInstance().broadcast(userName + ": " + dec_chatMsg);
-                        break;
-                case ChatMessage.LOGOUT:
-                        SocketServerGUI.getInstance().appendEvent(userName + " disconnected with a LOGOUT message.\n");
-                         /** If we finished the 'handling' of the assigned socket connection, add ourselves in the connectionHandling pool for future use */
-                        socketConnectionHandlerRelease();
-
-                        /** Also, inform the SocketServerEngine to remove us from the occupance pool... */
-                        SocketServerEngine.getInstance().removeConnHandlerOccp( this.handlerName );
+                    CreditWindow w = flow;
+                    
+                    if ( cm.getType() == FrameCodec.CREDIT )
+                    {
+                        /** The client consumed some of our frames;resume writing to it */
+                        if ( w == null )
+                            throw new ProtocolException( "Credit frame without negotiating flow control" );
                         
-                        isSocketOpen = false;
+                        w.onGrant( cm );
+                        outboundQueue.wake();
+                    }
+                    else
+                    {
+                        /** Chat messages are decrypted and fanned out;so they must fit in the flow control window... */
+                        if ( w != null && CreditWindow.isUpstreamControlled( cm.getType() ) )
+                            w.onReceived();
+                        
+                        /** ...and pass the per user rate limits;the control messages have a budget of their own */
+                        MessageRateLimiter limiter = SocketServerEngine.getInstance().getMessageRateLimiter();
+                        boolean admitted = ChatMessage.isControl( cm.getType() ) ? limiter.admitControl( userName, cm.getType() )
+                                                                                 : limiter.admit( userName, cm.getBodyLength() );
+                        if ( !admitted )
+                        {
+                            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Message from " + userName + " rejected by rate limiting (" + connectionStat.getCurrentDate() + ")\n" );
+                            creditConsumed( cm.getType() );
+                            
+                            /** The client waits for the certificate it asked for;tell it that there is none instead */
+                            if ( cm.getType() == ChatMessage.KEY_LOOKUP )
+                                enqueueFrame( new Frame( ChatMessage.KEY_LOOKUP, cm.getPeer(), new byte[ 0 ] ), true );
+                        }
+                        else
+                        {
+                            /** The transport reuses the frame for the next read;so queue a (pooled) copy of it */
+                            received.add( cm.copy() );
+                            chatReceived |= !ChatMessage.isControl( cm.getType() );
+                        }
+                    }
+                    
+                    if ( received.size() == MAX_READ_BATCH || !transport.hasBufferedFrame() )
                         break;
-                case ChatMessage.WHOISIN:
-                    SocketServerEngine.getInstance().printEstablishedSocketInfo();
-                    break;
-                case ChatMessage.PRIVATEMESSAGE:
-                    String temp[] = cm.getMessage().split(",");
-                    int PortNo = Integer.valueOf(temp[0]);
-                    String Chat = temp[1];
-
-                    System.out.println("At Server :  " +PortNo +temp[1]);
-                    SocketServerEngine.getInstance().writeMsgSpecificClient(PortNo, Chat);
-                    break;              
-		}
+                    
+                    cm = transport.readFrame();
+                }
                 
+                inboundQueue.submitAll( received, f -> ChatMessage.isControl( f.getType() ) );
+                received.clear();
+
+                /** While the fan-out is congested, slow down the clients producing chat traffic */
+                if ( chatReceived )
+                    SocketServerEngine.getInstance().getLoadShedder().slowSenderIfCongested();
             }
-            catch ( ClassNotFoundException cnfe )
-            {
-                /** Keep track of this exception in the logging stream... */
-                SocketServerGUI.getInstance().appendEvent( userName + " Exception reading streams:" + cnfe.getMessage() + "\n" );
-                isSocketOpen = false;
-            }
-            catch ( OptionalDataException ode )
+            catch ( ProtocolException pe )
             {
                 /** Keep track of this exception in the logging stream... */
-                SocketServerGUI.getInstance().appendEvent( userName + " Exception reading streams:" + ode.getMessage() + "\n" );
+                SocketServerGUI.getInstance().appendEvent( userName + " Exception reading streams:" + pe.getMessage() + "\n" );
                 isSocketOpen = false;
             }
             catch ( IOException e )
@@ -426,45 +786,932 @@ public class SocketConnectionHandler implements Runnable
                 
                 /** Change the socket status... */
                 isSocketOpen = false;
-            } catch (Exception e) {
-                e.printStackTrace();
             }
+            catch ( Exception e )
+            {
+                /** E.g. an unknown frame type;the stream cannot be trusted any more */
+                SocketServerGUI.getInstance().appendEvent( userName + " Exception processing streams:" + e + "\n" );
+                isSocketOpen = false;
+            }
+        }
+    }
+    
+    /**
+     * Method for processing a message received from the client; it is invoked by a thread of the worker pool, one
+     * message at a time for this connection. The chat messages are only collected here;they are decrypted and
+     * fanned out as a batch once the queue runs empty (or the batch is full), and before any other message is
+     * processed, so that the order of the messages of the client is kept.
+     * 
+     * @param cm The received message
+     */
+    private void processMessage( Frame cm )
+    {
+        /** A relayed or collected frame is released later on;any other is done with here */
+        boolean relayed = false;
+        
+        try
+        {
+            /** Taken off the queue;the client may send another chat message in its place */
+            creditConsumed( cm.getType() );
+            
+            if ( cm.getType() != ChatMessage.MESSAGE && cm.getType() != ChatMessage.ROOM_MESSAGE )
+                processChatBatch();
+            
+            // Switch on the type of message receive
+            switch(cm.getType())
+            {
+            case ChatMessage.MESSAGE:
+                    pendingChat.add( cm );
+                    relayed = true;
+                    
+                    if ( pendingChat.size() == MAX_CHAT_BATCH )
+                        processChatBatch();
+                    break;
+            case ChatMessage.LOGOUT:
+                    SocketServerGUI.getInstance().appendEvent(userName + " disconnected with a LOGOUT message.\n");
+                    
+                    /** Stop processing and close the socket;the blocked reader then releases this handler back to the pool */
+                    isSocketOpen = false;
+                    closeInbound();
+                    
+                    Socket s = handleConnection;
+                    if ( s != null )
+                        s.close();
+                    break;
+            case ChatMessage.WHOISIN:
+                SocketServerEngine.getInstance().printEstablishedSocketInfo();
+                writeControlMsg( SocketServerEngine.getInstance().getOnlineUsers() );
+                break;
+            case ChatMessage.PRIVATEMESSAGE:
+            case ChatMessage.PEER_KEY:
+                /** End-to-end encrypted;we only route the opaque body to the peer */
+                relayed = relayToPeer( cm );
+                break;
+            case ChatMessage.KEY_LOOKUP:
+                SocketConnectionHandler peer = SocketServerEngine.getInstance().getHandlerByPort( cm.getPeer() );
+                String peerName = new String( cm.getBodyBytes(), UTF_8 );
+                
+                /** Only the certificate of the user the client asked for;someone else may have the port by now */
+                byte[] certificate = ( peer == null || !peerName.equalsIgnoreCase( peer.getUserName() ) ) ? null : peer.getClientCertificate();
+                
+                /** An empty body tells the client that there is no such peer */
+                enqueueFrame( new Frame( ChatMessage.KEY_LOOKUP, cm.getPeer(), ( certificate == null ) ? new byte[ 0 ] : certificate ), true );
+                break;
+            case FrameCodec.HISTORY:
+                startReplay( cm );
+                break;
+            case ChatMessage.MAIL:
+                sendMail( cm );
+                break;
+            case ChatMessage.SEARCH:
+                search( cm );
+                break;
+            case FrameCodec.PROOF:
+                sendProof( cm );
+                break;
+            case ChatMessage.JOIN:
+                joinRoom( cm.getRoom() );
+                break;
+            case ChatMessage.LEAVE:
+                leaveRoom( cm.getRoom() );
+                break;
+            case ChatMessage.ROOM_MESSAGE:
+                /** Only the members of a room can talk in it... */
+                if ( !joinedRooms.contains( cm.getRoom() ) )
+                {
+                    writeControlMsg( "You have to JOIN room " + cm.getRoom() + " before sending messages to it\n" );
+                    break;
+                }
+                pendingChat.add( cm );
+                relayed = true;
+                
+                if ( pendingChat.size() == MAX_CHAT_BATCH )
+                    processChatBatch();
+                break;
+            }
+        }
+        catch ( Exception e )
+        {
+            /** Keep track of this exception in the logging stream... */
+            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Failed processing message from " + userName + " -- " + e.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+        }
+        finally
+        {
+            /** Give the body buffer of the copy back to the pool */
+            if ( !relayed )
+                cm.release();
+        }
+    }
+    
+    /**
+     * Method invoked by the worker thread whenever the inbound queue of the connection runs empty;i.e. at the end
+     * of every burst of received messages.
+     */
+    private void onInboundDrained()
+    {
+        processChatBatch();
+    }
+    
+    /**
+     * Method for decrypting the collected chat messages of the client in one go (session key, cipher and compressor
+     * set up once) and handing them to the fan-out as batches;consecutive messages for the same room (or for
+     * everyone) are broadcast together.
+     */
+    private void processChatBatch()
+    {
+        if ( pendingChat.isEmpty() )
+            return;
+        
+        SecretKey key = sessionKey;
+        ChatCompressor c = compressor;
+        
+        List<String> messages = new ArrayList<>( pendingChat.size() );
+        String room = null;
+        
+        for ( Frame frame : pendingChat )
+        {
+            try
+            {
+                String target = ( frame.getType() == ChatMessage.ROOM_MESSAGE ) ? frame.getRoom() : null;
+                
+                /** A different destination...fan out what was collected for the previous one */
+                if ( !messages.isEmpty() && !Objects.equals( room, target ) )
+                {
+                    fanOut( room, messages );
+                    messages = new ArrayList<>();
+                }
+                
+                room = target;
+                
+                System.out.println("SERVER RECEIVED A MESSAGE FROM "+ userName+ "! -> ENCRYPTED: "+ frame.getBodyLength() + " bytes");
+                String dec_chatMsg = decryptBody( frame, key, c );
+                System.out.println("SERVER DECRYPTED THE MESSAGE FROM "+ userName+ "! -> DECRYPTED: "+ dec_chatMsg);
+                messages.add( userName + ": " + dec_chatMsg );
+            }
+            catch ( Exception e )
+            {
+                /** Keep track of this exception in the logging stream... */
+                SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Failed processing message from " + userName + " -- " + e.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+            }
+            finally
+            {
+                /** Give the body buffer of the copy back to the pool */
+                frame.release();
+            }
+        }
+        
+        pendingChat.clear();
+        
+        if ( !messages.isEmpty() )
+            fanOut( room, messages );
+    }
+    
+    /**
+     * Method for broadcasting a batch of decrypted chat messages of the client.
+     * 
+     * @param room The room of the messages;null for a broadcast to everyone
+     * @param messages The messages to be broadcasted
+     */
+    private void fanOut( String room, List<String> messages )
+    {
+        try
+        {
+            /** Journaled in the order they are fanned out;the journal thread writes them later on */
+            long[] seqs = MessageJournal.getInstance().appendAll( ( room == null ) ? JournalRecord.BROADCAST : JournalRecord.ROOM, userName, room, messages );
+            
+            if ( room == null )
+                SocketServerEngine.getInstance().broadcast( messages, seqs );
+            else
+                SocketServerEngine.getInstance().broadcastToRoom( room, messages, false, seqs );
+        }
+        catch ( Exception e )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Failed broadcasting messages from " + userName + " -- " + e.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+        }
+    }
+    
+    /**
+     * Method for decrypting the body (IV, ciphertext and tag) of a received chat frame with the session key of the client.
+     * 
+     * @param frame The received chat frame
+     * @param key The session key of the client
+     * @param c The compressor of the session (null unless negotiated)
+     * 
+     * @return The plaintext message
+     */
+    private String decryptBody( Frame frame, SecretKey key, ChatCompressor c ) throws Exception {
+        byte[] plaintext = cryptoManager.decryptRecord( frame.getBody(), key );
+        
+        if ( ( frame.getFlags() & FrameCodec.FLAG_COMPRESSED ) != 0 )
+        {
+            if ( c == null )
+                throw new ProtocolException( "Compressed message without negotiating compression" );
+            
+            plaintext = c.decompress( plaintext );
+        }
+        
+        return new String( plaintext, UTF_8 );
+    }
+    
+    /**
+     * Method for starting the replay of the journaled history asked for by the client. The replay is bounded by the
+     * messages already forced to the disk (the later ones reach the client live) and by History.MaxReplay messages.
+     * Only the broadcasts are replayed;the client has not joined any room yet, and the private messages are
+     * end-to-end encrypted with keys that did not outlive their session.
+     * 
+     * @param request The received HISTORY frame
+     */
+    private void startReplay( Frame request ) throws Exception {
+        /** One replay at a time */
+        if ( !sequenced || replaying )
+            return;
+        
+        ByteBuffer body = request.getBody();
+        if ( body.remaining() != 9 )
+            throw new ProtocolException( "Invalid history request length " + body.remaining() );
+        
+        int mode = body.get();
+        long value = body.getLong();
+        
+        MessageJournal journal = MessageJournal.getInstance();
+        long end = journal.getDurableSeq();
+        long from;
+        
+        switch ( mode )
+        {
+            case FrameCodec.HISTORY_LAST:
+                /** The last value messages of the journal, whatever their kind */
+                from = end - Math.max( 0, value ) + 1;
+                break;
+            case FrameCodec.HISTORY_SINCE_SEQ:
+                from = value + 1;
+                break;
+            case FrameCodec.HISTORY_SINCE_TIME:
+                from = journal.findSeqByTime( value );
+                break;
+            default:
+                throw new ProtocolException( "Invalid history mode " + mode );
+        }
+        
+        replayNext = Math.max( from, end - configManager.getValueLong( "History.MaxReplay" ) + 1 );
+        replayEnd = end;
+        replaying = true;
+        
+        /** The first chunk is read once whatever is queued for the client so far is written */
+        outboundQueue.submit( OutboundMessage.REPLAY, false );
+    }
+    
+    /**
+     * Method for replaying the next chunk of the history;it is invoked by the worker thread processing the outbound
+     * queue whenever it reaches a REPLAY marker. The chunk is queued as chat traffic, i.e. it waits for the flow
+     * control credits like any other message, followed by the marker for the next chunk or, once the replay is
+     * over, by a HISTORY frame telling the client where it caught up to.
+     */
+    private void replayChunk()
+    {
+        List<OutboundMessage> chunk = new ArrayList<>( REPLAY_CHUNK + 1 );
+        
+        try
+        {
+            List<JournalRecord> records = MessageJournal.getInstance().read( replayNext, replayEnd, REPLAY_CHUNK, JournalRecord.BROADCAST );
+            SimpleDateFormat sdf = new SimpleDateFormat( "HH:mm:ss" );
+            
+            for ( JournalRecord record : records )
+                chunk.add( new OutboundMessage( sdf.format( new Date( record.getTimestamp() ) ) + " " + record.getText() + "\n", false, record.getSeq() ) );
+            
+            if ( records.size() == REPLAY_CHUNK )
+            {
+                replayNext = records.get( REPLAY_CHUNK - 1 ).getSeq() + 1;
+                chunk.add( OutboundMessage.REPLAY );
+                outboundQueue.submitAll( chunk, m -> false );
+                return;
+            }
+        }
+        catch ( ProtocolException pe )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Failed replaying the history to " + userName + " -- " + pe.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+        }
+        
+        ByteBuffer caughtUp = ByteBuffer.allocate( 8 );
+        caughtUp.putLong( 0, replayEnd );
+        
+        /** Never shed, yet queued behind the chunk */
+        chunk.add( new OutboundMessage( new Frame( FrameCodec.HISTORY, caughtUp.array() ), true ) );
+        
+        replaying = false;
+        outboundQueue.submitAll( chunk, m -> false );
+    }
+    
+    /**
+     * Method for sending a mail of the client to a user by name;straight to the user if it is connected, to its
+     * mailbox otherwise. The client is told if the mailbox refused the mail.
+     * 
+     * @param frame The received MAIL frame
+     */
+    private void sendMail( Frame frame ) throws Exception {
+        String recipient = frame.getRoom();
+        if ( recipient == null || recipient.isEmpty() )
+            throw new ProtocolException( "Mail without a recipient" );
+        
+        String text = decryptBody( frame, sessionKey, compressor );
+        
+        if ( !SocketServerEngine.getInstance().writeMsgSpecificClient( recipient, userName, text ) )
+            writeControlMsg( "The mailbox of " + recipient + " is full;mail not delivered\n" );
+    }
+    
+    /**
+     * Method for answering a full-text query of the client over the chat history with a page of results, newest
+     * first. The room messages are only shown to the current members of the room;the page is filled up from older
+     * results in their place. The last line of a page that is not the last one tells how to get the next page. Every
+     * result starts with its sequence number, so the client can ask for its proof (see sendProof).
+     * 
+     * @param frame The received SEARCH frame
+     */
+    private void search( Frame frame ) throws Exception {
+        SearchIndex index = SearchIndex.getInstance();
+        if ( !index.getIsRunning() )
+        {
+            writeControlMsg( "Search is not available\n" );
+            return;
+        }
+        
+        String request = decryptBody( frame, sessionKey, compressor ).trim();
+        long before = 0;
+        
+        /** The page cursor, if any, comes first */
+        if ( request.startsWith( "before:" ) )
+        {
+            int split = request.indexOf( ' ' );
+            try
+            {
+                before = Long.parseLong( request.substring( 7, ( split < 0 ) ? request.length() : split ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                throw new ProtocolException( "Invalid search cursor" );
+            }
+            request = ( split < 0 ) ? "" : request.substring( split + 1 ).trim();
+        }
+        
+        Set<String> query = SearchIndex.tokenize( request );
+        if ( query.isEmpty() || query.size() > SearchIndex.MAX_QUERY_TERMS )
+        {
+            writeControlMsg( "A search needs 1 to " + SearchIndex.MAX_QUERY_TERMS + " terms of at least " + SearchIndex.MIN_TERM_LENGTH + " letters or digits\n" );
+            return;
+        }
+        
+        int pageSize = configManager.getValueInt( "Search.PageSize" );
+        MessageJournal journal = MessageJournal.getInstance();
+        SimpleDateFormat sdf = new SimpleDateFormat( "yyyy-MM-dd HH:mm:ss" );
+        StringBuilder page = new StringBuilder( "Search results for '" + request + "':\n" );
+        int found = 0;
+        boolean more = true;
+        
+        /** A few rounds at most, in case most of the results are in rooms the client is not a member of */
+        for ( int round = 0; round < 8 && found < pageSize; round++ )
+        {
+            long[] seqs = index.search( query, before, pageSize );
+            
+            for ( int i = 0; i < seqs.length && found < pageSize; i++ )
+            {
+                before = seqs[ i ];
+                
+                List<JournalRecord> records = journal.read( seqs[ i ], seqs[ i ], 1, ( byte )0 );
+                if ( records.isEmpty() )
+                    continue;
+                
+                JournalRecord record = records.get( 0 );
+                if ( record.getKind() == JournalRecord.ROOM && !joinedRooms.contains( record.getTarget() ) )
+                    continue;
+                
+                page.append( "  #" ).append( record.getSeq() ).append( ' ' ).append( sdf.format( new Date( record.getTimestamp() ) ) ).append( ' ' );
+                if ( record.getKind() == JournalRecord.ROOM )
+                    page.append( '[' ).append( record.getTarget() ).append( "] " );
+                page.append( record.getText() ).append( '\n' );
+                found++;
+            }
+            
+            if ( seqs.length < pageSize )
+            {
+                more = false;
+                break;
+            }
+        }
+        
+        if ( found == 0 )
+            page.append( "  No (more) messages found\n" );
+        if ( more )
+            page.append( "More results: SEARCH before:" ).append( before ).append( ' ' ).append( request ).append( '\n' );
+        
+        writeControlMsg( page.toString() );
+    }
+    
+    /**
+     * Method for sending the client the proof that a journaled message is part of the history signed by the server
+     * (see InclusionProof). A message is only proven to whom could read it;i.e. the room messages to the current
+     * members of the room and the private messages to their sender and recipient.
+     * 
+     * @param frame The received PROOF frame
+     */
+    private void sendProof( Frame frame ) throws Exception {
+        JournalChain chain = JournalChain.getInstance();
+        if ( !chain.getIsRunning() )
+        {
+            writeControlMsg( "Proofs are not available\n" );
+            return;
+        }
+        
+        ByteBuffer body = frame.getBody();
+        if ( body.remaining() != 8 )
+            throw new ProtocolException( "Invalid proof request length " + body.remaining() );
+        
+        long seq = body.getLong();
+        InclusionProof proof = chain.getProof( seq );
+        if ( proof == null )
+        {
+            writeControlMsg( "Message #" + seq + " is not covered by a signed checkpoint (yet)\n" );
+            return;
+        }
+        
+        JournalRecord record = proof.getRecord();
+        if ( ( record.getKind() == JournalRecord.ROOM && !joinedRooms.contains( record.getTarget() ) ) ||
+             ( record.getKind() == JournalRecord.PRIVATE && !userName.equals( record.getSender() ) && !userName.equals( record.getTarget() ) ) )
+        {
+            writeControlMsg( "Message #" + seq + " is not yours to see\n" );
+            return;
+        }
+        
+        /** It holds the message itself;so it is encrypted like the message was */
+        enqueueFrame( new Frame( FrameCodec.PROOF, cryptoManager.encryptRecord( proof.encode(), sessionKey ) ), true );
+    }
+    
+    /**
+     * Method for draining the next chunk of the mailbox of the client;it is invoked by the worker thread processing
+     * the outbound queue whenever it reaches a MAILBOX marker. The previous chunk is written by then (the coalesced
+     * mails are flushed first), so it is acknowledged;the next one is queued as chat traffic, i.e. packed into as
+     * few records as coalescing allows and paced by the flow control, followed by the marker for the chunk after it.
+     * A mail written right before the connection drops is delivered again on the next login.
+     */
+    private void drainMailbox()
+    {
+        MailboxStore store = MailboxStore.getInstance();
+        
+        flushBatch();
+        if ( mailInFlight >= 0 )
+        {
+            store.acknowledge( userName, mailInFlight );
+            mailInFlight = -1;
+        }
+        
+        try
+        {
+            List<MailRecord> mails = store.peek( userName, MAIL_CHUNK );
+            if ( mails.isEmpty() )
+                return;
+            
+            SimpleDateFormat sdf = new SimpleDateFormat( "HH:mm:ss" );
+            List<OutboundMessage> chunk = new ArrayList<>( mails.size() + 1 );
+            
+            for ( MailRecord mail : mails )
+                chunk.add( OutboundMessage.stored( sdf.format( new Date( mail.getTimestamp() ) ) + " Mail from " + mail.getSender() + ": " + mail.getText() + "\n" ) );
+            
+            chunk.add( OutboundMessage.MAILBOX );
+            mailInFlight = mails.get( mails.size() - 1 ).getOffset();
+            outboundQueue.submitAll( chunk, m -> false );
+        }
+        catch ( IOException ioe )
+        {
+            SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Failed reading the mailbox of " + userName + " -- " + ioe.getMessage() + " (" + connectionStat.getCurrentDate() + ")\n" );
+        }
+    }
+    
+    /**
+     * Method for relaying an end-to-end encrypted frame to the client it is addressed to. The body is not touched;
+     * the peer in the header is replaced by the port number of the sender, so that the recipient knows whose
+     * pairwise key to use.
+     * 
+     * @param frame The received (detached) frame
+     * 
+     * @return TRUE if the frame was queued to the recipient, which releases it once written
+     */
+    private boolean relayToPeer( Frame frame ) throws Exception {
+        SocketConnectionHandler recipient = SocketServerEngine.getInstance().getHandlerByPort( frame.getPeer() );
+        
+        if ( recipient == null )
+        {
+            writeControlMsg( "There is no client connected at port " + frame.getPeer() + "\n" );
+            return false;
+        }
+        
+        /** The history keeps the private message as it is relayed;i.e. still end-to-end encrypted */
+        if ( frame.getType() == ChatMessage.PRIVATEMESSAGE )
+            MessageJournal.getInstance().append( JournalRecord.PRIVATE, userName, recipient.getUserName(), frame.getBodyBytes() );
+        
+        frame.setPeer( handleConnection.getPort() );
+        frame.setFlags( 0 );
+        return recipient.enqueueFrame( frame, ChatMessage.isControl( frame.getType() ) );
+    }
+    
+    /**
+     * Method for subscribing the client we are handling to a named room and notifying the members of the room.
+     * 
+     * @param room The name of the room to join
+     */
+    private void joinRoom( String room ) throws Exception {
+        if ( !RoomRegistry.isValidRoomName( room ) )
+        {
+            writeControlMsg( "Invalid room name\n" );
+            return;
+        }
+        
+        /** One copy of the name, however many members the room has */
+        room = room.intern();
+        
+        if ( SocketServerEngine.getInstance().getRoomRegistry().join( room, this ) )
+        {
+            joinedRooms.add( room );
+            SocketServerEngine.getInstance().broadcastToRoom( room, userName + " joined the room", true );
+        }
+    }
+    
+    /**
+     * Method for unsubscribing the client we are handling from a named room and notifying the remaining members.
+     * 
+     * @param room The name of the room to leave
+     */
+    private void leaveRoom( String room ) throws Exception {
+        if ( SocketServerEngine.getInstance().getRoomRegistry().leave( room, this ) )
+        {
+            joinedRooms.remove( room );
+            writeControlMsg( "You left room " + room + "\n" );
+            SocketServerEngine.getInstance().broadcastToRoom( room, userName + " left the room", true );
         }
     }
     
+    /**
+     * Method for unsubscribing the handled client from all the rooms it joined; i.e. when the connection is released.
+     */
+    private void leaveAllRooms()
+    {
+        RoomRegistry roomRegistry = SocketServerEngine.getInstance().getRoomRegistry();
+        
+        for ( String room : joinedRooms )
+            roomRegistry.leave( room, this );
+        
+        joinedRooms.clear();
+    }
+    
     /*
-    * Write a String to the Client output stream
+    * Write a String to the Client output stream. The message is queued as chat traffic (bulk class) and written
+    * by a thread of the worker pool.
     *
     * msg The string to be written to the client output stream
     */
    public boolean writeMsg( String msg ) throws Exception {
-
-
-           // if Client is still connected send the message to it
-           if( !isSocketOpen ) 
+       return enqueueMsg( msg, false );
+   }
+   
+   /*
+    * Write a control String (e.g. a WHOISIN reply or a presence update) to the Client output stream. The message
+    * skips ahead of any chat traffic queued for this client.
+    *
+    * msg The string to be written to the client output stream
+    */
+   public boolean writeControlMsg( String msg ) throws Exception {
+       return enqueueMsg( msg, true );
+   }
+   
+   /**
+    * Method for queueing a message in the outbound work queue of the connection.
+    * 
+    * @param msg The string to be written to the client output stream
+    * @param isControl TRUE for the control class; FALSE for the bulk class
+    * 
+    * @return TRUE if the message was queued; FALSE if the client is not connected any more
+    */
+   private boolean enqueueMsg( String msg, boolean isControl )
+   {
+       return enqueue( new OutboundMessage( msg, isControl ) );
+   }
+   
+   /**
+    * Method for queueing a (possibly shared, e.g. by a broadcast) message in the outbound work queue of the connection.
+    * 
+    * @param msg The message to be written to the client output stream
+    * 
+    * @return TRUE if the message was queued; FALSE if the client is not connected any more
+    */
+   boolean enqueue( OutboundMessage msg )
+   {
+       SessionWorkQueue<OutboundMessage> queue = outboundQueue;
+       
+       // if Client is still connected send the message to it
+       if( !isSocketOpen || queue == null ) 
+           return false;
+       
+       /** A client that does not keep up (e.g. grants no credits) must not make us queue its chat messages forever */
+       if ( !msg.isControl && queue.getQueue().bulkSize() >= maxQueued )
+       {
+           outboundDropped.incrementAndGet();
+           return false;
+       }
+       
+       return queue.submit( msg, msg.isControl );
+   }
+   
+   /**
+    * Method for queueing a batch of (possibly shared) messages in the outbound work queue of the connection at once.
+    * 
+    * @param msgs The messages to be written to the client output stream, in order
+    * 
+    * @return TRUE if the messages were queued; FALSE if the client is not connected any more
+    */
+   boolean enqueueAll( List<OutboundMessage> msgs )
+   {
+       SessionWorkQueue<OutboundMessage> queue = outboundQueue;
+       
+       if( !isSocketOpen || queue == null ) 
+           return false;
+       
+       /** A client that does not keep up only gets the control messages of the batch */
+       if ( queue.getQueue().bulkSize() >= maxQueued )
+       {
+           List<OutboundMessage> control = new ArrayList<>();
+           for ( OutboundMessage msg : msgs )
            {
-                /** If we finished the 'handling' of the assigned socket connection, add ourselves in the connectionHandling pool for future use */
-                socketConnectionHandlerRelease();
-
-                /** Also, inform the SocketServerEngine to remove us from the occupance pool... */
-                SocketServerEngine.getInstance().removeConnHandlerOccp( this.handlerName );
-                
-                return false;
+               if ( msg.isControl )
+                   control.add( msg );
+               else
+                   outboundDropped.incrementAndGet();
+           }
+           
+           msgs = control;
+       }
+       
+       return queue.submitAll( msgs, m -> m.isControl );
+   }
+   
+   /**
+    * Method for queueing a frame to be written as is (i.e. without encrypting it with the session key) to the client.
+    * 
+    * @param frame The frame to be written
+    * @param isControl TRUE for the control class; FALSE for the bulk class
+    * 
+    * @return TRUE if the frame was queued; FALSE if the client is not connected any more
+    */
+   boolean enqueueFrame( Frame frame, boolean isControl )
+   {
+       return enqueue( new OutboundMessage( frame, isControl ) );
+   }
+   
+   /**
+    * Method for encrypting and writing a queued message to the client; it is invoked by a thread of the worker pool,
+    * one message at a time for this connection.
+    * 
+    * @param msg The queued message to be written to the client output stream
+    */
+   private void deliver( OutboundMessage msg )
+   {
+       /** The linger time of the coalesced messages is over */
+       if ( msg == OutboundMessage.FLUSH )
+       {
+           flushScheduled = false;
+           flushBatch();
+           return;
+       }
+       
+       /** The previous chunk of the history replay was written (or shed) */
+       if ( msg == OutboundMessage.REPLAY )
+       {
+           replayChunk();
+           return;
+       }
+       
+       /** The previous chunk of mails was written */
+       if ( msg == OutboundMessage.MAILBOX )
+       {
+           drainMailbox();
+           return;
+       }
+       
+       /** Under fan-out congestion, the CoDel control law may ask us to drop this chat message (but not a stored mail);
+           the time it waited for the credits of the client is up to the client, not to us */
+       CoDelMonitor monitor = fanOutMonitor;
+       if ( !msg.isStored && !msg.isControl && monitor != null &&
+            SocketServerEngine.getInstance().getLoadShedder().shedFanOut( monitor, System.nanoTime() - Math.max( msg.queuedAt, creditResumedAt ) ) )
+       {
+           if ( msg.frame != null )
+               msg.frame.release();
+           return;
+       }
+       
+       /** A relayed frame goes out as it is, after whatever was coalesced before it */
+       if ( msg.frame != null )
+       {
+           flushBatch();
+           
+           try
+           {
+               sendFrame( msg.frame );
            }
-           // write the message to the stream
-           try 
+           catch ( Exception e )
            {
-               /** Encrypt for the broadcast based on the username*/
-               String ciphertext = cryptoManager.encrypt(msg, Clients_SecretKeys_ServerSide.get(userName));
-               socketWriter.writeObject(ciphertext);
+               SocketServerGUI.getInstance().appendEvent( "Error relaying message to " + userName + "\n" );
+               SocketServerGUI.getInstance().appendEvent( e.toString() );
            }
-           // if an error occurs, do not abort just inform the user
-           catch( IOException e ) 
+           finally
+           {
+               msg.frame.release();
+           }
+           return;
+       }
+       
+       if ( !coalesce )
+       {
+           writeRecord( msg.plaintext, 0, msg.seq );
+           return;
+       }
+       
+       /** Coalesce the message;control messages and full batches are written right away */
+       if ( pendingBatch == null )
+           pendingBatch = new MessageBatch();
+       if ( pendingBatch.count() == 0 )
+           batchStartedAt = System.nanoTime();
+       
+       pendingBatch.add( msg.plaintext );
+       batchSeq = Math.max( batchSeq, msg.seq );
+       
+       if ( msg.isControl || pendingBatch.size() >= configManager.getValueInt( "Coalescing.MaxBytes" ) )
+           flushBatch();
+   }
+   
+   /**
+    * Method invoked by the worker thread whenever the outbound queue of the connection runs empty. The coalesced
+    * messages are written once the first of them has lingered for Coalescing.Linger milliseconds;until then, further
+    * messages may join the batch.
+    */
+   private void onOutboundDrained()
+   {
+       if ( flushScheduled || pendingBatch == null )
+           return;
+       
+       /** Quiet again;an idle connection does not keep a batch buffer around */
+       if ( pendingBatch.count() == 0 )
+       {
+           pendingBatch = null;
+           return;
+       }
+       
+       long linger = TimeUnit.MILLISECONDS.toNanos( configManager.getValueLong( "Coalescing.Linger" ) );
+       long remaining = batchStartedAt + linger - System.nanoTime();
+       
+       if ( remaining <= 0 )
+       {
+           flushBatch();
+           return;
+       }
+       
+       /** Queue the flush marker once the linger time is over;it is processed in order with the other messages */
+       SessionWorkQueue<OutboundMessage> queue = outboundQueue;
+       flushScheduled = true;
+       SocketServerEngine.getInstance().getTimer().schedule( () -> queue.submit( OutboundMessage.FLUSH, false ), remaining, TimeUnit.NANOSECONDS );
+   }
+   
+   /**
+    * Method for writing a frame of the outbound queue to the client, spending a flow control credit for it.
+    * 
+    * @param frame The frame to be written
+    */
+   private void sendFrame( Frame frame ) throws IOException
+   {
+       /** The write blocks while the send buffer is full;the timer of the server disconnects a client that stopped reading */
+       writingSince = System.nanoTime();
+       try
+       {
+           transport.writeFrame( frame );
+       }
+       finally
+       {
+           writingSince = 0;
+       }
+       
+       CreditWindow w = flow;
+       if ( w != null )
+           w.consume();
+   }
+   
+   /**
+    * The gate of the outbound queue;the messages wait in the queue while the client has granted no credit.
+    * 
+    * @return TRUE if a frame may be written to the client
+    */
+   private boolean hasSendCredit()
+   {
+       CreditWindow w = flow;
+       
+       if ( w == null || w.hasCredit() )
+       {
+           /** The messages that waited for these credits are measured (by the load shedder) from now on */
+           if ( creditStalled )
            {
-                SocketServerGUI.getInstance().appendEvent("Error sending message to " + userName + "\n");
-                SocketServerGUI.getInstance().appendEvent( e.toString() );
+               creditStalled = false;
+               creditResumedAt = System.nanoTime();
            }
+           
            return true;
+       }
+       
+       creditStalled = true;
+       return false;
+   }
+   
+   /**
+    * Method for accounting a received frame as consumed and, every half window, granting the client new credits.
+    * 
+    * @param type The type of the consumed frame
+    */
+   private void creditConsumed( int type )
+   {
+       CreditWindow w = flow;
+       if ( w == null || !CreditWindow.isUpstreamControlled( type ) )
+           return;
+       
+       Frame grant = w.onConsumed();
+       if ( grant == null )
+           return;
+       
+       try
+       {
+           /** Not through the outbound queue;a grant must never wait for the credits of the other direction */
+           transport.writeFrame( grant );
+       }
+       catch ( IOException ioe )
+       {
+           SocketServerGUI.getInstance().appendEvent( "Error granting credits to " + userName + "\n" );
+       }
+   }
+   
+   /**
+    * Method for writing the coalesced messages to the client as a single record.
+    */
+   private void flushBatch()
+   {
+       if ( pendingBatch == null || pendingBatch.count() == 0 )
+           return;
+       
+       writeRecord( pendingBatch.toByteArray(), FrameCodec.FLAG_BATCH, batchSeq );
+       pendingBatch.reset();
+       batchSeq = -1;
+   }
+   
+   /**
+    * Method for encrypting a plaintext into a single record and writing it to the client.
+    * 
+    * @param plaintext The message (or packed batch of messages) to be written
+    * @param flags The flags of the frame
+    * @param seq The journal sequence number of the (last journaled) message;-1 if none was journaled
+    */
+   private void writeRecord( byte[] plaintext, int flags, long seq )
+   {
+       // write the message to the stream
+       try 
+       {
+           /** Compress first, if negotiated and worth it;the ciphertext would not compress */
+           ChatCompressor c = compressor;
+           byte[] compressed = ( c == null ) ? null : c.compress( plaintext );
+           if ( compressed != null )
+           {
+               plaintext = compressed;
+               flags |= FrameCodec.FLAG_COMPRESSED;
+           }
+           
+           /** Encrypt for the broadcast based on the username, into a buffer leased from the pool*/
+           ByteBuffer record = cryptoManager.encryptRecord(ByteBuffer.wrap(plaintext), sessionKey);
+           try
+           {
+               Frame frame = new Frame(ChatMessage.MESSAGE, record);
+               
+               /** Let the client know how far it got in the history */
+               if ( sequenced && seq > 0 )
+               {
+                   flags |= FrameCodec.FLAG_SEQ;
+                   frame.setSeq( seq );
+               }
+               
+               frame.setFlags(flags);
+               sendFrame(frame);
+           }
+           finally
+           {
+               BufferPool.getInstance().release(record);
+           }
+       }
+       // if an error occurs, do not abort just inform the user
+       catch( Exception e ) 
+       {
+            SocketServerGUI.getInstance().appendEvent("Error sending message to " + userName + "\n");
+            SocketServerGUI.getInstance().appendEvent( e.toString() );
+       }
    }
     
     /**
@@ -474,11 +1721,8 @@ public class SocketConnectionHandler implements Runnable
      */
     public void socketConnectionHandlerRelease()
     {
-        /** First clear the reference to the previous connection... */
-        handleConnection = null;
-
-        /** Initialize the auxiliary identifier variables... */
-        isSocketOpen = false;
+        /** First let go of the connection and everything held for it... */
+        closeConnection();
         
         /** Print to the logging stream that this SSLConnectionHandler is returing in the ConnectionHandling pool... */
         SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Finished SckHandling -- Back in the pool (" + connectionStat.getCurrentDate() + ")\n");
@@ -492,6 +1736,130 @@ public class SocketConnectionHandler implements Runnable
         }
     }
     
+    /**
+     * Method for letting go of the assigned socket connection;the socket is closed, whatever is still queued for it
+     * is discarded and its fan-out monitor is forgotten by the LoadShedder. Called on every way out of a connection,
+     * including a failed handshake after which this handler is replaced in the pool instead of returning to it.
+     */
+    private void closeConnection()
+    {
+        /** First clear the reference to the previous connection... */
+        Socket socket = handleConnection;
+        handleConnection = null;
+
+        /** Initialize the auxiliary identifier variables... */
+        isSocketOpen = false;
+        
+        /** The client is gone;so it must not receive any more room messages */
+        leaveAllRooms();
+        
+        /** Discard whatever is still queued for this connection, giving the leased buffers back to the pool */
+        SessionWorkQueue<OutboundMessage> out = outboundQueue;
+        closeInbound();
+        if ( out != null )
+            out.close( OutboundMessage::release, () -> dropBatch( out ) );
+        SocketServerEngine.getInstance().getLoadShedder().forgetFanOutMonitor( fanOutMonitor );
+        fanOutMonitor = null;
+        
+        /** Close the connection, unless the client already did, and wipe the session key */
+        closeSocket( socket );
+        SessionStore.getInstance().release( session );
+    }
+    
+    /**
+     * Method for closing the inbound queue of the connection;the received frames still queued or collected for the
+     * next chat batch are released.
+     */
+    private void closeInbound()
+    {
+        SessionWorkQueue<Frame> in = inboundQueue;
+        ArrayList<Frame> chat = pendingChat;
+        
+        if ( in != null )
+            in.close( Frame::release, () -> releaseFrames( chat ) );
+    }
+    
+    /**
+     * Method for releasing the received chat frames collected for a connection that is gone.
+     * 
+     * @param frames The frames collected by the inbound queue of the connection
+     */
+    private static void releaseFrames( ArrayList<Frame> frames )
+    {
+        for ( Frame frame : frames )
+            frame.release();
+        
+        frames.clear();
+    }
+    
+    /**
+     * Method for dropping the coalesced messages of a connection that is gone;unless the handler serves another
+     * connection by now.
+     * 
+     * @param closed The closed outbound queue of the connection
+     */
+    private void dropBatch( SessionWorkQueue<OutboundMessage> closed )
+    {
+        if ( outboundQueue == closed )
+        {
+            pendingBatch = null;
+            batchSeq = -1;
+        }
+    }
+    
+    /**
+     * Method for disconnecting the client if a write to it has been blocked for too long;i.e. it stopped reading
+     * without flow control keeping us from writing to it. The blocked worker thread is then freed by the closing.
+     * 
+     * @param now The current System.nanoTime()
+     * @param timeout The longest time (in nanoseconds) a write may be blocked
+     */
+    void closeIfWriteStalled( long now, long timeout )
+    {
+        long since = writingSince;
+        if ( since == 0 || now - since <= timeout )
+            return;
+        
+        SocketServerGUI.getInstance().appendEvent( "[" + handlerName + "]:: Disconnecting " + userName + ";a write to it is blocked for " + ( now - since ) / 1000000L + " ms\n" );
+        isSocketOpen = false;
+        closeSocket( handleConnection );
+    }
+    
+    /**
+     * Method for closing the connection of a session that expired (see SessionStore);the blocked reader then releases
+     * this handler back to the pool.
+     * 
+     * @param expired The expired session
+     */
+    void closeIdle( SessionStore.Session expired )
+    {
+        if ( session != expired )
+            return;
+        
+        isSocketOpen = false;
+        closeSocket( handleConnection );
+    }
+    
+    /**
+     * Method for closing a socket connection, ignoring the failures;i.e. when it may already be closed.
+     * 
+     * @param s The socket connection to close
+     */
+    private static void closeSocket( Socket s )
+    {
+        if ( s == null )
+            return;
+        
+        try
+        {
+            s.close();
+        }
+        catch ( IOException ioe )
+        {
+            /** Nothing more to do;the connection is gone anyway */
+        }
+    }
+    
      /**
      * Method for notifying this SocketConnectionHandler thread to stop its execution.
      */
@@ -1,14 +1,26 @@
 package chatapplication_server.components.ServerSocketEngine;
 
+import SocketActionMessages.BufferPool;
+import SocketActionMessages.MessageTransport;
 import chatapplication_server.ComponentManager;
 import chatapplication_server.components.ConfigManager;
+import chatapplication_server.components.JournalEngine.JournalChain;
+import chatapplication_server.components.JournalEngine.MessageJournal;
+import chatapplication_server.components.MailboxEngine.MailboxStore;
+import chatapplication_server.components.SearchEngine.SearchIndex;
 import chatapplication_server.components.base.GenericThreadedComponent;
 import chatapplication_server.exception.ComponentInitException;
 import chatapplication_server.statistics.ServerStatistics;
 import java.net.ServerSocket;
 import java.util.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.text.SimpleDateFormat;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -39,11 +51,33 @@ public class SocketServerEngine extends GenericThreadedComponent
     /** Object providing the secure server socket of the ChatApplication Central System  */
     ServerSocket ChatApplication_Server;
     
+    /** Token-bucket admission control applied to every accepted connection before any stream or crypto set up */
+    AdmissionController admissionController;
+    
+    /** Per user message and byte rate limiting applied by the connection handlers before decrypting a message */
+    MessageRateLimiter messageRateLimiter;
+    
+    /** Registry of the named rooms and their subscribed connection handlers */
+    RoomRegistry roomRegistry;
+    
+    /** Shared pool of worker threads processing the inbound and outbound work queues of all the connections */
+    ExecutorService workerPool;
+    
+    /** Single timer thread, e.g. for flushing the coalesced outbound messages once their linger time is over */
+    ScheduledExecutorService timer;
+    
+    /** CoDel based load shedding driven by the queueing delay of the handshakes and of the fan-out */
+    LoadShedder loadShedder;
+    
     /**
      * Creates a new instance of SocketServerEngine
      */
     public SocketServerEngine() {
         isRunning = false;
+        admissionController = new AdmissionController();
+        messageRateLimiter = new MessageRateLimiter();
+        roomRegistry = new RoomRegistry();
+        loadShedder = new LoadShedder();
     }
     
     /**
@@ -75,6 +109,33 @@ public class SocketServerEngine extends GenericThreadedComponent
             occupance = connHandlerOccp;
         }
 
+        /** The usage of the pooled buffers, shared by all the connections */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + BufferPool.getInstance().getStatistics() );
+        
+        /** The journal of the chat history */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + MessageJournal.getInstance().getStatistics() );
+        
+        /** The hash chain and the signed checkpoints of the journal */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + JournalChain.getInstance().getStatistics() );
+        
+        /** The mails waiting for the users that are not connected */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + MailboxStore.getInstance().getStatistics() );
+        
+        /** The full-text index of the chat history */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + SearchIndex.getInstance().getStatistics() );
+        
+        /** The batch signing of the session keys */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + SessionKeySigner.getInstance().getStatistics() );
+        
+        /** The sessions of the logged in clients */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + SessionStore.getInstance().getStatistics() );
+        
+        /** The sessions resumed after a restart */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + SessionSnapshot.getInstance().getStatistics() );
+        
+        /** The memory held for the connections, and how many more it leaves room for */
+        SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: " + getMemoryStatistics( occupance ) );
+
         /** If there is no established connection...print it to the logging stream */
         if ( occupance.size() == 0 )
         {
@@ -93,6 +154,68 @@ public class SocketServerEngine extends GenericThreadedComponent
         }
     }
     
+    /**
+     * Method for building the report of the memory held for the established connections (see
+     * SocketConnectionHandler.getFootprint) and of the ceiling of the connections. An idle, logged in connection
+     * holds about 2 KB of heap (its socket, transport, queues and session with its keys and certificate) and below
+     * 1 KB of direct buffers, so the heap alone would hold some hundred thousand of them;the ceiling is set by the
+     * number of connection handlers instead, each a platform thread (with about 30 KB of native stack committed
+     * even while idle), and by Sessions.Max.
+     * 
+     * @param occupance The connection handlers occupied by an established connection
+     * 
+     * @return A printable report of the memory
+     */
+    private String getMemoryStatistics( Vector<?> occupance )
+    {
+        long held = 0;
+        for ( Object handler : occupance )
+            held += ( ( SocketConnectionHandler )handler ).getFootprint();
+        
+        int connections = occupance.size();
+        long each = ( connections == 0 ) ? 0 : held / connections;
+        
+        long handlers = configManager.getValueLong( "ConnectionHandlers.Number" );
+        long sessions = configManager.getValueLong( "Sessions.Max" );
+        long heap = Runtime.getRuntime().maxMemory() / ( Math.max( each, SocketConnectionHandler.SESSION_FOOTPRINT ) + SocketConnectionHandler.HANDLER_FOOTPRINT );
+        
+        return "Memory:: Connections:= " + connections +
+               " Held:= " + held / 1024 + " KB (" + each + " bytes each)" +
+               " Ceiling:= " + Math.min( handlers, Math.min( sessions, heap ) ) +
+               " (handlers " + handlers + ", sessions " + sessions + ", heap " + heap + ")\n";
+    }
+    
+    /**
+     * Method for building the list of the connected users, as expected by the client GUI; i.e.
+     * "10,userName,port,handlerName,..." or "0" if there is no established connection.
+     * 
+     * @return The String representation of the online users
+     */
+    public String getOnlineUsers()
+    {
+        StringBuilder users = new StringBuilder( "10" );
+        
+        synchronized ( connHandlerOccp )
+        {
+            if ( connHandlerOccp.size() == 0 )
+                return "0";
+            
+            for ( int i = 0; i < connHandlerOccp.size(); i++ )
+            {
+                SocketConnectionHandler sch = ( SocketConnectionHandler )connHandlerOccp.get( i );
+                Socket handled = sch.getHandleSocket();
+                
+                /** Skip the handlers that are in the middle of being released */
+                if ( handled == null )
+                    continue;
+                
+                users.append( "," ).append( sch.getUserName() ).append( "," ).append( handled.getPort() ).append( "," ).append( sch.getHandlerIdentifierName() );
+            }
+        }
+        
+        return users.toString();
+    }
+    
     /**
      * Implementation of IComponent.initialize method().
      * This method is called upon initialize of the SocketServerEngine component and handles any configuration that needs to be
@@ -119,6 +242,71 @@ public class SocketServerEngine extends GenericThreadedComponent
         /** Set the default value of the number of SSLConnectionHandlers waiting in the connectionHandling pool */
         configManager.setDefaultValue( "ConnectionHandlers.Number", new Integer( 6 ).toString() );
         
+        /** Talk the binary framing unless the Java serialization compatibility mode is asked for */
+        configManager.setDefaultValue( "Transport.Mode", MessageTransport.MODE_BINARY );
+        
+        /** Set up the per address and global admission control of the incoming connections */
+        admissionController.initialize();
+        
+        /** Set up the per user rate limiting of the received chat messages */
+        messageRateLimiter.initialize();
+        
+        /** Fire up the worker pool processing the inbound and outbound messages of the connections */
+        configManager.setDefaultValue( "Workers.Number", Integer.toString( Runtime.getRuntime().availableProcessors() * 2 ) );
+        AtomicInteger workerId = new AtomicInteger( 1 );
+        workerPool = Executors.newFixedThreadPool( configManager.getValueInt( "Workers.Number" ), r -> new Thread( r, "SSWorker #" + workerId.getAndIncrement() ) );
+        timer = Executors.newSingleThreadScheduledExecutor( r -> new Thread( r, "SSTimer" ) );
+        
+        /** Coalescing of the outbound chat messages of the clients supporting it;disabled unless asked for */
+        configManager.setDefaultValue( "Coalescing.Enabled", "false" );
+        configManager.setDefaultValue( "Coalescing.Linger", "5" );
+        configManager.setDefaultValue( "Coalescing.MaxBytes", "16384" );
+        
+        /** Compression of the chat plaintexts before encryption;disabled by default since it may leak their content through their length */
+        configManager.setDefaultValue( "Compression.Enabled", "false" );
+        configManager.setDefaultValue( "Compression.MinLength", "64" );
+        
+        /** Credit based flow control (in frames) of the clients supporting it, and the bound of the chat messages queued per client */
+        configManager.setDefaultValue( "FlowControl.Enabled", "true" );
+        configManager.setDefaultValue( "FlowControl.Window", "256" );
+        configManager.setDefaultValue( "FlowControl.MaxQueued", "1024" );
+        
+        /** The longest time (in milliseconds) a worker may be blocked writing to a client that stopped reading */
+        configManager.setDefaultValue( "Socket.WriteTimeout", "10000" );
+        long writeCheck = Math.max( 100, configManager.getValueLong( "Socket.WriteTimeout" ) / 4 );
+        timer.scheduleWithFixedDelay( this::closeStalledWriters, writeCheck, writeCheck, TimeUnit.MILLISECONDS );
+        
+        /** The largest number of journaled messages a client may have replayed when it logs in */
+        configManager.setDefaultValue( "History.MaxReplay", "10000" );
+        
+        /** Leak detection of the pooled network and crypto buffers;it records a stack trace per lease, so only for debugging */
+        configManager.setDefaultValue( "BufferPool.Debug", "false" );
+        BufferPool.getInstance().setDebug( Boolean.parseBoolean( configManager.getValue( "BufferPool.Debug" ) ) );
+        
+        /** Set up the load shedding of the handshake and fan-out queues */
+        loadShedder.initialize();
+        
+        /** Open the journal of the chat history before any message can be sent */
+        MessageJournal.getInstance().initialize();
+        
+        /** ...chained and signed in the background, once verified against its last checkpoints */
+        JournalChain.getInstance().initialize();
+        
+        /** ...and the mailboxes of the users that are not connected */
+        MailboxStore.getInstance().initialize();
+        
+        /** The history is indexed in the background, catching up from the start of the journal */
+        SearchIndex.getInstance().initialize();
+        
+        /** The sessions of the clients are kept (and expired) from their login to their disconnection */
+        SessionStore.getInstance().initialize();
+        
+        /** The session keys of the handshakes are signed in batches */
+        SessionKeySigner.getInstance().initialize();
+        
+        /** The sessions of before a graceful restart wait for their clients to resume them */
+        SessionSnapshot.getInstance().initialize();
+        
         /** Start the connection handlers and add them in the pool... */
         SocketServerGUI.getInstance().appendEvent("[SSEngine]:: ConnectionHandling Pool (" + configManager.getValue( "ConnectionHandlers.Number" ) + ") fired up (" + lotusStat.getCurrentDate() + ")\n" );
         for ( int i = 0; i < configManager.getValueInt( "ConnectionHandlers.Number" ); i++ )
@@ -160,10 +348,11 @@ public class SocketServerEngine extends GenericThreadedComponent
     
     public ServerSocket getServer() throws Exception
     {
-        /** The Socket used by the server */
-        ServerSocket s = new ServerSocket( configManager.getValueInt( "Server.PortNumber" ) );
+        /** The Socket used by the server;opened through a (blocking) channel, so that the accepted connections have a channel for the frame I/O */
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.bind( new InetSocketAddress( configManager.getValueInt( "Server.PortNumber" ) ) );
         
-        return s;
+        return channel.socket();
     }
     
     /**
@@ -210,6 +399,72 @@ public class SocketServerEngine extends GenericThreadedComponent
         return connectionHandlingPool;
     }
     
+    /**
+     * Method for getting the per user rate limiter of the received chat messages.
+     * 
+     * @return The MessageRateLimiter of the socket server
+     */
+    public MessageRateLimiter getMessageRateLimiter()
+    {
+        return messageRateLimiter;
+    }
+    
+    /**
+     * Method for getting the registry of the named rooms.
+     * 
+     * @return The RoomRegistry of the socket server
+     */
+    public RoomRegistry getRoomRegistry()
+    {
+        return roomRegistry;
+    }
+    
+    /**
+     * Method for getting the shared pool of worker threads processing the work queues of the connections.
+     * 
+     * @return The worker pool of the socket server
+     */
+    public ExecutorService getWorkerPool()
+    {
+        return workerPool;
+    }
+    
+    /**
+     * Method for disconnecting the clients that a worker thread has been blocked writing to for longer than
+     * Socket.WriteTimeout milliseconds;run periodically by the timer thread.
+     */
+    private void closeStalledWriters()
+    {
+        long now = System.nanoTime();
+        long timeout = configManager.getValueLong( "Socket.WriteTimeout" ) * 1000000L;
+        
+        synchronized ( connHandlerOccp )
+        {
+            for ( int i = 0; i < connHandlerOccp.size(); i++ )
+                ( ( SocketConnectionHandler )connHandlerOccp.get( i ) ).closeIfWriteStalled( now, timeout );
+        }
+    }
+    
+    /**
+     * Method for getting the timer thread of the socket server.
+     * 
+     * @return The timer of the socket server
+     */
+    public ScheduledExecutorService getTimer()
+    {
+        return timer;
+    }
+    
+    /**
+     * Method for getting the load shedder of the socket server.
+     * 
+     * @return The LoadShedder of the socket server
+     */
+    public LoadShedder getLoadShedder()
+    {
+        return loadShedder;
+    }
+    
     /**
      * Method for adding a Connection Handler with the specified name to the already existing ConnectionHandling
      * pool. This method is actually called by a Connection Handler which, for some reason, wants to shut down.
@@ -255,8 +510,29 @@ public class SocketServerEngine extends GenericThreadedComponent
                 /** Format message saying that we are waiting for new connections... */
                 SocketServerGUI.getInstance().appendEvent( "[SSEngine]:: Waiting for clients on port " + configManager.getValue( "Server.PortNumber" ) + "\n" );
                 
+                /** While the handshakes are congested, leave the new logins waiting in the listen backlog for a while */
+                try
+                {
+                    loadShedder.deferLoginIfCongested();
+                }
+                catch ( InterruptedException ie )
+                {
+                    /** Shutting down... */
+                }
+                
                 s = ( Socket )ChatApplication_Server.accept();
                 
+                /** Refuse the connection if its address (or the server as a whole) ran out of admission tokens... */
+                if ( !admissionController.admit( s.getInetAddress() ) )
+                {
+                    /** Keep track of this event in the logging stream... */
+                    SocketServerGUI.getInstance().appendEvent("[SSEngine]:: Connection refused by admission control (" + s.getRemoteSocketAddress() + ") (" + lotusStat.getCurrentDate() + ")\n" );
+                    
+                    /** Close it before any stream or crypto set up takes place */
+                    s.close();
+                    continue;
+                }
+                
                  /** Assign to it a connection handler from the pool... */
                 SocketConnectionHandler socketHandler = null;
                 
@@ -332,9 +608,82 @@ public class SocketServerEngine extends GenericThreadedComponent
             SocketConnectionHandler sch = ( SocketConnectionHandler )occupance.get( i );
 
             /** If this is the correct client... */
-            if ( sch.getHandleSocket().getPort() == PortNo )
+            Socket handled = sch.getHandleSocket();
+            if ( handled != null && handled.getPort() == PortNo )
+            {
                 sch.writeMsg( msg );
+                return;
+            }
         }
+        
+        /** There is no user behind a port that is not connected;so there is no mailbox to keep the message for it either */
+        SocketServerGUI.getInstance().appendEvent("[SSEngine]:: No client connected at port " + PortNo + ";message dropped (" + lotusStat.getCurrentDate() + ")\n" );
+    }
+    
+    /**
+     * Method for sending a message to a user by name;if the user is not connected, the message is kept in its
+     * mailbox and delivered once it logs in.
+     * 
+     * @param recipient The username of the recipient
+     * @param sender The username of the sender
+     * @param text The text of the message
+     * 
+     * @return TRUE if the message was queued for the user or stored in its mailbox; FALSE if the mailbox refused it
+     */
+    public boolean writeMsgSpecificClient( String recipient, String sender, String text ) throws Exception {
+        SocketConnectionHandler sch = getHandlerByUserName( recipient );
+        
+        if ( sch != null && sch.writeMsg( new SimpleDateFormat( "HH:mm:ss" ).format( new Date() ) + " Mail from " + sender + ": " + text + "\n" ) )
+            return true;
+        
+        return MailboxStore.getInstance().deposit( recipient, sender, text );
+    }
+    
+    /**
+     * Method for finding the connection handler of a logged in user.
+     * 
+     * @param userName The username of the user
+     * 
+     * @return The connection handler of the user; null if the user is not connected (or has not completed the handshake)
+     */
+    public SocketConnectionHandler getHandlerByUserName( String userName )
+    {
+        synchronized ( connHandlerOccp )
+        {
+            for ( int i = 0; i < connHandlerOccp.size(); i++ )
+            {
+                SocketConnectionHandler sch = ( SocketConnectionHandler )connHandlerOccp.get( i );
+                
+                if ( sch.getHandleSocket() != null && sch.getClientCertificate() != null && userName.equals( sch.getUserName() ) )
+                    return sch;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Method for finding the connection handler of the client connected from the given port.
+     * 
+     * @param PortNo The (remote) port number of the client, as listed by getOnlineUsers()
+     * 
+     * @return The connection handler of the client; null if no such client is connected
+     */
+    public SocketConnectionHandler getHandlerByPort( int PortNo )
+    {
+        synchronized ( connHandlerOccp )
+        {
+            for ( int i = 0; i < connHandlerOccp.size(); i++ )
+            {
+                SocketConnectionHandler sch = ( SocketConnectionHandler )connHandlerOccp.get( i );
+                Socket handled = sch.getHandleSocket();
+                
+                if ( handled != null && handled.getPort() == PortNo )
+                    return sch;
+            }
+        }
+        
+        return null;
     }
     
     /**
@@ -343,16 +692,28 @@ public class SocketServerEngine extends GenericThreadedComponent
      * @param message The message to be broadcasted
      */
     public void broadcast( String message ) throws Exception {
+        broadcast( Collections.singletonList( message ) );
+    }
+    
+    /**
+     * Method for broadcasting a batch of chat messages (e.g. the burst of messages received from a client in one
+     * read) to all connected clients. Every client gets the whole batch queued at once;i.e. one lock of its
+     * outbound queue and one hand-off to the worker pool per batch instead of per message.
+     * 
+     * @param messages The messages to be broadcasted, in order
+     */
+    public void broadcast( List<String> messages ) throws Exception {
+        broadcast( messages, null );
+    }
+    
+    /**
+     * Method for broadcasting a batch of journaled chat messages to all connected clients.
+     * 
+     * @param messages The messages to be broadcasted, in order
+     * @param seqs The journal sequence numbers of the messages (-1 for the ones not journaled);null if none was journaled
+     */
+    public void broadcast( List<String> messages, long[] seqs ) throws Exception {
         System.out.println("I BROADCASTED A MESSAGE WUHU!");
-        SimpleDateFormat sdf = new SimpleDateFormat( "HH:mm:ss" );
-        
-        // add HH:mm:ss and \n to the message
-        String time = sdf.format(new Date());
-        String messageLf = time + " " + message + "\n";
-
-        
-        /** Print the message on the Server GUI */
-        SocketServerGUI.getInstance().appendRoom( messageLf );
         
         /** Vector that will temporarily hold a clone of the occupance pool... */
         Vector occupance = new Vector();
@@ -363,6 +724,9 @@ public class SocketServerEngine extends GenericThreadedComponent
             occupance = connHandlerOccp;
         }
 
+        // add HH:mm:ss and \n to the messages and print them on the Server GUI
+        List<OutboundMessage> outbound = prepareBatch( "", messages, false, seqs );
+
         /** If there is no established connection...print it to the logging stream */
         if ( occupance.size() == 0 )
         {
@@ -370,16 +734,97 @@ public class SocketServerEngine extends GenericThreadedComponent
             return;
         }
 
-        /** Then, for each connection handler that is occupied..print some information */
+        /** Then, for each connection handler that is occupied..queue the batch (encoded once, shared by all of them) */
         for ( int i = 0; i < occupance.size(); i++ )
         {
             /** Get a Connection Handler reference... */
             SocketConnectionHandler sch = ( SocketConnectionHandler )occupance.get( i );
 
-           sch.writeMsg( messageLf );
+           sch.enqueueAll( outbound );
         }
     }
     
+    /**
+     * Method for broadcasting a chat message (bulk class) only to the clients that joined a specific room.
+     * 
+     * @param room The name of the room
+     * @param message The message to be broadcasted
+     */
+    public void broadcastToRoom( String room, String message ) throws Exception {
+        broadcastToRoom( room, Collections.singletonList( message ), false );
+    }
+    
+    /**
+     * Method for broadcasting an event/message only to the clients that joined a specific room.
+     * 
+     * @param room The name of the room
+     * @param message The message to be broadcasted
+     * @param isControl TRUE if the message is a presence update that must skip ahead of the queued chat traffic
+     */
+    public void broadcastToRoom( String room, String message, boolean isControl ) throws Exception {
+        broadcastToRoom( room, Collections.singletonList( message ), isControl );
+    }
+    
+    /**
+     * Method for broadcasting a batch of events/messages only to the clients that joined a specific room.
+     * The subscribers of the room are read from a copy-on-write snapshot;so no lock is held during the fan-out.
+     * 
+     * @param room The name of the room
+     * @param messages The messages to be broadcasted, in order
+     * @param isControl TRUE if the messages are presence updates that must skip ahead of the queued chat traffic
+     */
+    public void broadcastToRoom( String room, List<String> messages, boolean isControl ) throws Exception {
+        broadcastToRoom( room, messages, isControl, null );
+    }
+    
+    /**
+     * Method for broadcasting a batch of journaled events/messages only to the clients that joined a specific room.
+     * 
+     * @param room The name of the room
+     * @param messages The messages to be broadcasted, in order
+     * @param isControl TRUE if the messages are presence updates that must skip ahead of the queued chat traffic
+     * @param seqs The journal sequence numbers of the messages (-1 for the ones not journaled);null if none was journaled
+     */
+    public void broadcastToRoom( String room, List<String> messages, boolean isControl, long[] seqs ) throws Exception {
+        // add HH:mm:ss, the room and \n to the messages and print them on the Server GUI
+        List<OutboundMessage> outbound = prepareBatch( "[" + room + "] ", messages, isControl, seqs );
+        
+        /** Then, queue them (encoded once) to each connection handler subscribed to the room */
+        for ( SocketConnectionHandler sch : roomRegistry.getSubscribers( room ) )
+            sch.enqueueAll( outbound );
+    }
+    
+    /**
+     * Method for time stamping a batch of messages to be broadcasted, printing them on the Server GUI (in a single
+     * update) and encoding each of them once.
+     * 
+     * @param prefix The text put between the time stamp and every message (e.g. the room)
+     * @param messages The messages to be broadcasted
+     * @param isControl TRUE for the control class; FALSE for the bulk class
+     * @param seqs The journal sequence numbers of the messages;null if none was journaled
+     * 
+     * @return The messages to be queued to the recipients
+     */
+    private List<OutboundMessage> prepareBatch( String prefix, List<String> messages, boolean isControl, long[] seqs )
+    {
+        SimpleDateFormat sdf = new SimpleDateFormat( "HH:mm:ss" );
+        String time = sdf.format( new Date() );
+        
+        List<OutboundMessage> outbound = new ArrayList<>( messages.size() );
+        StringBuilder room = new StringBuilder();
+        
+        for ( int i = 0; i < messages.size(); i++ )
+        {
+            String messageLf = time + " " + prefix + messages.get( i ) + "\n";
+            room.append( messageLf );
+            outbound.add( new OutboundMessage( messageLf, isControl, ( seqs == null ) ? -1 : seqs[ i ] ) );
+        }
+        
+        SocketServerGUI.getInstance().appendRoom( room.toString() );
+        
+        return outbound;
+    }
+    
     public boolean getIsRunning()
     {
         return isRunning;
@@ -395,6 +840,33 @@ public class SocketServerEngine extends GenericThreadedComponent
      */
     public void shutdown() 
     {
+        /** Snapshot the sessions of the connected clients first, so they can resume them once we are back */
+        List<SocketConnectionHandler> handlers = new ArrayList<>();
+        synchronized ( connHandlerOccp )
+        {
+            for ( Object handler : connHandlerOccp )
+                handlers.add( ( SocketConnectionHandler )handler );
+        }
+        SessionSnapshot.getInstance().save( handlers );
+        
+        /** Stop the worker threads;any queued message is discarded */
+        if ( workerPool != null )
+            workerPool.shutdownNow();
+        if ( timer != null )
+            timer.shutdownNow();
+        
+        /** The handshakes still waiting for their signature fail */
+        SessionKeySigner.getInstance().shutdown();
+        
+        /** Write and force what is left for the journal, once nothing reads it any more */
+        SearchIndex.getInstance().shutdown();
+        JournalChain.getInstance().shutdown();
+        MessageJournal.getInstance().shutdown();
+        MailboxStore.getInstance().shutdown();
+        
+        /** Wipe the keys of the sessions still open */
+        SessionStore.getInstance().shutdown();
+        
         /** Close the secure socket server */
         try
         {
@@ -17,6 +17,7 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.Timer;
 
 /**
  *
@@ -38,6 +39,12 @@ public class SocketServerGUI extends JFrame implements IComponent, ActionListene
    
    /** The Server port number */
    private JTextField tPortNumber;
+   
+   /** Label showing the thresholds and the current state of the load shedding */
+   private JLabel loadStatus;
+   
+   /** Timer refreshing the load shedding label */
+   private Timer loadStatusTimer;
     
      /**
      * Singleton instance of the SocketServerEngine component
@@ -91,6 +98,12 @@ public class SocketServerGUI extends JFrame implements IComponent, ActionListene
 	center.add(new JScrollPane(event));	
 	add(center);
         
+        /** the load shedding state, refreshed every half a second */
+        loadStatus = new JLabel( " " );
+        add( loadStatus, BorderLayout.SOUTH );
+        loadStatusTimer = new Timer( 500, e -> loadStatus.setText( server.getIsRunning() ? server.getLoadShedder().getStatus() : "Server stopped" ) );
+        loadStatusTimer.start();
+        
         /** need to be informed when the user click the close button on the frame */
 	addWindowListener( this );
 	setSize( 400, 600 );
@@ -219,6 +232,9 @@ public class SocketServerGUI extends JFrame implements IComponent, ActionListene
     */
    public void shutdown()
    {
+       if ( loadStatusTimer != null )
+           loadStatusTimer.stop();
+       
        dispose();
    }
 }
@@ -0,0 +1,126 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+/**
+ * Minimal token bucket used for rate limiting in the socket server.
+ * The bucket is refilled lazily; i.e. no timer thread is involved and the tokens that were earned since the last
+ * access are added whenever the bucket is consulted. This keeps every bucket down to two primitive fields, so that
+ * thousands of them (one per remote address or user) can be kept in memory.
+ *
+ * @author atgianne
+ */
+public class TokenBucket
+{
+    /** Number of tokens currently available in the bucket */
+    private double tokens;
+
+    /** Timestamp (System.nanoTime) of the last refill of the bucket */
+    private long lastRefill;
+
+    /**
+     * Creates a new, full, token bucket.
+     *
+     * @param burst The capacity of the bucket
+     */
+    public TokenBucket( double burst )
+    {
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Add to the bucket the tokens earned since the last refill, without exceeding its capacity.
+     *
+     * @param rate The refill rate of the bucket (tokens per second)
+     * @param burst The capacity of the bucket
+     * @param now The current System.nanoTime()
+     */
+    private void refill( double rate, double burst, long now )
+    {
+        if ( now > lastRefill )
+        {
+            tokens = Math.min( burst, tokens + ( now - lastRefill ) * rate / 1e9 );
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Method for trying to remove the given amount of tokens from the bucket.
+     *
+     * @param amount The number of tokens requested
+     * @param rate The refill rate of the bucket (tokens per second)
+     * @param burst The capacity of the bucket
+     *
+     * @return TRUE if the tokens were available (and removed); FALSE otherwise
+     */
+    public synchronized boolean tryConsume( double amount, double rate, double burst )
+    {
+        refill( rate, burst, System.nanoTime() );
+
+        if ( tokens < amount )
+            return false;
+
+        tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Method for returning tokens to the bucket; e.g. when a later admission check failed and the consumed
+     * token of an earlier check must be given back.
+     *
+     * @param amount The number of tokens to give back
+     * @param burst The capacity of the bucket
+     */
+    public synchronized void giveBack( double amount, double burst )
+    {
+        tokens = Math.min( burst, tokens + amount );
+    }
+
+    /**
+     * Method for computing how long a caller has to wait until the given amount of tokens becomes available.
+     *
+     * @param amount The number of tokens requested
+     * @param rate The refill rate of the bucket (tokens per second)
+     * @param burst The capacity of the bucket
+     *
+     * @return The waiting time in milliseconds (0 if the tokens are already available)
+     */
+    public synchronized long millisUntilAvailable( double amount, double rate, double burst )
+    {
+        refill( rate, burst, System.nanoTime() );
+
+        if ( tokens >= amount || rate <= 0 )
+            return 0;
+
+        return ( long )Math.ceil( ( amount - tokens ) * 1000 / rate );
+    }
+
+    /**
+     * Method for getting the current fill level of the bucket.
+     *
+     * @param rate The refill rate of the bucket (tokens per second)
+     * @param burst The capacity of the bucket
+     *
+     * @return The number of tokens currently available
+     */
+    public synchronized double available( double rate, double burst )
+    {
+        refill( rate, burst, System.nanoTime() );
+        return tokens;
+    }
+
+    /**
+     * Method for checking whether this bucket has been idle long enough to be refilled completely. Such a bucket is
+     * indistinguishable from a newly created one and can safely be evicted from any map holding it.
+     *
+     * @param rate The refill rate of the bucket (tokens per second)
+     * @param burst The capacity of the bucket
+     * @param now The current System.nanoTime()
+     *
+     * @return TRUE if the bucket is full and idle; FALSE otherwise
+     */
+    public synchronized boolean isIdle( double rate, double burst, long now )
+    {
+        refill( rate, burst, now );
+        return tokens >= burst;
+    }
+}
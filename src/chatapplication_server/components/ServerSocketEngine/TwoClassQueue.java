@@ -0,0 +1,106 @@
+package chatapplication_server.components.ServerSocketEngine;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.function.Predicate;
+
+/**
+ * FIFO queue with two priority classes. Items of the control class (LOGOUT, WHOISIN, presence updates, etc.)
+ * are always polled before items of the bulk class (chat traffic), while the FIFO order is kept within each class.
+ *
+ * @author atgianne
+ */
+public class TwoClassQueue<T>
+{
+    /** The items of the control (high priority) class */
+    private final ArrayDeque<T> control;
+
+    /** The items of the bulk (low priority) class */
+    private final ArrayDeque<T> bulk;
+
+    /**
+     * Creates a new, empty, instance of TwoClassQueue
+     */
+    public TwoClassQueue()
+    {
+        control = new ArrayDeque<>();
+        bulk = new ArrayDeque<>();
+    }
+
+    /**
+     * Method for appending an item at the end of its class.
+     *
+     * @param item The item to be queued
+     * @param isControl TRUE if the item belongs to the control class; FALSE for the bulk class
+     */
+    public synchronized void offer( T item, boolean isControl )
+    {
+        if ( isControl )
+            control.addLast( item );
+        else
+            bulk.addLast( item );
+    }
+
+    /**
+     * Method for appending several items, each at the end of its class, under a single lock acquisition.
+     *
+     * @param items The items to be queued, in order
+     * @param isControl Predicate telling whether an item belongs to the control class
+     */
+    public synchronized void offerAll( Collection<? extends T> items, Predicate<? super T> isControl )
+    {
+        for ( T item : items )
+        {
+            if ( isControl.test( item ) )
+                control.addLast( item );
+            else
+                bulk.addLast( item );
+        }
+    }
+
+    /**
+     * Method for removing the next item of the queue; i.e. the oldest control item or, if there is none, the
+     * oldest bulk item.
+     *
+     * @return The next item or null if the queue is empty
+     */
+    public synchronized T poll()
+    {
+        T item = control.pollFirst();
+
+        return ( item != null ) ? item : bulk.pollFirst();
+    }
+
+    /**
+     * Method for removing all the queued items of both classes.
+     */
+    public synchronized void clear()
+    {
+        control.clear();
+        bulk.clear();
+    }
+
+    /**
+     * @return TRUE if there is no queued item in either class; FALSE otherwise
+     */
+    public synchronized boolean isEmpty()
+    {
+        return control.isEmpty() && bulk.isEmpty();
+    }
+
+    /**
+     * @return The number of queued items of the control class
+     */
+    public synchronized int controlSize()
+    {
+        return control.size();
+    }
+
+    /**
+     * @return The number of queued items of the bulk class
+     */
+    public synchronized int bulkSize()
+    {
+        return bulk.size();
+    }
+}
@@ -0,0 +1,171 @@
+package crypto;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Merkle tree of a batch of hashes;e.g. of the chained hashes of the records between two journal checkpoints
+ * (see JournalChain) or of the session keys handed out by a round of logins (see SessionKeyBatch). The leaves are
+ * the hashes, in order, and every node is the hash of its two children:
+ *
+ *     leaf = SHA-256( 0x00 | hash )          node = SHA-256( 0x01 | left | right )
+ *
+ * (the prefixes tell a leaf from a node, so a node can never pass for a leaf). A node without a right sibling, i.e.
+ * the last one of a level with an odd number of nodes, is carried up to the next level as it is. Only the root is
+ * signed;the hash at index i of a batch of n is proven to be in it by the siblings on the way from its leaf to the
+ * root, i.e. at most log2(n) hashes.
+ *
+ * @author atgianne
+ */
+public final class MerkleTree
+{
+    private static final byte LEAF = 0x00, NODE = 0x01;
+
+    private MerkleTree()
+    {
+    }
+
+    /**
+     * Method for building the tree of a batch, level by level.
+     *
+     * @param hashes The hashes of the batch, in order (at least one)
+     *
+     * @return The levels of the tree, from the leaves to the root (the last level holds the root only)
+     */
+    public static byte[][][] build( byte[][] hashes )
+    {
+        MessageDigest md = sha256();
+        byte[][][] levels = new byte[ depth( hashes.length ) + 1 ][][];
+
+        levels[ 0 ] = new byte[ hashes.length ][];
+        for ( int i = 0; i < hashes.length; i++ )
+            levels[ 0 ][ i ] = hash( md, LEAF, hashes[ i ], null );
+
+        for ( int l = 1; l < levels.length; l++ )
+        {
+            byte[][] below = levels[ l - 1 ];
+            levels[ l ] = new byte[ ( below.length + 1 ) / 2 ][];
+
+            for ( int i = 0; i < below.length; i += 2 )
+                levels[ l ][ i / 2 ] = ( i + 1 < below.length ) ? hash( md, NODE, below[ i ], below[ i + 1 ] ) : below[ i ];
+        }
+
+        return levels;
+    }
+
+    /**
+     * @return The root of a tree built by build()
+     */
+    public static byte[] root( byte[][][] levels )
+    {
+        return levels[ levels.length - 1 ][ 0 ];
+    }
+
+    /**
+     * Method for collecting the path of a hash;i.e. the siblings on the way from its leaf to the root.
+     *
+     * @param levels The tree of the batch, built by build()
+     * @param index The index of the hash in the batch
+     *
+     * @return The siblings, from the leaf up
+     */
+    public static List<byte[]> path( byte[][][] levels, int index )
+    {
+        List<byte[]> path = new ArrayList<>( levels.length - 1 );
+
+        for ( int l = 0; l < levels.length - 1; l++, index >>= 1 )
+        {
+            /** The last node of an odd level has no sibling */
+            if ( ( index ^ 1 ) < levels[ l ].length )
+                path.add( levels[ l ][ index ^ 1 ] );
+        }
+
+        return path;
+    }
+
+    /**
+     * Method for computing the root of a batch from one of its hashes and its path.
+     *
+     * @param hash The hash
+     * @param index The index of the hash in the batch
+     * @param count The number of hashes of the batch
+     * @param path The siblings on the way from the leaf of the hash to the root
+     *
+     * @return The root the path leads to;null if the path does not fit a batch of that size
+     */
+    public static byte[] rootOf( byte[] hash, int index, int count, List<byte[]> path )
+    {
+        if ( index < 0 || index >= count )
+            return null;
+
+        MessageDigest md = sha256();
+        byte[] node = hash( md, LEAF, hash, null );
+        int used = 0;
+
+        for ( int size = count; size > 1; size = ( size + 1 ) / 2 )
+        {
+            /** The last node of an odd level has no sibling */
+            if ( ( index ^ 1 ) < size )
+            {
+                if ( used == path.size() )
+                    return null;
+
+                byte[] sibling = path.get( used++ );
+                node = ( ( index & 1 ) == 0 ) ? hash( md, NODE, node, sibling ) : hash( md, NODE, sibling, node );
+            }
+
+            index >>= 1;
+        }
+
+        return ( used == path.size() ) ? node : null;
+    }
+
+    /**
+     * Method for checking that a hash is in a batch.
+     *
+     * @return TRUE if the path of the hash leads to the given root
+     */
+    public static boolean verify( byte[] hash, int index, int count, List<byte[]> path, byte[] root )
+    {
+        byte[] computed = rootOf( hash, index, count, path );
+
+        return computed != null && MessageDigest.isEqual( computed, root );
+    }
+
+    /**
+     * @return The largest number of siblings on the path of a hash of a batch of the given size
+     */
+    public static int depth( int count )
+    {
+        int depth = 0;
+        for ( int size = count; size > 1; size = ( size + 1 ) / 2 )
+            depth++;
+
+        return depth;
+    }
+
+    private static byte[] hash( MessageDigest md, byte prefix, byte[] left, byte[] right )
+    {
+        md.update( prefix );
+        md.update( left );
+        if ( right != null )
+            md.update( right );
+
+        return md.digest();
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-256" );
+        }
+        catch ( NoSuchAlgorithmException nsae )
+        {
+            /** Every Java platform has SHA-256 */
+            throw new IllegalStateException( nsae );
+        }
+    }
+}
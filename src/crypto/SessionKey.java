@@ -0,0 +1,96 @@
+package crypto;
+
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import javax.crypto.SecretKey;
+
+/**
+ * An AES session key that can be wiped. A SecretKeySpec keeps its own copy of the key bytes until it is garbage
+ * collected and cannot be destroyed, so the Server keeps the session keys of its clients as SessionKeys and wipes
+ * them as soon as the session is over. Using a destroyed key fails with an IllegalStateException. A SecretKey is
+ * Serializable, yet a session key is never written anywhere in the clear;so serializing it fails.
+ *
+ * Wiping the key only covers the bytes held here. Every getEncoded() returns a fresh copy, which the caller owns and
+ * must wipe itself; the Cipher and Mac providers take such a copy on every init (SunJCE wipes it, along with its
+ * expanded key, when done), but a copy kept by any other provider outlives the session.
+ *
+ * @author atgianne
+ */
+public final class SessionKey implements SecretKey
+{
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] key;
+    private volatile boolean destroyed;
+
+    /**
+     * Creates a new instance of SessionKey
+     *
+     * @param key The key bytes;copied, so the caller may wipe its own
+     */
+    public SessionKey( byte[] key )
+    {
+        this.key = key.clone();
+    }
+
+    /**
+     * @return The algorithm of the key, i.e. AES
+     */
+    public String getAlgorithm()
+    {
+        return "AES";
+    }
+
+    /**
+     * @return The format of the key, i.e. RAW
+     */
+    public String getFormat()
+    {
+        return "RAW";
+    }
+
+    /**
+     * @return A copy of the key bytes
+     */
+    public byte[] getEncoded()
+    {
+        if ( destroyed )
+            throw new IllegalStateException( "The session key was destroyed" );
+
+        return key.clone();
+    }
+
+    /**
+     * @return The length of the key (in bytes)
+     */
+    public int length()
+    {
+        return key.length;
+    }
+
+    /**
+     * Wipe the key bytes.
+     */
+    public void destroy()
+    {
+        destroyed = true;
+        Arrays.fill( key, ( byte )0 );
+    }
+
+    /**
+     * @return TRUE if the key was wiped
+     */
+    public boolean isDestroyed()
+    {
+        return destroyed;
+    }
+
+    /**
+     * Refuse to serialize the key bytes.
+     */
+    private void writeObject( ObjectOutputStream out ) throws NotSerializableException
+    {
+        throw new NotSerializableException( "A session key must not be serialized" );
+    }
+}
@@ -0,0 +1,128 @@
+package crypto;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The batch signing of the session keys handed out by the Server. Instead of signing every session key on its own,
+ * the Server collects the commitments to the session keys of the logins arriving within a few milliseconds, signs
+ * the root of their Merkle tree (see MerkleTree) once and sends every client the shared signature along with the
+ * path of its own commitment:
+ *
+ *     commitment = SHA-256( session key | encoded public key of the client )
+ *     signed     = magic "SKEY" (4 bytes) | root (32 bytes)
+ *     proof      = number of keys (4 bytes) | index (4 bytes) | number of siblings (1 byte) | siblings (32 bytes each) | signature
+ *
+ * The commitment binds the session key to the client it was encrypted for, so the proof of one client does not
+ * vouch for a key replayed to another one;the other commitments of the batch reveal nothing about their keys.
+ *
+ * @author atgianne
+ */
+public final class SessionKeyBatch
+{
+    /** "SKEY" */
+    private static final int MAGIC = 0x534B4559;
+
+    /** The length of a commitment (and of a sibling) */
+    public static final int HASH_LENGTH = 32;
+
+    private SessionKeyBatch()
+    {
+    }
+
+    /**
+     * Method for computing the commitment to a session key.
+     *
+     * @param sessionKey The encoded session key
+     * @param clientKey The public key of the client the session key is for
+     *
+     * @return The commitment
+     */
+    public static byte[] commitment( byte[] sessionKey, PublicKey clientKey ) throws GeneralSecurityException
+    {
+        MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+        md.update( sessionKey );
+        md.update( clientKey.getEncoded() );
+
+        return md.digest();
+    }
+
+    /**
+     * @return The part signed for a batch with the given root
+     */
+    public static byte[] signedPart( byte[] root )
+    {
+        ByteBuffer signed = ByteBuffer.allocate( 4 + HASH_LENGTH );
+        signed.putInt( MAGIC );
+        signed.put( root );
+
+        return signed.array();
+    }
+
+    /**
+     * Method for encoding the proof of a session key.
+     *
+     * @param index The index of its commitment in the batch
+     * @param count The number of commitments of the batch
+     * @param path The siblings on the way from the leaf of its commitment to the root
+     * @param signature The signature of the batch
+     *
+     * @return The encoded proof
+     */
+    public static byte[] encodeProof( int index, int count, List<byte[]> path, byte[] signature )
+    {
+        ByteBuffer proof = ByteBuffer.allocate( 4 + 4 + 1 + path.size() * HASH_LENGTH + signature.length );
+        proof.putInt( count );
+        proof.putInt( index );
+        proof.put( ( byte )path.size() );
+        for ( byte[] sibling : path )
+            proof.put( sibling );
+        proof.put( signature );
+
+        return proof.array();
+    }
+
+    /**
+     * Method for checking the proof of a session key.
+     *
+     * @param sessionKey The encoded session key
+     * @param clientKey The public key of the client
+     * @param proof The buffer holding the proof, between its position and its limit
+     * @param serverKey The public key of the Server
+     *
+     * @return TRUE if the session key was signed by the Server for this client
+     */
+    public static boolean verify( byte[] sessionKey, PublicKey clientKey, ByteBuffer proof, PublicKey serverKey ) throws GeneralSecurityException,
+                                                                                                                         ProtocolException
+    {
+        if ( proof.remaining() < 9 )
+            throw new ProtocolException( "Truncated session key proof" );
+
+        int count = proof.getInt();
+        int index = proof.getInt();
+        int siblings = proof.get() & 0xff;
+
+        if ( siblings * HASH_LENGTH >= proof.remaining() )
+            throw new ProtocolException( "Truncated session key proof" );
+
+        List<byte[]> path = new ArrayList<>( siblings );
+        for ( int i = 0; i < siblings; i++ )
+        {
+            byte[] sibling = new byte[ HASH_LENGTH ];
+            proof.get( sibling );
+            path.add( sibling );
+        }
+
+        byte[] signature = new byte[ proof.remaining() ];
+        proof.get( signature );
+
+        byte[] root = MerkleTree.rootOf( commitment( sessionKey, clientKey ), index, count, path );
+
+        return root != null && cryptoManager.VerifySign( signedPart( root ), signature, serverKey );
+    }
+}
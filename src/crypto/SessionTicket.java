@@ -0,0 +1,187 @@
+package crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+/**
+ * The resumption of a session after the Server restarted, without a new RSA handshake. Both ends still know the
+ * session key of the old session (the Server from its session snapshot), so they prove it to each other with HMACs
+ * and derive a fresh session key from it:
+ *
+ *     Client: RESUME  id (16 bytes) | client nonce (16 bytes) | HMAC-SHA256( key, "RESUME" | id | client nonce )
+ *     Server: RESUME  server nonce (16 bytes) | HMAC-SHA256( key, "RESUMED" | client nonce | server nonce )
+ *
+ *     new key = HMAC-SHA256( key, "KEY" | client nonce | server nonce )
+ *
+ * where the id names the old session without giving its key away, i.e. the first 16 bytes of SHA-256("ID" | key).
+ * An empty RESUME from the Server refuses the resumption;the Client then goes on with the full handshake. A session
+ * is resumed once at most, and a replayed RESUME gets nothing, since the new key depends on the nonce of the Server.
+ *
+ * @author atgianne
+ */
+public final class SessionTicket
+{
+    /** The length of the id, of the nonces and of the proofs */
+    public static final int ID_LENGTH = 16, NONCE_LENGTH = 16, PROOF_LENGTH = 32;
+
+    /** The length of the RESUME of the Client and of the one of the Server */
+    public static final int REQUEST_LENGTH = ID_LENGTH + NONCE_LENGTH + PROOF_LENGTH, REPLY_LENGTH = NONCE_LENGTH + PROOF_LENGTH;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private SessionTicket()
+    {
+    }
+
+    /**
+     * @return The id of the session with the given key
+     */
+    public static byte[] id( SecretKey key ) throws GeneralSecurityException
+    {
+        MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+        md.update( new byte[] { 'I', 'D' } );
+        byte[] raw = key.getEncoded();
+        md.update( raw );
+        Arrays.fill( raw, ( byte )0 );
+
+        byte[] id = new byte[ ID_LENGTH ];
+        System.arraycopy( md.digest(), 0, id, 0, ID_LENGTH );
+
+        return id;
+    }
+
+    /**
+     * @return A fresh nonce
+     */
+    public static byte[] nonce()
+    {
+        byte[] nonce = new byte[ NONCE_LENGTH ];
+        random.nextBytes( nonce );
+
+        return nonce;
+    }
+
+    /**
+     * Method for building the RESUME of the Client.
+     *
+     * @param key The session key of the old session
+     * @param clientNonce The nonce of the Client
+     *
+     * @return The body of the RESUME frame
+     */
+    public static byte[] request( SecretKey key, byte[] clientNonce ) throws GeneralSecurityException
+    {
+        byte[] id = id( key );
+
+        ByteBuffer request = ByteBuffer.allocate( REQUEST_LENGTH );
+        request.put( id );
+        request.put( clientNonce );
+        request.put( hmac( key, "RESUME", id, clientNonce ) );
+
+        return request.array();
+    }
+
+    /**
+     * Method for checking the proof of the RESUME of the Client.
+     *
+     * @param key The session key of the session named by the id of the request
+     * @param request The body of the RESUME frame
+     *
+     * @return TRUE if the Client knows the session key
+     */
+    public static boolean verifyRequest( SecretKey key, byte[] request ) throws GeneralSecurityException
+    {
+        if ( request.length != REQUEST_LENGTH )
+            return false;
+
+        byte[] id = new byte[ ID_LENGTH ], clientNonce = new byte[ NONCE_LENGTH ], proof = new byte[ PROOF_LENGTH ];
+        ByteBuffer.wrap( request ).get( id ).get( clientNonce ).get( proof );
+
+        return MessageDigest.isEqual( proof, hmac( key, "RESUME", id, clientNonce ) );
+    }
+
+    /**
+     * Method for building the RESUME of the Server, accepting the resumption.
+     *
+     * @param key The session key of the old session
+     * @param clientNonce The nonce of the Client
+     * @param serverNonce The nonce of the Server
+     *
+     * @return The body of the RESUME frame
+     */
+    public static byte[] reply( SecretKey key, byte[] clientNonce, byte[] serverNonce ) throws GeneralSecurityException
+    {
+        ByteBuffer reply = ByteBuffer.allocate( REPLY_LENGTH );
+        reply.put( serverNonce );
+        reply.put( hmac( key, "RESUMED", clientNonce, serverNonce ) );
+
+        return reply.array();
+    }
+
+    /**
+     * Method for checking the proof of the RESUME of the Server.
+     *
+     * @return TRUE if the Server knows the session key
+     */
+    public static boolean verifyReply( SecretKey key, byte[] clientNonce, byte[] reply ) throws GeneralSecurityException
+    {
+        if ( reply.length != REPLY_LENGTH )
+            return false;
+
+        byte[] serverNonce = new byte[ NONCE_LENGTH ], proof = new byte[ PROOF_LENGTH ];
+        ByteBuffer.wrap( reply ).get( serverNonce ).get( proof );
+
+        return MessageDigest.isEqual( proof, hmac( key, "RESUMED", clientNonce, serverNonce ) );
+    }
+
+    /**
+     * Method for deriving the session key of the resumed session.
+     *
+     * @return The new session key
+     */
+    public static SecretKey deriveKey( SecretKey key, byte[] clientNonce, byte[] serverNonce ) throws GeneralSecurityException
+    {
+        return new SecretKeySpec( hmac( key, "KEY", clientNonce, serverNonce ), "AES" );
+    }
+
+    /**
+     * @return The id of the request (see request)
+     */
+    public static byte[] idOf( byte[] request )
+    {
+        byte[] id = new byte[ ID_LENGTH ];
+        System.arraycopy( request, 0, id, 0, ID_LENGTH );
+
+        return id;
+    }
+
+    /**
+     * @return The nonce of the Client in a request, or of the Server in a reply
+     */
+    public static byte[] nonceOf( byte[] frame, boolean request )
+    {
+        byte[] nonce = new byte[ NONCE_LENGTH ];
+        System.arraycopy( frame, request ? ID_LENGTH : 0, nonce, 0, NONCE_LENGTH );
+
+        return nonce;
+    }
+
+    private static byte[] hmac( SecretKey key, String label, byte[] first, byte[] second ) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance( "HmacSHA256" );
+        mac.init( key );
+        mac.update( label.getBytes( US_ASCII ) );
+        mac.update( first );
+        mac.update( second );
+
+        return mac.doFinal();
+    }
+}
@@ -1,6 +1,11 @@
 package crypto;
 
+import SocketActionMessages.BufferPool;
+import SocketActionMessages.Frame;
+import SocketActionMessages.FrameCodec;
+import SocketActionMessages.MessageTransport;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
@@ -8,7 +13,6 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Base64;
-import java.util.HashMap;
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -22,7 +26,19 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 public class cryptoManager {
     /** Use for GCM... */
     public static final int GCM_TAG_LENGTH = 16;
-    private static final int GCM_IV_LENGTH = 12;
+    public static final int GCM_IV_LENGTH = 12;
+    /** Shared source of the IVs; SecureRandom is thread safe and expensive to seed */
+    private static final SecureRandom RANDOM = new SecureRandom();
+    /** The AES-GCM cipher of every thread;Cipher.getInstance is far too expensive to be called for every record */
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    /** Scratch IV of every thread (GCMParameterSpec keeps its own copy) */
+    private static final ThreadLocal<byte[]> IV_SCRATCH = ThreadLocal.withInitial(() -> new byte[GCM_IV_LENGTH]);
 
     // if executing jar file from /out then move ServerKeyStore.jks to /out folder, and remove absolute path to rel.
     public static String ServerKeyStore = "D:\\Projects\\02232_Applied_Crypto_DTU\\ServerKeyStore.jks";
@@ -53,48 +69,83 @@ public class cryptoManager {
     }
     /** Extract the Public Key from the Certificate of the RootCA*/
     public final static PublicKey RootCAPubKey = ExtractPubKeyFromCert(RootCACert);
-    /**HashMap used by the Server to store the connecting Client's PublicKey*/
-    public static HashMap<String,PublicKey> Clients_PublicKeys_ServerSide = new HashMap<>();
-    /**HashMap used by the Server to store the connecting Client's random generated AES key*/
-    public static HashMap<String,SecretKey> Clients_SecretKeys_ServerSide = new HashMap<>();
     /** Variables used by the Client to assign their received AES key by the Server*/
     public static byte [] AES_s_client_key;
     public static SecretKeySpec AES_secret_client_key = null;
 
-    /** Encrypt function takes a String plaintext and a SecretKey masterkey.. to perform AES256gcm*/
-    public static String encrypt(String plaintext, SecretKey masterkey) throws Exception {
+    /** EncryptRecord function takes a plaintext byte array and a SecretKey masterkey.. to perform AES256gcm.
+     * Returns the raw record IV + ciphertext + tag, as carried in the body of the binary frames */
+    public static byte[] encryptRecord(byte[] plaintext, SecretKey masterkey) throws Exception {
         /** Generate a random 12 byte IV! MUST BE UNIQUE AND NEVER RE-USED... */
-        byte[] IV = new byte[12];
-        SecureRandom random = new SecureRandom();
-        random.nextBytes(IV);
+        byte[] IV = new byte[GCM_IV_LENGTH];
+        RANDOM.nextBytes(IV);
+        byte[] record = new byte[GCM_IV_LENGTH + plaintext.length + GCM_TAG_LENGTH];
+        System.arraycopy(IV, 0, record, 0, GCM_IV_LENGTH);
         /** Setup GCM AES with the IV and secret key ... */
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher cipher = GCM.get();
         GCMParameterSpec ivSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, IV);
         cipher.init(Cipher.ENCRYPT_MODE, masterkey, ivSpec);
-        /** Encrypt the plaintext and define a new byte array for the IV + ciphertext*/
-        byte[] ciphertext = cipher.doFinal(plaintext.getBytes(UTF_8));
-        byte[] IV_and_ciphertext = new byte[IV.length + ciphertext.length];
-        /** Put in the arrays */
-        System.arraycopy(IV, 0, IV_and_ciphertext, 0, IV.length);
-        System.arraycopy(ciphertext, 0, IV_and_ciphertext, IV.length, ciphertext.length);
+        /** Encrypt the plaintext straight after the IV, no intermediate ciphertext array */
+        cipher.doFinal(plaintext, 0, plaintext.length, record, GCM_IV_LENGTH);
+        return record;
+    }
+    /** DecryptRecord function takes a raw IV + ciphertext + tag record (at the given position of a buffer) and a SecretKey masterkey.. */
+    public static byte[] decryptRecord(byte[] buffer, int offset, int length, SecretKey masterkey) throws Exception {
+        if (length < GCM_IV_LENGTH + GCM_TAG_LENGTH)
+            throw new AEADBadTagException("Record too short");
+        /** Setup AES GCM decrypt mode, the IV is read in place*/
+        Cipher cipher = GCM.get();
+        GCMParameterSpec ivSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, buffer, offset, GCM_IV_LENGTH);
+        cipher.init(Cipher.DECRYPT_MODE, masterkey, ivSpec);
+        /** Decrypt the ciphertext + tag following the IV */
+        return cipher.doFinal(buffer, offset + GCM_IV_LENGTH, length - GCM_IV_LENGTH);
+    }
+    /** EncryptRecord function takes the plaintext between the position and the limit of a buffer (which is consumed).
+     * Returns the raw record IV + ciphertext + tag, in a direct buffer leased from the BufferPool that the caller
+     * must release once the record is written */
+    public static ByteBuffer encryptRecord(ByteBuffer plaintext, SecretKey masterkey) throws Exception {
+        ByteBuffer record = BufferPool.getInstance().lease(GCM_IV_LENGTH + plaintext.remaining() + GCM_TAG_LENGTH);
+        try {
+            /** Generate a random 12 byte IV! MUST BE UNIQUE AND NEVER RE-USED... */
+            byte[] IV = IV_SCRATCH.get();
+            RANDOM.nextBytes(IV);
+            record.put(IV);
+            Cipher cipher = GCM.get();
+            cipher.init(Cipher.ENCRYPT_MODE, masterkey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, IV));
+            /** Encrypt straight into the leased buffer, after the IV */
+            cipher.doFinal(plaintext, record);
+            record.flip();
+            return record;
+        } catch (Exception e) {
+            BufferPool.getInstance().release(record);
+            throw e;
+        }
+    }
+    /** DecryptRecord function takes a raw IV + ciphertext + tag record between the position and the limit of a
+     * (heap or direct) buffer, which is consumed;e.g. the body of a received frame */
+    public static byte[] decryptRecord(ByteBuffer record, SecretKey masterkey) throws Exception {
+        if (record.remaining() < GCM_IV_LENGTH + GCM_TAG_LENGTH)
+            throw new AEADBadTagException("Record too short");
+        byte[] IV = IV_SCRATCH.get();
+        record.get(IV);
+        Cipher cipher = GCM.get();
+        cipher.init(Cipher.DECRYPT_MODE, masterkey, new GCMParameterSpec(GCM_TAG_LENGTH * 8, IV));
+        /** Decrypt the ciphertext + tag following the IV straight into the plaintext array */
+        byte[] plaintext = new byte[record.remaining() - GCM_TAG_LENGTH];
+        cipher.doFinal(record, ByteBuffer.wrap(plaintext));
+        return plaintext;
+    }
+    /** Encrypt function takes a String plaintext and a SecretKey masterkey.. to perform AES256gcm*/
+    public static String encrypt(String plaintext, SecretKey masterkey) throws Exception {
         /** Return the IV + Ciphertext base64 encoded string... */
-        return Base64.getEncoder().encodeToString(IV_and_ciphertext);
+        return Base64.getEncoder().encodeToString(encryptRecord(plaintext.getBytes(UTF_8), masterkey));
     }
     /** Decrypt function takes a String plaintext and a SecretKey masterkey.. */
     public static String decrypt(String ciphertext, SecretKey masterkey) throws Exception {
         /** Decode from b64 */
         byte[] decoded = Base64.getDecoder().decode(ciphertext);
-        byte[] IV_extracted = Arrays.copyOfRange(decoded, 0, GCM_IV_LENGTH);
-        /** Setup AES GCM decrypt mode*/
-        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-        GCMParameterSpec ivSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, IV_extracted);
-        cipher.init(Cipher.DECRYPT_MODE, masterkey, ivSpec);
-
-        /** Extract the cipher text, as the ciphertext contains IV + encryptedtxt*/
-        byte[] ciphertext_extracted = Arrays.copyOfRange(decoded, IV_extracted.length, decoded.length);
-        byte [] decrypted = cipher.doFinal(ciphertext_extracted);
         /** Return the now decrypted plaintext */
-        return new String(decrypted, UTF_8);
+        return new String(decryptRecord(decoded, 0, decoded.length, masterkey), UTF_8);
     }
 
     public static PublicKey ExtractPubKeyFromCert(Certificate Certificate) {
@@ -130,27 +181,55 @@ public class cryptoManager {
         return cf.generateCertificate(fr);
     }
 
-    public static void SendCert(java.security.cert.Certificate Cert, ObjectOutputStream socketWriter){
-        /**Method to transmit a certificate with a ObjectOutputStream*/
+    public static void SendCert(java.security.cert.Certificate Cert, MessageTransport transport){
+        /**Method to transmit a certificate in a CERTIFICATE frame*/
         try {
-            socketWriter.writeObject(Cert);
-        } catch (IOException e) {
+            transport.writeFrame(new Frame(FrameCodec.CERTIFICATE, Cert.getEncoded()));
+        } catch (IOException | CertificateException e) {
             e.printStackTrace();
         }
 
     }
 
-    public static java.security.cert.Certificate ReceiveCert(ObjectInputStream socketReader) {
-        /**Method to Receive a certificate from a ObjectInputStream*/
+    public static java.security.cert.Certificate ReceiveCert(MessageTransport transport) {
+        /**Method to Receive a certificate from a CERTIFICATE frame*/
+        try {
+            return ParseCert(transport.readFrame());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static java.security.cert.Certificate ParseCert(Frame frame) {
+        /**Method to extract the certificate from an already received CERTIFICATE frame*/
         java.security.cert.Certificate Cert = null;
         try {
-            Cert = (java.security.cert.Certificate) socketReader.readObject();
-        } catch (IOException | ClassNotFoundException e) {
+            if (frame.getType() != FrameCodec.CERTIFICATE)
+                throw new IOException("Expected a certificate, received frame type " + frame.getType());
+            CertificateFactory cf = CertificateFactory.getInstance("X509");
+            Cert = cf.generateCertificate(new ByteArrayInputStream(frame.getBodyBytes()));
+        } catch (IOException | CertificateException e) {
             e.printStackTrace();
         }
         return Cert;
     }
 
+    public static String SubjectName(java.security.cert.Certificate cert) throws CertificateException {
+        /**Method to get the common name (CN) of the subject of a certificate;i.e. the name of the user it was issued to*/
+        if (!(cert instanceof X509Certificate))
+            throw new CertificateException("Not an X.509 certificate");
+        try {
+            for (javax.naming.ldap.Rdn rdn : new javax.naming.ldap.LdapName(((X509Certificate) cert).getSubjectX500Principal().getName()).getRdns()) {
+                if (rdn.getType().equalsIgnoreCase("CN"))
+                    return rdn.getValue().toString();
+            }
+        } catch (javax.naming.InvalidNameException e) {
+            throw new CertificateException("Malformed certificate subject -- " + e.getMessage());
+        }
+        throw new CertificateException("No common name in the certificate subject");
+    }
+
     public static byte[] encrypt_RSA(Key key, byte[] plaintext) throws NoSuchAlgorithmException,
             NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException
     {